@@ -1,21 +1,38 @@
 package AggregationServer;
 
 import JSONParser.JSONParser;
+import JSONParser.JSONWriter;
 import lamport.LamportClock;
+import protocol.Frame;
+import protocol.HashRing;
+import protocol.WireProtocol;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.AbstractMap;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Scanner;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // Isolation: No request can see one another, it only knows the Aggregation Server and the universal request message protocol
 // Consistency: Weather data is universal across all threads and entities connecting to the Aggregation server
@@ -23,7 +40,9 @@ import java.util.concurrent.LinkedBlockingQueue;
 // Durability: Changes are only made by current and future requests -> results remain after crash/failure
 // Causal time ordering: Relaxed ordering for better performance -> Independent threads can be concurrent but counted in Lamport time
 
-public class AggregationServer implements Serializable {
+// Final: the constructor hands the server to its Replication and Cluster and tracks the files left from a previous
+// run, which a subclass's constructor wouldn't have set up for yet
+public final class AggregationServer implements Serializable {
     // Provides a universal serialisation ID across all servers/entities
     @Serial
     private static final long serialVersionUID = 4567L;
@@ -32,8 +51,10 @@ public class AggregationServer implements Serializable {
     private volatile LamportClock clock;
     private String port = "4567";
     private ServerSocket ass;
+    private ServerSocketChannel serverChannel; // Only used by the NIO transport (ass is then this channel's socket)
 
     private String fileDirectory = "AggregationServer/";
+    private boolean filesLoaded; // Whether the store has read the SERVER_DATA files of fileDirectory
 
     // Stores individual threads for each socket (Content Server or Client) connected to the server
     // String = ID of the entity, Socket = entity's socket
@@ -43,15 +64,91 @@ public class AggregationServer implements Serializable {
     // Both streams are put into an ArrayList so only one HashMap is needed for retrieving the output/input streams
     private volatile ConcurrentHashMap<Socket, ArrayList<ObjectStreamConstants>> streams = new ConcurrentHashMap<Socket, ArrayList<ObjectStreamConstants>>();
 
+    // Output streams of the sockets that negotiated the binary wire protocol (see protocol.WireProtocol) instead
+    // These sockets have no entry in streams. Writes are synchronised on the stream
+    private volatile ConcurrentHashMap<Socket, OutputStream> binaryStreams = new ConcurrentHashMap<Socket, OutputStream>();
+
     // Concurrent thread-safe queue for storing requests accepted by the server
-    // String = request data (e.g. JSON data), Socket = entity's socket
-    private volatile BlockingQueue<ConcurrentHashMap.Entry<String, Socket>> requestQueue = new LinkedBlockingQueue<ConcurrentHashMap.Entry<String, Socket>>();
+    // Request = request message (or binary frame), the entity's ID and the entity's socket
+    // Bounded: a server that can't keep up answers 503 instead of letting the queue (and its heap) grow without limit
+    private volatile BlockingQueue<Request> requestQueue = new LinkedBlockingQueue<Request>(10000);
+
+    // Admission control (backpressure). A request is admitted while it is queued or waiting in / running on a lane, and
+    // there can be at most queueCapacity of those in total and maxInFlight per connection. Anything beyond that gets a
+    // 503 (with its Request-ID) straight away and the connection stays open, so its sender can retry after backing off
+    private int queueCapacity = 10000;
+    private int maxInFlight = 256;
+    private final AtomicInteger admitted = new AtomicInteger(0);
+    private final ConcurrentHashMap<Socket, AtomicInteger> inFlight = new ConcurrentHashMap<Socket, AtomicInteger>();
+    private final AtomicLong rejected = new AtomicLong(0);
+
+    // Execution lanes for requests taken off the requestQueue: each lane is a single-threaded executor
+    // Every request for a station is sent to the same lane, so different stations run in parallel while one station's
+    // PUTs still run one at a time, in the order (and therefore Lamport order) its Content Server sent them
+    private volatile ExecutorService[] lanes;
+    private volatile Thread dispatcher; // The checkForTasks thread, interrupted by shutdown
+    private volatile Thread expiryThread; // The checkUpdateTimes thread, interrupted by shutdown
+    private int laneCount = Runtime.getRuntime().availableProcessors(); // Default: one lane per core
+
+    // Primary/replica replication (see Replication). A replica follows the primary at replicaOfHost:replicaOfPort
+    private Replication replication;
+    private String replicaOfHost;
+    private int replicaOfPort;
+
+    // Cluster mode (see Cluster): the nodes given with --cluster, and this node among them (default localhost:port)
+    private Cluster cluster;
+    private String clusterNodes;
+    private String clusterSelf;
+
+    // Coalescing of a station's queued PUTs into one write (see PutCoalescer), null = every PUT runs on its own
+    private PutCoalescer coalescer = new PutCoalescer();
+
+    // The group of PUTs the current lane thread is running, while their entries are being merged (see executePUTs)
+    private final ThreadLocal<PutCoalescer.Group> coalescing = new ThreadLocal<PutCoalescer.Group>();
+
+    // Stations per message (or frame) of a bulk GET's reply, so a reply for the whole fleet is streamed in pieces
+    public static final int BULK_CHUNK = 256;
+
+    // Connection threads: false = one platform thread per socket (default), true = one virtual thread per socket
+    private boolean virtualThreads = false;
+
+    // Transport: 0 = blocking ServerSocket with a thread per connection (default),
+    // > 0 = NIO Selector transport with this many I/O threads serving every connection
+    private int nioThreads = 0;
+    private NioTransport nioTransport;
+
+    // In-memory weather data of every station: GETs are served from here, the SERVER_DATA files are written behind it
+    private StationStore store;
+
+    // Write-ahead log of every change to the store (see WriteAheadLog): off by default, --wal turns it on
+    // When on, PUTs are synced to the log before they are acknowledged, and the store is rebuilt from it on startup
+    private boolean writeAheadLog = false;
+    private WriteAheadLog wal;
+
+    // Group commit of PUT acknowledgements (see GroupCommit): off by default, --commit-window turns it on
+    private GroupCommit groupCommit;
+
+    // GETClients subscribed to station updates (SUBSCRIBE requests): PUTs are pushed to them instead of being polled for
+    private static final int PUSHER_THREADS = 2;
+    private Subscriptions subscriptions = new Subscriptions(64, PUSHER_THREADS);
 
     // Stores the files and their updated times
-    // Function checkUpdateTimes uses this to compare with latest time, removing it if it is older than 30 seconds or if limit 20 exceeded and the oldest is removed
+    // Function checkUpdateTimes uses this to compare with latest time, removing it if it is older than its TTL (30 seconds by default),
+    // and if the station limit is exceeded the oldest is removed (see RetentionPolicy)
     // String: weather data file path/name, Long: currentTimeMillis() of when it was added (remove when older than 30s from current time)
     private volatile ConcurrentHashMap<String, Long> currentFiles = new ConcurrentHashMap<String, Long>();
 
+    // Expiry deadlines of the stations in currentFiles, earliest first (see Expiry). checkUpdateTimes sleeps until the
+    // earliest one has passed instead of scanning currentFiles. There is at most one deadline per station: a PUT only
+    // changes the station's time in currentFiles (O(1)), and its deadline is moved later when it comes out of the queue
+    private final DelayQueue<Expiry> expiryQueue = new DelayQueue<Expiry>();
+
+    // Tracked stations ordered by their last update: GET "latest" reads its last entry instead of scanning currentFiles
+    private final RecencyIndex recency = new RecencyIndex();
+
+    // TTLs, station limit and eviction counters. Also the lock keeping currentFiles and the recency index in step
+    private final RetentionPolicy retention = new RetentionPolicy(recency);
+
     // Stores the latest clock value of the Aggregation Server without a crash,
     // Can have many elements, each element corresponds to a Content Server's uploaded file
     // String: latest file stored as a String, Integer: latest Lamport time prior to crash
@@ -89,7 +186,132 @@ public class AggregationServer implements Serializable {
     }
 
     // For integration tests, avoiding need for terminal input
-    public void setDirectory(String directory) { this.fileDirectory = directory; }
+    public void setDirectory(String directory) {
+        this.fileDirectory = directory;
+        store.setDirectory(directory);
+        filesLoaded = true;
+    }
+
+    // For testing purposes
+    public StationStore getStore() {
+        return store;
+    }
+
+    // Turns the write-ahead log on or off. The log is opened (and replayed) by beginOperation
+    public void setWriteAheadLog(boolean enabled) {
+        this.writeAheadLog = enabled;
+    }
+
+    // For testing purposes
+    public WriteAheadLog getWriteAheadLog() {
+        return wal;
+    }
+
+    // Turns group commit of PUT acknowledgements on: acks arriving within windowMicros (up to maxBatch of them)
+    // share one durable write. Must be called before checkForTasks
+    public void setGroupCommit(long windowMicros, int maxBatch) {
+        this.groupCommit = new GroupCommit(this, windowMicros, maxBatch);
+    }
+
+    // For testing purposes
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
+    }
+
+    // Most stations queued for one SUBSCRIBE subscriber before the oldest is dropped (see Subscriptions)
+    // Must be called before checkForTasks
+    public void setSubscriberQueue(int capacity) {
+        this.subscriptions = new Subscriptions(capacity, PUSHER_THREADS);
+    }
+
+    // For testing purposes
+    public Subscriptions getSubscriptions() {
+        return subscriptions;
+    }
+
+    // Most requests admitted at once across every connection (see admit). Must be called before listenForConnections
+    public void setQueueCapacity(int capacity) {
+        this.queueCapacity = Math.max(1, capacity);
+        this.requestQueue = new LinkedBlockingQueue<Request>(this.queueCapacity);
+    }
+
+    // Most requests admitted at once from one connection (see admit). Must be called before listenForConnections
+    public void setMaxInFlight(int max) {
+        this.maxInFlight = Math.max(1, max);
+    }
+
+    // Port replicas connect to while this server is the primary (see Replication). Must be set before beginOperation
+    public void setReplicationPort(int port) {
+        replication.setListenPort(port);
+    }
+
+    // Makes this server a replica of the primary whose replication port is host:port. Must be set before beginOperation
+    public void setReplicaOf(String host, int port) {
+        this.replicaOfHost = host;
+        this.replicaOfPort = port;
+    }
+
+    // Failover: this replica becomes the primary and takes PUTs (also the PROMOTE command in the terminal)
+    public void promote() {
+        replication.promote();
+    }
+
+    // For testing purposes
+    public LamportClock getClock() {
+        return clock;
+    }
+
+    // For testing purposes
+    public Replication getReplication() {
+        return replication;
+    }
+
+    // Runs this server as one node of a cluster (see Cluster). nodes = every node's host:port, comma-separated,
+    // self = this node's host:port (null = localhost and this server's port). Must be set before beginOperation
+    public void setCluster(String nodes, String self) {
+        this.clusterNodes = nodes;
+        this.clusterSelf = self;
+    }
+
+    // For testing purposes
+    public Cluster getCluster() {
+        return cluster;
+    }
+
+    // Coalescing of queued PUTs for the same station (default on). Must be set before checkForTasks is called
+    public void setCoalescing(boolean enabled) {
+        this.coalescer = enabled ? new PutCoalescer() : null;
+    }
+
+    // For testing purposes
+    public PutCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    // For testing purposes: requests refused with 503 so far
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    // For testing purposes: requests admitted and not yet executed
+    public int getAdmitted() {
+        return admitted.get();
+    }
+
+    // For integration tests, avoiding need for startup options: must be set before listenForConnections is called
+    public void setVirtualThreads(boolean enabled) {
+        this.virtualThreads = enabled;
+    }
+
+    // For integration tests, avoiding need for startup options: must be set before beginOperation is called
+    public void setNioThreads(int ioThreads) {
+        this.nioThreads = Math.max(0, ioThreads);
+    }
+
+    // For integration tests and benchmarks: number of execution lanes, must be set before checkForTasks is called
+    public void setLaneCount(int count) {
+        this.laneCount = Math.max(1, count);
+    }
 
     // For testing, to retrieve currentFiles variable
     public ConcurrentHashMap<String, Long> getCurrFiles() {
@@ -97,32 +319,185 @@ public class AggregationServer implements Serializable {
     }
 
     // For testing purposes
-    public BlockingQueue<ConcurrentHashMap.Entry<String, Socket>> getRequestQueue() {
+    public BlockingQueue<Request> getRequestQueue() {
         return requestQueue;
     }
 
     // For testing purposes, mock-function for adding update times to currentFiles
     public void addToCurrentFiles(String filePath, Long time) {
-        currentFiles.put(filePath, time);
+        refreshExpiry(filePath, time);
         return;
     }
 
+    // For testing purposes
+    public int getExpiryQueueSize() {
+        return expiryQueue.size();
+    }
+
+    // For testing purposes
+    public RecencyIndex getRecency() {
+        return recency;
+    }
+
+    // For testing purposes
+    public RetentionPolicy getRetention() {
+        return retention;
+    }
+
+    // Changes the global TTL. A shorter TTL re-queues every station's deadline, so none of them expires late
+    public void setDefaultTtl(long millis) {
+        long previous = retention.getDefaultTtl();
+        retention.setDefaultTtl(millis);
+        if (millis < previous) {
+            for (ConcurrentHashMap.Entry<String, Long> curr_file : currentFiles.entrySet()) {
+                expiryQueue.offer(new Expiry(curr_file.getKey(), curr_file.getValue(), ttlOf(curr_file.getKey())));
+            }
+        }
+    }
+
+    // Gives one station its own TTL (millis < 0 = back to the global TTL), re-queuing its deadline
+    public void setStationTtl(String stationID, long millis) {
+        retention.setStationTtl(stationID, millis);
+        String filePath = store.fileFor(stationID);
+        Long updated = currentFiles.get(filePath);
+        if (updated != null) {
+            expiryQueue.offer(new Expiry(filePath, updated, ttlOf(filePath)));
+        }
+    }
+
+    // Limits the number of stations kept (0 = no limit). Stations over the new limit are evicted straight away
+    public void setMaxStations(int max) {
+        retention.setMaxStations(max);
+        evictOverLimit();
+    }
+
+    // TTL of the station whose weather data is in this file
+    private long ttlOf(String filePath) {
+        return retention.ttlFor(StationStore.stationIDFromFile(filePath));
+    }
+
+    // Records a station file's update time, which restarts its expiry
+    // Only new stations (or an update time earlier than the known one, e.g. the real time found by the write-ahead log)
+    // need a new deadline in the queue, O(log n). Otherwise the queued deadline is early and is moved when it comes out
+    // A new station can take the server over its station limit, then the least recently updated one is evicted
+    private void refreshExpiry(String filePath, long updatedMillis) {
+        Long previous;
+        synchronized (retention) {
+            previous = currentFiles.put(filePath, updatedMillis);
+            recency.updated(filePath, clock.getTime());
+        }
+        if ((previous == null) || (updatedMillis < previous)) {
+            expiryQueue.offer(new Expiry(filePath, updatedMillis, ttlOf(filePath)));
+        }
+        if (previous == null) {
+            evictOverLimit();
+        }
+    }
+
+    // Non-threaded function: removes least recently updated stations until the server is within its station limit
+    // Each one is removed on its own lane (see evict), so not while a PUT of it is being applied
+    private void evictOverLimit() {
+        while (true) {
+            String filePath;
+            Long updated;
+            synchronized (retention) {
+                filePath = retention.nextEviction(); // Out of the recency index: not picked again
+                if (filePath == null) {
+                    return;
+                }
+                updated = currentFiles.get(filePath);
+            }
+            if (updated != null) {
+                String evicting = filePath;
+                runOnLane(StationStore.stationIDFromFile(filePath), () -> evict(evicting, updated));
+            }
+        }
+    }
+
+    // Non-threaded function (runs on the station's lane): Evicts a station picked as the least recently updated one,
+    // if it still has the update time it was picked with. A PUT that reached its lane first made it recent again, so
+    // it stays and the next least recently updated station is picked instead
+    private void evict(String filePath, long updated) {
+        boolean updatedSince;
+        synchronized (retention) {
+            Long current = currentFiles.get(filePath);
+            if (current == null) {
+                return; // Removed meanwhile (e.g. expired)
+            }
+            updatedSince = (current != updated);
+            if (!updatedSince) {
+                currentFiles.remove(filePath);
+            }
+        }
+        if (updatedSince) { // Back in the recency index: still over the limit
+            evictOverLimit();
+            return;
+        }
+        retention.countEvicted();
+        removeStation(StationStore.stationIDFromFile(filePath)); // Queued deadline is skipped: no longer in currentFiles
+        File evictedFile = new File(filePath);
+        if (!evictedFile.delete() && evictedFile.exists()) {
+            System.out.println("Failed to remove the file of an evicted station: " + filePath);
+        }
+        System.out.println("Station limit of " + retention.getMaxStations() + " reached. Least recently updated station evicted.");
+    }
+
     // For testing purposes, retrieving the streams hashmap
     public ConcurrentHashMap<Socket, ArrayList<ObjectStreamConstants>> getStreams() {
         return this.streams;
     }
 
     // For testing purposes, adding mock tasks
+    // String = entity's ID on the first line, then the request message, Socket = entity's socket
     public void addToRequestQueue(ConcurrentHashMap.Entry<String, Socket> request) {
-        this.requestQueue.offer(request);
+        String[] idAndData = request.getKey().split("\\r?\\n", 2);
+        Request mock = new Request(idAndData[0], request.getValue(), (idAndData.length > 1) ? idAndData[1] : "");
+        admitted.incrementAndGet(); // Counted like any other request, so finished() evens it out
+        inFlight.computeIfAbsent(mock.socket, s -> new AtomicInteger(0)).incrementAndGet();
+        this.requestQueue.offer(mock);
         return;
     }
 
     // Constructor: initialises Lamport clock, cleans weather file
     // Not threaded: runs only once at the beginning to prepare the server
     public AggregationServer() {
+        this(true);
+    }
+
+    // Same, with the startup options (see parseArguments). With a snapshot file the stations are read from it alone:
+    // the SERVER_DATA files are neither loaded nor given deadlines first (see startSnapshotFile)
+    public AggregationServer(String[] args) {
+        this(!usesSnapshotFile(args));
+        parseArguments(args);
+    }
+
+    private AggregationServer(boolean loadFiles) {
         clock = new LamportClock();
+        replication = new Replication(this, clock);
+        cluster = new Cluster(this, clock);
+        store = new StationStore(fileDirectory, loadFiles); // Loads the data of any files left from a previous run
+        filesLoaded = loadFiles;
+        if (loadFiles) {
+            trackExistingFiles();
+        }
+    }
+
+    // Whether the startup options map a snapshot file (a valid --snapshot=N)
+    private static boolean usesSnapshotFile(String[] args) {
+        for (String arg : args) {
+            if (arg.startsWith("--snapshot=")) {
+                try {
+                    return Integer.parseInt(arg.substring("--snapshot=".length())) > 0;
+                } catch (NumberFormatException nfe) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
 
+    // Non-threaded function: Tracks every file of the weather data folder for expiry
+    private void trackExistingFiles() {
         // Special case: if the AggregationServer was run before and crashed, CS files are maintained.
         // Design of the AggregationServer replicates the Content Server data into files in the local folder
         Path path = Paths.get(fileDirectory);
@@ -131,7 +506,7 @@ public class AggregationServer implements Serializable {
         if (existingFiles != null) {
             for (File file : existingFiles) {
                 if (file.isFile() && file.getName().endsWith(".txt")) {
-                    currentFiles.put(file.toString(), System.currentTimeMillis());
+                    refreshExpiry(file.toString(), System.currentTimeMillis());
                 }
             }
         }
@@ -139,10 +514,19 @@ public class AggregationServer implements Serializable {
 
     // Begins the server operation by establishing the server socket. Automatically retries up to 5 times
     public void beginOperation() {
+        if (writeAheadLog && (wal == null)) {
+            startWriteAheadLog(); // Recovers before any connection is accepted
+        }
         int attempts = 0;
         while (attempts <= 6) { // Allow the server 5 attempts to retry creating a ServerSocket
             try {
-                ass = new ServerSocket(Integer.parseInt(this.port));
+                if (nioThreads > 0) { // NIO transport: the ServerSocket is the channel's socket, so it is closed the same way
+                    serverChannel = ServerSocketChannel.open();
+                    serverChannel.bind(new InetSocketAddress(Integer.parseInt(this.port)));
+                    ass = serverChannel.socket();
+                } else {
+                    ass = new ServerSocket(Integer.parseInt(this.port));
+                }
                 clock.updateTime();
                 break;
             } catch (IOException ie) {
@@ -166,9 +550,91 @@ public class AggregationServer implements Serializable {
             }
         }
         System.out.println("Aggregation server is ONLINE.");
+        if (replicaOfHost != null) {
+            replication.follow(replicaOfHost, replicaOfPort);
+        } else {
+            replication.start();
+        }
+        if (clusterNodes != null) {
+            startCluster();
+        }
         return;
     }
 
+    // Non-threaded function: Joins the cluster given with setCluster (see Cluster.join). This node is added to the
+    // ring if the node list left it out
+    private void startCluster() {
+        HashRing ring = HashRing.parse(clusterNodes);
+        if (ring == null) {
+            System.out.println("Invalid cluster ignored (use --cluster=HOST:PORT,HOST:PORT,...): " + clusterNodes);
+            return;
+        }
+        String self = (clusterSelf != null) ? clusterSelf : "localhost:" + this.port;
+        cluster.configure(ring.withNode(self), self);
+        System.out.println("Cluster node " + self + " of " + cluster.getRing());
+        cluster.join();
+    }
+
+    // Non-threaded function: maps the snapshot file of the weather data folder (stations.snapshot) and serves the
+    // stations in it straight away: no SERVER_DATA file is read or written. capacity = room for stations in a new file
+    // Only the snapshot's stations are tracked for expiry, with their real update times (see trackOnly)
+    // The SERVER_DATA files are only read when there is no snapshot file yet (moved into the new one) or it can't be used
+    public void startSnapshotFile(int capacity) {
+        Path snapshotFile = Paths.get(fileDirectory, "stations.snapshot");
+        try {
+            long start = System.currentTimeMillis();
+            if (!filesLoaded && !Files.exists(snapshotFile)) {
+                store.setDirectory(fileDirectory);
+                filesLoaded = true;
+            }
+            store.useSnapshotFile(snapshotFile, capacity);
+            ArrayList<StationRecord> loaded = new ArrayList<StationRecord>(store.records());
+            trackOnly(loaded);
+            System.out.println("Snapshot file: " + loaded.size() + " stations ready in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        } catch (IOException ie) {
+            System.out.println("Couldn't use the snapshot file, records stay on the heap: " + ie.getMessage());
+            if (!filesLoaded) {
+                store.setDirectory(fileDirectory);
+                trackExistingFiles();
+                filesLoaded = true;
+            }
+        }
+    }
+
+    // Non-threaded function: opens the write-ahead log in the weather data folder and rebuilds the store from it
+    // The stations tracked for expiry are rebuilt from the log alone (see trackOnly): the files found at startup only
+    // had guessed update times, and a station the log removed may still have its file. Moves the Lamport clock past the log
+    public void startWriteAheadLog() {
+        try {
+            long start = System.currentTimeMillis();
+            wal = new WriteAheadLog(Paths.get(fileDirectory, "wal"), store, clock);
+            ArrayList<StationRecord> recovered = wal.recover();
+            trackOnly(recovered);
+            System.out.println("Write-ahead log: recovered " + recovered.size() + " stations in "
+                    + (System.currentTimeMillis() - start) + "ms, Lamport time " + clock.getTime());
+        } catch (IOException ie) {
+            System.out.println("Couldn't open the write-ahead log, PUTs won't be logged: " + ie.getMessage());
+            wal = null;
+        }
+    }
+
+    // Non-threaded function: Replaces every station tracked for expiry by the given ones, with their real update times
+    // Stations that aren't among them are no longer tracked, and their queued deadlines are dropped
+    private void trackOnly(ArrayList<StationRecord> records) {
+        synchronized (retention) {
+            for (String filePath : currentFiles.keySet()) {
+                recency.removed(filePath);
+            }
+            currentFiles.clear();
+        }
+        expiryQueue.clear();
+        records.sort((a, b) -> Long.compare(a.updatedMillis, b.updatedMillis)); // Least recently updated first
+        for (StationRecord record : records) {
+            refreshExpiry(store.fileFor(record.stationID), record.updatedMillis);
+        }
+    }
+
     // Threaded function (runs in background): checks if user has typed END in terminal to turn off the server
     // Only one instance of this thread is ever called. This is the MAIN thread; If it ends, all server operations/threads end.
     public void startScanThread() {
@@ -182,12 +648,17 @@ public class AggregationServer implements Serializable {
                     System.out.println("Scanning thread error: " + ie.getMessage());
                 }
                 line = scanner.nextLine();
+                if ((line != null) && (line.equals("PROMOTE"))) { // Failover: this replica takes over as the primary
+                    promote();
+                    continue;
+                }
                 if ((line != null) && (line.equals("END"))) {
                     try {
-                        for (ConcurrentHashMap.Entry<String, Socket> threads : socketThreads.entrySet()) {
-                            threads.getValue().close(); // safely close all sockets
+                        shutdown();
+                        if (groupCommit != null) {
+                            System.out.println("Group commit batch sizes: " + groupCommit.describe());
                         }
-                        ass.close();
+                        System.out.println("Retention: " + retention.describe());
                         clock.updateTime();
                         return;
                     } catch (IOException ie) {
@@ -199,10 +670,77 @@ public class AggregationServer implements Serializable {
         scanThread.start();
     }
 
+    // Non-threaded function (blocked): Turns the server off: closes every connection and the server socket, stops the
+    // dispatcher and the expiry thread, waits for the lanes to finish their current request, stops the group commit,
+    // NIO and subscription threads, and only then writes the data still waiting to be flushed and closes the write-ahead log
+    // Run when END is typed, and by tests to stop the servers they start
+    public void shutdown() throws IOException {
+        replication.close();
+        cluster.close();
+        for (ConcurrentHashMap.Entry<String, Socket> threads : socketThreads.entrySet()) {
+            threads.getValue().close(); // safely close all sockets
+        }
+        if (ass != null) {
+            ass.close();
+        }
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+        if (expiryThread != null) {
+            expiryThread.interrupt();
+        }
+        try {
+            if (dispatcher != null) {
+                dispatcher.join(); // Hands nothing more to the lanes
+            }
+            ExecutorService[] current = lanes;
+            if (current != null) {
+                for (ExecutorService lane : current) {
+                    lane.shutdownNow();
+                }
+                for (ExecutorService lane : current) { // A lane's current request finishes before anything is closed
+                    if (!lane.awaitTermination(10, TimeUnit.SECONDS)) {
+                        System.out.println("A lane didn't stop in time");
+                    }
+                }
+            }
+            if (groupCommit != null) {
+                groupCommit.stop(); // Commits the acks the lanes submitted last
+            }
+            if (nioTransport != null) {
+                nioTransport.stop();
+            }
+            subscriptions.stop();
+            if (expiryThread != null) {
+                expiryThread.join();
+            }
+            store.stopFlusher();
+        } catch (InterruptedException ie) {
+            System.out.println("Interrupted while shutting down: " + ie.getMessage());
+            Thread.currentThread().interrupt();
+        }
+        store.flush(); // Writes the data still waiting for the write-behind flusher
+        if (wal != null) {
+            wal.close();
+        }
+    }
+
     // Threaded function (runs in background): Continuously listen for incoming socket connections from entities
     // Once socket is accepted, output and input streams are created for it, clock is updated, and its data is registered
+    // In virtual-thread mode the handshake runs on the connection's own virtual thread, so a slow entity can't hold up accept()
+    // With the NIO transport, the transport's I/O threads accept and serve the connections instead
     // Only one instance of this function calls.
     public void listenForConnections() {
+        if (nioThreads > 0) {
+            try {
+                nioTransport = new NioTransport(this, serverChannel, nioThreads);
+                nioTransport.start();
+                System.out.println("Serving connections with " + nioThreads + " NIO thread(s)");
+            } catch (IOException ie) {
+                System.out.println("Failed to start NIO transport: " + ie.getMessage());
+            }
+            return;
+        }
         Thread listen = new Thread(() -> {
             while (true) { // Loop runs in the background, listening for any incoming sockets
                 Socket sc;
@@ -210,35 +748,12 @@ public class AggregationServer implements Serializable {
                     try {
                         if ((sc = ass.accept()) != null) {
                             clock.updateTime(); // socket accepted = 1 event
-                            ObjectOutputStream out = new ObjectOutputStream(sc.getOutputStream()); // Declare output stream first to avoid bugs
-                            ObjectInputStream in = new ObjectInputStream(sc.getInputStream());
-                            String socketData = "";
-                            try {
-                                socketData = (String) in.readObject(); // Collect information (e.g. ID) of the entity who connected
-                            } catch (ClassNotFoundException cnfe) {
-                                System.out.println("Connection attempt denied: failed to read input stream from socket (" + cnfe.getMessage() + ")");
-                                continue;
-                            }
-                            // The entity has to provide its local time and ID for it to be valid
-                            String[] socketDataSplitted = socketData.split("\\r?\\n");
-                            if (socketDataSplitted.length < 2) {
-                                System.out.println("Connection attempt denied: not enough info was provided");
-                                continue;
+                            if (virtualThreads) {
+                                Socket accepted = sc;
+                                startConnectionThread(() -> registerConnection(accepted));
+                            } else {
+                                registerConnection(sc);
                             }
-
-                            clock.processEvent(Integer.parseInt(socketDataSplitted[0])); // Tie-break of socket time and local time
-
-                            String identity = socketDataSplitted[1];
-
-                            socketThreads.put(identity, sc); // Adds the socket to HashMap database
-                            ArrayList<ObjectStreamConstants> objstreams = new ArrayList<ObjectStreamConstants>();
-                            objstreams.add(out);
-                            objstreams.add(in);
-                            streams.put(sc, objstreams); // Adds the output and input streams to HashMap database
-                            System.out.println("Connection established for " + identity + "\n");
-
-                            clock.updateTime(); // Socket data added to the server = 1 event
-                            listenForRequests(sc, identity); // Starts a background-running thread to listen for requests from this socket
                         }
                     } catch (IOException ie) {
                         if (!ass.isClosed()) {
@@ -255,135 +770,576 @@ public class AggregationServer implements Serializable {
         listen.start();
     }
 
+    // Non-threaded function (blocked): Handshake for a newly accepted socket
+    // Creates the output and input streams, reads the entity's timestamp and ID, registers its data,
+    // then starts listening for requests from it
+    // sc = the accepted socket
+    public void registerConnection(Socket sc) {
+        try {
+            // Peeks at the first bytes: the binary protocol starts with its magic number, Java serialisation with its header
+            BufferedInputStream rawIn = new BufferedInputStream(sc.getInputStream());
+            if (WireProtocol.isBinaryHandshake(rawIn)) {
+                registerBinaryConnection(sc, rawIn);
+                return;
+            }
+            ObjectOutputStream out = new ObjectOutputStream(sc.getOutputStream()); // Declare output stream first to avoid bugs
+            ObjectInputStream in = new ObjectInputStream(rawIn);
+            String socketData = "";
+            try {
+                socketData = (String) in.readObject(); // Collect information (e.g. ID) of the entity who connected
+            } catch (ClassNotFoundException cnfe) {
+                System.out.println("Connection attempt denied: failed to read input stream from socket (" + cnfe.getMessage() + ")");
+                return;
+            }
+            String identity = completeHandshake(sc, socketData, out, in);
+            if (identity != null) {
+                listenForRequests(sc, identity); // Starts a background-running thread to listen for requests from this socket
+            }
+        } catch (IOException ie) {
+            System.out.println("Failed to accept incoming socket: " + ie.getMessage());
+            clock.updateTime();
+        }
+    }
+
+    // Non-threaded function: Second half of the handshake, shared by both transports
+    // Checks the entity's handshake message (timestamp and ID) and registers the socket and its streams
+    // sc = the entity's socket, socketData = handshake message, out/in = the socket's streams (in is null for NIO)
+    // Returns the entity's ID, or null if the connection attempt is denied
+    public String completeHandshake(Socket sc, String socketData, ObjectOutputStream out, ObjectInputStream in) {
+        // The entity has to provide its local time and ID for it to be valid
+        String[] socketDataSplitted = socketData.split("\\r?\\n");
+        if (socketDataSplitted.length < 2) {
+            System.out.println("Connection attempt denied: not enough info was provided");
+            return null;
+        }
+
+        clock.processEvent(Integer.parseInt(socketDataSplitted[0])); // Tie-break of socket time and local time
+
+        String identity = socketDataSplitted[1];
+
+        socketThreads.put(identity, sc); // Adds the socket to HashMap database
+        ArrayList<ObjectStreamConstants> objstreams = new ArrayList<ObjectStreamConstants>();
+        objstreams.add(out);
+        objstreams.add(in);
+        streams.put(sc, objstreams); // Adds the output and input streams to HashMap database
+        System.out.println("Connection established for " + identity + "\n");
+
+        clock.updateTime(); // Socket data added to the server = 1 event
+        return identity;
+    }
+
+    // Non-threaded function (blocked): Handshake for a socket that asked for the binary protocol
+    // Agrees on the protocol version, reads the entity's HELLO frame (timestamp and ID), then listens for its frames
+    // sc = the accepted socket, in = its input stream (nothing consumed yet)
+    public void registerBinaryConnection(Socket sc, InputStream in) throws IOException {
+        if (WireProtocol.serverHandshake(in, sc.getOutputStream()) < 1) {
+            System.out.println("Connection attempt denied: unsupported protocol version");
+            sc.close();
+            return;
+        }
+        String identity = completeBinaryHandshake(sc, WireProtocol.readFrame(in), new BufferedOutputStream(sc.getOutputStream()));
+        if (identity != null) {
+            listenForFrames(sc, identity, in);
+        } else {
+            sc.close();
+        }
+    }
+
+    // Non-threaded function: Second half of the binary handshake, shared by both transports
+    // sc = the entity's socket, hello = its first frame, out = output stream for its responses
+    // Returns the entity's ID, or null if the connection attempt is denied
+    public String completeBinaryHandshake(Socket sc, Frame hello, OutputStream out) {
+        if ((hello.opcode != WireProtocol.OP_HELLO) || (hello.stationID.isEmpty())) {
+            System.out.println("Connection attempt denied: not enough info was provided");
+            return null;
+        }
+        clock.processEvent(hello.lamportTime); // Tie-break of socket time and local time
+        String identity = hello.stationID;
+        socketThreads.put(identity, sc);
+        binaryStreams.put(sc, out);
+        System.out.println("Connection established for " + identity + " (binary protocol)\n");
+        clock.updateTime(); // Socket data added to the server = 1 event
+        return identity;
+    }
+
+    // Creates and starts the thread that serves one connection (its handshake or its request loop)
+    // Platform threads each reserve a native stack, while a virtual thread blocked on a socket read only keeps a small
+    // heap-allocated stack, so in virtual-thread mode thousands of mostly idle entities can stay connected
+    private Thread startConnectionThread(Runnable task) {
+        if (virtualThreads) {
+            return Thread.ofVirtual().name("Connection").start(task); // Virtual threads are always daemon threads
+        }
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
     // Threaded function (runs in background): Continuously loop through and check for requests sent by the provided socket
     // Only called once for every socket (when it is accepted by this server)
     // If it detects a request from the socket's stream, it peeks the data for validity, and formats the data ready to be queued
     // socket = The socket the request was sent by, identity: the entity's ID
     public void listenForRequests(Socket socket, String identity) {
-        Thread listenRequests = new Thread(() -> {
+        startConnectionThread(() -> {
             ArrayList<ObjectStreamConstants> objstreams = new ArrayList<ObjectStreamConstants>(streams.get(socket));
-            String firstLine = "";
             while ((!socket.isClosed()) && (!objstreams.isEmpty()) && (objstreams.get(1) != null)) { // objstreams.get(1) = ObjectInputStream for the socket
                 try {
                     String wholeString = (String) ((ObjectInputStream) objstreams.get(1)).readObject(); // Get the request data as a string
-                    String[] requestLines = wholeString.split("\\r?\\n"); // Splits the data into array of lines
-                    if ((firstLine = requestLines[0]) != null && (!firstLine.isEmpty())) { // Take a peek at the data
-                        if (requestLines.length > 4) { // If a PUT message (> 4 lines), it has a timestamp at the top that needs to be removed
-                            clock.processEvent(Integer.parseInt(requestLines[0])); // Tie-break of local and received Lamport times
-                            wholeString = "";
-                            for (int i = 1; i < requestLines.length; ++i) { // Rebuild the request message without the timestamp
-                                wholeString += requestLines[i];
-                                if (i != (requestLines.length-1)) {
-                                    wholeString += "\n";
-                                }
-                            }
-                            requestLines = wholeString.split(System.lineSeparator());
-                        }
-
-                        firstLine = requestLines[0]; // Splits the first line into so that we can get PUT/GET (first word)
-                        String[] firstLineWords = firstLine.split(" ", 3);
-
-                        if (!firstLineWords[0].equals("PUT") && !firstLineWords[0].equals("GET")) { // Checks the first keyword is either PUT or GET
-                            System.out.println("A request was received but was invalid (Not a PUT/GET)");
-                            // Sends back status 400
-                            clock.updateTime();
-                            ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "400");
-                            ((ObjectOutputStream) objstreams.getFirst()).flush();
-                            return;
-                        }
-                        wholeString = (identity + "\n" + wholeString); // Adds ID of who sent the request to top of line
-                        boolean uploaded = requestQueue.offer(new AbstractMap.SimpleEntry<>(wholeString, socket)); // Adds data and socket to requestQueue
-                        if (uploaded) {
-                            System.out.println("Added new request to queue");
-                            clock.updateTime();
-                        } else { // Checks for failure
-                            System.out.println("Error: something went wrong when adding a new request to the queue");
-                            clock.updateTime();
-                        }
+                    if (!queueRequest(wholeString, socket, identity)) {
+                        return;
                     }
                 } catch (IOException | ClassNotFoundException e) {
                     System.out.println("A socket connection has ended: " + e.getMessage());
+                    connectionEnded(socket);
                     clock.updateTime();
                     return;
                 }
             }
         });
-        listenRequests.setDaemon(true);
-        listenRequests.start();
-    }
-
-    // Threaded function (runs-in-background): Continuously checks the currentFiles HashMap for expired content to remove
-    // Only called once - only one instance exists
-    // Loops through a HashMap containing files and their last updated time, compares with current time, checks if >30 seconds
-    public void checkUpdateTimes() {
-        Thread checkTimes = new Thread(() -> {
-            while (true) {
-                boolean removed = false;
-                for (ConcurrentHashMap.Entry<String, Long> curr_file : currentFiles.entrySet()) { // HashMap of files and their last update time
-                    if ((System.currentTimeMillis() - curr_file.getValue()) > 30000) {
-                        currentFiles.remove(curr_file.getKey());
-                        String[] currLine = curr_file.getKey().split("_", 2); // Get the file path and name
-                        currLine[0] = currLine[0].replaceAll("SERVER_DATA_", ""); // Extracts the stationID from the file name
-                        File currentFile = new File(curr_file.getKey());
-                        if (currentFile.delete()) {
-                            removed = true;
-                        } else {
-                            System.out.println("Failed to remove some expired content. Trying again..."); // Since this is a loop, it will try again
-                        }
-                    }
-                }
-
-                if (removed) {
-                    System.out.println("Expired content detected. Content removed.");
-                }
-
-                try {
-                    Thread.sleep(10); // Small break to avoid thread resource-overload
-                } catch (InterruptedException ie) {
-                    System.out.println("Timer thread interrupted: " + ie.getMessage());
-                    clock.updateTime();
-                    continue;
-                }
-            }
-        });
-        checkTimes.setDaemon(true);
-        checkTimes.start();
     }
 
-    // Threaded function (runs-in-background): Continuously checks the requestQueue for new tasks to execute
-    // Checks for new requests added to the queue and executes them - only 1 instance of this thread is run
-    // Requests in the queue are already scanned for validity, this function extracts the stationID at the first line
-    // The stationID is only used for the PUT request so the server knows where to put the file
-    public void checkForTasks() {
-        Thread checkThreads = new Thread(() -> {
-            while (true) {
+    // Threaded function (runs in background): Continuously reads frames sent by a binary protocol socket
+    // Only called once for every binary socket (when it is accepted by this server)
+    // socket = The socket the frames are sent by, identity: the entity's ID, in = the socket's input stream
+    public void listenForFrames(Socket socket, String identity, InputStream in) {
+        startConnectionThread(() -> {
+            while (!socket.isClosed()) {
                 try {
-                    Thread.sleep(2000); // Allows time for new requests to be added and prevents resource-overload
-                } catch (InterruptedException ie) {
-                    System.out.println("Delay fault in task checker: " + ie.getMessage());
-                }
-                if (!requestQueue.isEmpty()) { // Only checks the queue if it isn't empty
-                    for (ConcurrentHashMap.Entry<String, Socket> curr_request : requestQueue) { // Loops through each entry in the queue
-                        // Get the stationID from the data by first splitting the string into an array of lines for convenience
-                        String[] lines = curr_request.getKey().split("\\r?\\n");
-                        String stationID = lines[0]; // store the entityID, which is stationID and only used during PUT requests
-
-                        String requestData = "";
-                        for (int i = 1; i < lines.length; ++i) { // Removes entityID from the first line
-                            requestData += (lines[i]);
-                            if (i != (lines.length - 1)) {
-                                requestData += ("\n");
-                            }
-                        }
-                        executeRequest(requestData, curr_request.getValue(), stationID); // Non-threaded function -> Blocked call
-                        requestQueue.remove(); // Waits for above function to finish, before removing it from the queue.
-                        clock.updateTime();
+                    if (!queueFrame(WireProtocol.readFrame(in), socket, identity)) {
+                        return;
                     }
+                } catch (IOException ie) {
+                    System.out.println("A socket connection has ended: " + ie.getMessage());
+                    connectionEnded(socket);
+                    clock.updateTime();
+                    return;
                 }
             }
         });
-        checkThreads.setDaemon(true);
-        checkThreads.start();
+    }
+
+    // Non-threaded function: Handles one frame received from a binary protocol socket (by either transport)
+    // Every frame carries the sender's Lamport time, so the clock tie-break happens here for both PUT and GET
+    // Returns false if the frame was invalid (400 sent back) and the socket should no longer be listened to
+    public boolean queueFrame(Frame frame, Socket socket, String identity) throws IOException {
+        clock.processEvent(frame.lamportTime); // Tie-break of local and received Lamport times
+        if ((frame.opcode != WireProtocol.OP_PUT) && (frame.opcode != WireProtocol.OP_PUT_DELTA)
+                && (frame.opcode != WireProtocol.OP_PUT_BATCH) && (frame.opcode != WireProtocol.OP_GET)
+                && (frame.opcode != WireProtocol.OP_GET_BULK) && (frame.opcode != WireProtocol.OP_SUBSCRIBE)) {
+            System.out.println("A request was received but was invalid (Not a PUT/GET)");
+            sendStatus(socket, "400");
+            return false;
+        }
+        Request request = new Request(identity, socket, frame);
+        String owner = ownerElsewhere(request);
+        if (owner != null) { // Cluster: another node owns the station
+            sendRedirect(socket, owner, frame.requestID);
+        } else if (admit(request)) {
+            System.out.println("Added new request to queue");
+        } else {
+            sendStatus(socket, "503", -1, frame.requestID);
+        }
+        clock.updateTime();
+        return true;
+    }
+
+    // Non-threaded function: Queues a request if both the server and the request's connection have room for it
+    // Returns false (nothing queued, nothing counted) if either is full: the caller sends 503 back
+    private boolean admit(Request request) {
+        if (replication.isReplica() && isPUT(request)) { // Read-only until promoted: PUTs go to the primary
+            System.out.println("Replica: PUT refused with 503, only the primary takes PUTs");
+            return false;
+        }
+        AtomicInteger connection = inFlight.computeIfAbsent(request.socket, s -> new AtomicInteger(0));
+        if (connection.incrementAndGet() > maxInFlight) { // One connection flooding the server only gets itself refused
+            connection.decrementAndGet();
+        } else if ((admitted.incrementAndGet() > queueCapacity) || !requestQueue.offer(request)) {
+            admitted.decrementAndGet();
+            connection.decrementAndGet();
+        } else {
+            return true;
+        }
+        rejected.incrementAndGet();
+        System.out.println("Server overloaded, request refused with 503");
+        return false;
+    }
+
+    private static boolean isPUT(Request request) {
+        if (request.frame != null) {
+            return (request.frame.opcode == WireProtocol.OP_PUT) || (request.frame.opcode == WireProtocol.OP_PUT_DELTA)
+                    || (request.frame.opcode == WireProtocol.OP_PUT_BATCH);
+        }
+        return request.data.startsWith("PUT");
+    }
+
+    // Cluster: the node a single station's PUT or GET has to be sent to because that node owns the station, null if it
+    // runs here (not in a cluster, this node owns it, sent by another node, or not about one station)
+    private String ownerElsewhere(Request request) {
+        if (!cluster.isEnabled() || Cluster.isPeer(request.identity)) {
+            return null;
+        }
+        String stationID;
+        if (request.frame != null) {
+            if ((request.frame.opcode == WireProtocol.OP_PUT) || (request.frame.opcode == WireProtocol.OP_PUT_DELTA)) {
+                stationID = request.identity;
+            } else if ((request.frame.opcode == WireProtocol.OP_GET) && !request.frame.stationID.equals("latest")) {
+                stationID = request.frame.stationID;
+            } else {
+                return null;
+            }
+        } else if (PutCoalescer.isCoalescable(request)) { // A PUT of one station's data
+            stationID = request.identity;
+        } else if (request.data.startsWith("GET") && (headerValue(request.data, request.data.length(), "Stations") == null)) {
+            stationID = getStationKey(request.data, request.identity);
+            if (stationID.equals(request.identity)) { // "latest": served from this node's stations
+                return null;
+            }
+        } else {
+            return null;
+        }
+        return cluster.ownerElsewhere(stationID.replaceAll("CS", ""));
+    }
+
+    // Sends status 307 for a request of a station another node owns (see Cluster), with the owner and every node of
+    // the ring: text "Location: host:port" and "Cluster: nodes" lines after the status code, binary: fields of the
+    // frame. The request isn't run. Sending it = 1 event
+    public void sendRedirect(Socket referenceSocket, String owner, String requestID) throws IOException {
+        cluster.redirected();
+        int time = clock.updateTime();
+        String nodes = cluster.getRing().toString();
+        if (binaryStreams.containsKey(referenceSocket)) {
+            sendFrame(referenceSocket, Frame.redirect(time, owner, nodes, requestID));
+        } else {
+            sendResponse(referenceSocket, time + "\n" + "307" + "\nLocation: " + owner + "\nCluster: " + nodes
+                    + ((requestID != null) ? "\nRequest-ID: " + requestID : ""));
+        }
+    }
+
+    // Called by a lane once it has executed a request, making room for another one
+    private void finished(Request request) {
+        admitted.decrementAndGet();
+        AtomicInteger connection = inFlight.get(request.socket);
+        if (connection != null) {
+            connection.decrementAndGet();
+        }
+    }
+
+    // Non-threaded function: Forgets a socket that has closed (by either transport): no more pushes or in-flight count
+    public void connectionEnded(Socket socket) {
+        subscriptions.unsubscribe(socket);
+        inFlight.remove(socket);
+    }
+
+    // Non-threaded function: Handles one complete request message received from a socket (by either transport)
+    // Peeks the data for validity, and formats the data ready to be queued
+    // wholeString = the request message, socket = The socket the request was sent by, identity: the entity's ID
+    // Returns false if the request was invalid (400 sent back) and the socket should no longer be listened to
+    public boolean queueRequest(String wholeString, Socket socket, String identity) throws IOException {
+        String firstLine = "";
+        String[] requestLines = wholeString.split("\\r?\\n"); // Splits the data into array of lines
+        if ((firstLine = requestLines[0]) != null && (!firstLine.isEmpty())) { // Take a peek at the data
+            if (requestLines.length > 4) { // If a PUT message (> 4 lines), it has a timestamp at the top that needs to be removed
+                clock.processEvent(Integer.parseInt(requestLines[0])); // Tie-break of local and received Lamport times
+                wholeString = "";
+                for (int i = 1; i < requestLines.length; ++i) { // Rebuild the request message without the timestamp
+                    wholeString += requestLines[i];
+                    if (i != (requestLines.length-1)) {
+                        wholeString += "\n";
+                    }
+                }
+                requestLines = wholeString.split(System.lineSeparator());
+            }
+
+            firstLine = requestLines[0]; // Splits the first line into so that we can get PUT/GET (first word)
+            String[] firstLineWords = firstLine.split(" ", 3);
+
+            if (!firstLineWords[0].equals("PUT") && !firstLineWords[0].equals("GET")
+                    && !firstLineWords[0].equals("SUBSCRIBE") && !firstLineWords[0].equals("CLUSTER")) { // Checks the first keyword is either PUT, GET, SUBSCRIBE or CLUSTER
+                System.out.println("A request was received but was invalid (Not a PUT/GET)");
+                // Sends back status 400
+                clock.updateTime();
+                sendResponse(socket, clock.getTime() + "\n" + "400");
+                return false;
+            }
+            Request request = new Request(identity, socket, wholeString);
+            String owner = ownerElsewhere(request);
+            if (owner != null) { // Cluster: another node owns the station
+                int headerEnd = bodyStartOf(wholeString);
+                sendRedirect(socket, owner, headerValue(wholeString, (headerEnd < 0) ? wholeString.length() : headerEnd, "Request-ID"));
+                return true;
+            }
+            boolean uploaded = admit(request); // Adds data, ID and socket to requestQueue
+            if (uploaded) {
+                System.out.println("Added new request to queue");
+                clock.updateTime();
+            } else { // Over capacity: refused, the connection stays open so the entity can retry later
+                int headerEnd = bodyStartOf(wholeString);
+                sendStatus(socket, "503", -1, headerValue(wholeString, (headerEnd < 0) ? wholeString.length() : headerEnd, "Request-ID"));
+            }
+        }
+        return true;
+    }
+
+    // Threaded function (runs-in-background): Removes expired content from currentFiles, the store and the folder
+    // Only called once - only one instance exists
+    // Blocks on the expiryQueue until the earliest deadline has passed, so no thread time is spent while nothing expires
+    // A deadline whose station was updated since is put back with the station's new deadline instead
+    // The removal itself runs on the station's lane (see expire), so it can't interleave with a PUT of the station
+    public void checkUpdateTimes() {
+        Thread checkTimes = new Thread(() -> {
+            while (true) {
+                Expiry expiry;
+                try {
+                    expiry = expiryQueue.take(); // Earliest deadline, once it has passed
+                } catch (InterruptedException ie) {
+                    System.out.println("Timer thread interrupted: " + ie.getMessage());
+                    clock.updateTime();
+                    return;
+                }
+                Long updated = currentFiles.get(expiry.filePath);
+                if (updated == null) {
+                    continue; // Already removed
+                }
+                long ttl = ttlOf(expiry.filePath);
+                if (System.currentTimeMillis() < updated + ttl) { // PUT (or longer TTL) since this deadline was queued
+                    expiryQueue.offer(new Expiry(expiry.filePath, updated, ttl)); // Waits for the station's real deadline
+                    continue;
+                }
+                runOnLane(StationStore.stationIDFromFile(expiry.filePath), () -> expire(expiry.filePath, updated));
+            }
+        }, "Expiry");
+        checkTimes.setDaemon(true);
+        expiryThread = checkTimes;
+        checkTimes.start();
+    }
+
+    // Non-threaded function (runs on the station's lane): Removes a station whose deadline passed, if its update time
+    // is still the one the deadline was for (updated). After a PUT that ran since, its new deadline is queued instead
+    private void expire(String filePath, long updated) {
+        long ttl = ttlOf(filePath);
+        synchronized (retention) {
+            Long current = currentFiles.get(filePath);
+            if (current == null) {
+                return; // Removed meanwhile (e.g. evicted)
+            }
+            if ((current != updated) || (System.currentTimeMillis() < current + ttl)) { // PUT arrived just now
+                expiryQueue.offer(new Expiry(filePath, current, ttl));
+                return;
+            }
+            currentFiles.remove(filePath);
+            recency.removed(filePath);
+        }
+        retention.countExpired();
+        removeStation(StationStore.stationIDFromFile(filePath)); // Removes the data from memory too
+        File currentFile = new File(filePath);
+        if (currentFile.delete() || !currentFile.exists()) {
+            System.out.println("Expired content detected. Content removed.");
+        } else {
+            System.out.println("Failed to remove some expired content. Trying again in 1 second...");
+            synchronized (retention) { // Tracked again, with a deadline 1 second from now
+                if (currentFiles.putIfAbsent(filePath, updated) == null) {
+                    recency.updated(filePath, 0); // Not updated: least recent
+                }
+            }
+            expiryQueue.offer(new Expiry(filePath, updated, System.currentTimeMillis() + 1000 - updated));
+        }
+    }
+
+    // Threaded function (runs-in-background): Dispatches requests from the requestQueue the instant they arrive
+    // Blocks on the queue (take) instead of polling it, so no thread time is spent waiting once a request is queued
+    // Only 1 instance of this thread is run. It only hands requests over to their station's lane, the lanes execute them
+    // Everything queued at the time is taken at once, and a station's PUTs among it are grouped (see PutCoalescer)
+    // before any of it is handed over, so a lane can't start a group while more of its PUTs are still in the queue
+    // Requests in the queue are already scanned for validity and carry the ID of the entity that sent them
+    // The entity's ID is only used for the PUT request so the server knows where to put the file
+    public void checkForTasks() {
+        startLanes();
+        if (groupCommit != null) {
+            groupCommit.start();
+        }
+        subscriptions.start(this);
+        Thread checkThreads = new Thread(() -> {
+            ArrayList<Request> taken = new ArrayList<Request>();
+            ArrayList<Integer> taskLanes = new ArrayList<Integer>();
+            ArrayList<Runnable> tasks = new ArrayList<Runnable>();
+            while (true) {
+                try {
+                    taken.add(requestQueue.take()); // Blocks until a request is queued
+                } catch (InterruptedException ie) {
+                    System.out.println("Task dispatcher interrupted: " + ie.getMessage());
+                    clock.updateTime();
+                    return;
+                }
+                requestQueue.drainTo(taken); // And whatever else is queued by now, so a station's waiting PUTs can be grouped
+                for (Request curr_request : taken) {
+                    String stationKey = getStationKey(curr_request);
+                    int lane = laneFor(stationKey);
+                    if ((coalescer != null) && PutCoalescer.isCoalescable(curr_request)) {
+                        PutCoalescer.Group group = coalescer.add(stationKey, curr_request);
+                        if (group != null) { // New group: one task runs all of the PUTs that join it before it starts
+                            taskLanes.add(lane);
+                            tasks.add(() -> {
+                                executePUTs(group);
+                                clock.updateTime();
+                            });
+                        }
+                        continue;
+                    }
+                    if (coalescer != null) {
+                        coalescer.close(stationKey); // Later PUTs of the station run after this request
+                    }
+                    taskLanes.add(lane);
+                    tasks.add(() -> {
+                        try {
+                            if (curr_request.frame != null) {
+                                executeFrame(curr_request.frame, curr_request.socket, curr_request.identity);
+                            } else {
+                                executeRequest(curr_request.data, curr_request.socket, curr_request.identity);
+                            }
+                        } finally {
+                            finished(curr_request);
+                        }
+                        clock.updateTime();
+                    });
+                }
+                for (int i = 0; i < tasks.size(); ++i) { // Lanes are FIFO, so requests of one station keep their queue order
+                    lanes[taskLanes.get(i)].execute(tasks.get(i));
+                }
+                taken.clear();
+                taskLanes.clear();
+                tasks.clear();
+            }
+        });
+        checkThreads.setDaemon(true);
+        dispatcher = checkThreads;
+        checkThreads.start();
+    }
+
+    // Creates the execution lanes (laneCount single-threaded executors). Only done once, by the first checkForTasks call
+    private synchronized void startLanes() {
+        if (lanes != null) {
+            return;
+        }
+        ExecutorService[] newLanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; ++i) {
+            int laneNumber = i;
+            newLanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread laneThread = new Thread(runnable, "Lane-" + laneNumber);
+                laneThread.setDaemon(true); // Lanes end with the server like every other background thread
+                return laneThread;
+            });
+        }
+        lanes = newLanes;
+    }
+
+    // Non-threaded function: Works out which station a request belongs to, so all requests for a station share one lane
+    // PUT: the stationID of the Content Server that sent it, GET: the stationID in the Accept entry
+    // GETs for "latest" and bulk GETs don't belong to one station, so they are spread out using the ID of the client
+    // that sent them
+    // requestData = request message as a String, ID = entity's ID
+    public String getStationKey(String requestData, String ID) {
+        if (ID.startsWith("CS")) {
+            return ID.replaceAll("CS", "");
+        }
+        if (headerValue(requestData, requestData.length(), "Stations") != null) { // Bulk GET
+            return ID;
+        }
+        String[] requestLines = requestData.split("\\r?\\n");
+        for (String line : requestLines) {
+            if (line.startsWith("Accept:")) {
+                String stationID = line.split(":", 2)[1].split("/", 2)[0].trim().replaceAll("CS", "");
+                if (!stationID.equals("latest")) {
+                    return stationID;
+                }
+            }
+        }
+        return ID;
+    }
+
+    // Same as above for a queued request (text or binary)
+    public String getStationKey(Request request) {
+        if (request.frame == null) {
+            return getStationKey(request.data, request.identity);
+        }
+        if (request.identity.startsWith("CS") || request.frame.stationID.equals("latest")
+                || (request.frame.opcode == WireProtocol.OP_GET_BULK) || (request.frame.opcode == WireProtocol.OP_SUBSCRIBE)) {
+            return request.identity.replaceAll("CS", "");
+        }
+        return request.frame.stationID.replaceAll("CS", "");
+    }
+
+    // Returns the lane (index into lanes) that the given station's requests are executed on
+    public int laneFor(String stationKey) {
+        return Math.floorMod(stationKey.hashCode(), laneCount);
+    }
+
+    // Runs a task on the station's lane, after the station's requests already handed to it, so no request of the
+    // station runs at the same time (e.g. Cluster dropping a station it handed over). Run at once if there are no lanes
+    public void runOnLane(String stationKey, Runnable task) {
+        ExecutorService[] current = lanes;
+        if (current == null) {
+            task.run();
+            return;
+        }
+        try {
+            current[laneFor(stationKey)].execute(task);
+        } catch (RejectedExecutionException ree) { // Shutting down
+            System.out.println("Lane stopped, task for " + stationKey + " dropped");
+        }
+    }
+
+    // Sends a response message (timestamp + status code or data) back through the socket's output stream
+    // Lanes run in parallel, so the write is synchronised on the stream to stop two responses interleaving on one socket
+    // referenceSocket = socket to respond to, message = response message as a String
+    public void sendResponse(Socket referenceSocket, String message) throws IOException {
+        ObjectOutputStream out = (ObjectOutputStream) streams.get(referenceSocket).getFirst();
+        synchronized (out) {
+            out.writeObject(message);
+            out.flush();
+        }
+    }
+
+    // Sends a binary frame back through a binary protocol socket's output stream (synchronised like sendResponse)
+    public void sendFrame(Socket referenceSocket, Frame frame) throws IOException {
+        OutputStream out = binaryStreams.get(referenceSocket);
+        synchronized (out) {
+            WireProtocol.writeFrame(out, frame);
+        }
+    }
+
+    // Sends a status code (e.g. 201, 500) in whichever format the socket uses. Sending it = 1 event
+    public void sendStatus(Socket referenceSocket, String statusCode) throws IOException {
+        sendStatus(referenceSocket, statusCode, -1, null);
+    }
+
+    // Same, for a PUT: with the version of the station's data after it (see storePUT, left out if version < 0) and the
+    // request ID the Content Server tagged it with (see executePUT, left out if null), so pipelined PUTs can be matched
+    // with their status. Text: "Version: N" and "Request-ID: X" lines after the status code, binary: fields of the frame
+    public void sendStatus(Socket referenceSocket, String statusCode, long version, String requestID) throws IOException {
+        int time = clock.updateTime();
+        if (binaryStreams.containsKey(referenceSocket)) {
+            sendFrame(referenceSocket, Frame.status(time, statusCode, version, requestID));
+        } else {
+            sendResponse(referenceSocket, time + "\n" + statusCode + ((version >= 0) ? "\nVersion: " + version : "")
+                    + ((requestID != null) ? "\nRequest-ID: " + requestID : ""));
+        }
+    }
+
+    // Sends a station's weather data in whichever format the socket uses: JSON for Java serialisation,
+    // typed fields in a DATA frame for the binary protocol. Sending it = 1 event
+    // The record keeps the encoded response, so only the Lamport time is added here (see StationRecord.toJSON)
+    public void sendWeatherData(Socket referenceSocket, StationRecord record) throws IOException {
+        OutputStream binaryOut = binaryStreams.get(referenceSocket);
+        if (binaryOut != null) {
+            byte[] untimed = record.toUntimedDataFrame();
+            synchronized (binaryOut) {
+                WireProtocol.writeFrame(binaryOut, clock.updateTime(), untimed);
+            }
+            return;
+        }
+        String weatherDataJSON = record.toJSON(); // Data in JSON, encoded once per update
+        clock.updateTime();
+        sendResponse(referenceSocket, clock.getTime() + "\n" + weatherDataJSON);
     }
 
     // Non-threaded function: Can be called multiple times
@@ -415,19 +1371,22 @@ public class AggregationServer implements Serializable {
         if ((firstLine[0].equals("GET")) && !requestEntryTypes.contains("Accept")) {
             return false;
         }
+        if ((firstLine[0].equals("SUBSCRIBE")) && !requestEntryTypes.contains("Stations")) {
+            return false;
+        }
+        if ((firstLine[0].equals("CLUSTER")) && !requestEntryTypes.contains("Nodes")) {
+            return false;
+        }
         return true;
     }
 
-    // Non-threaded function (blocked): Function must finish before next line of code executes -> Ensures 1 request at a time
+    // Non-threaded function (blocked): Runs on the request's lane -> Ensures 1 request at a time for each station
     // Identifies which request it is, and calls it
     // requestData = request message as a String, referenceSocket = socket the request was sent by, ID = entity's ID
     public void executeRequest(String requestData, Socket referenceSocket, String ID) {
-        ArrayList<ObjectStreamConstants> objstreams = streams.get(referenceSocket);
         try {
             if (requestData.isEmpty() || (!isValidRequest(requestData))) { // Checks request message isn't empty or invalid
-                clock.updateTime();
-                ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "204");
-                ((ObjectOutputStream) objstreams.getFirst()).flush();
+                sendStatus(referenceSocket, "204", -1, headerValue(requestData, requestData.length(), "Request-ID"));
                 return;
             }
 
@@ -440,11 +1399,23 @@ public class AggregationServer implements Serializable {
             } else if (currLine[0].equals("GET")) {
                 executeGET(requestData, referenceSocket, ID); // Clock doesn't update UNTIL data is sent, so no clock update here
                 return;
+            } else if (currLine[0].equals("SUBSCRIBE")) {
+                executeSUBSCRIBE(headerValue(requestData, requestData.length(), "Stations"), referenceSocket);
+                return;
+            } else if (currLine[0].equals("CLUSTER")) { // A node joining the cluster sent the new ring
+                // Only another node of a cluster can change the ring, and only to one that still has this node
+                HashRing ring = HashRing.parse(headerValue(requestData, requestData.length(), "Nodes"));
+                if (!Cluster.isPeer(ID) || (ring == null) || !cluster.adopt(ring)) {
+                    System.out.println("CLUSTER request refused from " + ID);
+                    sendStatus(referenceSocket, "400");
+                    return;
+                }
+                sendStatus(referenceSocket, "200");
+                return;
             } else {
                 System.out.println("Unidentifiable request - No action took place");
                 clock.updateTime(); // Request failure = 1 event
-                ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "500");
-                ((ObjectOutputStream) objstreams.getFirst()).flush();
+                sendResponse(referenceSocket, clock.getTime() + "\n" + "500");
                 return;
             }
         } catch (IOException ie) {
@@ -453,84 +1424,407 @@ public class AggregationServer implements Serializable {
         }
     }
 
+    // Non-threaded function (blocked): Same as executeRequest, for a request sent with the binary protocol
+    // The frame's entries are already typed and split, so they go straight to storePUT / sendStationData
+    // frame = decoded request, referenceSocket = socket the request was sent by, ID = entity's ID
+    public void executeFrame(Frame frame, Socket referenceSocket, String ID) {
+        try {
+            if (frame.opcode == WireProtocol.OP_PUT) {
+                clock.updateTime(); // Calling the PUT message counts as event;
+                String requestID = frame.requestID;
+                if (frame.fields.isEmpty()) {
+                    sendStatus(referenceSocket, "204", -1, requestID); // Empty PUT
+                    return;
+                }
+                storePUT(frame.fields, referenceSocket, ID.replaceAll("CS", ""), -1, requestID);
+            } else if (frame.opcode == WireProtocol.OP_PUT_DELTA) {
+                clock.updateTime(); // Calling the PUT message counts as event;
+                String requestID = frame.requestID;
+                long baseVersion = frame.baseVersion;
+                if (baseVersion < 0) {
+                    sendStatus(referenceSocket, "400", -1, requestID); // Delta without the version it applies to
+                    return;
+                }
+                storePUT(frame.fields, referenceSocket, ID.replaceAll("CS", ""), baseVersion, requestID); // No fields = unchanged
+            } else if (frame.opcode == WireProtocol.OP_PUT_BATCH) {
+                clock.updateTime(); // Calling the PUT message counts as event;
+                String requestID = frame.requestID;
+                storeBatchPUT(frame.records, referenceSocket, requestID, !Cluster.isPeer(ID), null);
+            } else if (frame.opcode == WireProtocol.OP_GET_BULK) {
+                sendBulkStationData(frame.stationID, referenceSocket);
+            } else if (frame.opcode == WireProtocol.OP_SUBSCRIBE) {
+                executeSUBSCRIBE(frame.stationID, referenceSocket);
+            } else {
+                sendStationData(frame.stationID.replaceAll("CS", ""), referenceSocket);
+            }
+        } catch (IOException ie) {
+            System.out.println("Error executing request - Couldn't get socket's output stream: " + ie.getMessage());
+        }
+    }
+
+    // Non-threaded function (blocked): Runs a group of one station's queued PUTs on its lane (see PutCoalescer)
+    // Every PUT is run as usual (executeRequest / executeFrame), so it is checked and gets its own status, but storePUT
+    // only merges its entries into the group; applyGroup then applies them with one write and sends their statuses
+    public void executePUTs(PutCoalescer.Group group) {
+        ArrayList<Request> puts = coalescer.take(group);
+        if (puts.size() > 1) {
+            coalescing.set(group);
+        }
+        try {
+            for (Request put : puts) {
+                if (put.frame != null) {
+                    executeFrame(put.frame, put.socket, put.identity);
+                } else {
+                    executeRequest(put.data, put.socket, put.identity);
+                }
+            }
+        } finally {
+            coalescing.remove();
+            try {
+                applyGroup(group);
+            } catch (IOException ie) {
+                System.out.println("Error executing request - Couldn't get socket's output stream: " + ie.getMessage());
+            }
+            for (Request put : puts) {
+                finished(put);
+            }
+        }
+    }
+
+    // Non-threaded function (blocked): Applies the merged entries of a group's PUTs as one PUT (one log record, one
+    // store update), then acknowledges each of them with the station's new version, in the order they were received:
+    // 201 for the first if it created the station, 200 for the others
+    private void applyGroup(PutCoalescer.Group group) throws IOException {
+        if (group.merged == null) {
+            return;
+        }
+        String ID = group.stationID;
+        try {
+            boolean created;
+            try {
+                created = applyPut(ID, group.merged);
+            } catch (IOException ie) {
+                System.out.println("Error trying to write server weather data: " + ie.getMessage());
+                for (int i = 0; i < group.sockets.size(); ++i) {
+                    sendPUTStatus(group.sockets.get(i), ID, "500", -1, group.requestIDs.get(i));
+                }
+                return;
+            }
+            StationRecord stored = store.get(ID);
+            long version = (stored == null) ? -1 : stored.updatedMillis;
+            refreshExpiry(store.fileFor(ID), System.currentTimeMillis());
+            if (created) {
+                System.out.println("No weather data yet - creating it now");
+            }
+            for (int i = 0; i < group.sockets.size(); ++i) {
+                boolean first = created && (i == 0);
+                if (!first) {
+                    clock.updateTime(); // Weather data updated = 1 event
+                }
+                sendPUTStatus(group.sockets.get(i), ID, first ? "201" : "200", version, group.requestIDs.get(i));
+            }
+        } finally {
+            group.clear();
+        }
+    }
+
     // Non-threaded function (blocked): Executes PUT request
     // Gets the JSON data within the request message, converts it from JSON, decides what to do with it
+    // The JSON starts after the blank line that ends the headers. A Request-ID header is sent back with the status
     // requestData = PUT message as String, referenceSocket = socket that sent the PUT, ID = entity's ID (stationID)
     public void executePUT(String requestData, Socket referenceSocket, String ID) {
-        ArrayList<ObjectStreamConstants> objstreams = streams.get(referenceSocket);
         try {
             ID = ID.replaceAll("CS", ""); // Omits the CS from the ID, leaving only the numeric value
-            String[] requestLines = requestData.split("\r?\n");
-            if (requestLines.length > 6) { // Checks bounds are long enough
-                if (!(requestLines[6].equals("{")) || !(requestLines[requestLines.length - 1].equals("}"))) { // Checks the JSON is enclosed by brackets
-                    clock.updateTime();
-                    ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "500");
-                    ((ObjectOutputStream) objstreams.getFirst()).flush();
+            int bodyStart = bodyStartOf(requestData);
+            String requestID = headerValue(requestData, Math.max(bodyStart, 0), "Request-ID");
+            while ((bodyStart >= 0) && (bodyStart < requestData.length()) && Character.isWhitespace(requestData.charAt(bodyStart))) {
+                bodyStart++;
+            }
+            if ((bodyStart < 0) || (bodyStart == requestData.length())) {
+                sendStatus(referenceSocket, "204", -1, requestID); // Empty JSON
+                return;
+            }
+            String contentType = headerValue(requestData, bodyStart, "Content-Type");
+            LinkedHashMap<String, String> entries; // type -> data (e.g: dewpt -> 5.7)
+            try {
+                if ((contentType != null) && contentType.startsWith("weather/json-batch")) { // Many stations at once
+                    Map<String, Long> versions = Cluster.isPeer(ID)
+                            ? Cluster.parseVersions(headerValue(requestData, bodyStart, "Versions")) : null; // Handoff
+                    storeBatchPUT(new JSONParser().parseBatch(requestData, bodyStart), referenceSocket, requestID,
+                            !Cluster.isPeer(ID), versions);
                     return;
                 }
-                JSONParser jp = new JSONParser();
-                ConcurrentHashMap<String, String> types = jp.getFeedTypes();
-                String[] lineElements; // [0] = type, [1] = data (e.g: [0] = dewpt, [1] = 5.7)
-                String PUT_DATA = "";
-                for (int i = 7; i < requestLines.length - 1; ++i) { // Loop to trim spaces from data & check entries make sense
-                    lineElements = requestLines[i].split(":", 2);
-                    lineElements[0] = lineElements[0].trim();
-                    lineElements[0] = lineElements[0].replace("\"", "");
-                    lineElements[1] = lineElements[1].trim();
-                    lineElements[1] = lineElements[1].replaceAll(",", "");
-                    lineElements[1] = lineElements[1].replaceAll("\"", "");
-
-                    if ((types.get(lineElements[0]) != null) && (types.get(lineElements[0]).equals("string")) && jp.isNumber(lineElements[1])) {
-                        clock.updateTime();
-                        ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "500");
-                        ((ObjectOutputStream) objstreams.getFirst()).flush();
-                        return; // Don't PUT the message if the entry type is string but the value is a number
-                    }
-                    if ((types.get(lineElements[0]) != null) && (types.get(lineElements[0]).equals("int")) && (!jp.isNumber(lineElements[1]))) {
-                        clock.updateTime();
-                        ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "500");
-                        ((ObjectOutputStream) objstreams.getFirst()).flush();
-                        return; // Don't PUT the message if the entry type is int but the value is a string
+                entries = new JSONParser().parseEntries(requestData, bodyStart); // Any JSON layout, read in one pass
+            } catch (ParseException pe) { // Not a JSON object enclosed by brackets
+                System.out.println("Invalid JSON in PUT: " + pe.getMessage());
+                sendStatus(referenceSocket, "500", -1, requestID);
+                return;
+            }
+            storePUT(entries, referenceSocket, ID, baseVersionOf(requestData, bodyStart), requestID);
+        } catch (IOException ie) {
+            System.out.println("Error executing request - Couldn't get socket's output stream: " + ie.getMessage());
+            return;
+        }
+    }
+
+    // Where the body of a request starts: after the first blank line (the Content Server sends " ") that follows the
+    // request line. -1 if there is none
+    public static int bodyStartOf(String requestData) {
+        int lineStart = requestData.indexOf('\n');
+        while (lineStart >= 0) {
+            lineStart++;
+            int lineEnd = requestData.indexOf('\n', lineStart);
+            lineEnd = (lineEnd < 0) ? requestData.length() : lineEnd;
+            boolean blank = true;
+            for (int i = lineStart; blank && (i < lineEnd); ++i) {
+                blank = Character.isWhitespace(requestData.charAt(i));
+            }
+            if (blank) {
+                return Math.min(lineEnd + 1, requestData.length());
+            }
+            lineStart = (lineEnd == requestData.length()) ? -1 : lineEnd;
+        }
+        return -1;
+    }
+
+    // Value of a header line (e.g. "Request-ID: 12" -> "12") among requestData[0, headerEnd), null if it isn't there
+    public static String headerValue(String requestData, int headerEnd, String name) {
+        for (String line : requestData.substring(0, Math.min(headerEnd, requestData.length())).split("\\r?\\n")) {
+            String[] header = line.split(":", 2);
+            if ((header.length == 2) && header[0].trim().equals(name)) {
+                return header[1].trim();
+            }
+        }
+        return null;
+    }
+
+    // Base version of a delta PUT, given in its Content-Type header (e.g. Content-Type: weather/json; base-version=12)
+    // Returns -1 for a regular PUT. headerEnd = where the JSON body starts
+    public static long baseVersionOf(String requestData, int headerEnd) {
+        int start = requestData.lastIndexOf("base-version=", headerEnd);
+        if (start < 0) {
+            return -1;
+        }
+        start += "base-version=".length();
+        int end = start;
+        while ((end < headerEnd) && Character.isDigit(requestData.charAt(end))) {
+            end++;
+        }
+        return (end == start) ? -1 : Long.parseLong(requestData.substring(start, end));
+    }
+
+    // Non-threaded function (blocked): Second half of a PUT, shared by text and binary requests
+    // Checks the entries make sense for their feed type, then creates or updates the station's weather data
+    // entries = type -> value of the uploaded data, referenceSocket = socket that sent the PUT, ID = stationID
+    public void storePUT(LinkedHashMap<String, String> entries, Socket referenceSocket, String ID) throws IOException {
+        storePUT(entries, referenceSocket, ID, -1, null);
+    }
+
+    // Same, for a delta PUT when baseVersion >= 0: entries are only the fields that changed since the Content Server's
+    // last acknowledged upload, which made version baseVersion (a station's version = updatedMillis of its record,
+    // different after every PUT and kept with the data by every durability level). They are merged field by field
+    // into the station's record. If the record isn't at that version anymore (expired, or the server lost its last
+    // PUTs in a crash), 409 is sent back and the Content Server sends all of its data instead.
+    // Every stored PUT is acknowledged with the station's new version, which the next delta is based on.
+    // A station's requests all run on its lane, so nothing else changes the record between the check and the merge
+    // requestID = the Content Server's tag for the PUT, sent back with its status (null = untagged)
+    public void storePUT(LinkedHashMap<String, String> entries, Socket referenceSocket, String ID, long baseVersion,
+                         String requestID) throws IOException {
+        WeatherRecord uploaded = WeatherRecord.of(entries); // Parsed once here, nothing parses the values again
+        if (!uploaded.matchesFeedTypes()) { // Checks entries make sense for their feed type
+            sendPUTStatus(referenceSocket, ID, "500", -1, requestID);
+            return; // Don't PUT the message if e.g. the entry type is string but the value is a number
+        }
+        PutCoalescer.Group group = coalescing.get();
+        if (group != null) { // Run as part of a group of PUTs (see executePUTs)
+            if (baseVersion < 0) {
+                group.merge(ID, uploaded, referenceSocket, requestID); // Applied and acknowledged with the others
+                return;
+            }
+            applyGroup(group); // A delta is checked against the data left by the PUTs before it, then applied alone
+        }
+        if (baseVersion >= 0) {
+            StationRecord current = store.get(ID);
+            if ((current == null) || (current.updatedMillis != baseVersion)) {
+                sendPUTStatus(referenceSocket, ID, "409", -1, requestID); // Not the data the delta was made against
+                return;
+            }
+        }
+        boolean created;
+        try {
+            created = applyPut(ID, uploaded); // In memory: the file is written per the store's durability level
+        } catch (IOException ie) {
+            System.out.println("Error trying to write server weather data: " + ie.getMessage());
+            sendPUTStatus(referenceSocket, ID, "500", -1, requestID);
+            return;
+        }
+        if (created && (baseVersion >= 0)) { // Expired right after the check: the delta alone isn't the station's data
+            removeStation(ID);
+            sendPUTStatus(referenceSocket, ID, "409", -1, requestID);
+            return;
+        }
+        StationRecord stored = store.get(ID);
+        long version = (stored == null) ? -1 : stored.updatedMillis;
+        if (created) { // New station
+            System.out.println("No weather data yet - creating it now");
+            refreshExpiry(store.fileFor(ID), System.currentTimeMillis()); // Add file to currentFiles hashmap
+            sendPUTStatus(referenceSocket, ID, "201", version, requestID); // Sending the message back = 1 event
+        } else {
+            refreshExpiry(store.fileFor(ID), System.currentTimeMillis()); // Updated data expires 30 seconds from now
+            clock.updateTime(); // Weather data updated = 1 event
+            sendPUTStatus(referenceSocket, ID, "200", version, requestID);
+        }
+    }
+
+    // Non-threaded function (blocked): Batch PUT, many stations' data in one message (e.g. from a gateway in front of
+    // several physical stations). Each station is checked and merged like a single PUT (storePUT), all of them are made
+    // durable together (one log fsync, see GroupCommit.makeDurable), then one 207 status goes back with a status code
+    // per station: 201/200 stored, 500 invalid data, 204 no data, 400 invalid station ID
+    // The batch arrives on the sending Content Server's lane, but its stations are applied on their own lanes, like
+    // their single PUTs: it is split into one part per lane, and the 207 is sent once the last part has run
+    // In a cluster, the stations other nodes own are forwarded to them (see Cluster.forward) and get their statuses
+    // records = stationID -> (type -> value), referenceSocket = socket that sent the PUT, requestID = its tag (or null)
+    // forwarding = false for a batch another node forwarded: every station is stored here
+    // versions = stationID -> update time of stations another node handed over (see applyHandedOff), null for PUTs
+    public void storeBatchPUT(LinkedHashMap<String, LinkedHashMap<String, String>> records, Socket referenceSocket,
+                              String requestID, boolean forwarding, Map<String, Long> versions) throws IOException {
+        LinkedHashMap<String, String> statuses = new LinkedHashMap<String, String>(); // stationID -> status code
+        LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, String>>> elsewhere
+                = new LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, String>>>(); // owner -> its stations
+        LinkedHashMap<Integer, LinkedHashMap<String, WeatherRecord>> parts
+                = new LinkedHashMap<Integer, LinkedHashMap<String, WeatherRecord>>(); // lane -> its stations
+        for (Map.Entry<String, LinkedHashMap<String, String>> record : records.entrySet()) {
+            String ID = record.getKey();
+            if (!isValidStationID(ID)) {
+                statuses.put(ID, "400"); // Would not be a valid file name
+                continue;
+            }
+            String owner = forwarding ? cluster.ownerElsewhere(ID) : null;
+            if (owner != null) {
+                statuses.put(ID, "503"); // Replaced by the owner's status, keeps the station's place
+                elsewhere.computeIfAbsent(owner, o -> new LinkedHashMap<String, LinkedHashMap<String, String>>())
+                        .put(ID, record.getValue());
+                continue;
+            }
+            if (record.getValue().isEmpty()) {
+                statuses.put(ID, "204");
+                continue;
+            }
+            WeatherRecord uploaded = WeatherRecord.of(record.getValue());
+            if (!uploaded.matchesFeedTypes() || ((versions != null) && !versions.containsKey(ID))) {
+                statuses.put(ID, "500");
+                continue;
+            }
+            statuses.put(ID, "500"); // Replaced once its lane has applied it
+            parts.computeIfAbsent(laneFor(ID), l -> new LinkedHashMap<String, WeatherRecord>()).put(ID, uploaded);
+        }
+        if (parts.isEmpty()) {
+            finishBatchPUT(statuses, new ArrayList<String>(), elsewhere, referenceSocket, requestID);
+            return;
+        }
+        ArrayList<String> stored = new ArrayList<String>();
+        AtomicInteger remaining = new AtomicInteger(parts.size());
+        for (LinkedHashMap<String, WeatherRecord> part : parts.values()) {
+            runOnLane(part.keySet().iterator().next(), () -> {
+                for (Map.Entry<String, WeatherRecord> station : part.entrySet()) {
+                    String ID = station.getKey();
+                    try {
+                        boolean created = (versions != null)
+                                ? applyHandedOff(new StationRecord(ID, station.getValue(), versions.get(ID)))
+                                : applyPut(ID, station.getValue(), false); // Synced once for the whole batch
+                        StationRecord current = store.get(ID);
+                        refreshExpiry(store.fileFor(ID), (versions != null) && (current != null)
+                                ? current.updatedMillis : System.currentTimeMillis());
+                        clock.updateTime(); // Weather data updated = 1 event
+                        synchronized (statuses) {
+                            statuses.put(ID, created ? "201" : "200");
+                            stored.add(ID);
+                        }
+                    } catch (IOException ie) {
+                        System.out.println("Error trying to write server weather data: " + ie.getMessage());
                     }
-                    PUT_DATA += (lineElements[0] + ":" + lineElements[1] + "\n");
                 }
-                String weatherFileName = fileDirectory + "SERVER_DATA_" + ID + ".txt";
-                Path path = Paths.get(weatherFileName);
-                try {
-                    if (Files.exists(path) && (Files.size(path) > 0)) { // Checks the file exists and isn't empty
-                        updateFile(PUT_DATA, ID); // If file exists and isn't empty, call function to update the file
-                        clock.updateTime();
-                        ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "200");
-                        ((ObjectOutputStream) objstreams.getFirst()).flush();
-                        return;
-                    } else { // Else, a new file needs to be made
-                        System.out.println("No weather file yet - creating one now");
-                        FileWriter temp = new FileWriter(weatherFileName); // Creates the file
-                        temp.close();
-                        PrintWriter writer = new PrintWriter(weatherFileName); // Writes data to the file
-                        writer.println(PUT_DATA);
-                        writer.flush();
-                        writer.close();
-                        currentFiles.put(weatherFileName, System.currentTimeMillis()); // Add/replace file to currentFiles hashmap
-                        clock.updateTime(); // Sending the message back = 1 event
-                        ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "201");
-                        ((ObjectOutputStream) objstreams.getFirst()).flush();
-                        return;
+                if (remaining.decrementAndGet() == 0) { // The last part: every station of the batch is applied
+                    finishBatchPUT(statuses, stored, elsewhere, referenceSocket, requestID);
+                }
+            });
+        }
+    }
+
+    // Non-threaded function (blocked): Makes the stations a batch PUT stored durable, then sends the batch's 207
+    // status. The stations other nodes own are forwarded first, on a peer thread (see Cluster.runPeerRequest)
+    private void finishBatchPUT(LinkedHashMap<String, String> statuses, ArrayList<String> stored,
+                                LinkedHashMap<String, LinkedHashMap<String, LinkedHashMap<String, String>>> elsewhere,
+                                Socket referenceSocket, String requestID) {
+        synchronized (statuses) {
+            try {
+                GroupCommit.makeDurable(this, stored);
+            } catch (IOException ie) {
+                System.out.println("Batch PUT failed, its data is not durable: " + ie.getMessage());
+                for (String ID : stored) {
+                    statuses.put(ID, "500");
+                }
+            }
+        }
+        if (elsewhere.isEmpty()) {
+            sendBatchStatus(statuses, referenceSocket, requestID);
+            return;
+        }
+        cluster.runPeerRequest(() -> {
+            for (Map.Entry<String, LinkedHashMap<String, LinkedHashMap<String, String>>> forwarded : elsewhere.entrySet()) {
+                LinkedHashMap<String, String> forwardedStatuses = cluster.forward(forwarded.getKey(), forwarded.getValue());
+                synchronized (statuses) {
+                    for (Map.Entry<String, String> status : forwardedStatuses.entrySet()) {
+                        if (statuses.containsKey(status.getKey())) {
+                            statuses.put(status.getKey(), status.getValue());
+                        }
                     }
-                } catch (IOException ie) {
-                    System.out.println("Error trying to reach server weather data: " + ie.getMessage());
-                    return;
                 }
-            } else {
-                clock.updateTime();
-                ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "204"); // Empty JSON
-                ((ObjectOutputStream) objstreams.getFirst()).flush();
-                return;
+            }
+            sendBatchStatus(statuses, referenceSocket, requestID);
+        });
+    }
+
+    private void sendBatchStatus(LinkedHashMap<String, String> statuses, Socket referenceSocket, String requestID) {
+        try {
+            synchronized (statuses) {
+                sendBatchStatus(referenceSocket, statuses, requestID);
             }
         } catch (IOException ie) {
-            System.out.println("Error executing request - Couldn't get socket's output stream: " + ie.getMessage());
+            System.out.println("Error sending batch status - Couldn't get socket's output stream: " + ie.getMessage());
+        }
+    }
+
+    // Station IDs become file names (SERVER_DATA_ID.txt), so only letters, digits, '-' and '_' are allowed
+    public static boolean isValidStationID(String ID) {
+        if ((ID == null) || ID.isEmpty() || (ID.length() > 64)) {
+            return false;
+        }
+        for (int i = 0; i < ID.length(); ++i) {
+            char c = ID.charAt(i);
+            if (!Character.isLetterOrDigit(c) && (c != '-') && (c != '_')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sends a batch PUT's status: 207 and every station's status code, as JSON (stationID : code) after the status
+    // lines, or as station/ fields of the status frame. Sending it = 1 event
+    public void sendBatchStatus(Socket referenceSocket, LinkedHashMap<String, String> statuses, String requestID) throws IOException {
+        int time = clock.updateTime();
+        if (binaryStreams.containsKey(referenceSocket)) {
+            sendFrame(referenceSocket, Frame.batchStatus(time, statuses, requestID));
             return;
         }
+        StringBuilder json = new StringBuilder();
+        JSONWriter writer = new JSONWriter(json).beginObject();
+        for (Map.Entry<String, String> status : statuses.entrySet()) {
+            writer.field(status.getKey(), status.getValue());
+        }
+        writer.endObject();
+        sendResponse(referenceSocket, time + "\n" + "207" + ((requestID != null) ? "\nRequest-ID: " + requestID : "")
+                + "\n" + json);
     }
 
     // Non-threaded function (blocked): Executes GET request
@@ -540,8 +1834,12 @@ public class AggregationServer implements Serializable {
     // requestData = message as a String, referenceSocket = socket that sent the GET, ID = ID of the socket who sent GET
     public void executeGET(String requestData, Socket referenceSocket, String ID) {
         // Read text file
-        ArrayList<ObjectStreamConstants> objstreams = streams.get(referenceSocket);
         try {
+            String selector = headerValue(requestData, requestData.length(), "Stations");
+            if (selector != null) { // Bulk GET: many stations, one reply
+                sendBulkStationData(selector, referenceSocket);
+                return;
+            }
             String[] requestLines = requestData.split("\r?\n");
             String stationID = "";
             if (requestLines.length > 3) {
@@ -551,121 +1849,437 @@ public class AggregationServer implements Serializable {
                 stationID = fourthLineData[0].trim();
                 stationID = stationID.replaceAll("CS", "");
             }
-            Path filePath = Paths.get("");
-            if (stationID.equals("latest")) { // "latest" = default by GETClient = Send back the latest added data
-                Long latestTime = 0L; // latestTime = largest Long value
-                Long currentTime = 0L;
-                for (ConcurrentHashMap.Entry<String, Long> curr_file : currentFiles.entrySet()) { // Finds the last added file
-                    if ((currentTime = curr_file.getValue()) > latestTime) {
-                        latestTime = currentTime;
-                        filePath = Paths.get(curr_file.getKey());
-                    }
+            sendStationData(stationID, referenceSocket);
+        } catch (IOException ie) {
+            System.out.println("Error trying to fetch server weather data: " + ie.getMessage());
+        }
+    }
+
+    // Non-threaded function (blocked): Second half of a GET, shared by text and binary requests
+    // Finds the station's weather file (or the latest one) and sends its data back, 204 if there is none
+    // stationID = requested station or "latest", referenceSocket = socket that sent the GET
+    public void sendStationData(String stationID, Socket referenceSocket) throws IOException {
+        if (stationID.equals("latest")) { // "latest" = default by GETClient = Send back the latest updated data
+            String latestFile = recency.latest(); // Last entry of the recency index, no scan of every station
+            stationID = (latestFile == null) ? "" : StationStore.stationIDFromFile(latestFile);
+        }
+        StationRecord record = store.get(stationID); // Served from memory, the file isn't read
+        if (record == null) { // Returns an error if the station has no data
+            sendStatus(referenceSocket, "204");
+            return;
+        }
+        sendWeatherData(referenceSocket, record);
+    }
+
+    // Non-threaded function (blocked): Second half of a bulk GET (text or binary)
+    // Sends every station the selector asks for (see sendStations). An invalid selector gets 400
+    // Stations without data are left out, so nothing found = an empty array
+    // selector = see parseStationSelector, referenceSocket = socket that sent the GET
+    public void sendBulkStationData(String selector, Socket referenceSocket) throws IOException {
+        ArrayList<String> items = parseStationSelector(selector);
+        if (items == null) {
+            sendStatus(referenceSocket, "400");
+            return;
+        }
+        sendStations(referenceSocket, selectStations(items));
+    }
+
+    // Non-threaded function (blocked): Executes a SUBSCRIBE request (text or binary)
+    // The socket is sent the current data of the selector's stations, like a bulk GET, then every update of them as
+    // PUTs land (see Subscriptions), until it closes or subscribes again. "latest" = the latest updated station first,
+    // then every station's updates. An invalid selector gets 400
+    // selector = see parseStationSelector, referenceSocket = socket that sent the SUBSCRIBE
+    public void executeSUBSCRIBE(String selector, Socket referenceSocket) throws IOException {
+        boolean latest = selector.trim().equals("latest");
+        ArrayList<String> items = latest ? new ArrayList<String>(List.of("*")) : parseStationSelector(selector);
+        if (items == null) {
+            sendStatus(referenceSocket, "400");
+            return;
+        }
+        Subscriptions.Subscriber subscriber = subscriptions.subscribe(referenceSocket, items); // Held back until released
+        try {
+            List<StationRecord> current;
+            if (latest) {
+                String latestFile = recency.latest();
+                StationRecord record = (latestFile == null) ? null : store.get(StationStore.stationIDFromFile(latestFile));
+                current = (record == null) ? List.of() : List.of(record);
+            } else {
+                current = selectStations(items);
+            }
+            sendStations(referenceSocket, current); // Updates applied meanwhile are queued and pushed after this
+        } finally {
+            subscriptions.release(subscriber);
+        }
+    }
+
+    // Non-threaded function (blocked): Sends stations as one JSON array, streamed BULK_CHUNK stations per message so a
+    // reply for a whole fleet is never built in one piece. Bulk GET replies and subscription pushes:
+    // "time\n[\n{station 1},\n{station 2}" ... ",\n{station n}\n]" (only the first message has the timestamp)
+    // Binary sockets get OP_DATA_BULK frames instead, made of the stations' cached OP_DATA frames
+    public void sendStations(Socket referenceSocket, List<StationRecord> records) throws IOException {
+        int time = clock.updateTime(); // Sending the reply = 1 event, every part of it has the same timestamp
+        OutputStream binaryOut = binaryStreams.get(referenceSocket);
+        if (binaryOut != null) {
+            int start = 0;
+            do {
+                int end = Math.min(start + BULK_CHUNK, records.size());
+                ArrayList<byte[]> dataFrames = new ArrayList<byte[]>(end - start);
+                for (int i = start; i < end; ++i) {
+                    dataFrames.add(records.get(i).toUntimedDataFrame());
                 }
+                byte[] untimed = WireProtocol.encodeUntimedBulk(dataFrames, dataFrames.size(), end < records.size());
+                synchronized (binaryOut) {
+                    WireProtocol.writeFrame(binaryOut, time, untimed);
+                }
+                start = end;
+            } while (start < records.size());
+            return;
+        }
+        StringBuilder message = new StringBuilder().append(time).append("\n[");
+        for (int i = 0; i < records.size(); ++i) {
+            if ((i > 0) && (i % BULK_CHUNK == 0)) { // Chunks end after a station, never with the closing ']'
+                sendResponse(referenceSocket, message.toString());
+                message.setLength(0);
+            }
+            message.append((i == 0) ? "\n" : ",\n");
+            records.get(i).appendBulkJSON(message);
+        }
+        message.append("\n]");
+        sendResponse(referenceSocket, message.toString());
+    }
+
+    // Non-threaded function: Splits a bulk GET's selector into its station IDs and prefixes (ending in '*')
+    // selector = comma-separated station IDs and prefixes (e.g. "4567,4568,50*"), or "all" (= "*", every station)
+    // Returns null if it is empty or has anything that can't be a station ID (see isValidStationID)
+    public static ArrayList<String> parseStationSelector(String selector) {
+        if (selector == null) {
+            return null;
+        }
+        ArrayList<String> items = new ArrayList<String>();
+        for (String item : selector.split(",")) {
+            item = item.trim().replaceAll("CS", "");
+            if (item.equals("all") || item.equals("*")) {
+                items.add("*");
+            } else if (item.endsWith("*") && isValidStationID(item.substring(0, item.length() - 1))) {
+                items.add(item);
+            } else if (isValidStationID(item)) {
+                items.add(item);
             } else {
-                // Sets the filename to unique file with the stationID found earlier appended to the end
-                filePath = Paths.get(fileDirectory + "SERVER_DATA_" + stationID + ".txt");
-                if ((!Files.exists(filePath)) || (Files.size(filePath) == 0)) { // Returns an error if the file doesn't exist
-                    clock.updateTime();
-                    ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "204");
-                    ((ObjectOutputStream) objstreams.getFirst()).flush();
-                    return;
+                return null;
+            }
+        }
+        return items.isEmpty() ? null : items;
+    }
+
+    // Non-threaded function: The stations a bulk GET's selector items ask for, each once, in the order they are sent back
+    // Station IDs come in the order they were asked for, the stations of a prefix sorted by ID. IDs without data are left out
+    public List<StationRecord> selectStations(List<String> items) {
+        LinkedHashMap<String, StationRecord> selected = new LinkedHashMap<String, StationRecord>();
+        for (String item : items) {
+            if (!item.endsWith("*")) {
+                StationRecord record = store.get(item); // Served from memory, no file is read
+                if (record != null) {
+                    selected.putIfAbsent(item, record);
                 }
+                continue;
             }
-            JSONParser jp = new JSONParser();
-            String weatherData = Files.readString(filePath); // Read the file into a String
-            String weatherDataJSON = jp.stringToJSON(weatherData); // Parse the data in the String into JSON
-            clock.updateTime();
-            ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + weatherDataJSON);
-            ((ObjectOutputStream) objstreams.getFirst()).flush();
-            return;
-        } catch (IOException ie) {
-            System.out.println("Error trying to fetch server weather data: " + ie.getMessage());
+            String prefix = item.substring(0, item.length() - 1);
+            ArrayList<StationRecord> matches = new ArrayList<StationRecord>();
+            for (StationRecord record : store.records()) {
+                if (record.stationID.startsWith(prefix)) {
+                    matches.add(record);
+                }
+            }
+            matches.sort(Comparator.comparing((StationRecord record) -> record.stationID));
+            for (StationRecord record : matches) {
+                selected.putIfAbsent(record.stationID, record);
+            }
+        }
+        return new ArrayList<StationRecord>(selected.values());
+    }
+
+    // Sends a PUT's status, or with group commit hands it to the committer, which sends it once the batch is durable
+    public void sendPUTStatus(Socket referenceSocket, String ID, String statusCode) throws IOException {
+        sendPUTStatus(referenceSocket, ID, statusCode, -1, null);
+    }
+
+    // Same, with the station's version after the PUT (-1 = none) and the PUT's request ID (null = none)
+    public void sendPUTStatus(Socket referenceSocket, String ID, String statusCode, long version, String requestID) throws IOException {
+        if (groupCommit != null) {
+            groupCommit.submit(referenceSocket, ID, statusCode, version, requestID);
+        } else {
+            sendStatus(referenceSocket, statusCode, version, requestID);
+        }
+    }
+
+    // Non-threaded function (blocked): Applies a PUT's entries to the store
+    // With the write-ahead log, the PUT is logged and synced first (group commit), so it survives a crash once this returns
+    // Returns true if the station had no data before
+    // With group commit, nothing is synced here: the committer makes the whole batch durable before acknowledging it
+    public boolean applyPut(String ID, WeatherRecord entries) throws IOException {
+        return applyPut(ID, entries, groupCommit == null);
+    }
+
+    // Same, syncNow = false leaves the log sync / write-through write to the caller (GroupCommit.makeDurable)
+    // The station's new record is then pushed to its subscribers
+    public boolean applyPut(String ID, WeatherRecord entries, boolean syncNow) throws IOException {
+        long now = System.currentTimeMillis();
+        boolean created;
+        if (wal == null) {
+            created = store.put(ID, entries, now, syncNow);
+        } else {
+            long seq = wal.appendPut(ID, clock.getTime(), now, entries);
             try {
-                ((ObjectOutputStream) objstreams.getFirst()).writeObject(clock.getTime() + "\n" + "204");
-                ((ObjectOutputStream) objstreams.getFirst()).flush();
-                return;
-            } catch (IOException ie1) {
-                System.out.println("Error trying to send message back to client: " + ie1.getMessage());
+                if (syncNow) {
+                    wal.sync(seq);
+                }
+                created = store.put(ID, entries, now, syncNow);
+            } finally {
+                wal.applied(seq);
+            }
+        }
+        if ((subscriptions.size() > 0) || replication.isShipping()) {
+            StationRecord record = store.get(ID);
+            if (record != null) {
+                subscriptions.publish(record);
+                replication.changed(record, clock.getTime());
             }
         }
+        return created;
     }
 
-    // updates the weather file with the given data (in regular text entry format), ID = stationID
-    // Non-threaded function (blocked): Helper function for executePUT function
-    // Updates file with new data by overwriting existing data and adding new data in a HashMap first, then printing it to the file
-    // entries = The data to be uploaded in non-JSON format, ID = ID of the content server who uploaded the file
-    public void updateFile(String entries, String ID) {
-        // first, check the file exists
-        ID = ID.replaceAll("CS", "");
-        String weatherFileName = (fileDirectory + "SERVER_DATA_" + ID + ".txt"); // Determine the file to modify
-        Path path = Paths.get(weatherFileName);
+    // Non-threaded function (runs on the station's lane): Stores a station's record another node of the cluster handed
+    // over (see Cluster.handOff) as it is, with its update time, unless a newer one is held here: a Content Server
+    // redirected to this node may already have sent it fresher data. Logged like a PUT, and made durable with the rest
+    // of its batch (GroupCommit.makeDurable). Returns true if the station had no data before
+    boolean applyHandedOff(StationRecord record) throws IOException {
+        boolean created = store.get(record.stationID) == null;
+        long seq = (wal == null) ? -1 : wal.appendRecord(record, clock.getTime());
+        boolean replaced;
+        try {
+            replaced = store.replace(record);
+        } finally {
+            if (seq >= 0) {
+                wal.applied(seq);
+            }
+        }
+        if (replaced && ((subscriptions.size() > 0) || replication.isShipping())) {
+            subscriptions.publish(record);
+            replication.changed(record, clock.getTime());
+        }
+        return created && replaced;
+    }
+
+    // Non-threaded function: Stores a station's record streamed from the primary (see Replication) as it is, with the
+    // primary's update time, unless a newer one is held. Expiry and subscribers treat it like a PUT
+    // With the write-ahead log, the record is logged and synced first like a PUT, so a restarted replica recovers it
+    void applyReplicated(StationRecord record) {
+        long seq = -1;
         try {
-            if (!Files.exists(path) || Files.size(path) == 0) { // Redudant check: if file doesn't exist create it
-                System.out.println("No weather file yet - creating new one");
-                PrintWriter pw = new PrintWriter(weatherFileName);
-                pw.println(entries);
-                pw.flush();
-                pw.close();
-                clock.updateTime(); // *** new file created = 1 event
+            if (wal != null) {
+                seq = wal.appendRecord(record, clock.getTime());
+                wal.sync(seq);
+            }
+            if (!store.replace(record)) {
                 return;
             }
         } catch (IOException ie) {
-            System.out.println("Server error - data file doesn't exist, failed to make file."); // may be counterproductive
+            System.out.println("Error trying to write replicated weather data: " + ie.getMessage());
             return;
+        } finally {
+            if (seq >= 0) {
+                wal.applied(seq);
+            }
         }
-        // Default case: updates the existing file
-        ConcurrentHashMap<String, String> currentWeatherData = new ConcurrentHashMap<String, String>();
-        try { // Turns the weather file into string HashMap containing key = type, value = data
-            BufferedReader re = new BufferedReader(new FileReader(weatherFileName));
-            String currLine = "";
-            String[] temp;
-            while (((currLine = re.readLine()) != null) && (!currLine.isEmpty())) {
-                temp = currLine.split(":", 2);
-                currentWeatherData.put(temp[0], temp[1]); // temp[0]=entry type, temp[1]=entry value
-            }
-            re.close();
-        } catch (IOException ie) {
-            System.out.println("Server error - failed to retrieve server data file");
-        }
+        refreshExpiry(store.fileFor(record.stationID), record.updatedMillis);
+        subscriptions.publish(record);
+    }
 
-        String[] feed = entries.split(System.lineSeparator());
-        ConcurrentHashMap<String, String> newEntries = new ConcurrentHashMap<String, String>();
-        String[] feedLine;
-        for (int i = 0; i < feed.length; ++i) { // Puts the newly-uploaded data into a HashMap
-            feedLine = feed[i].split(":", 2);
-            newEntries.put(feedLine[0], feedLine[1]);
+    // Non-threaded function: Removes a station the primary removed (see Replication), or one handed over to the node
+    // that owns it now (see Cluster). The removal is logged first (see removeStation)
+    void removeReplicated(String stationID) {
+        String filePath = store.fileFor(stationID);
+        synchronized (retention) {
+            if (currentFiles.remove(filePath) != null) {
+                recency.removed(filePath);
+            }
         }
+        removeStation(stationID);
+    }
 
-        try {
-            PrintWriter pw = new PrintWriter(weatherFileName);
-            // For each entry to update
-            for (ConcurrentHashMap.Entry<String, String> new_entry : newEntries.entrySet()) {
-                // For each entry in the current weather data
-                for (ConcurrentHashMap.Entry<String, String> curr_entry : currentWeatherData.entrySet()) {
-                    // if entry-to-update equals current weather entry, replace the current weather entry with updated entry
-                    if (new_entry.getKey().equals(curr_entry.getKey())) { // Special case: type already exists, so replace with new entry
-                        currentWeatherData.replace(new_entry.getKey(), new_entry.getValue());
-                        newEntries.remove(new_entry.getKey()); // Remove it from newEntries HashMap
-                    }
-                }
+    // Non-threaded function: Removes a station's data (e.g. expired), logging the removal first if the log is on
+    public void removeStation(String stationID) {
+        long seq = -1;
+        if (wal != null) {
+            try {
+                seq = wal.appendRemove(stationID, clock.getTime());
+            } catch (IOException ie) {
+                System.out.println("Failed to log the removal of " + stationID + ": " + ie.getMessage());
             }
+        }
+        store.remove(stationID);
+        if (seq >= 0) {
+            wal.applied(seq);
+        }
+        replication.removed(stationID, clock.getTime());
+    }
 
-            if (!(newEntries.isEmpty())) {
-                currentWeatherData.putAll(newEntries); // Adds entries that haven't been added before
-            }
-            for (ConcurrentHashMap.Entry<String, String> curr_entry : currentWeatherData.entrySet()) {
-                pw.println(curr_entry.getKey() + ":" + curr_entry.getValue()); // Reprint the file data with the new version
+    // updates the weather data with the given data (in regular text entry format), ID = stationID
+    // Non-threaded function (blocked)
+    // Merges the new entries into the station's data in memory (existing types replaced, new types added),
+    // then writes the station's file straight away, whatever the durability level
+    // entries = The data to be uploaded in non-JSON format, ID = ID of the content server who uploaded the file
+    public void updateFile(String entries, String ID) {
+        ID = ID.replaceAll("CS", "");
+        LinkedHashMap<String, String> newEntries = new LinkedHashMap<String, String>();
+        String[] feedLine;
+        for (String line : entries.split("\\r?\\n")) { // Puts the newly-uploaded data into a HashMap
+            feedLine = line.split(":", 2);
+            if (feedLine.length == 2) {
+                newEntries.put(feedLine[0], feedLine[1]);
             }
-            pw.flush();
-            pw.close();
+        }
+        try {
+            applyPut(ID, WeatherRecord.of(newEntries));
+            store.writeFile(ID, false);
             clock.updateTime(); // File updated = 1 event
         } catch (IOException ie) {
             System.out.println("Server error - failed to update weather data");
         }
     }
 
+    // Reads the startup options given after the class name (e.g. java AggregationServer/AggregationServer --virtual-threads)
+    // --virtual-threads: serve every connection on a virtual thread instead of a platform thread
+    // --nio=N: serve every connection with the NIO Selector transport and N I/O threads
+    // --durability=memory|write-behind|write-through: when weather data is written to the SERVER_DATA files
+    // --flush-interval=MS: time between two write-behind flushes
+    // --off-heap=N: keep the station records off the heap, in a table with room for N stations
+    // --snapshot=N: keep the station records in a memory-mapped snapshot file with room for N stations
+    // --queue-capacity=N / --max-in-flight=N: requests admitted at once in total / per connection before 503 is sent
+    // --replication-port=N: port replicas connect to while this server is the primary
+    // --replica-of=HOST:PORT: follow the primary whose replication port is HOST:PORT (read-only until PROMOTE)
+    // --cluster=HOST:PORT,...: run as one node of a cluster of these nodes, --node=HOST:PORT: this node among them
+    // --no-coalescing: run every queued PUT on its own instead of merging a station's waiting PUTs into one write
+    // --wal: log every PUT to a write-ahead log before acknowledging it, and recover from it on startup
+    // --commit-window=US / --commit-batch=N: group commit of PUT acks (window in microseconds, max acks per batch)
+    public void parseArguments(String[] args) {
+        long commitWindow = 1000; // Group commit defaults: 1ms window, up to 256 acks per batch
+        int commitBatch = 256;
+        for (String arg : args) {
+            if (arg.equals("--virtual-threads")) {
+                this.virtualThreads = true;
+                System.out.println("Connections will be served on virtual threads");
+            } else if (arg.startsWith("--nio=")) {
+                try {
+                    setNioThreads(Integer.parseInt(arg.substring("--nio=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid number of NIO threads, using the blocking transport: " + arg);
+                }
+            } else if (arg.startsWith("--durability=")) {
+                try {
+                    String level = arg.substring("--durability=".length()).toUpperCase().replace('-', '_');
+                    store.setDurability(StationStore.Durability.valueOf(level));
+                } catch (IllegalArgumentException iae) {
+                    System.out.println("Invalid durability level, using write-behind: " + arg);
+                }
+            } else if (arg.startsWith("--commit-window=") || arg.startsWith("--commit-batch=")) {
+                try {
+                    long value = Long.parseLong(arg.substring(arg.indexOf('=') + 1));
+                    if (arg.startsWith("--commit-window=")) {
+                        commitWindow = value;
+                    } else {
+                        commitBatch = (int) value;
+                    }
+                    setGroupCommit(commitWindow, commitBatch);
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid group commit option ignored: " + arg);
+                }
+            } else if (arg.startsWith("--ttl=")) {
+                try {
+                    setDefaultTtl(Long.parseLong(arg.substring("--ttl=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid TTL ignored: " + arg);
+                }
+            } else if (arg.startsWith("--station-ttl=")) { // --station-ttl=ID:MS, can be given for several stations
+                String[] idAndTtl = arg.substring("--station-ttl=".length()).split(":", 2);
+                try {
+                    setStationTtl(idAndTtl[0], Long.parseLong(idAndTtl[1]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("Invalid station TTL ignored (use --station-ttl=ID:MS): " + arg);
+                }
+            } else if (arg.startsWith("--max-stations=")) {
+                try {
+                    setMaxStations(Integer.parseInt(arg.substring("--max-stations=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid station limit ignored: " + arg);
+                }
+            } else if (arg.startsWith("--off-heap=")) {
+                try {
+                    int capacity = Integer.parseInt(arg.substring("--off-heap=".length()));
+                    store.useOffHeap(capacity);
+                    System.out.println("Station records are kept off-heap (room for " + capacity + " stations)");
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid off-heap capacity, records stay on the heap: " + arg);
+                }
+            } else if (arg.startsWith("--snapshot=")) {
+                try {
+                    startSnapshotFile(Integer.parseInt(arg.substring("--snapshot=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid snapshot capacity, no snapshot file used: " + arg);
+                }
+            } else if (arg.startsWith("--replication-port=")) {
+                try {
+                    setReplicationPort(Integer.parseInt(arg.substring("--replication-port=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid replication port ignored: " + arg);
+                }
+            } else if (arg.startsWith("--replica-of=")) { // --replica-of=HOST:PORT
+                String[] hostAndPort = arg.substring("--replica-of=".length()).split(":", 2);
+                try {
+                    setReplicaOf(hostAndPort[0], Integer.parseInt(hostAndPort[1]));
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    System.out.println("Invalid primary ignored (use --replica-of=HOST:PORT): " + arg);
+                }
+            } else if (arg.startsWith("--cluster=")) {
+                this.clusterNodes = arg.substring("--cluster=".length());
+            } else if (arg.startsWith("--node=")) {
+                this.clusterSelf = arg.substring("--node=".length());
+            } else if (arg.equals("--no-coalescing")) {
+                setCoalescing(false);
+            } else if (arg.equals("--wal")) {
+                this.writeAheadLog = true;
+            } else if (arg.startsWith("--subscriber-queue=")) {
+                try {
+                    setSubscriberQueue(Integer.parseInt(arg.substring("--subscriber-queue=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid subscriber queue size ignored: " + arg);
+                }
+            } else if (arg.startsWith("--queue-capacity=")) {
+                try {
+                    setQueueCapacity(Integer.parseInt(arg.substring("--queue-capacity=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid queue capacity ignored: " + arg);
+                }
+            } else if (arg.startsWith("--max-in-flight=")) {
+                try {
+                    setMaxInFlight(Integer.parseInt(arg.substring("--max-in-flight=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid in-flight limit ignored: " + arg);
+                }
+            } else if (arg.startsWith("--flush-interval=")) {
+                try {
+                    store.setFlushInterval(Long.parseLong(arg.substring("--flush-interval=".length())));
+                } catch (NumberFormatException nfe) {
+                    System.out.println("Invalid flush interval ignored: " + arg);
+                }
+            } else {
+                System.out.println("Unrecognised startup option ignored: " + arg);
+            }
+        }
+    }
+
     public static void main(String[] args) {
-        AggregationServer aggr = new AggregationServer();
+        AggregationServer aggr = new AggregationServer(args);
         aggr.getPort();
         aggr.beginOperation();
         aggr.startScanThread();
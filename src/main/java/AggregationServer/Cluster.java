@@ -0,0 +1,366 @@
+package AggregationServer;
+
+import JSONParser.JSONReader;
+import JSONParser.JSONWriter;
+import lamport.LamportClock;
+import protocol.HashRing;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Cluster mode: several Aggregation Servers (nodes), each holding the stations it owns on a consistent-hash ring of
+// station IDs (see protocol.HashRing), so ingest and storage grow with the number of nodes instead of one server
+// holding every station.
+// - A single station's PUT or GET sent to a node that doesn't own the station isn't run there: it gets 307 with the
+//   owner and the ring (see AggregationServer.sendRedirect). Content Servers and GETClients then connect to the owner,
+//   and with the ring they can send every later request straight to the right node.
+// - A batch PUT (many stations) is run by the node it was sent to: the stations other nodes own are forwarded to them
+//   as one batch PUT per owner, and their statuses go back with the rest. Nodes talk to each other as ordinary
+//   clients (Java serialisation, identity AS + node), one connection per peer.
+// - Bulk GETs and SUBSCRIBE only see the node's own stations: GETClients that know the ring ask every node and merge
+//   the replies. A "latest" GET is answered by the node it was sent to, with the latest of that node's stations only.
+// - Joining: a new node is started with every node of the cluster in --cluster (itself included). It sends the ring
+//   to every other node (a CLUSTER request), and each of them hands the stations the new node now owns over to it
+//   with a batch PUT, then drops them. With the ring only about 1/N of the stations move, the rest stay put.
+//   Handed over records carry their update times (Versions header), and the new owner only stores a record if it is
+//   newer than what it holds: a Content Server redirected there may already have sent it fresher data.
+//   A station is dropped on its own lane, after the PUTs of it the old node had already taken, and only if it is still
+//   the data that was sent: if one of those PUTs changed it, the new data is sent to the owner too before it's dropped
+// - Requests to other nodes block for up to PEER_TIMEOUT_MILLIS, so they never run on a station lane: handoffs run on
+//   one background thread, forwarded batches on peer threads, and only the local store changes go back to the lanes
+public class Cluster {
+    public static final String PEER_PREFIX = "AS"; // Identity of a node connected to another node
+    private static final int PEER_TIMEOUT_MILLIS = 10000;
+
+    private final AggregationServer server;
+    private final LamportClock clock;
+    private volatile HashRing ring; // null = not in a cluster
+    private volatile String self; // This node as it appears in the ring (host:port)
+    private final ConcurrentHashMap<String, Peer> peers = new ConcurrentHashMap<String, Peer>();
+    private final ExecutorService handOffs = Executors.newSingleThreadExecutor(runnable -> peerThread(runnable, "ClusterHandOff"));
+    private final ExecutorService forwarders = Executors.newCachedThreadPool(runnable -> peerThread(runnable, "ClusterForward"));
+
+    private final AtomicLong redirects = new AtomicLong(0);
+    private final AtomicLong forwarded = new AtomicLong(0); // Stations of batch PUTs forwarded to their owner
+    private final AtomicLong handedOff = new AtomicLong(0); // Stations moved to a node that joined
+
+    // Connection to another node. Requests on it are sent one at a time (synchronised on the peer)
+    private static class Peer {
+        final Socket socket;
+        final ObjectOutputStream out;
+        final ObjectInputStream in;
+
+        Peer(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = new ObjectOutputStream(socket.getOutputStream());
+            this.in = new ObjectInputStream(socket.getInputStream());
+        }
+    }
+
+    public Cluster(AggregationServer server, LamportClock clock) {
+        this.server = server;
+        this.clock = clock;
+    }
+
+    // Nodes of the cluster (this one included, as self). Must be set before join
+    public void configure(HashRing ring, String self) {
+        this.ring = ring;
+        this.self = self;
+    }
+
+    public boolean isEnabled() {
+        return ring != null;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    public String getSelf() {
+        return self;
+    }
+
+    // Entities connected as another node: their requests are always run here (no redirect or forward back)
+    public static boolean isPeer(String identity) {
+        return identity.startsWith(PEER_PREFIX);
+    }
+
+    // The node that owns the station if it isn't this one, null if this node owns it or isn't in a cluster
+    public String ownerElsewhere(String stationID) {
+        HashRing current = ring;
+        if (current == null) {
+            return null;
+        }
+        String owner = current.ownerOf(stationID);
+        return owner.equals(self) ? null : owner;
+    }
+
+    // Runs a task that talks to other nodes (e.g. forwarding a batch PUT's stations) on a peer thread, not the caller's
+    public void runPeerRequest(Runnable task) {
+        forwarders.execute(task);
+    }
+
+    private static Thread peerThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    // Called for every request answered with 307
+    public void redirected() {
+        redirects.incrementAndGet();
+    }
+
+    // Threaded function (runs in background): Sends the ring to every other node, which adopt it and hand over the
+    // stations this node now owns, then hands over any station this node holds (e.g. recovered from its files) that
+    // another node owns. Run once the server is listening: the handoffs to this node arrive while it waits
+    public void join() {
+        HashRing joined = ring;
+        if (joined == null) {
+            return;
+        }
+        Thread joiner = new Thread(() -> {
+            for (String node : joined.getNodes()) {
+                if (node.equals(self)) {
+                    continue;
+                }
+                try {
+                    String response = request(node, "CLUSTER /ring HTTP/1.1\nHost: " + self + "\nUser-Agent: ATOMClient/1/0"
+                            + "\nNodes: " + joined);
+                    System.out.println("Cluster: " + node + " answered " + response.split("\n")[1] + " to the ring " + joined);
+                } catch (IOException ie) {
+                    System.out.println("Cluster: couldn't reach " + node + " to join: " + ie.getMessage());
+                }
+            }
+            handOffs.execute(this::handOff);
+        }, "ClusterJoin");
+        joiner.setDaemon(true);
+        joiner.start();
+    }
+
+    // Non-threaded function: Takes the ring another node sent (CLUSTER request). If it differs, every station this node
+    // holds that now belongs to another node is handed over to it, in the background (see handOff)
+    // Returns false (nothing changed) if this server isn't in a cluster or the ring leaves this node out: either would
+    // make every station belong elsewhere, so every request would be redirected and every station handed away
+    public boolean adopt(HashRing newRing) {
+        synchronized (this) {
+            if ((ring == null) || (self == null) || !newRing.contains(self)) {
+                return false;
+            }
+            if (new HashSet<String>(ring.getNodes()).equals(new HashSet<String>(newRing.getNodes()))) {
+                return true;
+            }
+            ring = newRing;
+        }
+        System.out.println("Cluster: now " + newRing.getNodes().size() + " nodes: " + newRing);
+        handOffs.execute(this::handOff);
+        return true;
+    }
+
+    // Threaded function (runs on the handoff thread): Sends each station owned by another node to it (one batch PUT
+    // per owner) and drops the ones it stored
+    private void handOff() {
+        LinkedHashMap<String, LinkedHashMap<String, StationRecord>> moving = new LinkedHashMap<String, LinkedHashMap<String, StationRecord>>();
+        for (StationRecord record : server.getStore().records()) {
+            String owner = ownerElsewhere(record.stationID);
+            if (owner != null) {
+                moving.computeIfAbsent(owner, o -> new LinkedHashMap<String, StationRecord>()).put(record.stationID, record);
+            }
+        }
+        for (Map.Entry<String, LinkedHashMap<String, StationRecord>> batch : moving.entrySet()) {
+            sendAndDrop(batch.getKey(), batch.getValue());
+            System.out.println("Cluster: handed " + batch.getValue().size() + " stations over to " + batch.getKey());
+        }
+    }
+
+    // Threaded function (runs on the handoff thread): Sends the records to their owner, then drops each one it stored
+    // on the station's lane. If the owner can't take a station, it is kept (handed over again at the next ring change
+    // or expires)
+    private void sendAndDrop(String owner, Map<String, StationRecord> batch) {
+        LinkedHashMap<String, Map<String, String>> records = new LinkedHashMap<String, Map<String, String>>();
+        LinkedHashMap<String, Long> versions = new LinkedHashMap<String, Long>();
+        for (StationRecord record : batch.values()) {
+            records.put(record.stationID, record.entries());
+            versions.put(record.stationID, record.updatedMillis);
+        }
+        for (Map.Entry<String, String> status : forward(owner, records, versions).entrySet()) {
+            StationRecord sent = batch.get(status.getKey());
+            if ((sent != null) && stored(status.getValue())) {
+                server.runOnLane(sent.stationID, () -> drop(owner, sent.stationID, sent.updatedMillis));
+            }
+        }
+    }
+
+    // Non-threaded function (runs on the station's lane): Drops a station the owner stored, as long as the data sent
+    // (sentMillis = its update time) is still the latest. If a PUT applied here since then changed it, the newer data
+    // is sent to the owner first (on the handoff thread), and the station is checked again once the owner has it
+    private void drop(String owner, String stationID, long sentMillis) {
+        StationRecord record = server.getStore().get(stationID);
+        if (record == null) {
+            return;
+        }
+        if (record.updatedMillis != sentMillis) {
+            handOffs.execute(() -> sendAndDrop(owner, Map.of(stationID, record)));
+            return;
+        }
+        server.removeReplicated(stationID);
+        handedOff.incrementAndGet();
+    }
+
+    private static boolean stored(String status) {
+        return "200".equals(status) || "201".equals(status);
+    }
+
+    // Non-threaded function (blocked): Sends stations to the node that owns them as one batch PUT
+    // Returns stationID -> status code the owner sent, 503 for every station if it couldn't be reached
+    public LinkedHashMap<String, String> forward(String node, Map<String, ? extends Map<String, String>> records) {
+        return forward(node, records, null);
+    }
+
+    // Same, for stations handed over: versions = stationID -> update time of the record sent (Versions header), so the
+    // owner only stores records newer than its own (see AggregationServer.applyHandedOff)
+    public LinkedHashMap<String, String> forward(String node, Map<String, ? extends Map<String, String>> records,
+                                                 Map<String, Long> versions) {
+        StringBuilder json = new StringBuilder();
+        JSONWriter batch = new JSONWriter(json).beginObject();
+        for (Map.Entry<String, ? extends Map<String, String>> record : records.entrySet()) {
+            batch.name(record.getKey());
+            JSONWriter writer = new JSONWriter(json).beginObject();
+            for (Map.Entry<String, String> entry : record.getValue().entrySet()) {
+                writer.field(entry.getKey(), entry.getValue());
+            }
+            writer.endObject();
+        }
+        batch.endObject();
+        LinkedHashMap<String, String> statuses = new LinkedHashMap<String, String>();
+        try {
+            String response = request(node, "PUT /batch HTTP/1.1\nHost: " + self + "\nUser-Agent: ATOMClient/1/0"
+                    + "\nContent-Type: weather/json-batch\nContent-Length: " + json.toString().lines().count()
+                    + ((versions != null) ? "\nVersions: " + formatVersions(versions) : "") + "\n \n" + json);
+            int body = response.indexOf("\n{"); // 207, then stationID -> status code
+            if (body < 0) {
+                throw new IOException("unexpected response " + response.replace('\n', ' '));
+            }
+            statuses = new JSONReader(response, body + 1, response.length()).readObject();
+            forwarded.addAndGet(records.size());
+        } catch (IOException | ParseException e) {
+            System.out.println("Cluster: couldn't forward " + records.size() + " stations to " + node + ": " + e.getMessage());
+            for (String stationID : records.keySet()) {
+                statuses.put(stationID, "503");
+            }
+        }
+        return statuses;
+    }
+
+    // Versions header of a handoff: stationID=updatedMillis pairs, comma-separated
+    public static String formatVersions(Map<String, Long> versions) {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, Long> version : versions.entrySet()) {
+            header.append((header.length() > 0) ? "," : "").append(version.getKey()).append('=').append(version.getValue());
+        }
+        return header.toString();
+    }
+
+    // Reads a Versions header back, null if there is none or it is malformed
+    public static HashMap<String, Long> parseVersions(String header) {
+        if (header == null) {
+            return null;
+        }
+        HashMap<String, Long> versions = new HashMap<String, Long>();
+        for (String pair : header.split(",")) {
+            int equals = pair.indexOf('=');
+            if (equals <= 0) {
+                return null;
+            }
+            try {
+                versions.put(pair.substring(0, equals).trim(), Long.parseLong(pair.substring(equals + 1).trim()));
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+        }
+        return versions;
+    }
+
+    // Non-threaded function (blocked): Sends one request to a node and returns its response (timestamp first)
+    // A broken connection is opened again once
+    private String request(String node, String message) throws IOException {
+        for (int attempt = 0; ; ++attempt) {
+            Peer peer = peerFor(node);
+            try {
+                synchronized (peer) {
+                    peer.out.writeObject(clock.updateTime() + "\n" + message);
+                    peer.out.flush();
+                    String response = (String) peer.in.readObject();
+                    clock.processEvent(Integer.parseInt(response.split("\n", 2)[0]));
+                    return response;
+                }
+            } catch (IOException | ClassNotFoundException | NumberFormatException e) {
+                peers.remove(node, peer);
+                peer.socket.close();
+                if (attempt == 1) {
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private Peer peerFor(String node) throws IOException {
+        Peer peer = peers.get(node);
+        if (peer != null) {
+            return peer;
+        }
+        Socket socket = new Socket(HashRing.hostOf(node), HashRing.portOf(node));
+        socket.setSoTimeout(PEER_TIMEOUT_MILLIS);
+        peer = new Peer(socket);
+        synchronized (peer) {
+            peer.out.writeObject(clock.updateTime() + "\n" + PEER_PREFIX + self); // Handshake: timestamp and ID
+            peer.out.flush();
+        }
+        Peer existing = peers.putIfAbsent(node, peer);
+        if (existing != null) {
+            socket.close();
+            return existing;
+        }
+        return peer;
+    }
+
+    // Closes the connections to the other nodes and stops the peer threads (when the server ENDs)
+    public void close() {
+        handOffs.shutdownNow();
+        forwarders.shutdownNow();
+        for (Peer peer : peers.values()) {
+            try {
+                peer.socket.close();
+            } catch (IOException ie) {
+                System.out.println("Error closing a cluster connection: " + ie.getMessage());
+            }
+        }
+        peers.clear();
+    }
+
+    // For testing purposes
+    public long getRedirects() {
+        return redirects.get();
+    }
+
+    // For testing purposes
+    public long getForwarded() {
+        return forwarded.get();
+    }
+
+    // For testing purposes
+    public long getHandedOff() {
+        return handedOff.get();
+    }
+}
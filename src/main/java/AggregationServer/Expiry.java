@@ -0,0 +1,33 @@
+package AggregationServer;
+
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+// A station's expiry deadline, waiting in the server's expiry DelayQueue until the deadline has passed
+// A PUT doesn't look for the station's old deadline (that would be O(n) in a DelayQueue), it only updates currentFiles.
+// When the old deadline comes out of the queue, the station's real deadline (its update time in currentFiles + TTL)
+// hasn't passed yet, so it is queued again for the real deadline instead of expiring a station that was refreshed since
+public class Expiry implements Delayed {
+    public final String filePath; // Station's weather data file (key of currentFiles)
+    public final long updatedMillis; // Update time this deadline was made for
+    public final long deadlineMillis; // currentTimeMillis() at which the station expires, unless refreshed
+
+    public Expiry(String filePath, long updatedMillis, long expiryMillis) {
+        this.filePath = filePath;
+        this.updatedMillis = updatedMillis;
+        this.deadlineMillis = updatedMillis + expiryMillis;
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(deadlineMillis - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+        if (other instanceof Expiry) {
+            return Long.compare(deadlineMillis, ((Expiry) other).deadlineMillis);
+        }
+        return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
+    }
+}
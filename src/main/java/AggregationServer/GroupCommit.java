@@ -0,0 +1,193 @@
+package AggregationServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Group commit of PUT acknowledgements
+// Lanes apply a PUT to the store and hand its status over to this committer instead of persisting and replying
+// themselves, then move on to their next request. The committer collects the acks that arrive within a small window
+// (or until the batch is full), makes the whole batch durable with one write-ahead log fsync (or, for write-through,
+// one synced file write per station in the batch), and only then sends every ack of the batch.
+// Batch sizes are counted in power-of-two buckets: 1, 2, 3-4, 5-8, 9-16, ...
+public class GroupCommit {
+    private final AggregationServer server;
+    private final long windowMicros; // How long the first ack of a batch waits for others
+    private final int maxBatch; // Batch is committed straight away once it has this many acks
+    private final LinkedBlockingQueue<PendingAck> pending = new LinkedBlockingQueue<PendingAck>();
+    private Thread committer;
+
+    private final AtomicLongArray batchSizes = new AtomicLongArray(32); // Bucket i = batches of 2^(i-1)+1 .. 2^i acks
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong acks = new AtomicLong(0);
+
+    // A PUT's status waiting to be made durable and sent
+    private static class PendingAck {
+        final Socket socket;
+        final String stationID;
+        final String status;
+        final long version; // Station's version after the PUT, -1 = none
+        final String requestID; // Content Server's tag for the PUT, null = none
+
+        PendingAck(Socket socket, String stationID, String status, long version, String requestID) {
+            this.socket = socket;
+            this.stationID = stationID;
+            this.status = status;
+            this.version = version;
+            this.requestID = requestID;
+        }
+    }
+
+    public GroupCommit(AggregationServer server, long windowMicros, int maxBatch) {
+        this.server = server;
+        this.windowMicros = Math.max(0, windowMicros);
+        this.maxBatch = Math.max(1, maxBatch);
+    }
+
+    // Queues a PUT's status (e.g. "201"). It is sent once the batch it ends up in has been made durable
+    public void submit(Socket socket, String stationID, String status) {
+        submit(socket, stationID, status, -1, null);
+    }
+
+    // Same, with the station's version after the PUT and the PUT's request ID, sent along with the status
+    public void submit(Socket socket, String stationID, String status, long version, String requestID) {
+        pending.offer(new PendingAck(socket, stationID, status, version, requestID));
+    }
+
+    // Threaded function (runs in background): collects and commits batches. Only one instance exists
+    public synchronized void start() {
+        if (committer != null) {
+            return;
+        }
+        committer = new Thread(() -> {
+            while (true) {
+                ArrayList<PendingAck> batch = new ArrayList<PendingAck>();
+                try {
+                    batch.add(pending.take()); // Blocks until a PUT has been applied
+                    long deadline = System.nanoTime() + (windowMicros * 1000);
+                    while (batch.size() < maxBatch) {
+                        long remaining = deadline - System.nanoTime();
+                        PendingAck next = (remaining > 0) ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+                        if (next == null) {
+                            break; // Window over
+                        }
+                        batch.add(next);
+                    }
+                } catch (InterruptedException ie) { // Stopped: what was already submitted is still committed
+                    pending.drainTo(batch);
+                    if (!batch.isEmpty()) {
+                        commit(batch);
+                    }
+                    return;
+                }
+                commit(batch);
+            }
+        }, "GroupCommit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // Non-threaded function: stops the committer once it has committed every ack submitted so far
+    // Called by the server's shutdown after its lanes have stopped, so nothing is submitted any more
+    public synchronized void stop() throws InterruptedException {
+        if (committer == null) {
+            return;
+        }
+        committer.interrupt();
+        committer.join();
+        committer = null;
+    }
+
+    // Makes the batch durable, then sends every ack. If that fails, every stored PUT of the batch gets 500 instead
+    private void commit(ArrayList<PendingAck> batch) {
+        boolean durable = true;
+        try {
+            LinkedHashSet<String> stations = new LinkedHashSet<String>(); // Several PUTs to one station = one write
+            for (PendingAck ack : batch) {
+                if (isStored(ack.status)) {
+                    stations.add(ack.stationID);
+                }
+            }
+            makeDurable(server, stations);
+        } catch (IOException ie) {
+            System.out.println("Group commit failed, PUTs of the batch are not durable: " + ie.getMessage());
+            durable = false;
+        }
+        batches.incrementAndGet(); // Counted before the acks go out, so a client that got its ack sees it counted
+        acks.addAndGet(batch.size());
+        batchSizes.incrementAndGet(64 - Long.numberOfLeadingZeros(batch.size() - 1));
+        for (PendingAck ack : batch) {
+            try {
+                if (durable || !isStored(ack.status)) {
+                    server.sendStatus(ack.socket, ack.status, ack.version, ack.requestID);
+                } else {
+                    server.sendStatus(ack.socket, "500", -1, ack.requestID);
+                }
+            } catch (IOException ie) {
+                System.out.println("Error sending acknowledgement - Couldn't get socket's output stream: " + ie.getMessage());
+            }
+        }
+    }
+
+    // Makes the PUTs already applied to the given stations durable: one write-ahead log fsync covers all of them, and
+    // for write-through, each station's file is written and synced once. Also used for batch PUTs
+    public static void makeDurable(AggregationServer server, Collection<String> stationIDs) throws IOException {
+        WriteAheadLog wal = server.getWriteAheadLog();
+        if (wal != null) {
+            wal.syncAll();
+        }
+        StationStore store = server.getStore();
+        if (store.getDurability() == StationStore.Durability.WRITE_THROUGH) {
+            for (String stationID : stationIDs) {
+                store.writeFile(stationID, true);
+            }
+        }
+    }
+
+    private static boolean isStored(String status) {
+        return status.equals("200") || status.equals("201");
+    }
+
+    // For testing purposes
+    public long getBatches() {
+        return batches.get();
+    }
+
+    // For testing purposes
+    public long getAcks() {
+        return acks.get();
+    }
+
+    // Number of batches in each size bucket: [0] = 1 ack, [1] = 2, [2] = 3-4, [3] = 5-8, ...
+    public long[] getBatchSizeHistogram() {
+        long[] histogram = new long[batchSizes.length()];
+        for (int i = 0; i < histogram.length; ++i) {
+            histogram[i] = batchSizes.get(i);
+        }
+        return histogram;
+    }
+
+    // Batch size distribution as text, e.g. "1: 12, 2: 3, 3-4: 7 (22 batches, 47 acks)"
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < batchSizes.length(); ++i) {
+            long count = batchSizes.get(i);
+            if (count == 0) {
+                continue;
+            }
+            long low = (i == 0) ? 1 : (1L << (i - 1)) + 1;
+            long high = 1L << i;
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append((low == high) ? Long.toString(low) : (low + "-" + high)).append(": ").append(count);
+        }
+        return sb + " (" + batches.get() + " batches, " + acks.get() + " acks)";
+    }
+}
@@ -0,0 +1,46 @@
+package AggregationServer;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Default StationTable: the records are kept as objects on the heap
+// Merges are atomic per station (ConcurrentHashMap.compute), and records() is a live view
+public class HeapStationTable implements StationTable {
+    private final ConcurrentHashMap<String, StationRecord> records = new ConcurrentHashMap<String, StationRecord>();
+
+    public StationRecord get(String stationID) {
+        return records.get(stationID);
+    }
+
+    public boolean merge(String stationID, WeatherRecord uploaded, long now) {
+        boolean[] created = new boolean[1];
+        records.compute(stationID, (id, current) -> {
+            if (current == null) {
+                created[0] = true;
+                return new StationRecord(id, uploaded, now);
+            }
+            return current.merge(uploaded, now);
+        });
+        return created[0];
+    }
+
+    public void put(StationRecord record) {
+        records.put(record.stationID, record);
+    }
+
+    public void remove(String stationID) {
+        records.remove(stationID);
+    }
+
+    public void clear() {
+        records.clear();
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public Collection<StationRecord> records() {
+        return records.values();
+    }
+}
@@ -0,0 +1,358 @@
+package AggregationServer;
+
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.WireProtocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Non-blocking transport for the Aggregation Server: a few I/O threads, each running a java.nio Selector event loop,
+// serve every connection instead of one thread per socket.
+// Loop 0 also accepts new connections and hands them out round-robin. Each loop reads whatever bytes are available,
+// frames them into complete messages (SerialStringFramer) and gives them to the AggregationServer, which queues them
+// for the request lanes exactly like listenForRequests does.
+// Responses are still written with an ObjectOutputStream, but over a ChannelOutputStream that queues the bytes for the
+// connection's loop, so executeRequest/sendResponse work the same for both transports and the wire format is unchanged.
+// The first bytes of a connection decide its format: Java serialisation's header, or the binary protocol's magic
+// number (see protocol.WireProtocol), in which case frames are decoded with a FrameDecoder instead.
+// A connection that fails (I/O error, or a message the server can't handle) is closed on its own, its loop carries on.
+// A client that doesn't read its responses isn't read from either while more than MAX_OUTGOING_BYTES wait for it.
+public class NioTransport {
+    public static final int MAX_OUTGOING_BYTES = 4 * 1024 * 1024;
+
+    private final AggregationServer server;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+    private Thread[] threads;
+
+    // server = the server that receives the messages, serverChannel = bound channel to accept on, ioThreads = number of loops
+    public NioTransport(AggregationServer server, ServerSocketChannel serverChannel, int ioThreads) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.loops = new EventLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; ++i) {
+            loops[i] = new EventLoop(i);
+        }
+    }
+
+    // Starts the I/O threads (in background). Loops stop once the server channel is closed
+    public synchronized void start() throws IOException {
+        serverChannel.configureBlocking(false);
+        loops[0].accepting = true;
+        threads = new Thread[loops.length];
+        for (EventLoop loop : loops) {
+            threads[loop.index] = new Thread(loop, "NIO-" + loop.index);
+            threads[loop.index].setDaemon(true);
+            threads[loop.index].start();
+        }
+    }
+
+    // Non-threaded function: closes the server channel and waits for every loop to close its connections and stop
+    public synchronized void stop() throws IOException, InterruptedException {
+        serverChannel.close();
+        if (threads == null) {
+            return;
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup(); // Notices the closed channel now instead of at its select timeout
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        threads = null;
+    }
+
+    // State of one connected socket, attached to its SelectionKey
+    private class Connection {
+        final SocketChannel channel;
+        final EventLoop loop;
+        final ArrayDeque<ByteBuffer> outgoing = new ArrayDeque<ByteBuffer>(); // Response bytes not yet written
+        long outgoingBytes = 0;
+        boolean readingPaused = false; // Not read from while too many response bytes wait (see flushOutgoing)
+        SerialStringFramer framer; // Set once the first bytes show a Java serialisation client
+        FrameDecoder frames; // Set once the first bytes show a binary protocol client
+        ByteBuffer handshake = ByteBuffer.allocate(3); // Binary protocol: magic number + offered version
+        ObjectOutputStream replyStream;
+        String identity; // null until the handshake message has been received
+        SelectionKey key;
+
+        Connection(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        // Queues response bytes, writing them straight away if nothing is waiting. Called by any thread (usually a lane)
+        void send(ByteBuffer bytes) throws IOException {
+            synchronized (this) {
+                if (outgoing.isEmpty()) {
+                    channel.write(bytes);
+                }
+                if (!bytes.hasRemaining()) {
+                    return;
+                }
+                outgoing.add(bytes); // Socket buffer is full, the loop writes the rest when the channel is writable
+                outgoingBytes += bytes.remaining();
+            }
+            loop.pendingWrites.add(this);
+            loop.selector.wakeup();
+        }
+
+        // Writes as much of the queued output as the socket accepts. Called by the connection's loop only
+        // Stops reading requests from the connection while more than MAX_OUTGOING_BYTES are still queued, and starts
+        // again once they're written
+        void flushOutgoing() throws IOException {
+            synchronized (this) {
+                while (!outgoing.isEmpty()) {
+                    ByteBuffer head = outgoing.peek();
+                    int before = head.remaining();
+                    channel.write(head);
+                    outgoingBytes -= before - head.remaining();
+                    if (head.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); // Wait until writable again
+                        pauseReading(outgoingBytes > MAX_OUTGOING_BYTES);
+                        return;
+                    }
+                    outgoing.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                pauseReading(false);
+            }
+        }
+
+        private void pauseReading(boolean pause) {
+            if (pause && !readingPaused) {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if (!pause && readingPaused) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            }
+            readingPaused = pause;
+        }
+    }
+
+    // OutputStream that the connection's ObjectOutputStream writes into -> copies the bytes into the send queue
+    private static class ChannelOutputStream extends OutputStream {
+        private final Connection connection;
+
+        ChannelOutputStream(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (!connection.channel.isOpen()) {
+                throw new IOException("Connection closed");
+            }
+            byte[] copy = new byte[len];
+            System.arraycopy(b, off, copy, 0, len);
+            connection.send(ByteBuffer.wrap(copy));
+        }
+    }
+
+    // One I/O thread: a Selector over the connections assigned to it (and the server channel for loop 0)
+    private class EventLoop implements Runnable {
+        final int index;
+        final Selector selector;
+        final ConcurrentLinkedQueue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<Connection>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(64 * 1024); // Shared by every connection of this loop
+        boolean accepting = false;
+
+        EventLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (accepting) {
+                    serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+                }
+                while (serverChannel.isOpen()) {
+                    selector.select(1000); // Timeout only so the loop notices the server channel being closed
+                    registerNewChannels();
+                    Connection waiting;
+                    while ((waiting = pendingWrites.poll()) != null) { // Responses that didn't fit in the socket buffer
+                        if (waiting.key.isValid()) {
+                            try {
+                                waiting.flushOutgoing();
+                            } catch (IOException | RuntimeException e) {
+                                close(waiting, e.toString());
+                            }
+                        }
+                    }
+                    for (SelectionKey key : selector.selectedKeys()) {
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            try {
+                                acceptAll();
+                            } catch (IOException ie) {
+                                System.out.println("Failed to accept incoming socket: " + ie.getMessage());
+                            }
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isWritable()) {
+                                connection.flushOutgoing();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                read(connection);
+                            }
+                        } catch (IOException | RuntimeException e) { // Only this connection ends, not the loop
+                            close(connection, e.toString());
+                        }
+                    }
+                    selector.selectedKeys().clear();
+                }
+                for (SelectionKey key : selector.keys()) { // Server closed: close this loop's connections
+                    if (key.attachment() instanceof Connection) {
+                        close((Connection) key.attachment(), "server closed");
+                    }
+                }
+                selector.close();
+            } catch (IOException ie) {
+                System.out.println("NIO event loop " + index + " stopped: " + ie.getMessage());
+            }
+        }
+
+        // Accepts every pending connection and assigns each to a loop (round-robin)
+        private void acceptAll() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                EventLoop target = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+                target.newChannels.add(channel);
+                if (target != this) {
+                    target.selector.wakeup();
+                }
+            }
+            registerNewChannels();
+        }
+
+        // Registers channels handed to this loop. Nothing is sent until the client's first bytes show its format
+        private void registerNewChannels() {
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                Connection connection = new Connection(channel, this);
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException ie) {
+                    close(connection, ie.getMessage());
+                }
+            }
+        }
+
+        // Reads the available bytes and passes every completed message to the server
+        private void read(Connection connection) throws IOException {
+            readBuffer.clear();
+            int read = connection.channel.read(readBuffer);
+            if (read < 0) {
+                close(connection, "end of stream");
+                return;
+            }
+            if (read == 0) {
+                return; // Nothing new (e.g. woken up spuriously)
+            }
+            readBuffer.flip();
+            if ((connection.framer == null) && (connection.frames == null) && !detectFormat(connection)) {
+                return; // Not enough bytes yet
+            }
+            if (connection.frames != null) {
+                readFrames(connection);
+                return;
+            }
+            for (String message : connection.framer.feed(readBuffer)) {
+                Socket socket = connection.channel.socket();
+                if (connection.identity == null) { // First message is always the handshake
+                    connection.identity = server.completeHandshake(socket, message, connection.replyStream, null);
+                    if (connection.identity == null) {
+                        close(connection, "handshake denied");
+                        return;
+                    }
+                } else if (!server.queueRequest(message, socket, connection.identity)) {
+                    connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ); // Stop listening
+                    return;
+                }
+            }
+        }
+
+        // Looks at the first bytes of a connection. Java serialisation clients get the stream header back
+        // (like new ObjectOutputStream does), binary protocol clients get the version answer once all 3 bytes are in
+        // Returns false while the format (or the binary handshake) isn't complete yet
+        private boolean detectFormat(Connection connection) throws IOException {
+            if ((connection.handshake.position() == 0) && (readBuffer.get(readBuffer.position()) != WireProtocol.MAGIC_0)) {
+                connection.framer = new SerialStringFramer();
+                connection.replyStream = new ObjectOutputStream(new ChannelOutputStream(connection)); // Writes header
+                return true;
+            }
+            while (connection.handshake.hasRemaining() && readBuffer.hasRemaining()) {
+                connection.handshake.put(readBuffer.get());
+            }
+            if (connection.handshake.hasRemaining()) {
+                return false;
+            }
+            byte[] offered = connection.handshake.array();
+            int version = Math.min(offered[2] & 0xFF, WireProtocol.VERSION);
+            if ((offered[1] != WireProtocol.MAGIC_1) || (version < 1)) {
+                connection.send(ByteBuffer.wrap(new byte[]{0}));
+                close(connection, "unsupported protocol");
+                return false;
+            }
+            connection.send(ByteBuffer.wrap(new byte[]{(byte) version}));
+            connection.frames = new FrameDecoder();
+            return true;
+        }
+
+        // Same as the message loop in read, for a binary protocol connection
+        private void readFrames(Connection connection) throws IOException {
+            Socket socket = connection.channel.socket();
+            for (Frame frame : connection.frames.feed(readBuffer)) {
+                if (connection.identity == null) { // First frame is always the HELLO
+                    connection.identity = server.completeBinaryHandshake(socket, frame,
+                            new BufferedOutputStream(new ChannelOutputStream(connection)));
+                    if (connection.identity == null) {
+                        close(connection, "handshake denied");
+                        return;
+                    }
+                } else if (!server.queueFrame(frame, socket, connection.identity)) {
+                    connection.key.interestOps(connection.key.interestOps() & ~SelectionKey.OP_READ); // Stop listening
+                    return;
+                }
+            }
+        }
+
+        private void close(Connection connection, String reason) {
+            if (connection.identity != null) {
+                System.out.println("A socket connection has ended: " + reason);
+                server.connectionEnded(connection.channel.socket());
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException ie) {
+                System.out.println("Failed to close connection: " + ie.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,569 @@
+package AggregationServer;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.StampedLock;
+
+// StationTable that keeps every station in a fixed-size slot of native memory (FFM MemorySegment), so the heap only
+// holds this object however many stations there are: nothing for the GC to mark or copy. get() rebuilds a short-lived
+// StationRecord from the slot (GET responses are encoded per GET, they aren't cached on the record as on the heap)
+//
+// Slot layout (slotSize bytes, see the offsets below):
+// long updatedMillis | u1 ID length | ID bytes (UTF-8, up to ID_BYTES) | long unscaled value per numeric type |
+// byte scale per numeric type | u1 field count | u1 field id per field (upload order, up to MAX_FIELDS) |
+// short length per string type (-1 = not uploaded) | u1 extra field count | text area (TEXT_BYTES): the string values,
+// then per extra field: short length | type | short length | value
+// Data that doesn't fit (long station ID, too many fields, too much text) is refused with an IOException -> 500
+//
+// Index: open addressing (linear probing) over 2x capacity int cells: 0 = empty, -1 = removed, else slot number + 1
+// Free slots are kept in a stack. The capacity is fixed when the table is made
+// Locking: one StampedLock. Writers (PUTs, removals) hold the write lock; GETs read optimistically (copy the slot,
+// then check no write happened meanwhile), and only take the read lock if one did
+//
+// Memory: header | index | free slot stack | slots, allocated in native memory, or mapped from a snapshot file (map).
+// A mapped table is the station data itself: it is updated in place, and sync() (msync) makes it durable.
+// Header: int magic | int slot size | int capacity | int schema fingerprint | int clean | int count | int free count |
+// int removed cells. clean = 1 while the file matches the counters (set by sync/close, cleared by the next write);
+// opening a clean file only reads the header. Opening one that wasn't (crash) rebuilds the index and free stack from
+// the slots, still without reading any other file
+public class OffHeapStationTable implements StationTable, AutoCloseable {
+    public static final int ID_BYTES = 23;
+    public static final int MAX_FIELDS = 32;
+    public static final int TEXT_BYTES = 200;
+
+    private static final ValueLayout.OfByte BYTE = ValueLayout.JAVA_BYTE;
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED;
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED;
+    private static final int EMPTY = 0;
+    private static final int REMOVED = -1;
+
+    private static final int MAGIC = 0x53544E31; // "STN1"
+    private static final int HEADER_BYTES = 64;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SLOT_SIZE_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SCHEMA_OFFSET = 12;
+    private static final int CLEAN_OFFSET = 16;
+    private static final int COUNT_OFFSET = 20;
+    private static final int FREE_COUNT_OFFSET = 24;
+    private static final int REMOVED_OFFSET = 28;
+
+    private final WeatherSchema schema = WeatherSchema.FEED;
+    private final int capacity;
+    private final int indexMask;
+
+    // Offsets inside a slot
+    private static final int UPDATED_OFFSET = 0;
+    private static final int ID_OFFSET = 8; // ID length, then the ID
+    private final int numbersOffset;
+    private final int scalesOffset;
+    private final int orderOffset; // Field count, then the field ids
+    private final int lengthsOffset;
+    private final int extrasOffset; // Extra field count
+    private final int textOffset;
+    private final int slotSize;
+
+    private final Arena arena = Arena.ofShared();
+    private final FileChannel file; // Snapshot file the memory is mapped from, null if it is plain native memory
+    private final MemorySegment memory;
+    private final MemorySegment header;
+    private final MemorySegment slots;
+    private final MemorySegment index;
+    private final MemorySegment free; // Stack of free slot numbers
+    private int freeCount;
+    private int removedCells = 0; // REMOVED index cells, the index is rebuilt when there are too many
+    private volatile int count = 0;
+    private boolean clean = false; // Header marked clean (only used for a mapped file)
+    private boolean closed = false;
+    private final boolean recovered; // Opened from a file that wasn't closed cleanly
+
+    private final StampedLock lock = new StampedLock();
+    private final byte[] scratch; // Encoded slot, only used under the write lock
+
+    // capacity = most stations the table can hold (its native memory is allocated at once)
+    public OffHeapStationTable(int capacity) {
+        this(capacity, null);
+    }
+
+    // Native memory for the given capacity, or the mapping of file (created with that capacity if it is empty)
+    private OffHeapStationTable(int capacity, FileChannel file) {
+        this.file = file;
+        numbersOffset = ID_OFFSET + 1 + ID_BYTES;
+        scalesOffset = numbersOffset + schema.numericCount * 8;
+        orderOffset = scalesOffset + schema.numericCount;
+        lengthsOffset = orderOffset + 1 + MAX_FIELDS;
+        extrasOffset = lengthsOffset + schema.stringCount * 2;
+        textOffset = extrasOffset + 1;
+        slotSize = (textOffset + TEXT_BYTES + 7) & ~7;
+        scratch = new byte[slotSize];
+
+        MemorySegment existing = null;
+        try {
+            if ((file != null) && (file.size() >= HEADER_BYTES)) {
+                existing = file.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES, arena);
+                if ((existing.get(INT, MAGIC_OFFSET) != MAGIC) || (existing.get(INT, SLOT_SIZE_OFFSET) != slotSize)
+                        || (existing.get(INT, SCHEMA_OFFSET) != fingerprint(schema))) {
+                    throw new IllegalStateException("Snapshot file was made with other feed types or another layout");
+                }
+                capacity = existing.get(INT, CAPACITY_OFFSET); // The file's capacity wins
+            }
+            this.capacity = Math.max(1, capacity);
+            int cells = Integer.highestOneBit(Math.max(2, this.capacity * 2 - 1)) << 1; // Power of 2, >= 2x capacity
+            indexMask = cells - 1;
+            long indexBytes = (long) cells * 4;
+            long freeBytes = (long) this.capacity * 4;
+            long total = HEADER_BYTES + indexBytes + freeBytes + (long) slotSize * this.capacity;
+            memory = (file == null) ? arena.allocate(total, 8) : file.map(FileChannel.MapMode.READ_WRITE, 0, total, arena);
+            header = memory.asSlice(0, HEADER_BYTES);
+            index = memory.asSlice(HEADER_BYTES, indexBytes);
+            free = memory.asSlice(HEADER_BYTES + indexBytes, freeBytes);
+            slots = memory.asSlice(HEADER_BYTES + indexBytes + freeBytes);
+        } catch (IOException ie) {
+            arena.close();
+            throw new IllegalStateException("Couldn't map the snapshot file: " + ie.getMessage(), ie);
+        } catch (RuntimeException re) {
+            arena.close();
+            throw re;
+        }
+
+        if (existing == null) { // New table
+            header.set(INT, MAGIC_OFFSET, MAGIC);
+            header.set(INT, SLOT_SIZE_OFFSET, slotSize);
+            header.set(INT, CAPACITY_OFFSET, this.capacity);
+            header.set(INT, SCHEMA_OFFSET, fingerprint(schema));
+            clearSlots(); // Not clear: a subclass could override it before it is set up
+            recovered = false;
+        } else if (header.get(INT, CLEAN_OFFSET) == 1) { // Closed cleanly: ready as it is
+            count = header.get(INT, COUNT_OFFSET);
+            freeCount = header.get(INT, FREE_COUNT_OFFSET);
+            removedCells = header.get(INT, REMOVED_OFFSET);
+            clean = true;
+            recovered = false;
+        } else { // Crashed while the file was being changed: the slots are the truth
+            rebuildFromSlots();
+            recovered = true;
+        }
+    }
+
+    // Maps the snapshot file (created if it doesn't exist, with room for capacity stations)
+    // An existing file keeps its own capacity. Throws IOException if the file can't be used
+    public static OffHeapStationTable map(Path path, int capacity) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            return new OffHeapStationTable(capacity, channel);
+        } catch (IllegalStateException ise) {
+            channel.close();
+            throw new IOException(ise.getMessage());
+        }
+    }
+
+    // Bytes of native memory used by the table (whatever the number of stations)
+    public long getNativeBytes() {
+        return memory.byteSize();
+    }
+
+    // True if the table was opened from a snapshot file that wasn't closed cleanly (its index was rebuilt)
+    public boolean wasRecovered() {
+        return recovered;
+    }
+
+    // Makes a mapped table durable: writes the counters, marks the file clean and msyncs it. Nothing to do otherwise
+    // Writers wait meanwhile, GETs don't
+    public synchronized void sync() {
+        if ((file == null) || closed) {
+            return; // Closed in the meantime (e.g. by the server while the StationStore flusher was waiting)
+        }
+        long stamp = lock.readLock();
+        try {
+            header.set(INT, COUNT_OFFSET, count);
+            header.set(INT, FREE_COUNT_OFFSET, freeCount);
+            header.set(INT, REMOVED_OFFSET, removedCells);
+            header.set(INT, CLEAN_OFFSET, 1);
+            clean = true;
+            memory.force();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Layout of the feed types: a file made with other types can't be read with this one
+    private static int fingerprint(WeatherSchema schema) {
+        return 31 * Arrays.hashCode(schema.types) + Arrays.hashCode(schema.numeric);
+    }
+
+    // Called by every change before it touches the memory (caller holds the write lock)
+    private void changing() {
+        if (clean) {
+            header.set(INT, CLEAN_OFFSET, 0);
+            clean = false;
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public StationRecord get(String stationID) {
+        byte[] id = stationID.getBytes(StandardCharsets.UTF_8);
+        byte[] copy = new byte[slotSize];
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            boolean found;
+            try {
+                found = copySlot(id, copy);
+            } catch (RuntimeException re) {
+                found = false; // Read in the middle of a write (e.g. a torn slot number), validate fails below
+            }
+            if (lock.validate(stamp)) {
+                return found ? decode(stationID, MemorySegment.ofArray(copy)) : null;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            if (!copySlot(id, copy)) {
+                return null;
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return decode(stationID, MemorySegment.ofArray(copy));
+    }
+
+    public boolean merge(String stationID, WeatherRecord uploaded, long now) throws IOException {
+        byte[] id = stationID.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            changing();
+            int cell = find(id);
+            if (cell < 0) {
+                encode(id, uploaded, now);
+                insert(id);
+                return true;
+            }
+            MemorySegment slot = slot(index.get(INT, (long) cell * 4) - 1);
+            StationRecord current = decode(stationID, slot);
+            encode(id, current.weather.merge(uploaded), Math.max(now, current.updatedMillis + 1));
+            MemorySegment.copy(scratch, 0, slot, BYTE, 0, slotSize);
+            return false;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void put(StationRecord record) throws IOException {
+        byte[] id = record.stationID.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            encode(id, record.weather, record.updatedMillis);
+            changing();
+            int cell = find(id);
+            if (cell < 0) {
+                insert(id);
+            } else {
+                MemorySegment.copy(scratch, 0, slot(index.get(INT, (long) cell * 4) - 1), BYTE, 0, slotSize);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void remove(String stationID) {
+        byte[] id = stationID.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            int cell = find(id);
+            if (cell < 0) {
+                return;
+            }
+            changing();
+            int slotNumber = index.get(INT, (long) cell * 4) - 1;
+            index.set(INT, (long) cell * 4, REMOVED);
+            slot(slotNumber).set(BYTE, ID_OFFSET, (byte) 0); // ID length 0 = free slot
+            free.set(INT, (long) freeCount++ * 4, slotNumber);
+            count--;
+            if (++removedCells > (indexMask + 1) / 4) {
+                rebuildIndex(); // Long probe chains of removed cells: start again from the stations left
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public void clear() {
+        clearSlots();
+    }
+
+    private void clearSlots() {
+        long stamp = lock.writeLock();
+        try {
+            changing();
+            index.fill((byte) 0);
+            for (int s = 0; s < capacity; ++s) {
+                slot(s).set(BYTE, ID_OFFSET, (byte) 0);
+                free.set(INT, (long) s * 4, capacity - 1 - s); // Slot 0 is handed out first
+            }
+            freeCount = capacity;
+            removedCells = 0;
+            count = 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    // Copy of every station's record (not a live view: each record is rebuilt from its slot)
+    public Collection<StationRecord> records() {
+        ArrayList<StationRecord> records = new ArrayList<StationRecord>(count);
+        long stamp = lock.readLock();
+        try {
+            for (int s = 0; s < capacity; ++s) {
+                MemorySegment slot = slot(s);
+                int idLength = slot.get(BYTE, ID_OFFSET) & 0xFF;
+                if (idLength > 0) {
+                    byte[] id = new byte[idLength];
+                    MemorySegment.copy(slot, BYTE, ID_OFFSET + 1, id, 0, idLength);
+                    records.add(decode(new String(id, StandardCharsets.UTF_8), slot));
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        return records;
+    }
+
+    // Frees the native memory (syncing and closing a snapshot file first). The table can't be used afterwards
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        sync();
+        closed = true;
+        arena.close();
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ie) {
+                System.out.println("Failed to close the snapshot file: " + ie.getMessage());
+            }
+        }
+    }
+
+    private MemorySegment slot(int slotNumber) {
+        return slots.asSlice((long) slotNumber * slotSize, slotSize);
+    }
+
+    // First index cell of the ID's first length bytes (linear probing goes on from there)
+    private int home(byte[] id, int length) {
+        int h = 1;
+        for (int i = 0; i < length; ++i) {
+            h = 31 * h + id[i];
+        }
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & indexMask;
+    }
+
+    // Index cell holding the station, -1 if it isn't in the table
+    private int find(byte[] id) {
+        int cell = home(id, id.length);
+        for (int probes = 0; probes <= indexMask; ++probes) {
+            int entry = index.get(INT, (long) cell * 4);
+            if (entry == EMPTY) {
+                return -1;
+            }
+            if ((entry != REMOVED) && idEquals(slot(entry - 1), id)) {
+                return cell;
+            }
+            cell = (cell + 1) & indexMask;
+        }
+        return -1;
+    }
+
+    private static boolean idEquals(MemorySegment slot, byte[] id) {
+        if ((slot.get(BYTE, ID_OFFSET) & 0xFF) != id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; ++i) {
+            if (slot.get(BYTE, ID_OFFSET + 1 + i) != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Copies the station's slot into copy. Returns false if it isn't in the table
+    private boolean copySlot(byte[] id, byte[] copy) {
+        int cell = find(id);
+        if (cell < 0) {
+            return false;
+        }
+        MemorySegment.copy(slot(index.get(INT, (long) cell * 4) - 1), BYTE, 0, copy, 0, slotSize);
+        return true;
+    }
+
+    // Takes a free slot for the new station, copies the encoded slot (scratch) into it and indexes it
+    private void insert(byte[] id) throws IOException {
+        if (freeCount == 0) {
+            throw new IOException("Off-heap station table is full (" + capacity + " stations)");
+        }
+        int slotNumber = free.get(INT, (long) --freeCount * 4);
+        MemorySegment.copy(scratch, 0, slot(slotNumber), BYTE, 0, slotSize);
+        int cell = home(id, id.length);
+        while (true) {
+            int entry = index.get(INT, (long) cell * 4);
+            if ((entry == EMPTY) || (entry == REMOVED)) {
+                if (entry == REMOVED) {
+                    removedCells--;
+                }
+                index.set(INT, (long) cell * 4, slotNumber + 1);
+                break;
+            }
+            cell = (cell + 1) & indexMask;
+        }
+        count++;
+    }
+
+    // Finds the stations from the slots alone (ID length > 0 = in use): count, free stack and index
+    private void rebuildFromSlots() {
+        count = 0;
+        freeCount = 0;
+        for (int s = capacity - 1; s >= 0; --s) { // Lowest free slot handed out first, as after clear()
+            if ((slot(s).get(BYTE, ID_OFFSET) & 0xFF) == 0) {
+                free.set(INT, (long) freeCount++ * 4, s);
+            } else {
+                count++;
+            }
+        }
+        rebuildIndex();
+    }
+
+    // Indexes every station again, leaving out the REMOVED cells. Caller holds the write lock
+    private void rebuildIndex() {
+        index.fill((byte) 0);
+        removedCells = 0;
+        byte[] id = new byte[ID_BYTES];
+        for (int s = 0; s < capacity; ++s) {
+            MemorySegment slot = slot(s);
+            int idLength = slot.get(BYTE, ID_OFFSET) & 0xFF;
+            if (idLength == 0) {
+                continue;
+            }
+            MemorySegment.copy(slot, BYTE, ID_OFFSET + 1, id, 0, idLength);
+            int cell = home(id, idLength);
+            while (index.get(INT, (long) cell * 4) != EMPTY) {
+                cell = (cell + 1) & indexMask;
+            }
+            index.set(INT, (long) cell * 4, s + 1);
+        }
+    }
+
+    // Encodes a station's data into scratch. Nothing is written to the table if it doesn't fit
+    private void encode(byte[] id, WeatherRecord weather, long updatedMillis) throws IOException {
+        if ((id.length == 0) || (id.length > ID_BYTES)) {
+            throw new IOException("Station ID doesn't fit in an off-heap slot (1 to " + ID_BYTES + " bytes)");
+        }
+        if ((weather.order.length > MAX_FIELDS) || (weather.extraTypes.length > MAX_FIELDS)) {
+            throw new IOException("Too many fields for an off-heap slot (at most " + MAX_FIELDS + ")");
+        }
+        MemorySegment out = MemorySegment.ofArray(scratch);
+        out.set(LONG, UPDATED_OFFSET, updatedMillis);
+        out.set(BYTE, ID_OFFSET, (byte) id.length);
+        MemorySegment.copy(id, 0, out, BYTE, ID_OFFSET + 1, id.length);
+        for (int i = 0; i < schema.numericCount; ++i) {
+            out.set(LONG, numbersOffset + i * 8L, weather.numbers[i]);
+            out.set(BYTE, scalesOffset + i, weather.scales[i]);
+        }
+        out.set(BYTE, orderOffset, (byte) weather.order.length);
+        for (int i = 0; i < weather.order.length; ++i) {
+            out.set(BYTE, orderOffset + 1 + i, (byte) weather.order[i]);
+        }
+        int text = textOffset;
+        for (int i = 0; i < schema.stringCount; ++i) {
+            String value = weather.strings[i];
+            if (value == null) {
+                out.set(SHORT, lengthsOffset + i * 2L, (short) -1);
+                continue;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            text = writeText(out, text, bytes, false);
+            out.set(SHORT, lengthsOffset + i * 2L, (short) bytes.length);
+        }
+        out.set(BYTE, extrasOffset, (byte) weather.extraTypes.length);
+        for (int k = 0; k < weather.extraTypes.length; ++k) {
+            text = writeText(out, text, weather.extraTypes[k].getBytes(StandardCharsets.UTF_8), true);
+            text = writeText(out, text, weather.extraValues[k].getBytes(StandardCharsets.UTF_8), true);
+        }
+    }
+
+    // Writes bytes (after their length, if withLength) into the text area at position text, returns the next position
+    private int writeText(MemorySegment out, int text, byte[] bytes, boolean withLength) throws IOException {
+        int needed = bytes.length + (withLength ? 2 : 0);
+        if (text + needed > textOffset + TEXT_BYTES) {
+            throw new IOException("Weather data too long for an off-heap slot (" + TEXT_BYTES + " bytes of text)");
+        }
+        if (withLength) {
+            out.set(SHORT, text, (short) bytes.length);
+            text += 2;
+        }
+        MemorySegment.copy(bytes, 0, out, BYTE, text, bytes.length);
+        return text + bytes.length;
+    }
+
+    // Rebuilds a station's record from its slot (or a copy of it)
+    private StationRecord decode(String stationID, MemorySegment in) {
+        long[] numbers = new long[schema.numericCount];
+        byte[] scales = new byte[schema.numericCount];
+        for (int i = 0; i < schema.numericCount; ++i) {
+            numbers[i] = in.get(LONG, numbersOffset + i * 8L);
+            scales[i] = in.get(BYTE, scalesOffset + i);
+        }
+        short[] order = new short[in.get(BYTE, orderOffset) & 0xFF];
+        for (int i = 0; i < order.length; ++i) {
+            order[i] = (short) (in.get(BYTE, orderOffset + 1 + i) & 0xFF);
+        }
+        int text = textOffset;
+        String[] strings = new String[schema.stringCount];
+        for (int i = 0; i < schema.stringCount; ++i) {
+            int length = in.get(SHORT, lengthsOffset + i * 2L);
+            if (length >= 0) {
+                strings[i] = readText(in, text, length);
+                text += length;
+            }
+        }
+        int extras = in.get(BYTE, extrasOffset) & 0xFF;
+        String[] extraTypes = new String[extras];
+        String[] extraValues = new String[extras];
+        for (int k = 0; k < extras; ++k) {
+            int length = in.get(SHORT, text);
+            extraTypes[k] = readText(in, text + 2, length).intern();
+            text += 2 + length;
+            length = in.get(SHORT, text);
+            extraValues[k] = readText(in, text + 2, length);
+            text += 2 + length;
+        }
+        WeatherRecord weather = new WeatherRecord(schema, numbers, scales, strings, extraTypes, extraValues, order, true);
+        return new StationRecord(stationID, weather, in.get(LONG, UPDATED_OFFSET));
+    }
+
+    private static String readText(MemorySegment in, int offset, int length) {
+        byte[] bytes = new byte[length];
+        MemorySegment.copy(in, BYTE, offset, bytes, 0, length);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,128 @@
+package AggregationServer;
+
+import protocol.WireProtocol;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Coalescing of queued PUTs for the same station
+// When a Content Server sends PUTs faster than its lane runs them, each one used to be applied in full (log record,
+// store update, file write) although only the merge of all of them survives. Instead, the dispatcher collects a
+// station's PUTs that are still waiting into one group, which gets a single task on the station's lane. The task runs
+// every PUT of the group in the order they were received (their Lamport order), each checked and acknowledged on its
+// own, but their entries are merged and applied as one write (see AggregationServer.executePUTs), so under a bursty
+// feed the work follows the number of stations instead of the number of messages.
+// Any other request for the station (e.g. a GET) closes its group: PUTs sent after it go into a new group behind it
+// on the lane, so every request still sees exactly the PUTs that were sent before it
+public class PutCoalescer {
+    // stationKey -> group still taking PUTs. Added by the dispatcher, removed by it (close) or by the lane taking the
+    // group (take), so a station that goes quiet leaves nothing behind
+    private final ConcurrentHashMap<String, Group> open = new ConcurrentHashMap<String, Group>();
+    private final AtomicLong groups = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0); // PUTs that joined a group instead of getting their own task
+
+    // A station's PUTs waiting for their lane task. The dispatcher adds PUTs until the task takes them
+    // The merge fields are only used by the lane running the group
+    public static class Group {
+        private final String stationKey;
+        private ArrayList<Request> puts = new ArrayList<Request>();
+        private boolean taken = false;
+
+        String stationID;
+        WeatherRecord merged; // Entries of the PUTs run so far that haven't been applied yet, null = none
+        final ArrayList<Socket> sockets = new ArrayList<Socket>(); // Whom to acknowledge once they are
+        final ArrayList<String> requestIDs = new ArrayList<String>();
+
+        private Group(String stationKey) {
+            this.stationKey = stationKey;
+        }
+
+        private synchronized boolean add(Request put) {
+            if (taken) {
+                return false;
+            }
+            puts.add(put);
+            return true;
+        }
+
+        // The group's PUTs, in the order they were received. Nothing can join the group afterwards
+        private synchronized ArrayList<Request> take() {
+            taken = true;
+            ArrayList<Request> taking = puts;
+            puts = new ArrayList<Request>(); // The dispatcher may still hold the group, not its requests
+            return taking;
+        }
+
+        // Merges one PUT's checked entries into the ones waiting to be applied (existing types replaced, new added)
+        void merge(String ID, WeatherRecord uploaded, Socket socket, String requestID) {
+            stationID = ID;
+            merged = (merged == null) ? uploaded : merged.merge(uploaded);
+            sockets.add(socket);
+            requestIDs.add(requestID);
+        }
+
+        // Called once the merged entries have been applied
+        void clear() {
+            merged = null;
+            sockets.clear();
+            requestIDs.clear();
+        }
+    }
+
+    // PUTs of one station's data can be coalesced: single and delta PUTs, not batch PUTs (many stations each)
+    public static boolean isCoalescable(Request request) {
+        if (request.frame != null) {
+            return (request.frame.opcode == WireProtocol.OP_PUT) || (request.frame.opcode == WireProtocol.OP_PUT_DELTA);
+        }
+        if (!request.data.startsWith("PUT")) {
+            return false;
+        }
+        int bodyStart = AggregationServer.bodyStartOf(request.data);
+        String contentType = AggregationServer.headerValue(request.data, (bodyStart < 0) ? request.data.length() : bodyStart, "Content-Type");
+        return (contentType == null) || !contentType.startsWith("weather/json-batch");
+    }
+
+    // Called by the dispatcher for a coalescable PUT. Returns the new group if the PUT started one (to be run on the
+    // station's lane), null if it joined the station's group that is still waiting for its lane
+    public Group add(String stationKey, Request put) {
+        Group group = open.get(stationKey);
+        if ((group != null) && group.add(put)) {
+            coalesced.incrementAndGet();
+            return null;
+        }
+        group = new Group(stationKey);
+        group.add(put);
+        open.put(stationKey, group);
+        groups.incrementAndGet();
+        return group;
+    }
+
+    // Called by the lane running the group: returns its PUTs (see Group.take) and forgets the group, whose requests
+    // would otherwise stay referenced until the station's next PUT
+    public ArrayList<Request> take(Group group) {
+        open.remove(group.stationKey, group);
+        return group.take();
+    }
+
+    // Called by the dispatcher for any other request: the station's next PUT starts a new group, run after the request
+    public void close(String stationKey) {
+        open.remove(stationKey);
+    }
+
+    // For testing purposes
+    public long getGroups() {
+        return groups.get();
+    }
+
+    // For testing purposes
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    // For testing purposes: stations with a group still waiting for its lane
+    public int getOpenGroups() {
+        return open.size();
+    }
+}
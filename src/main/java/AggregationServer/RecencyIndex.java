@@ -0,0 +1,68 @@
+package AggregationServer;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// Every tracked station's weather data file, ordered by when the station was last updated
+// Ordered by the Lamport time of the update, ties broken by update order (sequence), so the last entry is the
+// station a GET for "latest" wants and the first entry is the least recently updated one (evicted first)
+// latest()/oldest() read a concurrent skip list, O(log n) without any lock, however many stations there are
+// Changes of the same station must not run at the same time (AggregationServer makes them under the retention lock)
+public class RecencyIndex {
+    private final ConcurrentSkipListMap<Key, String> order = new ConcurrentSkipListMap<Key, String>(); // Key -> file path
+    private final ConcurrentHashMap<String, Key> keys = new ConcurrentHashMap<String, Key>(); // File path -> its Key
+    private long sequence = 0; // Changed under the retention lock only
+
+    // Position of a station's last update
+    private static final class Key implements Comparable<Key> {
+        final long lamportTime;
+        final long sequence;
+
+        Key(long lamportTime, long sequence) {
+            this.lamportTime = lamportTime;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Key other) {
+            int byTime = Long.compare(lamportTime, other.lamportTime);
+            return (byTime != 0) ? byTime : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // Moves the station file to its new position, O(log n)
+    // The new position is added before the old one is removed, so a reader never sees the station missing
+    public void updated(String filePath, long lamportTime) {
+        Key key = new Key(lamportTime, ++sequence);
+        order.put(key, filePath);
+        Key previous = keys.put(filePath, key);
+        if (previous != null) {
+            order.remove(previous);
+        }
+    }
+
+    // Takes an expired or evicted station file out of the index, O(log n)
+    public void removed(String filePath) {
+        Key key = keys.remove(filePath);
+        if (key != null) {
+            order.remove(key);
+        }
+    }
+
+    // File path of the most recently updated station, null if there is none
+    public String latest() {
+        Map.Entry<Key, String> last = order.lastEntry();
+        return (last == null) ? null : last.getValue();
+    }
+
+    // File path of the least recently updated station, null if there is none
+    public String oldest() {
+        Map.Entry<Key, String> first = order.firstEntry();
+        return (first == null) ? null : first.getValue();
+    }
+
+    public int size() {
+        return keys.size();
+    }
+}
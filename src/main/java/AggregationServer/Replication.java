@@ -0,0 +1,469 @@
+package AggregationServer;
+
+import lamport.LamportClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Primary/replica replication of the weather data
+// The primary keeps the changes it applies in order, in a log in memory: a station's whole record after each PUT,
+// or its removal (expiry/eviction), each with a sequence number and the Lamport time it was applied at. Every replica
+// connected to the primary's replication port is streamed this log as it grows. A replica stores each record as it
+// is, with the primary's update time, so a station has the same version on every server (a Content Server's delta
+// PUT still applies after a failover), and it moves its LamportClock past the time of every change it applies.
+// Replicas serve GETs (and SUBSCRIBE pushes) from their copy and refuse PUTs with 503 until they are promoted.
+// Replication is asynchronous: PUTs are acknowledged without waiting for the replicas, so a replica promoted after
+// its primary died can miss the last few changes (their Content Servers then get 409 for a delta and send all of it).
+//
+// Catch-up: a replica connects with the ID of the history it follows and the last sequence number it applied. If the
+// primary still has every change after it, only those are sent. Otherwise (new replica, log already trimmed, or another
+// primary's history, e.g. after a failover) a RESET is sent: the replica drops its stations, gets every record of the
+// primary's store (sequence number -1) and a RESET_END with the last change they include, then the changes made since.
+// A replica cut off in the middle of this starts from scratch again. Records carry their update time, so a record the replica already has
+// in a newer version is never replaced by an older one.
+// Stream: int MAGIC | long historyID | long lastSeq from the replica, long historyID from the primary, then entries:
+// u1 type (RECORD/REMOVE/RESET/RESET_END) | long sequence number | int Lamport time | UTF stationID | RECORD only: long
+// updatedMillis | int entry count | (UTF type, UTF value) per entry
+public class Replication {
+    private static final int MAGIC = 0x52504C31; // "RPL1"
+    private static final byte RECORD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte RESET = 3;
+    private static final byte RESET_END = 4;
+    private static final long RECONNECT_MILLIS = 500;
+
+    private final AggregationServer server;
+    private final LamportClock clock;
+    private int listenPort = 0; // Replication port, served while this server is the primary (0 = none)
+
+    // Primary: changes (nextSeq - log.size()) .. (nextSeq - 1), guarded by this object's lock
+    private final ArrayDeque<Change> log = new ArrayDeque<Change>();
+    private int logCapacity = 100000;
+    private long nextSeq = 1;
+    private long historyID = ThreadLocalRandom.current().nextLong();
+    private volatile ServerSocket listener;
+    private final CopyOnWriteArrayList<Socket> replicaSockets = new CopyOnWriteArrayList<Socket>();
+
+    // Replica: the primary followed, and how far this server got
+    private volatile boolean replica = false;
+    private volatile String primaryHost;
+    private volatile int primaryPort;
+    private volatile Socket primarySocket;
+    private volatile long primaryHistory = 0;
+    private volatile long appliedSeq = 0;
+    private Thread follower;
+    private final Object applying = new Object(); // Held while the follower applies an entry (not the Replication
+                                                  // itself: the lanes log removals through it)
+
+    private final AtomicLong shipped = new AtomicLong(0);
+    private final AtomicLong resets = new AtomicLong(0);
+    private final AtomicLong catchUps = new AtomicLong(0);
+
+    // One change of the log. record = null for a removal
+    private static class Change {
+        final long seq;
+        final int lamportTime;
+        final String stationID;
+        final StationRecord record;
+
+        Change(long seq, int lamportTime, String stationID, StationRecord record) {
+            this.seq = seq;
+            this.lamportTime = lamportTime;
+            this.stationID = stationID;
+            this.record = record;
+        }
+    }
+
+    public Replication(AggregationServer server, LamportClock clock) {
+        this.server = server;
+        this.clock = clock;
+    }
+
+    // Port replicas connect to while this server is the primary. Must be set before start
+    public void setListenPort(int port) {
+        this.listenPort = Math.max(0, port);
+    }
+
+    // Most changes kept for catch-up; a replica further behind is sent everything again (RESET)
+    public synchronized void setLogCapacity(int capacity) {
+        this.logCapacity = Math.max(1, capacity);
+    }
+
+    // Non-threaded function: Starts serving the replication port if this server is the primary and has one
+    public synchronized void start() {
+        if (replica || (listenPort == 0) || (listener != null)) {
+            return;
+        }
+        try {
+            listener = new ServerSocket(listenPort);
+        } catch (IOException ie) {
+            System.out.println("Couldn't open the replication port " + listenPort + ": " + ie.getMessage());
+            return;
+        }
+        ServerSocket accepting = listener;
+        Thread acceptor = new Thread(() -> {
+            while (!accepting.isClosed()) {
+                try {
+                    Socket socket = accepting.accept();
+                    replicaSockets.add(socket);
+                    Thread sender = new Thread(() -> serve(socket), "Replication-" + socket.getPort());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException ie) {
+                    if (!accepting.isClosed()) {
+                        System.out.println("Replication port error: " + ie.getMessage());
+                    }
+                }
+            }
+        }, "Replication-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Primary: replicas can connect on port " + listenPort);
+    }
+
+    // Whether PUTs are logged for replicas: only a primary serving a replication port
+    public boolean isShipping() {
+        return listener != null;
+    }
+
+    public boolean isReplica() {
+        return replica;
+    }
+
+    // Non-threaded function (primary): Logs a station's record after a PUT, in the order changes are applied
+    public void changed(StationRecord record, int lamportTime) {
+        append(record.stationID, record, lamportTime);
+    }
+
+    // Non-threaded function (primary): Logs the removal of a station (expired or evicted)
+    public void removed(String stationID, int lamportTime) {
+        append(stationID, null, lamportTime);
+    }
+
+    private synchronized void append(String stationID, StationRecord record, int lamportTime) {
+        if (listener == null) {
+            return;
+        }
+        log.addLast(new Change(nextSeq++, lamportTime, stationID, record));
+        while (log.size() > logCapacity) {
+            log.removeFirst();
+        }
+        notifyAll(); // Wakes up the replicas' senders
+    }
+
+    // Threaded function (runs in background, one per replica): Sends the replica what it misses, then every change
+    // as it is logged, until the replica disconnects or this server stops being the primary
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (in.readInt() != MAGIC) {
+                System.out.println("Replication port: not a replica, connection closed");
+                return;
+            }
+            long replicaHistory = in.readLong();
+            long replicaSeq = in.readLong();
+            long from;
+            boolean catchUp;
+            synchronized (this) {
+                long firstSeq = nextSeq - log.size();
+                catchUp = (replicaHistory == historyID) && (replicaSeq >= firstSeq - 1) && (replicaSeq < nextSeq);
+                from = catchUp ? (replicaSeq + 1) : nextSeq;
+                out.writeLong(historyID);
+            }
+            if (catchUp) {
+                catchUps.incrementAndGet();
+                System.out.println("Replica catching up from change " + from);
+            } else {
+                sendReset(out, from - 1);
+            }
+            out.flush();
+            ArrayList<Change> batch = new ArrayList<Change>();
+            while (!socket.isClosed()) {
+                boolean trimmed = false;
+                synchronized (this) {
+                    while ((nextSeq <= from) && (listener != null)) {
+                        wait(1000);
+                    }
+                    if (listener == null) {
+                        return; // No longer the primary
+                    }
+                    long firstSeq = nextSeq - log.size();
+                    if (from < firstSeq) { // Fell behind further than the log goes back
+                        trimmed = true;
+                        from = nextSeq;
+                    } else {
+                        for (Change change : log) { // Oldest first; the ones before from are skipped
+                            if (change.seq >= from) {
+                                batch.add(change);
+                            }
+                        }
+                    }
+                }
+                if (trimmed) {
+                    sendReset(out, from - 1);
+                } else {
+                    for (Change change : batch) {
+                        write(out, change);
+                    }
+                    shipped.addAndGet(batch.size());
+                    from = batch.get(batch.size() - 1).seq + 1;
+                    batch.clear();
+                }
+                out.flush();
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("A replica has disconnected: " + e.getMessage());
+        } finally {
+            replicaSockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException ie) {
+                System.out.println("Failed to close replica connection: " + ie.getMessage());
+            }
+        }
+    }
+
+    // Everything from scratch: RESET, every record of the store, RESET_END (the changes after seq follow on their own)
+    private void sendReset(DataOutputStream out, long seq) throws IOException {
+        resets.incrementAndGet();
+        int time = clock.getTime();
+        write(out, new Change(-1, time, "", null), RESET);
+        int count = 0;
+        for (StationRecord record : server.getStore().records()) {
+            write(out, new Change(-1, time, record.stationID, record));
+            count++;
+        }
+        write(out, new Change(seq, time, "", null), RESET_END);
+        System.out.println("Replica sent every station (" + count + ") from change " + seq);
+    }
+
+    private static void write(DataOutputStream out, Change change) throws IOException {
+        write(out, change, (change.record != null) ? RECORD : REMOVE);
+    }
+
+    private static void write(DataOutputStream out, Change change, byte type) throws IOException {
+        out.writeByte(type);
+        out.writeLong(change.seq);
+        out.writeInt(change.lamportTime);
+        out.writeUTF(change.stationID);
+        if (type == RECORD) {
+            out.writeLong(change.record.updatedMillis);
+            WriteAheadLog.writeEntries(out, change.record.weather);
+        }
+    }
+
+    // Makes this server a replica of the primary whose replication port is host:port (or moves it to another primary)
+    // Threaded function (runs in background): connects, applies the stream, and connects again if the primary goes away
+    public synchronized void follow(String host, int port) {
+        primaryHost = host;
+        primaryPort = port;
+        replica = true;
+        Socket current = primarySocket;
+        if (current != null) {
+            closeQuietly(current); // The follower connects to the new primary
+        }
+        if ((follower != null) && follower.isAlive()) {
+            return;
+        }
+        follower = new Thread(() -> {
+            while (replica) {
+                try (Socket socket = new Socket(primaryHost, primaryPort)) {
+                    primarySocket = socket;
+                    if (!replica) {
+                        return;
+                    }
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    out.writeInt(MAGIC);
+                    out.writeLong(primaryHistory);
+                    out.writeLong(appliedSeq);
+                    out.flush();
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    long history = in.readLong();
+                    System.out.println("Replica: following the primary on " + primaryHost + ":" + primaryPort);
+                    while (replica) {
+                        apply(in, history);
+                    }
+                } catch (IOException ie) {
+                    if (replica) {
+                        System.out.println("Replica: lost the primary (" + ie.getMessage() + "), reconnecting");
+                    }
+                }
+                primarySocket = null;
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException ie) {
+                    System.out.println("Replica follower interrupted: " + ie.getMessage());
+                    return;
+                }
+            }
+        }, "Replica-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    // Reads and applies one entry of the stream
+    private void apply(DataInputStream in, long history) throws IOException {
+        byte type = in.readByte();
+        long seq = in.readLong();
+        int lamportTime = in.readInt();
+        String stationID = in.readUTF();
+        StationRecord record = null;
+        if (type == RECORD) {
+            long updatedMillis = in.readLong();
+            record = new StationRecord(stationID, WriteAheadLog.readEntries(in), updatedMillis);
+        }
+        synchronized (applying) { // promote waits for the entry being applied
+            if (!replica) {
+                return;
+            }
+            clock.processEvent(lamportTime); // Tie-break: every change applied here is later than on the primary
+            if (type == RECORD) {
+                StationRecord received = record;
+                applyOnLane(stationID, () -> server.applyReplicated(received));
+            } else if (type == REMOVE) {
+                applyOnLane(stationID, () -> server.removeReplicated(stationID));
+            } else if (type == RESET) {
+                System.out.println("Replica: getting every station from the primary");
+                primaryHistory = 0; // Until RESET_END: cut off before it, this replica starts from scratch again
+                appliedSeq = 0;
+                for (StationRecord held : new ArrayList<StationRecord>(server.getStore().records())) {
+                    applyOnLane(held.stationID, () -> server.removeReplicated(held.stationID));
+                }
+            } else if (type != RESET_END) {
+                throw new IOException("unknown replication entry " + type);
+            }
+            if (seq >= 0) { // Not part of a RESET's records
+                primaryHistory = history;
+                appliedSeq = seq;
+            }
+        }
+    }
+
+    // Runs a change on the station's lane, like a PUT of that station, so it never races one (or an expiry), and waits
+    // for it: appliedSeq only counts changes that are in the store. Gives up once this server stops being a replica
+    // (e.g. shutting down, when the lane may never run it)
+    private void applyOnLane(String stationID, Runnable change) throws IOException {
+        FutureTask<Void> task = new FutureTask<Void>(change, null);
+        server.runOnLane(stationID, task);
+        while (true) {
+            try {
+                task.get(1, TimeUnit.SECONDS);
+                return;
+            } catch (TimeoutException te) {
+                if (!replica) {
+                    throw new IOException("stopped while applying a change to " + stationID);
+                }
+            } catch (ExecutionException ee) {
+                throw new IOException("failed to apply a change to " + stationID, ee.getCause());
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while applying a change to " + stationID);
+            }
+        }
+    }
+
+    // Failover: stops following the primary and makes this server the primary, taking PUTs from now on
+    // The replicas (re)connecting to it are sent everything, as its history starts here
+    public void promote() {
+        synchronized (applying) {
+            synchronized (this) {
+                if (!replica) {
+                    return;
+                }
+                replica = false;
+                historyID = ThreadLocalRandom.current().nextLong();
+                nextSeq = appliedSeq + 1;
+                log.clear();
+            }
+        }
+        Socket current = primarySocket;
+        if (current != null) {
+            closeQuietly(current);
+        }
+        System.out.println("Promoted to primary at change " + appliedSeq + ", Lamport time " + clock.getTime());
+        start();
+    }
+
+    // Stops serving replicas (e.g. the server is shutting down) and following a primary
+    public void close() {
+        ServerSocket closing;
+        synchronized (this) {
+            replica = false;
+            closing = listener;
+            listener = null;
+            notifyAll();
+        }
+        if (closing != null) {
+            closeQuietly(closing);
+        }
+        for (Socket socket : replicaSockets) {
+            closeQuietly(socket);
+        }
+        Socket current = primarySocket;
+        if (current != null) {
+            closeQuietly(current);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ie) {
+            System.out.println("Failed to close replication connection: " + ie.getMessage());
+        }
+    }
+
+    // For testing purposes: drops the replicas' connections, as a network failure would (they connect again and catch up)
+    public void dropReplicas() {
+        for (Socket socket : replicaSockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    // For testing purposes: sequence number of the last change logged by this primary
+    public synchronized long getLastSeq() {
+        return nextSeq - 1;
+    }
+
+    // For testing purposes: sequence number of the last change this replica applied
+    public long getAppliedSeq() {
+        return appliedSeq;
+    }
+
+    // For testing purposes: replicas this primary streams to
+    public int getReplicaCount() {
+        return replicaSockets.size();
+    }
+
+    // For testing purposes
+    public long getShipped() {
+        return shipped.get();
+    }
+
+    // For testing purposes: replicas sent everything (RESET)
+    public long getResets() {
+        return resets.get();
+    }
+
+    // For testing purposes: replicas sent only the changes they missed
+    public long getCatchUps() {
+        return catchUps.get();
+    }
+}
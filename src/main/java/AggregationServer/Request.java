@@ -0,0 +1,29 @@
+package AggregationServer;
+
+import protocol.Frame;
+
+import java.net.Socket;
+
+// A request waiting in the requestQueue, together with who sent it
+// Requests from Java-serialised connections keep the request message (data), binary protocol requests keep the decoded
+// frame instead, so their entries never have to be turned into text and split again
+public class Request {
+    public final String identity; // ID of the entity that sent the request (e.g. CS1234, GETClient1234)
+    public final Socket socket; // Socket the request was sent by, the response goes back through it
+    public final String data; // Request message (null for binary requests)
+    public final Frame frame; // Decoded binary frame (null for text requests)
+
+    public Request(String identity, Socket socket, String data) {
+        this.identity = identity;
+        this.socket = socket;
+        this.data = data;
+        this.frame = null;
+    }
+
+    public Request(String identity, Socket socket, Frame frame) {
+        this.identity = identity;
+        this.socket = socket;
+        this.data = null;
+        this.frame = frame;
+    }
+}
@@ -0,0 +1,92 @@
+package AggregationServer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// How long the Aggregation Server keeps station data, and how many stations it keeps at most
+// TTL: a station with no PUT for its TTL (the global one unless the station has its own) is expired by checkUpdateTimes
+// Cap: when a new station would take the number of stations over maxStations, the least recently updated station
+// is evicted straight away (oldest-first), so a fleet creating far more station IDs than expected can't fill memory/disk
+// The station to evict is the first one of the server's RecencyIndex, O(log n)
+public class RetentionPolicy {
+    private volatile long defaultTtlMillis = 30000; // Global TTL: 30 seconds
+    private final ConcurrentHashMap<String, Long> stationTtls = new ConcurrentHashMap<String, Long>(); // stationID -> TTL
+    private volatile int maxStations = 0; // 0 = no cap
+
+    private final RecencyIndex recency; // Tracked stations, least recently updated first
+
+    private final AtomicLong expired = new AtomicLong(0); // Stations removed because their TTL ran out
+    private final AtomicLong evicted = new AtomicLong(0); // Stations removed to stay within the cap
+
+    public RetentionPolicy(RecencyIndex recency) {
+        this.recency = recency;
+    }
+
+    public void setDefaultTtl(long millis) {
+        this.defaultTtlMillis = Math.max(0, millis);
+    }
+
+    public long getDefaultTtl() {
+        return defaultTtlMillis;
+    }
+
+    // Gives one station its own TTL. millis < 0 goes back to the global TTL
+    public void setStationTtl(String stationID, long millis) {
+        if (millis < 0) {
+            stationTtls.remove(stationID);
+        } else {
+            stationTtls.put(stationID, millis);
+        }
+    }
+
+    // TTL of the station: its own if set, otherwise the global one
+    public long ttlFor(String stationID) {
+        return stationTtls.getOrDefault(stationID, defaultTtlMillis);
+    }
+
+    // Maximum number of stations kept at once (0 = no cap)
+    public void setMaxStations(int max) {
+        this.maxStations = Math.max(0, max);
+    }
+
+    public int getMaxStations() {
+        return maxStations;
+    }
+
+    // If there are more stations than the cap, takes the least recently updated one out of the recency index and
+    // returns its file path (the caller removes its data, then calls countEvicted). Returns null if within the cap
+    public synchronized String nextEviction() {
+        if ((maxStations == 0) || (recency.size() <= maxStations)) {
+            return null;
+        }
+        String filePath = recency.oldest();
+        recency.removed(filePath);
+        return filePath;
+    }
+
+    // Counts a station removed because the server was over its station limit
+    public void countEvicted() {
+        evicted.incrementAndGet();
+    }
+
+    // Counts a station removed because its TTL ran out
+    public void countExpired() {
+        expired.incrementAndGet();
+    }
+
+    // For testing purposes
+    public long getExpired() {
+        return expired.get();
+    }
+
+    // For testing purposes
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    // Counters as text, e.g. "3 expired, 120 evicted (cap 20 stations, TTL 30000ms)"
+    public String describe() {
+        return expired.get() + " expired, " + evicted.get() + " evicted (cap " + ((maxStations == 0) ? "none" : maxStations + " stations")
+                + ", TTL " + defaultTtlMillis + "ms)";
+    }
+}
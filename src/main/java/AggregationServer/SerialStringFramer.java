@@ -0,0 +1,136 @@
+package AggregationServer;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Compatibility framing layer for the NIO transport
+// Content Servers and GETClients send every message as a String through an ObjectOutputStream. That stream is only ever
+// a stream header followed by String objects, so this class decodes it incrementally from whatever bytes a non-blocking
+// read returned, without needing an ObjectInputStream (which can only block on a whole object)
+// Stream format: AC ED 00 05 | TC_STRING u2-length modified-UTF-8 | TC_LONGSTRING u8-length modified-UTF-8 |
+//                TC_REFERENCE u4-handle (a String sent before) | TC_RESET (forget previous Strings)
+public class SerialStringFramer implements ObjectStreamConstants {
+    private byte[] buffer = new byte[1024]; // Bytes received but not yet decoded
+    private int length = 0; // Number of bytes in the buffer
+    private boolean headerRead = false;
+
+    // Every String decoded so far, in order -> the index is the handle a TC_REFERENCE refers to
+    private ArrayList<String> handles = new ArrayList<String>();
+
+    // Adds the received bytes and decodes every complete message they finish (none if a message is still partial)
+    // data = bytes read from the channel (position to limit), returns the complete messages in the order they were sent
+    public ArrayList<String> feed(ByteBuffer data) throws IOException {
+        int incoming = data.remaining();
+        if (length + incoming > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + incoming));
+        }
+        data.get(buffer, length, incoming);
+        length += incoming;
+
+        ArrayList<String> messages = new ArrayList<String>();
+        int pos = 0;
+        if (!headerRead) {
+            if (length < 4) {
+                return messages;
+            }
+            if ((((buffer[0] & 0xFF) << 8 | (buffer[1] & 0xFF)) != (STREAM_MAGIC & 0xFFFF))
+                    || (((buffer[2] & 0xFF) << 8 | (buffer[3] & 0xFF)) != STREAM_VERSION)) {
+                throw new StreamCorruptedException("Invalid stream header");
+            }
+            headerRead = true;
+            pos = 4;
+        }
+
+        while (pos < length) { // Decode as many whole objects as the buffer holds
+            int start = pos;
+            byte typeCode = buffer[pos++];
+            String message = null;
+            if (typeCode == TC_STRING) {
+                if (length - pos < 2) {
+                    pos = start;
+                    break;
+                }
+                int utfLength = ((buffer[pos] & 0xFF) << 8) | (buffer[pos + 1] & 0xFF);
+                pos += 2;
+                if (length - pos < utfLength) {
+                    pos = start;
+                    break;
+                }
+                message = decodeModifiedUTF8(buffer, pos, utfLength);
+                pos += utfLength;
+                handles.add(message);
+            } else if (typeCode == TC_LONGSTRING) {
+                if (length - pos < 8) {
+                    pos = start;
+                    break;
+                }
+                long utfLength = ByteBuffer.wrap(buffer, pos, 8).getLong();
+                pos += 8;
+                if (utfLength > Integer.MAX_VALUE - 16) {
+                    throw new StreamCorruptedException("Message too long: " + utfLength + " bytes");
+                }
+                if (length - pos < utfLength) {
+                    pos = start;
+                    break;
+                }
+                message = decodeModifiedUTF8(buffer, pos, (int) utfLength);
+                pos += (int) utfLength;
+                handles.add(message);
+            } else if (typeCode == TC_REFERENCE) {
+                if (length - pos < 4) {
+                    pos = start;
+                    break;
+                }
+                int handle = ByteBuffer.wrap(buffer, pos, 4).getInt() - baseWireHandle;
+                pos += 4;
+                if ((handle < 0) || (handle >= handles.size())) {
+                    throw new StreamCorruptedException("Invalid handle: " + handle);
+                }
+                message = handles.get(handle);
+            } else if (typeCode == TC_RESET) {
+                handles.clear();
+                continue;
+            } else {
+                throw new StreamCorruptedException("Unsupported type code (only Strings are sent): " + typeCode);
+            }
+            messages.add(message);
+        }
+
+        // Keep only the bytes of a partial message
+        System.arraycopy(buffer, pos, buffer, 0, length - pos);
+        length -= pos;
+        return messages;
+    }
+
+    // Decodes Java's modified UTF-8 (as written by writeUTF/writeObject): 1, 2 or 3 bytes per char, NUL is 2 bytes
+    public static String decodeModifiedUTF8(byte[] bytes, int offset, int utfLength) throws IOException {
+        char[] chars = new char[utfLength];
+        int count = 0;
+        int pos = offset;
+        int end = offset + utfLength;
+        while (pos < end) {
+            int b = bytes[pos++] & 0xFF;
+            if (b < 0x80) { // 0xxxxxxx
+                chars[count++] = (char) b;
+            } else if ((b >> 5) == 0x06) { // 110xxxxx 10xxxxxx
+                if (pos >= end) {
+                    throw new StreamCorruptedException("Malformed modified UTF-8");
+                }
+                chars[count++] = (char) (((b & 0x1F) << 6) | (bytes[pos++] & 0x3F));
+            } else if ((b >> 4) == 0x0E) { // 1110xxxx 10xxxxxx 10xxxxxx
+                if (pos + 1 >= end) {
+                    throw new StreamCorruptedException("Malformed modified UTF-8");
+                }
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((bytes[pos] & 0x3F) << 6) | (bytes[pos + 1] & 0x3F));
+                pos += 2;
+            } else {
+                throw new StreamCorruptedException("Malformed modified UTF-8");
+            }
+        }
+        return new String(chars, 0, count);
+    }
+}
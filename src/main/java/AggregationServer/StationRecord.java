@@ -0,0 +1,98 @@
+package AggregationServer;
+
+import JSONParser.JSONWriter;
+import protocol.Frame;
+import protocol.WireProtocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The latest weather data of one station, as held in memory by the StationStore
+// Records are never changed once made: a PUT builds a new record, so GETs and the flusher can read one without locking
+public class StationRecord {
+    public final String stationID;
+    public final WeatherRecord weather; // Typed weather data, parsed once when the PUT arrived (see WeatherRecord)
+    public final long updatedMillis; // currentTimeMillis() of the PUT that made this record (also the file's modified time)
+
+    // GET responses, encoded the first time a GET needs them and reused by every GET until the next PUT makes a new
+    // record, so many GETClients polling one station cost one encoding per update. Two GETs at once may both encode
+    // it, they build the same response
+    private volatile String json;
+    private volatile byte[] untimedDataFrame;
+
+    public StationRecord(String stationID, WeatherRecord weather, long updatedMillis) {
+        this.stationID = stationID;
+        this.weather = weather;
+        this.updatedMillis = updatedMillis;
+    }
+
+    public StationRecord(String stationID, LinkedHashMap<String, String> entries, long updatedMillis) {
+        this(stationID, WeatherRecord.of(entries), updatedMillis);
+    }
+
+    // type -> value, in upload order (e.g. id -> IDS60901). Made from the typed data on each call
+    public Map<String, String> entries() {
+        return weather.toMap();
+    }
+
+    // Same data in regular text entry format (type:value lines), as written to the file
+    public String text() {
+        return weather.toText();
+    }
+
+    // Value of one type, null if it wasn't uploaded
+    public String get(String type) {
+        return weather.get(type);
+    }
+
+    // The data as the JSON text sent to Java-serialised GETClients (same as JSONParser.stringToJSON(text()))
+    public String toJSON() {
+        String encoded = json;
+        if (encoded == null) {
+            StringBuilder sb = new StringBuilder(weather.size() * 32);
+            JSONWriter writer = new JSONWriter(sb).beginObject();
+            for (int i = 0; i < weather.size(); ++i) {
+                writer.field(weather.type(i), weather.value(i));
+            }
+            writer.endObject();
+            encoded = sb.toString();
+            json = encoded;
+        }
+        return encoded;
+    }
+
+    // The data as one element of a bulk GET's JSON array: "station" : stationID first, then the same fields as
+    // toJSON(), whose cached text is copied after it instead of being encoded again
+    public void appendBulkJSON(StringBuilder out) {
+        String encoded = toJSON();
+        new JSONWriter(out).beginObject().field("station", 0, 7, stationID, 0, stationID.length(), false);
+        if (weather.size() > 0) {
+            out.append(',');
+        }
+        out.append(encoded, 1, encoded.length()); // Everything after its '{'
+    }
+
+    // The data as an OP_DATA frame without its Lamport time, for binary GETClients (see WireProtocol.encodeUntimed)
+    public byte[] toUntimedDataFrame() {
+        byte[] encoded = untimedDataFrame;
+        if (encoded == null) {
+            Frame frame = new Frame(WireProtocol.OP_DATA, 0, stationID);
+            for (int i = 0; i < weather.size(); ++i) {
+                frame.fields.put(weather.type(i), weather.value(i));
+            }
+            encoded = WireProtocol.encodeUntimed(frame);
+            untimedDataFrame = encoded;
+        }
+        return encoded;
+    }
+
+    // Returns a new record with the uploaded data merged in: existing types are replaced, new types are added
+    // The new record's time is always later than this one's, even for two PUTs within the same millisecond
+    public StationRecord merge(WeatherRecord uploaded, long updatedMillis) {
+        return new StationRecord(stationID, weather.merge(uploaded), Math.max(updatedMillis, this.updatedMillis + 1));
+    }
+
+    public StationRecord merge(Map<String, String> uploaded, long updatedMillis) {
+        return merge(WeatherRecord.of(uploaded), updatedMillis);
+    }
+}
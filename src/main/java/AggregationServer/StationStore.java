@@ -0,0 +1,367 @@
+package AggregationServer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Authoritative in-memory copy of every station's weather data (station ID -> latest record)
+// GETs are answered from here, so they never wait for the disk. The SERVER_DATA_<id>.txt files are only a persistent
+// copy, written according to the durability level:
+// MEMORY        = never written (data is lost when the server stops)
+// WRITE_BEHIND  = changed stations are marked dirty and written by a background flusher every flushInterval ms,
+//                 so many PUTs to one station between two flushes only cost one file write (default)
+// WRITE_THROUGH = the file is written and synced before put returns, i.e. before the PUT is acknowledged
+// The records themselves are kept by a StationTable: on the heap by default, off the heap with useOffHeap
+public class StationStore {
+    public enum Durability { MEMORY, WRITE_BEHIND, WRITE_THROUGH }
+
+    private volatile StationTable records = new HeapStationTable();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet(); // Stations changed since they were last written
+
+    // File writes and deletes of one station never overlap (e.g. the flusher bringing back an expired station's file)
+    private final Object[] fileLocks = new Object[64];
+
+    private volatile String directory;
+    private volatile Durability durability = Durability.WRITE_BEHIND;
+    private volatile long flushInterval = 1000; // ms between two write-behind flushes
+    private Thread flusher;
+
+    private final AtomicLong fileWrites = new AtomicLong(0); // Number of files written so far
+
+    // directory = folder of the SERVER_DATA files, any existing files in it are loaded
+    public StationStore(String directory) {
+        this(directory, true);
+    }
+
+    // Same, loadFiles = false starts empty without reading the folder (e.g. the records come from a snapshot file)
+    public StationStore(String directory, boolean loadFiles) {
+        for (int i = 0; i < fileLocks.length; ++i) {
+            fileLocks[i] = new Object();
+        }
+        if (loadFiles) {
+            loadDirectory(directory); // Not setDirectory: a subclass could override it before it is set up
+        } else {
+            this.directory = directory;
+        }
+    }
+
+    // Switches to another folder: the records are replaced by the data of the files in that folder
+    public void setDirectory(String directory) {
+        loadDirectory(directory);
+    }
+
+    private void loadDirectory(String directory) {
+        this.directory = directory;
+        records.clear();
+        dirty.clear();
+        File[] existingFiles = Paths.get(directory).toFile().listFiles();
+        if (existingFiles == null) {
+            return;
+        }
+        for (File file : existingFiles) {
+            String name = file.getName();
+            if (file.isFile() && name.startsWith("SERVER_DATA_") && name.endsWith(".txt")) {
+                StationRecord record = readFile(stationIDFromFile(name), file);
+                if (record != null) {
+                    putRecord(record);
+                }
+            }
+        }
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    // Moves every record into an off-heap table of the given capacity (see OffHeapStationTable)
+    // Call before the server starts taking requests. Stations that don't fit in a slot stay out (and are reported)
+    public void useOffHeap(int capacity) {
+        StationTable previous = records;
+        OffHeapStationTable table = new OffHeapStationTable(capacity);
+        for (StationRecord record : previous.records()) {
+            try {
+                table.put(record);
+            } catch (IOException ie) {
+                System.out.println("Station " + record.stationID + " not moved off-heap: " + ie.getMessage());
+            }
+        }
+        records = table;
+        if (previous instanceof OffHeapStationTable) {
+            ((OffHeapStationTable) previous).close();
+        }
+    }
+
+    // Keeps the records in a memory-mapped snapshot file instead (see OffHeapStationTable.map): the stations in the
+    // file are the store's data from now on (the loaded records are copied in only if the file is empty), and the
+    // SERVER_DATA files are no longer written. The file is msynced every flushInterval ms and by flush()
+    public void useSnapshotFile(Path path, int capacity) throws IOException {
+        OffHeapStationTable table = OffHeapStationTable.map(path, capacity);
+        StationTable previous = records;
+        if (table.size() == 0) {
+            for (StationRecord record : previous.records()) {
+                try {
+                    table.put(record);
+                } catch (IOException ie) {
+                    System.out.println("Station " + record.stationID + " not moved to the snapshot file: " + ie.getMessage());
+                }
+            }
+        }
+        records = table;
+        durability = Durability.MEMORY;
+        dirty.clear();
+        if (previous instanceof OffHeapStationTable) {
+            ((OffHeapStationTable) previous).close();
+        }
+        startFlusher(); // Runs flush(), i.e. the msync, every flushInterval
+    }
+
+    // For testing purposes
+    public StationTable getTable() {
+        return records;
+    }
+
+    // Time between two write-behind flushes in ms (larger = more PUTs coalesced into one write, more data at risk)
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = Math.max(1, flushInterval);
+    }
+
+    // File a station's data is persisted to, e.g. AggregationServer/SERVER_DATA_1234.txt
+    public String fileFor(String stationID) {
+        return directory + "SERVER_DATA_" + stationID + ".txt";
+    }
+
+    // Station ID of a SERVER_DATA file (path or name), e.g. AggregationServer/SERVER_DATA_1234.txt -> 1234
+    public static String stationIDFromFile(String file) {
+        String name = Paths.get(file).getFileName().toString();
+        name = name.replaceFirst("^SERVER_DATA_", "");
+        return name.replaceFirst("\\.txt$", "");
+    }
+
+    // Latest record of the station, null if it has no data
+    public StationRecord get(String stationID) {
+        return records.get(stationID);
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    // Every station's latest record (a live view on the heap, a copy off the heap)
+    public Collection<StationRecord> records() {
+        return records.records();
+    }
+
+    // For testing purposes
+    public long getFileWrites() {
+        return fileWrites.get();
+    }
+
+    // Merges uploaded entries into the station's record (creating it if needed), then persists it per durability level
+    // Returns true if the station had no data before (-> 201), false if existing data was updated (-> 200)
+    // Throws IOException only for WRITE_THROUGH, if the file couldn't be written
+    public boolean put(String stationID, LinkedHashMap<String, String> uploaded) throws IOException {
+        return put(stationID, uploaded, System.currentTimeMillis());
+    }
+
+    // Same as above with the update time given by the caller (e.g. the time logged in the write-ahead log)
+    public boolean put(String stationID, LinkedHashMap<String, String> uploaded, long now) throws IOException {
+        return put(stationID, uploaded, now, true);
+    }
+
+    // Same as above. writeNow = false leaves the WRITE_THROUGH write to the caller (e.g. GroupCommit writes a batch)
+    public boolean put(String stationID, LinkedHashMap<String, String> uploaded, long now, boolean writeNow) throws IOException {
+        return put(stationID, WeatherRecord.of(uploaded), now, writeNow);
+    }
+
+    // Same as above with data already parsed into a WeatherRecord (e.g. by AggregationServer.storePUT)
+    public boolean put(String stationID, WeatherRecord uploaded, long now, boolean writeNow) throws IOException {
+        boolean created = records.merge(stationID, uploaded, now);
+        if (durability == Durability.WRITE_THROUGH) {
+            if (writeNow) {
+                writeFile(stationID, true);
+            }
+        } else if (durability == Durability.WRITE_BEHIND) {
+            dirty.add(stationID);
+            startFlusher();
+        }
+        return created;
+    }
+
+    // Replaces every record with the given ones (e.g. rebuilt by the write-ahead log after a crash)
+    // The files are brought up to date according to the durability level
+    public void restore(Collection<StationRecord> restored) {
+        records.clear();
+        dirty.clear();
+        for (StationRecord record : restored) {
+            putRecord(record);
+        }
+        if (durability == Durability.MEMORY) {
+            return;
+        }
+        for (StationRecord record : restored) {
+            dirty.add(record.stationID);
+        }
+        if (durability == Durability.WRITE_THROUGH) {
+            flush();
+        } else {
+            startFlusher();
+        }
+    }
+
+    // Adds or replaces a station's whole record as it is (e.g. streamed from the primary, see Replication), unless the
+    // record held is newer. Persisted per durability level like a put. Returns false if the record wasn't taken
+    public boolean replace(StationRecord record) throws IOException {
+        synchronized (lockFor(record.stationID)) {
+            StationRecord current = records.get(record.stationID);
+            if ((current != null) && (current.updatedMillis > record.updatedMillis)) {
+                return false;
+            }
+            records.put(record);
+        }
+        if (durability == Durability.WRITE_THROUGH) {
+            writeFile(record.stationID, true);
+        } else if (durability == Durability.WRITE_BEHIND) {
+            dirty.add(record.stationID);
+            startFlusher();
+        }
+        return true;
+    }
+
+    // Removes a station's data from memory and deletes its file (e.g. when it expires)
+    public void remove(String stationID) {
+        synchronized (lockFor(stationID)) {
+            records.remove(stationID);
+            dirty.remove(stationID);
+            try {
+                Files.deleteIfExists(Paths.get(fileFor(stationID)));
+            } catch (IOException ie) {
+                System.out.println("Failed to remove weather file of " + stationID + ": " + ie.getMessage());
+            }
+        }
+    }
+
+    // Writes every dirty station now (and msyncs the snapshot file, if there is one)
+    // Called by the flusher, and when the server shuts down
+    public void flush() {
+        for (String stationID : dirty) {
+            dirty.remove(stationID); // Removed first: a PUT arriving during the write marks it dirty again
+            try {
+                writeFile(stationID, false);
+            } catch (IOException ie) {
+                System.out.println("Failed to write weather file of " + stationID + ": " + ie.getMessage());
+                dirty.add(stationID); // Try again next flush
+            }
+        }
+        StationTable table = records;
+        if (table instanceof OffHeapStationTable) {
+            ((OffHeapStationTable) table).sync();
+        }
+    }
+
+    // Writes the station's current record to its file (through a temporary file, so a crash never leaves half a file)
+    // sync = wait until the data is on the disk (WRITE_THROUGH)
+    public void writeFile(String stationID, boolean sync) throws IOException {
+        synchronized (lockFor(stationID)) {
+            StationRecord record = records.get(stationID);
+            if (record == null) {
+                return; // Removed in the meantime: don't bring the file back
+            }
+            Path path = Paths.get(fileFor(stationID));
+            Path temp = Paths.get(fileFor(stationID) + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(temp.toFile())) {
+                out.write(record.text().getBytes(StandardCharsets.UTF_8));
+                if (sync) {
+                    out.getFD().sync();
+                }
+            }
+            // Modified time = time of the PUT, so the update time is restored when the file is loaded after a restart
+            Files.setLastModifiedTime(temp, FileTime.fromMillis(record.updatedMillis));
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fileWrites.incrementAndGet();
+        }
+    }
+
+    // Threaded function (runs in background): writes the dirty stations every flushInterval ms
+    // Started by the first write-behind PUT (or by useSnapshotFile), only one instance exists
+    private synchronized void startFlusher() {
+        if (flusher != null) {
+            return;
+        }
+        flusher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(flushInterval);
+                } catch (InterruptedException ie) {
+                    System.out.println("Flusher thread interrupted: " + ie.getMessage());
+                    return;
+                }
+                flush();
+            }
+        }, "StationStore-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    // Non-threaded function: stops the flusher, waiting for a flush it is in the middle of. Called when the server
+    // shuts down, before its last flush
+    public synchronized void stopFlusher() throws InterruptedException {
+        if (flusher == null) {
+            return;
+        }
+        flusher.interrupt();
+        flusher.join();
+        flusher = null;
+    }
+
+    private Object lockFor(String stationID) {
+        return fileLocks[Math.floorMod(stationID.hashCode(), fileLocks.length)];
+    }
+
+    // Adds a loaded/restored record, reporting one the table can't hold
+    private void putRecord(StationRecord record) {
+        try {
+            records.put(record);
+        } catch (IOException ie) {
+            System.out.println("Failed to load weather data of " + record.stationID + ": " + ie.getMessage());
+        }
+    }
+
+    // Reads a SERVER_DATA file (type:value lines up to the first empty line, escaped by WeatherRecord.toText)
+    // Returns null if it is empty or unreadable
+    private StationRecord readFile(String stationID, File file) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        try (BufferedReader re = new BufferedReader(new FileReader(file))) {
+            String currLine;
+            while (((currLine = re.readLine()) != null) && (!currLine.isEmpty())) {
+                String[] temp = WeatherRecord.parseTextLine(currLine);
+                if (temp != null) {
+                    entries.put(temp[0], temp[1]); // temp[0]=entry type, temp[1]=entry value
+                }
+            }
+        } catch (IOException ie) {
+            System.out.println("Failed to load weather file " + file + ": " + ie.getMessage());
+            return null;
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        return new StationRecord(stationID, entries, file.lastModified());
+    }
+}
@@ -0,0 +1,28 @@
+package AggregationServer;
+
+import java.io.IOException;
+import java.util.Collection;
+
+// Where a StationStore keeps its records (station ID -> latest record)
+// HeapStationTable = StationRecord objects in a ConcurrentHashMap (default)
+// OffHeapStationTable = fixed-size slots in native memory, so millions of stations don't add to the GC's work
+public interface StationTable {
+    // Latest record of the station, null if it has no data
+    StationRecord get(String stationID);
+
+    // Merges uploaded data into the station's record, creating it if needed (see StationRecord.merge)
+    // Returns true if the station had no data before. Throws IOException if the data can't be stored
+    boolean merge(String stationID, WeatherRecord uploaded, long now) throws IOException;
+
+    // Adds or replaces a whole record (e.g. loaded from a file or rebuilt by the write-ahead log)
+    void put(StationRecord record) throws IOException;
+
+    void remove(String stationID);
+
+    void clear();
+
+    int size();
+
+    // Every station's latest record
+    Collection<StationRecord> records();
+}
@@ -0,0 +1,263 @@
+package AggregationServer;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Server push of station updates to GETClients that sent a SUBSCRIBE request, instead of them polling with GETs
+// A subscriber names its stations like a bulk GET (station IDs, prefixes ending in '*', or all/latest). Every PUT applied
+// to one of them is put in the subscriber's outbound queue, and a few pusher threads send what is queued, so a PUT costs
+// one queue offer per subscriber and the socket writes happen off the lanes.
+// Queues are bounded: a newer record of a station that is still queued replaces it where it is (coalesced - a
+// dashboard only needs the newest data), and once a queue holds queueCapacity other stations the oldest queued record
+// is dropped. A slow subscriber only ever delays itself, never the PUTs or the other subscribers
+public class Subscriptions {
+    private AggregationServer server; // Set by start: only the pushers send
+    private final int queueCapacity; // Most stations queued for one subscriber
+    private final int numPushers;
+
+    private final ConcurrentHashMap<Socket, Subscriber> subscribers = new ConcurrentHashMap<Socket, Subscriber>();
+    private final ConcurrentHashMap<String, Set<Subscriber>> byStation = new ConcurrentHashMap<String, Set<Subscriber>>();
+    private final CopyOnWriteArrayList<Subscriber> byPrefix = new CopyOnWriteArrayList<Subscriber>(); // Prefixes and all
+    private final LinkedBlockingQueue<Subscriber> ready = new LinkedBlockingQueue<Subscriber>(); // Subscribers with records to send
+    private Thread[] pushers;
+
+    private final AtomicLong pushed = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    // One subscribed socket. Its queue and flags are guarded by the subscriber itself
+    public static class Subscriber {
+        final Socket socket;
+        final ArrayList<String> stationIDs = new ArrayList<String>();
+        final ArrayList<String> prefixes = new ArrayList<String>(); // "" = every station
+        final LinkedHashMap<String, StationRecord> queue = new LinkedHashMap<String, StationRecord>(); // stationID -> newest record
+        boolean scheduled = true; // In ready or being sent by a pusher (held back until release)
+        boolean closed = false;
+
+        Subscriber(Socket socket, List<String> items) {
+            this.socket = socket;
+            for (String item : items) {
+                if (item.endsWith("*")) {
+                    prefixes.add(item.substring(0, item.length() - 1));
+                } else {
+                    stationIDs.add(item);
+                }
+            }
+        }
+
+        // For testing purposes
+        public synchronized ArrayList<String> queuedStations() {
+            return new ArrayList<String>(queue.keySet());
+        }
+
+        // For testing purposes
+        public synchronized StationRecord queued(String stationID) {
+            return queue.get(stationID);
+        }
+
+        boolean matchesPrefix(String stationID) {
+            for (String prefix : prefixes) {
+                if (stationID.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public Subscriptions(int queueCapacity, int numPushers) {
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.numPushers = Math.max(1, numPushers);
+    }
+
+    // Threaded function (runs in background): starts the pusher threads, sending through server. Only once
+    public synchronized void start(AggregationServer server) {
+        if (pushers != null) {
+            return;
+        }
+        this.server = server;
+        pushers = new Thread[numPushers];
+        for (int i = 0; i < numPushers; ++i) {
+            pushers[i] = new Thread(() -> {
+                while (true) {
+                    try {
+                        push(ready.take()); // Blocks until a subscriber has records queued
+                    } catch (InterruptedException ie) {
+                        System.out.println("Pusher interrupted: " + ie.getMessage());
+                        return;
+                    }
+                }
+            });
+            pushers[i].setDaemon(true);
+            pushers[i].start();
+        }
+    }
+
+    // Non-threaded function: stops the pusher threads. Anything still queued for subscribers is not sent
+    public synchronized void stop() throws InterruptedException {
+        if (pushers == null) {
+            return;
+        }
+        for (Thread pusher : pushers) {
+            pusher.interrupt();
+        }
+        for (Thread pusher : pushers) {
+            pusher.join();
+        }
+        pushers = null;
+    }
+
+    // Registers socket for the stations of items (see AggregationServer.parseStationSelector), replacing the
+    // socket's previous subscription. Nothing is pushed to it until release(), so the server can first send it the
+    // current data of its stations; updates arriving meanwhile are queued and pushed after that
+    public Subscriber subscribe(Socket socket, List<String> items) {
+        unsubscribe(socket);
+        Subscriber subscriber = new Subscriber(socket, items);
+        subscribers.put(socket, subscriber);
+        for (String stationID : subscriber.stationIDs) {
+            byStation.compute(stationID, (id, set) -> {
+                Set<Subscriber> subscribed = (set == null) ? ConcurrentHashMap.newKeySet() : set;
+                subscribed.add(subscriber);
+                return subscribed;
+            });
+        }
+        if (!subscriber.prefixes.isEmpty()) {
+            byPrefix.add(subscriber);
+        }
+        return subscriber;
+    }
+
+    // Lets updates be pushed to a subscriber held back by subscribe
+    public void release(Subscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.closed || subscriber.queue.isEmpty()) {
+                subscriber.scheduled = false;
+            } else {
+                ready.offer(subscriber);
+            }
+        }
+    }
+
+    // Ends a socket's subscription (it closed, or a push to it failed). Anything still queued for it is discarded
+    public void unsubscribe(Socket socket) {
+        Subscriber subscriber = subscribers.remove(socket);
+        if (subscriber == null) {
+            return;
+        }
+        for (String stationID : subscriber.stationIDs) { // Atomic per station, so a subscribe at the same time isn't lost
+            byStation.computeIfPresent(stationID, (id, set) -> {
+                set.remove(subscriber);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        byPrefix.remove(subscriber);
+        synchronized (subscriber) {
+            subscriber.closed = true;
+            subscriber.queue.clear();
+        }
+    }
+
+    // Non-threaded function: Called for every record a PUT leaves in the store. Offers it to each subscriber of its station
+    public void publish(StationRecord record) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        Set<Subscriber> exact = byStation.get(record.stationID);
+        if (exact != null) {
+            for (Subscriber subscriber : exact) {
+                offer(subscriber, record);
+            }
+        }
+        for (Subscriber subscriber : byPrefix) {
+            if (subscriber.matchesPrefix(record.stationID) && ((exact == null) || !exact.contains(subscriber))) {
+                offer(subscriber, record);
+            }
+        }
+    }
+
+    private void offer(Subscriber subscriber, StationRecord record) {
+        synchronized (subscriber) {
+            if (subscriber.closed) {
+                return;
+            }
+            StationRecord queued = subscriber.queue.get(record.stationID);
+            if (queued != null) {
+                if (queued.updatedMillis <= record.updatedMillis) { // Never older data (a station only changes on its lane)
+                    subscriber.queue.put(record.stationID, record); // Keeps its place in the queue
+                }
+                coalesced.incrementAndGet();
+            } else {
+                subscriber.queue.put(record.stationID, record);
+                if (subscriber.queue.size() > queueCapacity) { // Full: the oldest queued station gives way
+                    Iterator<String> oldest = subscriber.queue.keySet().iterator();
+                    oldest.next();
+                    oldest.remove();
+                    dropped.incrementAndGet();
+                }
+            }
+            if (!subscriber.scheduled) {
+                subscriber.scheduled = true;
+                ready.offer(subscriber);
+            }
+        }
+    }
+
+    // Sends everything queued for one subscriber as one push. Only one pusher has a subscriber at a time (scheduled),
+    // so its pushes keep their order
+    private void push(Subscriber subscriber) {
+        ArrayList<StationRecord> records;
+        synchronized (subscriber) {
+            if (subscriber.closed) {
+                return;
+            }
+            records = new ArrayList<StationRecord>(subscriber.queue.values());
+            subscriber.queue.clear();
+        }
+        if (!records.isEmpty()) {
+            try {
+                server.sendStations(subscriber.socket, records);
+                pushed.addAndGet(records.size());
+            } catch (IOException | RuntimeException e) { // Socket gone (its streams may have been removed already)
+                System.out.println("Push to a subscriber failed, subscription ended: " + e.getMessage());
+                unsubscribe(subscriber.socket);
+                return;
+            }
+        }
+        synchronized (subscriber) {
+            if (subscriber.closed || subscriber.queue.isEmpty()) {
+                subscriber.scheduled = false;
+            } else {
+                ready.offer(subscriber); // More arrived while this push was being sent
+            }
+        }
+    }
+
+    // For testing purposes
+    public int size() {
+        return subscribers.size();
+    }
+
+    // For testing purposes
+    public long getPushed() {
+        return pushed.get();
+    }
+
+    // For testing purposes
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    // For testing purposes
+    public long getDropped() {
+        return dropped.get();
+    }
+}
@@ -0,0 +1,407 @@
+package AggregationServer;
+
+import JSONParser.JSONParser;
+import protocol.WireProtocol;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A station's weather data in typed form, laid out by the WeatherSchema (the feedTypes table)
+// Numeric ("int") types are held as exact decimals in primitive arrays (unscaled value + scale: -34.9 = -349, 1), so
+// a value is parsed once, when the PUT arrives, and always turns back into exactly the text that was uploaded
+// String types are interned: the many stations sharing a value (e.g. "SA", "Partly cloudy") share one String
+// Types that aren't in the table, and numeric types whose value isn't a plain decimal (e.g. "1e5"), are kept as text
+// Fields keep their upload order. Records are never changed once made: merge builds a new one
+public class WeatherRecord {
+    private static final JSONParser NUMBERS = new JSONParser(); // Only its isNumber check is used
+    private static final String[] NO_EXTRAS = new String[0];
+    private static final byte ABSENT = -1; // scales[] value: numeric type not uploaded
+    private static final byte TEXT = -2; // scales[] value: numeric type uploaded as text, its value is an extra field
+
+    public static final WeatherRecord EMPTY = new Draft(WeatherSchema.FEED, 0).build();
+
+    // Package-private so OffHeapStationTable can copy them in and out of its slots. Never changed after construction
+    final WeatherSchema schema;
+    final long[] numbers; // Numeric slot -> unscaled value
+    final byte[] scales; // Numeric slot -> scale (digits after the point), ABSENT or TEXT
+    final String[] strings; // String slot -> value, null if not uploaded
+    final String[] extraTypes; // Extra fields: types not in the schema, and TEXT numeric types
+    final String[] extraValues;
+    final short[] order; // Fields in upload order: ids below schema.size() are schema fields, the rest extras
+    private final boolean matchesFeedTypes;
+
+    // Takes the arrays as they are (no copies): only for arrays nothing else holds
+    WeatherRecord(WeatherSchema schema, long[] numbers, byte[] scales, String[] strings,
+                  String[] extraTypes, String[] extraValues, short[] order, boolean matchesFeedTypes) {
+        this.schema = schema;
+        this.numbers = numbers;
+        this.scales = scales;
+        this.strings = strings;
+        this.extraTypes = (extraTypes.length == 0) ? NO_EXTRAS : extraTypes;
+        this.extraValues = (extraValues.length == 0) ? NO_EXTRAS : extraValues;
+        this.order = order;
+        this.matchesFeedTypes = matchesFeedTypes;
+    }
+
+    // Parses uploaded type -> value entries (e.g. a PUT's JSON object) into a record
+    public static WeatherRecord of(Map<String, String> entries) {
+        Draft draft = new Draft(WeatherSchema.FEED, entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            draft.put(entry.getKey(), entry.getValue());
+        }
+        return draft.build();
+    }
+
+    // Returns a new record with the uploaded fields merged in: existing types are replaced (keeping their position),
+    // new types are added at the end. Nothing is parsed again
+    public WeatherRecord merge(WeatherRecord uploaded) {
+        Draft draft = new Draft(this, uploaded.size());
+        for (int i = 0; i < uploaded.size(); ++i) {
+            draft.putFrom(uploaded, i);
+        }
+        draft.matchesFeedTypes = matchesFeedTypes && uploaded.matchesFeedTypes;
+        return draft.build();
+    }
+
+    // False if a value didn't make sense for its feed type when it was parsed: a "string" type holding a number,
+    // or an "int" type holding something that isn't a number (same rules as JSONParser.matchesFeedTypes)
+    // Also false if a type isn't a valid entry type (see isValidType), whichever protocol the PUT came with
+    public boolean matchesFeedTypes() {
+        return matchesFeedTypes;
+    }
+
+    // Number of fields
+    public int size() {
+        return order.length;
+    }
+
+    // Type of the i-th field, in upload order
+    public String type(int i) {
+        int id = order[i];
+        return (id < schema.size()) ? schema.types[id] : extraTypes[id - schema.size()];
+    }
+
+    // Value of the i-th field as text, in upload order
+    public String value(int i) {
+        int id = order[i];
+        return (id < schema.size()) ? valueOf(id) : extraValues[id - schema.size()];
+    }
+
+    // Value of the type as text, null if it wasn't uploaded
+    public String get(String type) {
+        int id = schema.idOf(type);
+        return (id < 0) ? extraValue(type) : valueOf(id);
+    }
+
+    // Value of a numeric type as a number, without parsing any text. NaN if it wasn't uploaded or isn't a plain decimal
+    public double number(String type) {
+        int id = schema.idOf(type);
+        if ((id < 0) || !schema.numeric[id] || (scales[schema.slots[id]] < 0)) {
+            return Double.NaN;
+        }
+        int slot = schema.slots[id];
+        return numbers[slot] / Math.pow(10, scales[slot]);
+    }
+
+    // Fields as type -> value, in upload order
+    public Map<String, String> toMap() {
+        LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
+        for (int i = 0; i < order.length; ++i) {
+            map.put(type(i), value(i));
+        }
+        return Collections.unmodifiableMap(map);
+    }
+
+    // Fields in regular text entry format (type:value lines), as written to the SERVER_DATA file
+    // Line breaks and backslashes are escaped (\n, \r, \\), and colons in types (\:), so every field stays on one
+    // line and splits back into the same type and value (see parseTextLine)
+    public String toText() {
+        StringBuilder sb = new StringBuilder(order.length * 24);
+        for (int i = 0; i < order.length; ++i) {
+            appendEscaped(sb, type(i), true);
+            sb.append(':');
+            appendEscaped(sb, value(i), false);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Splits a line written by toText into {type, value}, undoing its escapes. Returns null if the line has no colon
+    // A backslash before any other character is kept as it is, so files written before escaping read the same
+    public static String[] parseTextLine(String line) {
+        StringBuilder type = new StringBuilder();
+        int i = 0;
+        for (; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (c == ':') {
+                break;
+            }
+            if ((c == '\\') && (i + 1 < line.length())) {
+                i = unescape(line, i, type, true);
+            } else {
+                type.append(c);
+            }
+        }
+        if (i == line.length()) {
+            return null;
+        }
+        StringBuilder value = new StringBuilder(line.length() - i);
+        for (++i; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if ((c == '\\') && (i + 1 < line.length())) {
+                i = unescape(line, i, value, false);
+            } else {
+                value.append(c);
+            }
+        }
+        return new String[]{type.toString(), value.toString()};
+    }
+
+    // An entry type has to be a name: not empty, no line breaks or other control characters
+    // Checked for every PUT: JSON keys (with escapes) and binary frames can both carry any string
+    public static boolean isValidType(String type) {
+        if (type.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < type.length(); ++i) {
+            char c = type.charAt(i);
+            if ((c < 0x20) || (c == 0x7f)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void appendEscaped(StringBuilder sb, String text, boolean type) {
+        for (int i = 0; i < text.length(); ++i) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case ':': sb.append(type ? "\\:" : ":"); break; // The first unescaped colon ends the type
+                default: sb.append(c);
+            }
+        }
+    }
+
+    // Appends the character escaped at line[i] (a backslash) and returns the index of the escape's last character
+    private static int unescape(String line, int i, StringBuilder sb, boolean type) {
+        char escaped = line.charAt(i + 1);
+        switch (escaped) {
+            case '\\': sb.append('\\'); break;
+            case 'n': sb.append('\n'); break;
+            case 'r': sb.append('\r'); break;
+            case ':':
+                if (!type) { // Colons are only escaped in types
+                    sb.append('\\');
+                    return i;
+                }
+                sb.append(':');
+                break;
+            default: // Not an escape
+                sb.append('\\');
+                return i;
+        }
+        return i + 1;
+    }
+
+    private String valueOf(int id) {
+        int slot = schema.slots[id];
+        if (!schema.numeric[id]) {
+            return strings[slot];
+        }
+        if (scales[slot] == ABSENT) {
+            return null;
+        }
+        return (scales[slot] == TEXT) ? extraValue(schema.types[id]) : WireProtocol.formatDecimal(numbers[slot], scales[slot]);
+    }
+
+    private String extraValue(String type) {
+        for (int k = 0; k < extraTypes.length; ++k) {
+            if (extraTypes[k].equals(type)) {
+                return extraValues[k];
+            }
+        }
+        return null;
+    }
+
+    // A record being put together by of/merge, turned into the final (exactly sized) record by build
+    private static final class Draft {
+        final WeatherSchema schema;
+        final long[] numbers;
+        final byte[] scales;
+        final String[] strings;
+        String[] extraTypes;
+        String[] extraValues;
+        int extras;
+        short[] order;
+        int fields;
+        boolean matchesFeedTypes = true;
+        final long[] decimal = new long[1]; // Unscaled value from WireProtocol.parseDecimal
+
+        // Empty draft with room for capacity fields
+        Draft(WeatherSchema schema, int capacity) {
+            this.schema = schema;
+            numbers = new long[schema.numericCount];
+            scales = new byte[schema.numericCount];
+            Arrays.fill(scales, ABSENT);
+            strings = new String[schema.stringCount];
+            extraTypes = NO_EXTRAS;
+            extraValues = NO_EXTRAS;
+            order = new short[capacity];
+        }
+
+        // Copy of a record, with room for capacity more fields
+        Draft(WeatherRecord from, int capacity) {
+            schema = from.schema;
+            numbers = from.numbers.clone();
+            scales = from.scales.clone();
+            strings = from.strings.clone();
+            extraTypes = from.extraTypes.clone();
+            extraValues = from.extraValues.clone();
+            extras = extraTypes.length;
+            order = Arrays.copyOf(from.order, from.order.length + capacity);
+            fields = from.order.length;
+        }
+
+        // Parses one uploaded type:value
+        void put(String type, String value) {
+            int id = schema.idOf(type);
+            if (id < 0) {
+                matchesFeedTypes &= isValidType(type);
+                putExtra(type.intern(), value, true);
+            } else if (schema.numeric[id]) {
+                int scale = WireProtocol.parseDecimal(value, decimal);
+                if (scale >= 0) {
+                    setNumber(id, decimal[0], (byte) scale);
+                } else {
+                    matchesFeedTypes &= NUMBERS.isNumber(value); // e.g. "1e5" is fine, "warm" isn't
+                    setText(id, value);
+                }
+            } else {
+                matchesFeedTypes &= !NUMBERS.isNumber(value);
+                setString(id, value.intern());
+            }
+        }
+
+        // Copies the i-th field of a parsed record
+        void putFrom(WeatherRecord from, int i) {
+            int id = from.order[i];
+            if (id >= schema.size()) {
+                putExtra(from.extraTypes[id - schema.size()], from.extraValues[id - schema.size()], true);
+                return;
+            }
+            int slot = schema.slots[id];
+            if (!schema.numeric[id]) {
+                setString(id, from.strings[slot]);
+            } else if (from.scales[slot] == TEXT) {
+                setText(id, from.extraValue(schema.types[id]));
+            } else {
+                setNumber(id, from.numbers[slot], from.scales[slot]);
+            }
+        }
+
+        void setNumber(int id, long unscaled, byte scale) {
+            int slot = schema.slots[id];
+            if (scales[slot] == ABSENT) {
+                addToOrder(id);
+            } else if (scales[slot] == TEXT) {
+                removeExtra(schema.types[id]); // Was text before, a plain decimal now
+            }
+            numbers[slot] = unscaled;
+            scales[slot] = scale;
+        }
+
+        void setText(int id, String text) {
+            int slot = schema.slots[id];
+            if (scales[slot] == ABSENT) {
+                addToOrder(id);
+            }
+            scales[slot] = TEXT;
+            putExtra(schema.types[id], text, false);
+        }
+
+        void setString(int id, String value) {
+            int slot = schema.slots[id];
+            if (strings[slot] == null) {
+                addToOrder(id);
+            }
+            strings[slot] = value;
+        }
+
+        // Adds or replaces an extra field. ordered = it is a field of its own (not the text of a numeric type)
+        void putExtra(String type, String value, boolean ordered) {
+            for (int k = 0; k < extras; ++k) {
+                if (type.equals(extraTypes[k])) {
+                    extraValues[k] = value;
+                    return;
+                }
+            }
+            if (schema.size() + extras >= Short.MAX_VALUE) {
+                matchesFeedTypes = false; // More fields than a record can hold: the PUT is refused
+                return;
+            }
+            if (extras == extraTypes.length) {
+                extraTypes = Arrays.copyOf(extraTypes, Math.max(4, extras * 2));
+                extraValues = Arrays.copyOf(extraValues, extraTypes.length);
+            }
+            extraTypes[extras] = type;
+            extraValues[extras] = value;
+            if (ordered) {
+                addToOrder(schema.size() + extras);
+            }
+            extras++;
+        }
+
+        // Only ever removes the text of a numeric type, which isn't in the order, so no order id has to change here
+        void removeExtra(String type) {
+            for (int k = 0; k < extras; ++k) {
+                if (type.equals(extraTypes[k])) {
+                    extraTypes[k] = null; // Left out by build
+                    extraValues[k] = null;
+                    return;
+                }
+            }
+        }
+
+        void addToOrder(int id) {
+            if (fields == order.length) {
+                order = Arrays.copyOf(order, Math.max(4, fields * 2));
+            }
+            order[fields++] = (short) id;
+        }
+
+        // Makes the record, leaving out removed extra fields (and renumbering the ones after them)
+        WeatherRecord build() {
+            int live = 0;
+            int[] renumbered = new int[extras];
+            for (int k = 0; k < extras; ++k) {
+                renumbered[k] = live;
+                if (extraTypes[k] != null) {
+                    live++;
+                }
+            }
+            String[] types = NO_EXTRAS;
+            String[] values = NO_EXTRAS;
+            if (live > 0) {
+                types = new String[live];
+                values = new String[live];
+                for (int k = 0; k < extras; ++k) {
+                    if (extraTypes[k] != null) {
+                        types[renumbered[k]] = extraTypes[k];
+                        values[renumbered[k]] = extraValues[k];
+                    }
+                }
+            }
+            short[] finalOrder = new short[fields];
+            for (int i = 0; i < fields; ++i) {
+                int id = order[i];
+                finalOrder[i] = (short) ((id < schema.size()) ? id : schema.size() + renumbered[id - schema.size()]);
+            }
+            return new WeatherRecord(schema, numbers, scales, strings, types, values, finalOrder, matchesFeedTypes);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package AggregationServer;
+
+import JSONParser.JSONParser;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// Layout of a WeatherRecord, made once from JSONParser's feedTypes table and shared by every record
+// Every known type gets a field id. "int" types are numeric and get a slot in the record's primitive arrays,
+// "string" types get a slot in its String array. Types that aren't in the table are kept as extra fields
+public class WeatherSchema {
+    public static final WeatherSchema FEED = new WeatherSchema(new JSONParser().getFeedTypes());
+
+    final String[] types; // Field id -> type name
+    final boolean[] numeric; // Field id -> true for "int" types
+    final int[] slots; // Field id -> index into the record's numbers/scales (numeric) or strings
+    final int numericCount;
+    final int stringCount;
+    private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+    public WeatherSchema(Map<String, String> feedTypes) {
+        ArrayList<String> names = new ArrayList<String>(feedTypes.keySet());
+        Collections.sort(names); // Same ids on every run
+        types = new String[names.size()];
+        numeric = new boolean[names.size()];
+        slots = new int[names.size()];
+        int numbers = 0;
+        int strings = 0;
+        for (int id = 0; id < names.size(); ++id) {
+            types[id] = names.get(id).intern();
+            numeric[id] = "int".equals(feedTypes.get(types[id]));
+            slots[id] = numeric[id] ? numbers++ : strings++;
+            ids.put(types[id], id);
+        }
+        numericCount = numbers;
+        stringCount = strings;
+    }
+
+    // Field id of the type, -1 if it isn't in the table
+    public int idOf(String type) {
+        Integer id = ids.get(type);
+        return (id == null) ? -1 : id;
+    }
+
+    // Number of known types
+    public int size() {
+        return types.length;
+    }
+}
@@ -0,0 +1,465 @@
+package AggregationServer;
+
+import lamport.LamportClock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Segmented append-only write-ahead log of every change to the StationStore (PUTs and expiries)
+// A PUT is appended with its Lamport time, station ID and entries and synced to disk before it is acknowledged.
+// Syncs are group commits: while one thread is in fsync, the PUTs appended by other lanes wait and are all covered
+// by the next fsync, so a burst of PUTs costs a few fsyncs instead of one each.
+//
+// Files in the log folder:
+// wal-<first sequence number>.log : segments, a new one is started once the current one reaches segmentSize
+// snapshot.dat                    : every station's record + Lamport time, and the sequence number to replay from
+// Entry:    int body length | int CRC32 of body | body
+// Body:     u1 type (PUT/REMOVE/REPLACE) | long sequence number | int Lamport time | long currentTimeMillis | UTF stationID |
+//           int entry count | (UTF type, UTF value) per entry
+// REPLACE is a station's whole record with its own update time (e.g. streamed from the primary, see Replication): it
+// replaces the entries instead of merging them, unless the station already has a later update time.
+// On startup the snapshot is loaded and the entries after it are replayed, rebuilding the store and the LamportClock.
+// A torn entry at the end of the log (crash in the middle of a write) is cut off; it was never acknowledged.
+// Compaction: after compactAfterSegments new segments, a snapshot is taken in the background and the segments it
+// covers are deleted, so recovery time stays bounded.
+public class WriteAheadLog {
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REPLACE = 3;
+    private static final int SNAPSHOT_MAGIC = 0x57414C31; // "WAL1"
+    private static final int MAX_ENTRY_LENGTH = 16 * 1024 * 1024;
+
+    private final Path directory;
+    private final StationStore store;
+    private final LamportClock clock;
+    private long segmentSize = 64L * 1024 * 1024;
+    private int compactAfterSegments = 4;
+
+    // Appending: entries are encoded into buffer and written to the segment by the next sync (or segment roll)
+    private final Object appendLock = new Object();
+    private FileChannel segment;
+    private long segmentLength = 0;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private long nextSeq = 1;
+    private long bufferedSeq = 0; // Last sequence number appended
+    private int segmentsSinceSnapshot = 0;
+
+    // Appended but not yet applied to the store: a snapshot must replay from the oldest of these
+    private final ConcurrentSkipListSet<Long> unapplied = new ConcurrentSkipListSet<Long>();
+
+    // Group commit: one thread (the leader) runs fsync, the others wait for it or for the next one
+    private final Object syncLock = new Object();
+    private long syncedSeq = 0; // Every entry up to here is on the disk
+    private boolean syncing = false;
+
+    private final Object snapshotLock = new Object();
+    private volatile boolean compacting = false;
+
+    private final AtomicLong appends = new AtomicLong(0);
+    private final AtomicLong fsyncs = new AtomicLong(0);
+
+    // directory = folder of the segments and snapshot (created if needed), store/clock = what the log rebuilds
+    public WriteAheadLog(Path directory, StationStore store, LamportClock clock) throws IOException {
+        this.directory = directory;
+        this.store = store;
+        this.clock = clock;
+        Files.createDirectories(directory);
+    }
+
+    // Size a segment may grow to before a new one is started (in bytes)
+    public void setSegmentSize(long segmentSize) {
+        this.segmentSize = Math.max(1024, segmentSize);
+    }
+
+    // Number of new segments after which a snapshot is taken and the covered segments are deleted (0 = never)
+    public void setCompactAfterSegments(int segments) {
+        this.compactAfterSegments = Math.max(0, segments);
+    }
+
+    // For testing purposes
+    public long getAppends() {
+        return appends.get();
+    }
+
+    // For testing purposes
+    public long getFsyncs() {
+        return fsyncs.get();
+    }
+
+    // Non-threaded function: rebuilds the store and the LamportClock from the snapshot and the log, then opens a new
+    // segment for appending. Must be called once, before the first append
+    // If the folder is empty (first run with the log), the store's current data is snapshotted instead
+    // Returns the records the store now holds
+    public ArrayList<StationRecord> recover() throws IOException {
+        Path snapshotFile = directory.resolve("snapshot.dat");
+        ArrayList<Path> segments = listSegments();
+        if (!Files.exists(snapshotFile) && segments.isEmpty()) {
+            openSegment(nextSeq);
+            snapshot();
+            return new ArrayList<StationRecord>(store.records());
+        }
+
+        // Station ID -> entries and update time, merged in log order
+        HashMap<String, LinkedHashMap<String, String>> entries = new HashMap<String, LinkedHashMap<String, String>>();
+        HashMap<String, Long> updated = new HashMap<String, Long>();
+        long replayFrom = 1;
+        int maxLamport = 0;
+        if (Files.exists(snapshotFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile.toFile())))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) {
+                    throw new IOException("Not a snapshot file: " + snapshotFile);
+                }
+                replayFrom = in.readLong();
+                maxLamport = in.readInt();
+                int count = in.readInt();
+                for (int i = 0; i < count; ++i) {
+                    String stationID = in.readUTF();
+                    updated.put(stationID, in.readLong());
+                    entries.put(stationID, readEntries(in));
+                }
+            }
+        }
+
+        long lastSeq = replayFrom - 1;
+        for (int s = 0; s < segments.size(); ++s) {
+            Path file = segments.get(s);
+            long validLength = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.toFile()), 1 << 16))) {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException eof) {
+                        break; // End of segment
+                    }
+                    if ((length <= 0) || (length > MAX_ENTRY_LENGTH)) {
+                        break; // Torn length
+                    }
+                    int checksum;
+                    byte[] body = new byte[length];
+                    try {
+                        checksum = in.readInt();
+                        in.readFully(body);
+                    } catch (EOFException eof) {
+                        break; // Torn body
+                    }
+                    crc.reset();
+                    crc.update(body);
+                    if ((int) crc.getValue() != checksum) {
+                        break; // Torn or corrupted body
+                    }
+                    validLength += 8 + length;
+
+                    DataInputStream entry = new DataInputStream(new ByteArrayInputStream(body));
+                    byte type = entry.readByte();
+                    long seq = entry.readLong();
+                    int lamportTime = entry.readInt();
+                    long millis = entry.readLong();
+                    String stationID = entry.readUTF();
+                    lastSeq = Math.max(lastSeq, seq);
+                    maxLamport = Math.max(maxLamport, lamportTime);
+                    if (seq < replayFrom) {
+                        continue; // Already in the snapshot
+                    }
+                    if (type == PUT) {
+                        LinkedHashMap<String, String> uploaded = readEntries(entry);
+                        LinkedHashMap<String, String> current = entries.get(stationID);
+                        if (current == null) {
+                            entries.put(stationID, uploaded);
+                        } else {
+                            current.putAll(uploaded);
+                        }
+                        Long previous = updated.get(stationID);
+                        updated.put(stationID, (previous == null) ? millis : Math.max(millis, previous + 1));
+                    } else if (type == REMOVE) {
+                        entries.remove(stationID);
+                        updated.remove(stationID);
+                    } else if (type == REPLACE) {
+                        LinkedHashMap<String, String> record = readEntries(entry);
+                        Long previous = updated.get(stationID);
+                        if ((previous == null) || (previous <= millis)) { // Same rule as StationStore.replace
+                            entries.put(stationID, record);
+                            updated.put(stationID, millis);
+                        }
+                    }
+                }
+            }
+            if (validLength < Files.size(file)) {
+                System.out.println("Write-ahead log: cut off an incomplete entry at the end of " + file.getFileName());
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                }
+                if (s != segments.size() - 1) {
+                    System.out.println("Write-ahead log: segments after " + file.getFileName() + " were not replayed");
+                    break;
+                }
+            }
+        }
+
+        ArrayList<StationRecord> records = new ArrayList<StationRecord>();
+        for (Map.Entry<String, LinkedHashMap<String, String>> station : entries.entrySet()) {
+            records.add(new StationRecord(station.getKey(), station.getValue(), updated.get(station.getKey())));
+        }
+        store.restore(records);
+        clock.processEvent(maxLamport); // Local clock continues after every logged event
+        nextSeq = lastSeq + 1;
+        bufferedSeq = lastSeq;
+        syncedSeq = lastSeq;
+        openSegment(nextSeq);
+        return records;
+    }
+
+    // Appends a PUT of a station's entries. Returns its sequence number: call sync(seq) before acknowledging the PUT,
+    // and applied(seq) once it has been applied to the store
+    public long appendPut(String stationID, int lamportTime, long millis, Map<String, String> uploaded) throws IOException {
+        return appendPut(stationID, lamportTime, millis, WeatherRecord.of(uploaded));
+    }
+
+    // Same as above with data already parsed into a WeatherRecord (e.g. by AggregationServer.storePUT)
+    public long appendPut(String stationID, int lamportTime, long millis, WeatherRecord uploaded) throws IOException {
+        return append(PUT, stationID, lamportTime, millis, uploaded);
+    }
+
+    // Appends a station's whole record, which replaces its data (see StationStore.replace). Same rules as appendPut
+    public long appendRecord(StationRecord record, int lamportTime) throws IOException {
+        return append(REPLACE, record.stationID, lamportTime, record.updatedMillis, record.weather);
+    }
+
+    // Appends the removal of a station's data (e.g. expiry). Same rules as appendPut
+    public long appendRemove(String stationID, int lamportTime) throws IOException {
+        return append(REMOVE, stationID, lamportTime, System.currentTimeMillis(), WeatherRecord.EMPTY);
+    }
+
+    // Marks an appended entry as applied to the store (a snapshot no longer needs to replay it)
+    public void applied(long seq) {
+        unapplied.remove(seq);
+    }
+
+    // Blocked until every entry up to seq is on the disk (group commit, see top of file)
+    public void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            while (syncedSeq < seq) {
+                if (!syncing) {
+                    syncing = true; // This thread is the leader
+                    break;
+                }
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Interrupted while waiting for the write-ahead log");
+                }
+            }
+            if (syncedSeq >= seq) {
+                return;
+            }
+        }
+        long target = 0;
+        boolean synced = false;
+        try {
+            FileChannel channel;
+            synchronized (appendLock) {
+                target = drain();
+                channel = segment;
+            }
+            try {
+                channel.force(false);
+                fsyncs.incrementAndGet();
+            } catch (ClosedChannelException cce) {
+                // The segment was rolled in the meantime, which synced it before closing it
+            }
+            synced = true;
+        } finally {
+            synchronized (syncLock) {
+                if (synced) {
+                    syncedSeq = Math.max(syncedSeq, target);
+                }
+                syncing = false;
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    // Blocked until every entry appended so far is on the disk (used by GroupCommit for a whole batch)
+    public void syncAll() throws IOException {
+        long seq;
+        synchronized (appendLock) {
+            seq = bufferedSeq;
+        }
+        sync(seq);
+    }
+
+    // Writes a snapshot of the store and deletes the segments it covers (compaction)
+    public void snapshot() throws IOException {
+        synchronized (snapshotLock) {
+            long replayFrom;
+            synchronized (appendLock) {
+                replayFrom = unapplied.isEmpty() ? nextSeq : unapplied.first();
+                segmentsSinceSnapshot = 0;
+            }
+            int lamportTime = clock.getTime();
+            ArrayList<StationRecord> records = new ArrayList<StationRecord>(store.records());
+
+            Path temp = directory.resolve("snapshot.tmp");
+            try (FileOutputStream file = new FileOutputStream(temp.toFile());
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(replayFrom);
+                out.writeInt(lamportTime);
+                out.writeInt(records.size());
+                for (StationRecord record : records) {
+                    out.writeUTF(record.stationID);
+                    out.writeLong(record.updatedMillis);
+                    writeEntries(out, record.weather);
+                }
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(temp, directory.resolve("snapshot.dat"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            // A segment is covered once the next segment starts at or before replayFrom. The last one is always kept
+            ArrayList<Path> segments = listSegments();
+            for (int i = 0; i < segments.size() - 1; ++i) {
+                if (firstSeq(segments.get(i + 1)) <= replayFrom) {
+                    Files.deleteIfExists(segments.get(i));
+                }
+            }
+        }
+    }
+
+    // Syncs and closes the current segment (server shut down)
+    public void close() throws IOException {
+        synchronized (appendLock) {
+            drain();
+            segment.force(false);
+            segment.close();
+        }
+    }
+
+    private long append(byte type, String stationID, int lamportTime, long millis, WeatherRecord uploaded) throws IOException {
+        ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream(128);
+        DataOutputStream body = new DataOutputStream(bodyBytes);
+        long seq;
+        boolean compact = false;
+        synchronized (appendLock) {
+            seq = nextSeq++;
+            body.writeByte(type);
+            body.writeLong(seq);
+            body.writeInt(lamportTime);
+            body.writeLong(millis);
+            body.writeUTF(stationID);
+            writeEntries(body, uploaded);
+            CRC32 crc = new CRC32();
+            byte[] bytes = bodyBytes.toByteArray();
+            crc.update(bytes);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+            bufferedSeq = seq;
+            unapplied.add(seq);
+            appends.incrementAndGet();
+
+            if (segmentLength + buffer.size() >= segmentSize) { // Segment full: sync it and start the next one
+                long synced = drain();
+                segment.force(false);
+                fsyncs.incrementAndGet();
+                segment.close();
+                openSegment(nextSeq);
+                synchronized (syncLock) {
+                    syncedSeq = Math.max(syncedSeq, synced);
+                    syncLock.notifyAll();
+                }
+                compact = (compactAfterSegments > 0) && (++segmentsSinceSnapshot >= compactAfterSegments);
+            }
+        }
+        if (compact && !compacting) {
+            compacting = true;
+            Thread compaction = new Thread(() -> {
+                try {
+                    snapshot();
+                } catch (IOException ie) {
+                    System.out.println("Write-ahead log compaction failed: " + ie.getMessage());
+                } finally {
+                    compacting = false;
+                }
+            }, "WAL-compaction");
+            compaction.setDaemon(true);
+            compaction.start();
+        }
+        return seq;
+    }
+
+    // Writes the buffered entries to the segment. Caller holds appendLock. Returns the last sequence number written
+    private long drain() throws IOException {
+        if (buffer.size() > 0) {
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                segmentLength += segment.write(bytes);
+            }
+            buffer.reset();
+        }
+        return bufferedSeq;
+    }
+
+    private void openSegment(long firstSeq) throws IOException {
+        segment = FileChannel.open(directory.resolve(String.format("wal-%020d.log", firstSeq)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segmentLength = segment.size();
+    }
+
+    private ArrayList<Path> listSegments() throws IOException {
+        ArrayList<Path> segments = new ArrayList<Path>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> file.getFileName().toString().matches("wal-\\d{20}\\.log")).sorted().forEach(segments::add);
+        }
+        return segments;
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+
+    // Entry count, then type and value of each entry. Also the format of a record streamed to replicas (see Replication)
+    static void writeEntries(DataOutputStream out, WeatherRecord weather) throws IOException {
+        out.writeInt(weather.size());
+        for (int i = 0; i < weather.size(); ++i) {
+            out.writeUTF(weather.type(i));
+            out.writeUTF(weather.value(i));
+        }
+    }
+
+    static LinkedHashMap<String, String> readEntries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; ++i) {
+            entries.put(in.readUTF(), in.readUTF());
+        }
+        return entries;
+    }
+}
@@ -2,12 +2,22 @@ package Client;
 
 import JSONParser.JSONParser;
 import lamport.LamportClock;
+import protocol.Frame;
+import protocol.HashRing;
+import protocol.WireProtocol;
 
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.function.Consumer;
 
 public class GETClient implements Serializable {
     // Provides a universal serialisation ID across all servers/entities
@@ -24,9 +34,24 @@ public class GETClient implements Serializable {
     private ObjectOutputStream output;
     private ObjectInputStream input;
 
+    // Binary wire protocol (see protocol.WireProtocol): used instead of the streams above when enabled and accepted
+    private boolean binaryProtocol = false;
+    private InputStream binaryIn;
+    private OutputStream binaryOut;
+
     private Socket clientSocket;
 
-    private String JSON; // The latest data (in JSON format) received from the Aggregation Server
+    private volatile String JSON; // The latest data (in JSON format) received from the Aggregation Server
+
+    private volatile boolean subscribed = false; // After SUBSCRIBE the connection only receives pushes
+
+    // Cluster (see AggregationServer.Cluster): each node only holds the stations it owns. A GET sent to another node
+    // gets 307 with the owner and the ring, and is sent again to the owner (at most MAX_REDIRECTS times). Knowing the
+    // ring (learned, or setCluster), a GET goes straight to the owner, and bulk GETs / SUBSCRIBE ask every node concerned
+    // A GET for "latest" isn't about one station: the node connected to answers it from its own stations only
+    private static final int MAX_REDIRECTS = 3;
+    private volatile HashRing ring;
+    private final ArrayList<GETClient> nodeClients = new ArrayList<GETClient>(); // Subscriptions to the other nodes
 
     // For testing purposes
     public void setInfo(String url, Integer inputPort, String ID) {
@@ -36,11 +61,53 @@ public class GETClient implements Serializable {
         return;
     }
 
+    // Sets the Aggregation Server to connect to without the Scanner prompts of getInfo (e.g. dashboards using the bulk
+    // GET API below). Without a stationID, GET asks for the latest data
+    public void setServer(String serverName, Integer inputPort) {
+        this.serverName = serverName;
+        this.port = inputPort;
+        this.AS_URL = "https://" + serverName + ":" + inputPort;
+        if (this.stationID == null) {
+            this.stationID = "latest";
+        }
+    }
+
     // For testing purposes
     public ObjectInputStream getInputStream() {
         return this.input;
     }
 
+    // Asks the Aggregation Server for the binary wire protocol when connecting (falls back if it doesn't speak it)
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    // For testing purposes
+    public boolean usesBinaryProtocol() {
+        return this.binaryProtocol;
+    }
+
+    // Nodes of the Aggregation Server cluster (host:port, comma-separated). Set before connecting: the GETClient then
+    // connects to the node that owns its station
+    public void setCluster(String nodes) {
+        this.ring = HashRing.parse(nodes);
+    }
+
+    // For testing purposes
+    public HashRing getRing() {
+        return this.ring;
+    }
+
+    // For testing purposes
+    public int getServerPort() {
+        return this.port;
+    }
+
+    // For testing purposes
+    public int getNodeConnections() {
+        return this.nodeClients.size();
+    }
+
     // Constructor instantiates Lamport Clock
     public GETClient() {
         clock = new LamportClock();
@@ -96,6 +163,19 @@ public class GETClient implements Serializable {
     // No state change when GET message sent, so aggregation server does not update its local clock until it sends back
     // port: the port of the Aggregation Server to connect to
     public void sendGET(Integer port) {
+        sendGET(port, 0);
+    }
+
+    // Same, redirects = times this GET was already sent to another node after a 307
+    private void sendGET(Integer port, int redirects) {
+        if (subscribed) {
+            System.out.println("Error: this connection only receives pushes now (SUBSCRIBE), use another GETClient to GET");
+            return;
+        }
+        if (binaryProtocol) {
+            sendBinaryGET(redirects);
+            return;
+        }
         // Message format:
         // GET /AggregationServer/SERVER_DATA.txt HTTP/1.1
         // Host: AS_URL
@@ -131,6 +211,26 @@ public class GETClient implements Serializable {
                             System.out.println("Error: This request was not recognised");
                             return;
                         }
+                        if (lines[1].equals("503")) { // Server overloaded, the request wasn't run
+                            System.out.println("Error: Aggregation Server is busy, please retry");
+                            return;
+                        }
+                        if (lines[1].equals("307")) { // Cluster: another node owns the station
+                            String location = null;
+                            String cluster = null;
+                            for (int i = 2; i < lines.length; ++i) {
+                                if (lines[i].startsWith("Location: ")) {
+                                    location = lines[i].substring("Location: ".length()).trim();
+                                } else if (lines[i].startsWith("Cluster: ")) {
+                                    cluster = lines[i].substring("Cluster: ".length()).trim();
+                                }
+                            }
+                            clock.processEvent(Integer.parseInt(lines[0]));
+                            if (redirect(location, cluster, redirects)) {
+                                sendGET(this.port, redirects + 1);
+                            }
+                            return;
+                        }
 
                         JSON = "";
                         for (int i = 1; i < lines.length; ++i) { // Ignores first line as it is the timestamp
@@ -158,27 +258,397 @@ public class GETClient implements Serializable {
         }
     }
 
+    // Same as sendGET, using the binary protocol: the requested stationID and the reply's entries are sent as frames
+    public void sendBinaryGET() {
+        sendBinaryGET(0);
+    }
+
+    private void sendBinaryGET(int redirects) {
+        Frame received;
+        try {
+            WireProtocol.writeFrame(binaryOut, new Frame(WireProtocol.OP_GET, clock.getTime(), stationID));
+            clock.updateTime(); // Local time is updated after GET message has been sent
+            received = WireProtocol.readFrame(binaryIn);
+        } catch (IOException ie) {
+            System.out.println("Failed to get data from Aggregation Server: " + ie.getMessage());
+            clock.updateTime(); // Update clock after exception caught
+            return;
+        }
+        if ((received.opcode == WireProtocol.OP_STATUS) && "307".equals(received.getStatus())) { // Another node owns it
+            clock.processEvent(received.lamportTime);
+            if (redirect(received.getLocation(), received.getCluster(), redirects)) {
+                sendBinaryGET(redirects + 1);
+            }
+            return;
+        }
+        if (received.opcode == WireProtocol.OP_STATUS) {
+            if ("204".equals(received.getStatus())) { // No file exists, or it was empty
+                System.out.println("Error: no request data was found");
+            } else if ("503".equals(received.getStatus())) { // Server overloaded, the request wasn't run
+                System.out.println("Error: Aggregation Server is busy, please retry");
+            } else { // 400: the request was not recognised
+                System.out.println("Error: This request was not recognised");
+            }
+            JSON = received.lamportTime + "\n" + received.getStatus(); // Same as the text format's status message
+            return;
+        }
+        String weatherData = "";
+        System.out.println("********************************"); // Text decoration
+        System.out.println("Weather data (uploaded by Content Server " + stationID + "): ");
+        for (Map.Entry<String, String> entry : received.fields.entrySet()) { // Display one entry at a time
+            System.out.println("     " + entry.getKey() + ":" + entry.getValue());
+            weatherData += entry.getKey() + ":" + entry.getValue() + "\n";
+        }
+        System.out.println("********************************"); // Text decoration
+        JSON = new JSONParser().stringToJSON(weatherData); // Kept in JSON, same as the text format
+        clock.processEvent(received.lamportTime); // Tiebreak with the Aggregation Server's timestamp
+    }
+
+    // Handles a 307 status: keeps the ring and connects to the node that owns the station instead
+    // Returns false (with the reason printed) if the GET shouldn't be sent again
+    private boolean redirect(String location, String cluster, int redirects) {
+        HashRing learned = HashRing.parse(cluster);
+        if (learned != null) {
+            ring = learned;
+        }
+        if ((location == null) || (HashRing.portOf(location) < 0) || (redirects >= MAX_REDIRECTS)) {
+            System.out.println("Error: the Aggregation Server cluster couldn't find the station's server");
+            return false;
+        }
+        try {
+            clientSocket.close();
+            setServer(HashRing.hostOf(location), HashRing.portOf(location));
+            connect();
+        } catch (IOException ie) {
+            System.out.println("Failed to connect to Aggregation Server " + location + ": " + ie.getMessage());
+            return false;
+        }
+        System.out.println("GETClient: now reading from " + location);
+        return true;
+    }
+
+    // Bulk GET API: gets many stations with one request and one reply, instead of a GET (and often a socket) per station
+    // Returns stationID -> (type -> value) in the order the server sent them, null if the request failed
+    // Stations without data are left out. Needs a connection (connect() or beginOperation)
+    public LinkedHashMap<String, LinkedHashMap<String, String>> getStations(List<String> stationIDs) {
+        return sendBulkGET(String.join(",", stationIDs));
+    }
+
+    // Every station whose ID starts with prefix, sorted by stationID
+    public LinkedHashMap<String, LinkedHashMap<String, String>> getStationsWithPrefix(String prefix) {
+        return sendBulkGET(prefix + "*");
+    }
+
+    // Every station the Aggregation Server has data for, sorted by stationID
+    public LinkedHashMap<String, LinkedHashMap<String, String>> getAllStations() {
+        return sendBulkGET("all");
+    }
+
+    // Sends a bulk GET and reads its reply (see sendStationsRequest and readStations)
+    // selector = comma-separated station IDs and prefixes (ending in '*'), or "all"
+    public synchronized LinkedHashMap<String, LinkedHashMap<String, String>> sendBulkGET(String selector) {
+        if (subscribed) {
+            System.out.println("Error: this connection only receives pushes now (SUBSCRIBE), use another GETClient to GET");
+            return null;
+        }
+        if ((ring != null) && (ring.getNodes().size() > 1)) {
+            return sendClusterBulkGET(selector);
+        }
+        try {
+            sendStationsRequest("GET", WireProtocol.OP_GET_BULK, selector);
+            return readStations();
+        } catch (IOException | ClassNotFoundException | ParseException e) {
+            System.out.println("Failed to get data from Aggregation Server: " + e.getMessage());
+            clock.updateTime(); // Update clock after exception caught
+            return null;
+        }
+    }
+
+    // Cluster: every node only has the stations it owns, so the bulk GET goes to each node that can have some of them
+    // (the owners of the station IDs, every node for prefixes and "all"), each on a connection of its own, and the
+    // replies are merged in the usual order: station IDs as they were asked for, the stations of a prefix sorted by ID
+    private LinkedHashMap<String, LinkedHashMap<String, String>> sendClusterBulkGET(String selector) {
+        ArrayList<String> items = new ArrayList<String>();
+        LinkedHashMap<String, ArrayList<String>> nodeItems = new LinkedHashMap<String, ArrayList<String>>();
+        for (String item : selector.split(",")) {
+            item = item.trim();
+            items.add(item);
+            if (item.equals("all") || item.endsWith("*")) {
+                for (String node : ring.getNodes()) {
+                    nodeItems.computeIfAbsent(node, n -> new ArrayList<String>()).add(item);
+                }
+            } else {
+                nodeItems.computeIfAbsent(ring.ownerOf(item.replaceAll("CS", "")), n -> new ArrayList<String>()).add(item);
+            }
+        }
+        LinkedHashMap<String, LinkedHashMap<String, String>> replies = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        for (Map.Entry<String, ArrayList<String>> node : nodeItems.entrySet()) {
+            GETClient nodeClient = nodeClient(node.getKey());
+            try {
+                nodeClient.connect();
+                LinkedHashMap<String, LinkedHashMap<String, String>> reply = nodeClient.sendBulkGET(String.join(",", node.getValue()));
+                nodeClient.close();
+                if (reply == null) {
+                    return null;
+                }
+                replies.putAll(reply);
+                clock.processEvent(nodeClient.clock.getTime()); // Tiebreak with what that node sent
+            } catch (IOException ie) {
+                System.out.println("Failed to get data from Aggregation Server " + node.getKey() + ": " + ie.getMessage());
+                return null;
+            }
+        }
+        LinkedHashMap<String, LinkedHashMap<String, String>> stations = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        for (String item : items) {
+            if (item.equals("all") || item.endsWith("*")) {
+                String prefix = item.equals("all") ? "" : item.substring(0, item.length() - 1);
+                ArrayList<String> matches = new ArrayList<String>();
+                for (String stationID : replies.keySet()) {
+                    if (stationID.startsWith(prefix)) {
+                        matches.add(stationID);
+                    }
+                }
+                Collections.sort(matches);
+                for (String stationID : matches) {
+                    stations.putIfAbsent(stationID, replies.get(stationID));
+                }
+            } else if (replies.containsKey(item.replaceAll("CS", ""))) {
+                stations.putIfAbsent(item.replaceAll("CS", ""), replies.get(item.replaceAll("CS", "")));
+            }
+        }
+        JSON = null; // The replies were several arrays
+        return stations;
+    }
+
+    // A GETClient of one node of the cluster, same protocol as this one, not connected yet
+    private GETClient nodeClient(String node) {
+        GETClient nodeClient = new GETClient();
+        nodeClient.setBinaryProtocol(binaryProtocol);
+        nodeClient.setServer(HashRing.hostOf(node), HashRing.portOf(node));
+        return nodeClient;
+    }
+
+    // Subscribes to the selector's stations (as for sendBulkGET, or "latest" for every update): the Aggregation Server
+    // sends their current data, then pushes every update of them as PUTs land, instead of this client polling with GET
+    // listener gets stationID -> data of the current data (before this returns) and of every push after it, on a
+    // background thread. From then on the connection only receives pushes; close() ends the subscription
+    // Returns false if the request failed (e.g. 400: invalid selector)
+    // Cluster: every other node is subscribed to as well, each on a connection of its own (listener then gets pushes
+    // from several threads, one per node)
+    public synchronized boolean subscribe(String selector, Consumer<LinkedHashMap<String, LinkedHashMap<String, String>>> listener) {
+        if ((ring != null) && nodeClients.isEmpty()) {
+            String self = serverName + ":" + port;
+            for (String node : ring.getNodes()) {
+                if (node.equals(self)) {
+                    continue;
+                }
+                GETClient nodeClient = nodeClient(node);
+                try {
+                    nodeClient.connect();
+                } catch (IOException ie) {
+                    System.out.println("Failed to subscribe to Aggregation Server " + node + ": " + ie.getMessage());
+                    closeNodeClients();
+                    return false;
+                }
+                nodeClients.add(nodeClient);
+                if (!nodeClient.subscribe(selector, listener)) {
+                    closeNodeClients();
+                    return false;
+                }
+            }
+        }
+        LinkedHashMap<String, LinkedHashMap<String, String>> current;
+        try {
+            sendStationsRequest("SUBSCRIBE", WireProtocol.OP_SUBSCRIBE, selector);
+            current = readStations();
+        } catch (IOException | ClassNotFoundException | ParseException e) {
+            System.out.println("Failed to subscribe: " + e.getMessage());
+            clock.updateTime(); // Update clock after exception caught
+            closeNodeClients();
+            return false;
+        }
+        if (current == null) {
+            closeNodeClients();
+            return false;
+        }
+        subscribed = true;
+        listener.accept(current);
+        Thread pushReader = new Thread(() -> { // Threaded function (runs in background): reads every push
+            while (!clientSocket.isClosed()) {
+                try {
+                    LinkedHashMap<String, LinkedHashMap<String, String>> pushed = readStations();
+                    if (pushed == null) {
+                        return;
+                    }
+                    listener.accept(pushed);
+                } catch (IOException | ClassNotFoundException | ParseException e) {
+                    System.out.println("Subscription ended: " + e.getMessage());
+                    return;
+                }
+            }
+        });
+        pushReader.setDaemon(true);
+        pushReader.start();
+        return true;
+    }
+
+    // Sends a bulk GET or SUBSCRIBE for the selector's stations
+    // Message format:
+    // timestamp
+    // GET /batch HTTP/1.1 (or SUBSCRIBE /batch HTTP/1.1)
+    // Host: AS_URL
+    // User-Agent: ATOMClient/1/0
+    // Accept: weather/json-array
+    // Stations: selector
+    private void sendStationsRequest(String method, int opcode, String selector) throws IOException {
+        if (binaryProtocol) {
+            WireProtocol.writeFrame(binaryOut, new Frame(opcode, clock.getTime(), selector));
+            clock.updateTime(); // Local time is updated after the message has been sent
+            return;
+        }
+        String request = clock.getTime() + "\n" + method + " /batch HTTP/1.1" + "\n";
+        request += "Host: " + this.AS_URL + "\n";
+        request += "User-Agent: ATOMClient/1/0" + "\n";
+        request += "Accept: weather/json-array" + "\n";
+        request += "Stations: " + selector;
+        output.writeObject(request);
+        output.flush();
+        clock.updateTime(); // Local time is updated after the message has been sent
+    }
+
+    // Reads one reply of stations (a bulk GET's reply or a push): a JSON array of the stations, each with its
+    // stationID as "station", streamed in several messages for large replies (the last one ends the array), or
+    // OP_DATA_BULK frames with --binary. Returns stationID -> data, null if the server sent a status instead (e.g. 400)
+    private LinkedHashMap<String, LinkedHashMap<String, String>> readStations() throws IOException, ClassNotFoundException, ParseException {
+        LinkedHashMap<String, LinkedHashMap<String, String>> stations = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        if (binaryProtocol) {
+            Frame received;
+            do {
+                received = WireProtocol.readFrame(binaryIn);
+                if (received.opcode == WireProtocol.OP_STATUS) { // 400: the selector was not recognised
+                    System.out.println("Error: This request was not recognised (status " + received.getStatus() + ")");
+                    return null;
+                }
+                stations.putAll(received.records);
+            } while (received.hasMore());
+            clock.processEvent(received.lamportTime); // Tiebreak with the Aggregation Server's timestamp
+            return stations;
+        }
+        String first = (String) input.readObject();
+        String[] lines = first.split("\n", 2);
+        if ((lines.length < 2) || !lines[1].startsWith("[")) { // A status instead of data (e.g. 400)
+            System.out.println("Error: This request was not recognised (status " + ((lines.length < 2) ? first : lines[1]) + ")");
+            return null;
+        }
+        StringBuilder array = new StringBuilder(lines[1]);
+        while (array.charAt(array.length() - 1) != ']') { // Only the last message ends the array
+            array.append((String) input.readObject());
+        }
+        JSON = array.toString();
+        for (LinkedHashMap<String, String> entries : new JSONParser().parseArray(array, 0)) {
+            stations.put(entries.remove("station"), entries);
+        }
+        clock.processEvent(Integer.parseInt(lines[0])); // Tiebreak with the Aggregation Server's timestamp
+        return stations;
+    }
+
+    // Binary protocol handshake: offers the protocol version, then sends the timestamp and stationID in a HELLO frame
+    // Returns false if the server answered with anything else (e.g. an ObjectOutputStream header)
+    private boolean startBinaryProtocol() throws IOException {
+        binaryIn = new BufferedInputStream(clientSocket.getInputStream());
+        binaryOut = new BufferedOutputStream(clientSocket.getOutputStream());
+        if (WireProtocol.clientHandshake(binaryIn, binaryOut) < 1) {
+            return false;
+        }
+        clock.updateTime(); // *** All sockets instantiated = 1 event
+        WireProtocol.writeFrame(binaryOut, new Frame(WireProtocol.OP_HELLO, clock.getTime(), "GETClient" + this.stationID));
+        return true;
+    }
+
+    // Connects to the Aggregation Server (setServer/setInfo/getInfo first) and sends the timestamp and ID, after which
+    // GETs can be sent. Falls back to Java serialisation if the server doesn't speak the binary protocol
+    public void connect() throws IOException {
+        if ((ring != null) && (stationID != null) && !stationID.equals("latest")) { // Cluster: the station's owner
+            String owner = ring.ownerOf(stationID.replaceAll("CS", "")); // Stored (and placed) without the CS prefix
+            setServer(HashRing.hostOf(owner), HashRing.portOf(owner));
+        }
+        clientSocket = new Socket(serverName, port); // Send the socket
+        if (binaryProtocol && !startBinaryProtocol()) { // Older server: reconnect and use Java serialisation
+            System.out.println("Aggregation Server doesn't support the binary protocol - using Java serialisation");
+            binaryProtocol = false;
+            clientSocket.close();
+            clientSocket = new Socket(serverName, port);
+        }
+        if (!binaryProtocol) {
+            output = new ObjectOutputStream(clientSocket.getOutputStream());
+            input = new ObjectInputStream(clientSocket.getInputStream());
+            clock.updateTime(); // *** All sockets instantiated = 1 event
+            output.writeObject(clock.getTime() + "\n" + "GETClient" + this.stationID); // Sends the timestamp and stationID
+            output.flush();
+        }
+    }
+
+    // Ends the connection to the Aggregation Server
+    public void close() throws IOException {
+        if (clientSocket != null) {
+            clientSocket.close();
+        }
+        closeNodeClients();
+    }
+
+    // Ends the connections to the other nodes of a cluster (e.g. their subscriptions, when this node's failed)
+    private void closeNodeClients() {
+        for (GETClient nodeClient : nodeClients) {
+            try {
+                nodeClient.close();
+            } catch (IOException ie) {
+                System.out.println("Failed to close the connection to another node: " + ie.getMessage());
+            }
+        }
+        nodeClients.clear();
+    }
+
+    // Prints the stations of a bulk GET (typed as GET followed by station IDs, prefixes* or all)
+    private void printStations(String selector) {
+        LinkedHashMap<String, LinkedHashMap<String, String>> stations = sendBulkGET(selector);
+        if (stations != null) {
+            printStations(stations);
+        }
+    }
+
+    // Prints every station of a bulk GET's reply or a push
+    private static void printStations(LinkedHashMap<String, LinkedHashMap<String, String>> stations) {
+        if (stations.isEmpty()) {
+            System.out.println("Error: no request data was found");
+            return;
+        }
+        for (Map.Entry<String, LinkedHashMap<String, String>> station : stations.entrySet()) {
+            System.out.println("********************************"); // Text decoration
+            System.out.println("Weather data (uploaded by Content Server " + station.getKey() + "): ");
+            for (Map.Entry<String, String> entry : station.getValue().entrySet()) { // Display one entry at a time
+                System.out.println("     " + entry.getKey() + ":" + entry.getValue());
+            }
+        }
+        System.out.println("********************************"); // Text decoration
+    }
+
     // Main GETClient operations
     // If socket connection is successful, it stays in a loop to scan for GET or END input from user
     // GET executes GET request using the stationID specified before this function was called
+    // GET followed by station IDs, prefixes (e.g. 45*) or all, comma-separated, executes a bulk GET for them instead
+    // SUBSCRIBE followed by the same (or latest) prints their data now and every update of them from then on
     // END terminates the GETClient program, ending the socket connection
     // 10 retries on socket connection error or stream error
     public void beginOperation() {
         int attempts = 0;
         while (attempts != 11) { // Retries on connection or stream errors (Limit: 10 attempts)
             try {
-                clientSocket = new Socket(serverName, port); // Send the socket
+                connect();
                 if (this.stationID.equals("latest")) { // If requesting latest data, let the user know in terminal
                     System.out.println("****************\n" + "GETClient will read the latest data" + "\n****************\n");
                 } else {
                     System.out.println("****************\n" + "GETClient will read from Content Server " + this.stationID + "\n****************\n");
                 }
-
-                output = new ObjectOutputStream(clientSocket.getOutputStream());
-                input = new ObjectInputStream(clientSocket.getInputStream());
-                clock.updateTime(); // *** All sockets instantiated = 1 event
-                output.writeObject(clock.getTime() + "\n" + "GETClient" + this.stationID); // Sends the timestamp and stationID
-                output.flush();
                 System.out.println("GETClient: Connected to the weather server!");
 
                 Scanner scanner = new Scanner(System.in);
@@ -187,6 +657,10 @@ public class GETClient implements Serializable {
                     currLine = scanner.nextLine();
                     if (currLine.equals("GET")) {
                         sendGET(port);
+                    } else if (currLine.startsWith("GET ")) {
+                        printStations(currLine.substring(4).trim());
+                    } else if (currLine.startsWith("SUBSCRIBE ")) {
+                        subscribe(currLine.substring("SUBSCRIBE ".length()).trim(), GETClient::printStations);
                     } else if (currLine.equals("END")) {
                         clientSocket.close();
                         return;
@@ -211,8 +685,17 @@ public class GETClient implements Serializable {
         }
     }
 
+    // Startup options: --binary = use the binary wire protocol
+    // --cluster=HOST:PORT,... = nodes of an Aggregation Server cluster, GETs go to the node that owns the station
     public static void main(String[] args) {
         GETClient client = new GETClient();
+        for (String arg : args) {
+            if (arg.equals("--binary")) {
+                client.setBinaryProtocol(true);
+            } else if (arg.startsWith("--cluster=")) {
+                client.setCluster(arg.substring("--cluster=".length()));
+            }
+        }
         client.getInfo();
         client.beginOperation();
     }
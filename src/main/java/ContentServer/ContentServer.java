@@ -1,17 +1,28 @@
 package ContentServer;
 
 import JSONParser.JSONParser;
+import JSONParser.JSONReader;
+import JSONParser.JSONWriter;
 import lamport.LamportClock;
+import protocol.Frame;
+import protocol.HashRing;
+import protocol.WireProtocol;
 
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ContentServer implements Serializable {
     // Provides a universal serialisation ID across all servers/entities
@@ -27,6 +38,64 @@ public class ContentServer implements Serializable {
     private ObjectOutputStream outstream;
     private ObjectInputStream reader;
 
+    // Binary wire protocol (see protocol.WireProtocol): used instead of the streams above when enabled and accepted
+    private boolean binaryProtocol = false;
+    private InputStream binaryIn;
+    private OutputStream binaryOut;
+
+    private volatile String lastStatus; // Status code of the last PUT (e.g. "201")
+
+    // Delta PUTs: once the Aggregation Server has acknowledged an upload with the station's version, later PUTs only
+    // send the entries that changed since, based on that version (see AggregationServer.storePUT)
+    private boolean deltaPuts = true;
+    private LinkedHashMap<String, String> lastAcked; // Entries of the last acknowledged upload, null = none
+    private long lastVersion = -1; // Station's version after that upload, -1 = send everything
+    private int lastPutBytes; // Size of the last PUT message sent
+
+    // Pipelining: PUTs are tagged with a request ID and sent without waiting for the previous PUT's status, up to
+    // pipelineDepth at once. The ack reader thread reads the statuses and matches each one to its PUT
+    // inFlight (in send order), nextRequestID and the delta fields above are guarded by this Content Server's lock
+    private int pipelineDepth = 32;
+    private long nextRequestID = 1;
+    private final LinkedHashMap<Long, PendingPut> inFlight = new LinkedHashMap<Long, PendingPut>();
+    private final HashMap<Long, LinkedHashMap<String, String>> batchStatuses = new HashMap<Long, LinkedHashMap<String, String>>();
+    private Thread ackReader;
+    // Writing to the connection (and switching it, see redirect) holds sendLock, not this Content Server's lock: the ack
+    // reader only takes the lock to look at inFlight, so it never stops reading statuses while a write is stuck
+    private final Object sendLock = new Object();
+
+    // Overload: a PUT the server refused with 503 (see AggregationServer.admit) is sent again after a backoff that
+    // doubles with every retry (RETRY_BASE_MILLIS, at most RETRY_CAP_MILLIS), up to maxRetries times
+    private static final long RETRY_BASE_MILLIS = 50;
+    private static final long RETRY_CAP_MILLIS = 2000;
+    private int maxRetries = 6;
+    private long overloadRetries = 0; // Guarded by this Content Server's lock
+
+    // Cluster (see AggregationServer.Cluster): a PUT sent to a node that doesn't own this station gets 307 with the owner
+    // and the ring. The Content Server then connects to the owner and sends its waiting PUTs there, at most
+    // MAX_REDIRECTS times each. Knowing the ring (learned, or setCluster), it connects to the owner straight away
+    private static final int MAX_REDIRECTS = 3;
+    private volatile HashRing ring;
+    private long redirects = 0; // Guarded by this Content Server's lock
+
+    // A PUT waiting for its status: the entries it sent (all of them, for a delta too) and whether it was a delta
+    // Batch PUTs (see sendBatchPUT) aren't this station's data: their status only goes to batchStatuses, and their
+    // records are kept in case the batch has to be sent again
+    private static class PendingPut {
+        LinkedHashMap<String, String> entries;
+        boolean delta;
+        final boolean batch;
+        Map<String, ? extends Map<String, String>> records;
+        int attempts = 0; // Retries after a 503 so far
+        int redirects = 0; // Times sent to another node after a 307
+
+        PendingPut(LinkedHashMap<String, String> entries, boolean delta, boolean batch) {
+            this.entries = entries;
+            this.delta = delta;
+            this.batch = batch;
+        }
+    }
+
     private String serverName;
     private Integer port;
     private String HOST;
@@ -112,6 +181,67 @@ public class ContentServer implements Serializable {
         this.HOST = inputHost;
     }
 
+    // Asks the Aggregation Server for the binary wire protocol when connecting (falls back if it doesn't speak it)
+    public void setBinaryProtocol(boolean binaryProtocol) {
+        this.binaryProtocol = binaryProtocol;
+    }
+
+    // Sends only the changed entries once the server has acknowledged a whole upload (default). false = always send all
+    public void setDeltaPuts(boolean deltaPuts) {
+        this.deltaPuts = deltaPuts;
+    }
+
+    // Most PUTs sent without waiting for their status (see pipelinePUT), 1 = one PUT at a time
+    public void setPipelineDepth(int depth) {
+        this.pipelineDepth = Math.max(1, depth);
+    }
+
+    // Most times a PUT refused with 503 (server overloaded) is sent again before giving up, 0 = never retried
+    public void setMaxRetries(int retries) {
+        this.maxRetries = Math.max(0, retries);
+    }
+
+    // For testing purposes: PUTs sent again after a 503 so far
+    public synchronized long getOverloadRetries() {
+        return this.overloadRetries;
+    }
+
+    // Nodes of the Aggregation Server cluster (host:port, comma-separated): connects to the node that owns this station
+    // instead of the server set with setServer / getParameters
+    public void setCluster(String nodes) {
+        this.ring = HashRing.parse(nodes);
+    }
+
+    // For testing purposes
+    public HashRing getRing() {
+        return this.ring;
+    }
+
+    // For testing purposes: PUTs sent to another node after a 307 so far
+    public synchronized long getRedirects() {
+        return this.redirects;
+    }
+
+    // For testing purposes
+    public String getLastStatus() {
+        return this.lastStatus;
+    }
+
+    // For testing purposes: bytes of the last PUT message (serialised String's UTF-8 text, or the whole binary frame)
+    public int getLastPutBytes() {
+        return this.lastPutBytes;
+    }
+
+    // For testing purposes
+    public long getLastVersion() {
+        return this.lastVersion;
+    }
+
+    // For testing purposes
+    public boolean usesBinaryProtocol() {
+        return this.binaryProtocol;
+    }
+
     // For testing purposes
     public ObjectOutputStream getOutputStream() {
         return this.outstream;
@@ -133,7 +263,20 @@ public class ContentServer implements Serializable {
         fileData = new HashMap<String, String>();
     }
 
+    // For testing purposes: lets several Content Servers run in one process, each with its own stationID
+    public ContentServer(String stationID) {
+        this.stationID = stationID;
+
+        clock = new LamportClock();
+        fileData = new HashMap<String, String>();
+    }
+
     public void beginOperation() {
+        if (ring != null) { // Cluster: straight to the node that owns this station
+            String owner = ring.ownerOf(this.stationID);
+            serverName = HashRing.hostOf(owner);
+            port = HashRing.portOf(owner);
+        }
         int attempts = 0;
         while (attempts != 11) { // Retry on error loop (Limit: 10 attempts)
             try {
@@ -156,11 +299,7 @@ public class ContentServer implements Serializable {
         }
 
         try {
-            outstream = new ObjectOutputStream(csSocket.getOutputStream());
-            reader = new ObjectInputStream(csSocket.getInputStream()); // initialise inputstream as well here
-            clock.updateTime(); // *** Internal state change: sockets updated (1 event)
-            outstream.writeObject(clock.getTime() + "\n" + "CS" + this.stationID); // send timestamp and stationID
-            outstream.flush();
+            openConnection();
 
             Scanner scanner = new Scanner(System.in); // scan terminal for user PUT requests
             String currLine = "";
@@ -191,92 +330,602 @@ public class ContentServer implements Serializable {
         }
     }
 
+    // Handshake on csSocket: the binary protocol if enabled (falls back to Java serialisation on an older server), or the
+    // object streams, then the timestamp and stationID
+    private void openConnection() throws IOException {
+        if (binaryProtocol && !startBinaryProtocol()) { // Older server: reconnect and use Java serialisation
+            System.out.println("Aggregation Server doesn't support the binary protocol - using Java serialisation");
+            binaryProtocol = false;
+            csSocket.close();
+            csSocket = new Socket(serverName, port);
+        }
+        if (!binaryProtocol) {
+            outstream = new ObjectOutputStream(csSocket.getOutputStream());
+            reader = new ObjectInputStream(csSocket.getInputStream()); // initialise inputstream as well here
+            clock.updateTime(); // *** Internal state change: sockets updated (1 event)
+            outstream.writeObject(clock.getTime() + "\n" + "CS" + this.stationID); // send timestamp and stationID
+            outstream.flush();
+        }
+    }
+
+    // Binary protocol handshake: offers the protocol version, then sends the timestamp and stationID in a HELLO frame
+    // Returns false if the server answered with anything else (e.g. an ObjectOutputStream header)
+    private boolean startBinaryProtocol() throws IOException {
+        binaryIn = new BufferedInputStream(csSocket.getInputStream());
+        binaryOut = new BufferedOutputStream(csSocket.getOutputStream());
+        if (WireProtocol.clientHandshake(binaryIn, binaryOut) < 1) {
+            return false;
+        }
+        clock.updateTime(); // *** Internal state change: sockets updated (1 event)
+        WireProtocol.writeFrame(binaryOut, new Frame(WireProtocol.OP_HELLO, clock.getTime(), "CS" + this.stationID));
+        return true;
+    }
+
     // Sends the PUT message to the socket the server is connected to (Aggregation Server)
     // Retrieves the entry file, parses it to JSON String, serialises it and sends to server,
     // and waits for confirmation that the data uploaded successfully.
+    // After an acknowledged upload, only the entries that changed since are sent (delta PUT, see changedEntries)
     public void sendPUT() {
-        JSONParser jp = new JSONParser(); // Custom JSON Parser (see JSONParser folder)
-        jp.textToJSON(inputFileLoc,  fileFolder + "weather.json"); // Parse the entry file to local weather.json file
-        Path path = Paths.get(fileFolder + "weather.json");
-        String PUT = "";
+        long requestID = pipelinePUT();
+        if (requestID >= 0) {
+            awaitAck(requestID);
+        }
+    }
+
+    // Sends a PUT without waiting for its status, so several PUTs can be on their way at once (pipelining)
+    // Each PUT is tagged with a request ID, and the ack reader thread matches every status to its PUT
+    // Blocks while pipelineDepth PUTs are already waiting for their status. Returns the request ID, -1 if not sent
+    public synchronized long pipelinePUT() {
+        if (!awaitWindow()) {
+            return -1;
+        }
+        LinkedHashMap<String, String> entries = readEntries();
+        // A delta is based on the last acknowledged version, which is only known when no other PUT is on its way
+        LinkedHashMap<String, String> changed = inFlight.isEmpty() ? changedEntries(entries) : null; // null = send all
+        long requestID = nextRequestID++;
+        if (!writePUT(requestID, entries, changed)) {
+            return -1;
+        }
+        inFlight.put(requestID, new PendingPut(entries, changed != null, false));
+        startAckReader();
+        return requestID;
+    }
+
+    // Batch PUT: many stations' data in one message, each with its own stationID (e.g. a gateway in front of several
+    // physical stations, all on this one connection). records = stationID -> (type -> value)
+    // Blocked until the server has stored (and made durable) the batch. Returns stationID -> status code
+    // (201/200 stored, 500 invalid data, 204 no data, 400 invalid stationID), empty if the batch couldn't be sent
+    public LinkedHashMap<String, String> sendBatchPUT(Map<String, ? extends Map<String, String>> records) {
+        long requestID;
+        synchronized (this) {
+            if (!awaitWindow()) {
+                return new LinkedHashMap<String, String>();
+            }
+            requestID = nextRequestID++;
+            if (!writeBatchPUT(requestID, records)) {
+                return new LinkedHashMap<String, String>();
+            }
+            PendingPut batch = new PendingPut(null, false, true);
+            batch.records = records;
+            inFlight.put(requestID, batch);
+            startAckReader();
+        }
+        awaitAck(requestID);
+        synchronized (this) {
+            LinkedHashMap<String, String> statuses = batchStatuses.remove(requestID);
+            return (statuses == null) ? new LinkedHashMap<String, String>() : statuses;
+        }
+    }
+
+    // Blocked (lock released) while pipelineDepth PUTs are waiting for their status. false if interrupted
+    private synchronized boolean awaitWindow() {
+        try {
+            while (inFlight.size() >= pipelineDepth) {
+                wait(); // Woken up by the ack reader
+            }
+            return true;
+        } catch (InterruptedException ie) {
+            System.out.println("Interrupted while waiting to PUT: " + ie.getMessage());
+            return false;
+        }
+    }
+
+    // Writes one batch PUT message. Text: Content-Type weather/json-batch, the body is one JSON object of stationID ->
+    // weather data object. Binary: OP_PUT_BATCH frame with stationID/type fields. Returns false if nothing was sent
+    private boolean writeBatchPUT(long requestID, Map<String, ? extends Map<String, String>> records) {
+        synchronized (sendLock) {
+            try {
+                clock.updateTime();
+                if (binaryProtocol) {
+                    Frame PUT = new Frame(WireProtocol.OP_PUT_BATCH, clock.getTime(), "CS" + this.stationID);
+                    PUT.requestID = Long.toString(requestID);
+                    for (Map.Entry<String, ? extends Map<String, String>> record : records.entrySet()) {
+                        PUT.putRecord(record.getKey(), record.getValue());
+                    }
+                    byte[] encoded = WireProtocol.encode(PUT);
+                    binaryOut.write(encoded);
+                    binaryOut.flush();
+                    lastPutBytes = encoded.length;
+                    return true;
+                }
+                StringBuilder json = new StringBuilder();
+                JSONWriter batch = new JSONWriter(json).beginObject();
+                for (Map.Entry<String, ? extends Map<String, String>> record : records.entrySet()) {
+                    batch.name(record.getKey());
+                    JSONWriter writer = new JSONWriter(json).beginObject();
+                    for (Map.Entry<String, String> entry : record.getValue().entrySet()) {
+                        writer.field(entry.getKey(), entry.getValue());
+                    }
+                    writer.endObject();
+                }
+                batch.endObject();
+                String PUT = clock.getTime() + "\n"; // Timestamp at the top of the message
+                PUT += "PUT /batch HTTP/1.1" + "\n";
+                PUT += "Host: " + HOST + "\n";
+                PUT += "User-Agent: ATOMClient/1/0" + "\n";
+                PUT += "Content-Type: weather/json-batch" + "\n";
+                PUT += "Content-Length: " + json.toString().lines().count() + "\n";
+                PUT += "Request-ID: " + requestID + "\n" + " " + "\n";
+                PUT += json;
+                outstream.writeObject(PUT); // Send entire PUT message through the stream (serialised)
+                outstream.flush();
+                lastPutBytes = PUT.getBytes(StandardCharsets.UTF_8).length;
+                return true;
+            } catch (IOException ie) {
+                System.out.println("Failed to send batch PUT message to Aggregation Server: " + ie.getMessage());
+                return false;
+            }
+        }
+    }
+
+    // Blocked until the PUT with this request ID has its status (or the connection ended)
+    public synchronized void awaitAck(long requestID) {
         try {
-            if (Files.exists(path) && (Files.size(path) > 0)) {
-                long length = ((Files.lines(Paths.get(path.toUri())).count()));
+            while (inFlight.containsKey(requestID)) {
+                wait();
+            }
+        } catch (InterruptedException ie) {
+            System.out.println("Interrupted while waiting for a status: " + ie.getMessage());
+        }
+    }
+
+    // Blocked until every PUT sent has its status, at most timeoutMillis. Returns false if some are still waiting
+    public synchronized boolean awaitAcks(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            long remaining;
+            while (!inFlight.isEmpty() && ((remaining = deadline - System.currentTimeMillis()) > 0)) {
+                wait(remaining);
+            }
+        } catch (InterruptedException ie) {
+            System.out.println("Interrupted while waiting for statuses: " + ie.getMessage());
+        }
+        return inFlight.isEmpty();
+    }
+
+    // Writes one PUT message, tagged with requestID: the changed entries as a delta, or every entry if changed = null
+    // Text: the entries (or the changed ones) straight to JSON, also kept in weather.json if whole, Request-ID header
+    // Binary: the entries go straight into the frame (no JSON step), request ID and base version in the frame's header
+    // Returns false if nothing was sent
+    private boolean writePUT(long requestID, LinkedHashMap<String, String> entries, LinkedHashMap<String, String> changed) {
+        synchronized (sendLock) {
+            if (binaryProtocol) {
+                if (entries == null) {
+                    System.out.println("Parsing Error: invalid entry in " + inputFileLoc);
+                    clock.updateTime();
+                    return false;
+                }
+                Frame PUT = new Frame((changed != null) ? WireProtocol.OP_PUT_DELTA : WireProtocol.OP_PUT, 0, "CS" + this.stationID);
+                PUT.requestID = Long.toString(requestID);
+                if (changed != null) {
+                    PUT.baseVersion = lastVersion;
+                }
+                PUT.fields.putAll((changed != null) ? changed : entries);
+                try {
+                    clock.updateTime();
+                    PUT.lamportTime = clock.getTime(); // Timestamp travels in the frame header
+                    byte[] encoded = WireProtocol.encode(PUT);
+                    binaryOut.write(encoded);
+                    binaryOut.flush();
+                    lastPutBytes = encoded.length;
+                    return true;
+                } catch (IOException ie) {
+                    System.out.println("Failed to send PUT message to Aggregation Server: " + ie.getMessage());
+                    System.out.println("Please PUT again"); // Lets the user decide if they wish to retry
+                    return false;
+                }
+            }
+
+            String PUT = "";
+            try {
+                String body;
+                String contentType = "weather/json";
+                if ((changed == null) && (entries == null)) {
+                    System.out.println("Parsing Error: invalid entry in " + inputFileLoc);
+                    clock.updateTime();
+                    return false;
+                }
+                // Straight to JSON from the entries kept for this PUT, so a retry sends what the PUT was recorded with
+                StringBuilder json = new StringBuilder();
+                JSONWriter writer = new JSONWriter(json).beginObject();
+                for (Map.Entry<String, String> entry : ((changed != null) ? changed : entries).entrySet()) {
+                    writer.field(entry.getKey(), entry.getValue());
+                }
+                writer.endObject();
+                body = json.toString();
+                if (changed != null) {
+                    contentType += "; base-version=" + lastVersion; // Version the changes apply to
+                } else {
+                    Files.writeString(Paths.get(fileFolder + "weather.json"), body); // weather.json: the last whole upload
+                }
+                long length = body.lines().count();
                 PUT = "PUT /" + fileFolder + "/weather.json HTTP/1.1" + "\n";
                 PUT += "Host: " + HOST + "\n";
                 PUT += "User-Agent: ATOMClient/1/0" + "\n";
-                PUT += "Content-Type: weather/json" + "\n"; // stationID
-                PUT += "Content-Length: " + length + "\n" + " " + "\n";
-                PUT += (Files.readString(path)); // Copies the JSON file over
-            } else {
-                System.out.println("Error - local weather.json couldn't be retrieved.");
+                PUT += "Content-Type: " + contentType + "\n"; // stationID
+                PUT += "Content-Length: " + length + "\n";
+                PUT += "Request-ID: " + requestID + "\n" + " " + "\n";
+                PUT += body;
+            } catch (IOException ie) {
+                System.out.println("Couldn't write local JSON file: " + ie.getMessage());
                 clock.updateTime();
-                return;
+                return false;
+            }
+
+            try {
+                clock.updateTime();
+                PUT = (clock.getTime() + "\n" + PUT); // Add the timestamp to top of the message
+                outstream.writeObject(PUT); // Send entire PUT message through the stream (serialised)
+                outstream.flush();
+                lastPutBytes = PUT.getBytes(StandardCharsets.UTF_8).length;
+                return true;
+            } catch (IOException ie) {
+                System.out.println("Failed to send PUT message to Aggregation Server: " + ie.getMessage());
+                System.out.println("Please PUT again"); // Lets the user decide if they wish to retry
+                return false;
             }
-        } catch (IOException ie) {
-            System.out.println("Couldn't read local JSON file: " + ie.getMessage());
-            clock.updateTime();
-            return;
         }
+    }
 
-        try {
-            clock.updateTime();
-            PUT = (clock.getTime() + "\n" + PUT); // Add the timestamp to top of the message
-            outstream.writeObject(PUT); // Send entire PUT message through the stream (serialised)
-            outstream.flush();
-        } catch (IOException ie) {
-            System.out.println("Failed to send PUT message to Aggregation Server: " + ie.getMessage());
-            System.out.println("Please PUT again"); // Lets the user decide if they wish to retry
+    // Threaded function (runs in background): reads the statuses of PUTs as they arrive. Started by the first PUT,
+    // ends with the connection (every PUT still waiting is then given up on)
+    private synchronized void startAckReader() {
+        if (ackReader != null) {
             return;
         }
+        boolean binary = binaryProtocol; // This connection's streams: after a redirect, a new reader reads the new ones
+        InputStream in = binaryIn;
+        ObjectInputStream objectIn = reader;
+        ackReader = new Thread(() -> {
+            while (true) {
+                try {
+                    if (binary) {
+                        Frame received = WireProtocol.readFrame(in);
+                        ackReceived(received.getStatus(), received.lamportTime, received.getVersion(),
+                                received.getRequestID(), received.getStationStatuses(), received.getLocation(),
+                                received.getCluster());
+                        continue;
+                    }
+                    String received = (String) objectIn.readObject();
+                    if ((received == null) || received.isEmpty()) {
+                        continue;
+                    }
+                    LinkedHashMap<String, String> stationStatuses = new LinkedHashMap<String, String>();
+                    int json = received.indexOf("\n{"); // Batch PUT status: stationID -> status code after the lines
+                    if (json >= 0) {
+                        stationStatuses = new JSONReader(received, json + 1, received.length()).readObject();
+                        received = received.substring(0, json);
+                    }
+                    String[] status = received.split("\\r?\\n"); // Time, status code, then Version / Request-ID lines
+                    long version = -1;
+                    String requestID = null;
+                    String location = null;
+                    String cluster = null;
+                    for (int i = 2; i < status.length; ++i) {
+                        String[] header = status[i].split(":", 2);
+                        if ((header.length == 2) && header[0].trim().equals("Version")) {
+                            version = Long.parseLong(header[1].trim());
+                        } else if ((header.length == 2) && header[0].trim().equals("Request-ID")) {
+                            requestID = header[1].trim();
+                        } else if ((header.length == 2) && header[0].trim().equals("Location")) {
+                            location = header[1].trim();
+                        } else if ((header.length == 2) && header[0].trim().equals("Cluster")) {
+                            cluster = header[1].trim();
+                        }
+                    }
+                    ackReceived(status[1], Integer.parseInt(status[0]), version, requestID, stationStatuses, location,
+                            cluster); // status[0] = AS local time
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException | ParseException e) {
+                    System.out.println("Unidentifiable response from the aggregation server");
+                } catch (IOException | ClassNotFoundException e) {
+                    if ("invalid type code: AC".equals(e.getMessage())) { // For handling potential stream errors due to empty message
+                        System.out.println(e.getMessage());
+                        clock.updateTime();
+                        continue;
+                    }
+                    synchronized (this) {
+                        clock.updateTime();
+                        if (ackReader != Thread.currentThread()) { // Connection left for another node (redirect)
+                            return;
+                        }
+                        inFlight.clear(); // No status will come for these anymore
+                        ackReader = null;
+                        notifyAll();
+                    }
+                    return;
+                }
+            }
+        }, "AckReader-" + stationID);
+        ackReader.setDaemon(true);
+        ackReader.start();
+    }
 
-        String received = "";
-        while (true) { // While loop checks for confirmation that PUT succeeded
+    // Handles the status of a PUT: finds the PUT by its request ID (the oldest one if the server sent none), keeps
+    // what the server now holds, and sends a refused delta again whole, under the same request ID
+    // stationStatuses = stationID -> status code of a batch PUT (empty for others)
+    // location, cluster = owner and node list of a 307 status (null for others)
+    // The lock is only held to look at inFlight: sending again and connecting to another node happen after it
+    private void ackReceived(String status, int receivedTime, long version, String requestID,
+                             LinkedHashMap<String, String> stationStatuses, String location, String cluster) {
+        long key;
+        PendingPut put;
+        boolean redirecting = false;
+        synchronized (this) {
+            handleStatus(status, receivedTime);
+            Long found = null;
             try {
-                if (((received = (String) reader.readObject()) != null) && !(received.isEmpty())) {
-                    String[] status = received.split(System.lineSeparator());
-                    int receivedTime = Integer.parseInt(status[0]); // receivedTime = Aggregation Server local time
-                    if (status[1].equals("500")) { // Check status message received
-                        System.out.println("500 - Internal server error" + "\n"); // Content doesn't make sense
-                        clock.processEvent(receivedTime);
-                        return;
-                    } else if (status[1].equals("204")) { // 204 if this server sent empty content
-                        System.out.println("204 - No content was received" + "\n");
-                        clock.processEvent(receivedTime);
-                        return;
-                    } else if (status[1].equals("400")) { // Some other status
-                        System.out.println("400");
-                        clock.processEvent(receivedTime);
-                        return;
-                    } else if (status[1].equals("201")) { // New file was created
-                        System.out.println("201 - HTTP_CREATED" + "\n");
-                        clock.processEvent(receivedTime);
-                        return;
-                    } else if (status[1].equals("200")) { // Standard successful upload
-                        System.out.println("200 - Request successful" + "\n");
-                        clock.processEvent(receivedTime);
-                        return;
-                    } else { // Any other message sent back is not recognised
-                        System.out.println("Unidentifiable response from the aggregation server");
-                        clock.processEvent(receivedTime);
-                        return;
-                    }
+                found = (requestID != null) ? Long.valueOf(requestID) : null;
+            } catch (NumberFormatException nfe) {
+                System.out.println("Status for an unknown request: " + requestID);
+            }
+            if ((found == null) && (requestID == null) && !inFlight.isEmpty()) {
+                found = inFlight.keySet().iterator().next(); // Server doesn't tag statuses: they come back in order
+            }
+            put = (found == null) ? null : inFlight.get(found);
+            if (put == null) {
+                return;
+            }
+            key = found;
+            if ("503".equals(status) && retryLater(key, put)) {
+                return; // Still waiting, for the retry's status
+            }
+            if ("307".equals(status)) {
+                redirecting = startRedirect(put, location, cluster);
+            } else if (!put.batch && acknowledged(status, version, put.entries, put.delta)) {
+                put.entries = readEntries();
+                put.delta = false;
+            } else {
+                if (put.batch) {
+                    batchStatuses.put(key, stationStatuses);
                 }
-            } catch (IOException | ClassNotFoundException e) {
-                if (e.getMessage().equals("invalid type code: AC")) { // For handling potential stream errors due to empty message
-                    System.out.println(e.getMessage());
-                    clock.updateTime();
-                    continue;
-                } else {
-                    clock.updateTime();
+                inFlight.remove(key);
+                notifyAll();
+                return;
+            }
+        }
+        if (redirecting ? redirect(key, location) : writePUT(key, put.entries, null)) {
+            return; // Still waiting, for the owner's status or now for the whole upload's status
+        }
+        synchronized (this) {
+            if (put.batch) {
+                batchStatuses.put(key, stationStatuses);
+            }
+            inFlight.remove(key);
+            notifyAll();
+        }
+    }
+
+    // Sends a PUT the server refused with 503 again, under the same request ID, once a jittered backoff has passed:
+    // half the backoff plus a random part of the other half, so Content Servers refused at the same moment don't all
+    // come back at the same moment too. Station data is sent whole, read from the entry file again (never older than
+    // what was refused), a batch sends the same records. Returns false (given up) once maxRetries retries were made
+    private boolean retryLater(long key, PendingPut put) {
+        if (put.attempts >= maxRetries) {
+            System.out.println("Aggregation Server still overloaded, PUT given up after " + put.attempts + " retries");
+            return false;
+        }
+        long backoff = Math.min(RETRY_CAP_MILLIS, RETRY_BASE_MILLIS << put.attempts);
+        long delay = (backoff / 2) + ThreadLocalRandom.current().nextLong((backoff / 2) + 1);
+        put.attempts++;
+        overloadRetries++;
+        Thread retry = new Thread(() -> {
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException ie) {
+                System.out.println("Interrupted while waiting to retry a PUT: " + ie.getMessage());
+            }
+            synchronized (this) {
+                if (inFlight.get(key) != put) { // Connection ended meanwhile
                     return;
                 }
+                if (!put.batch) {
+                    put.entries = readEntries();
+                    put.delta = false;
+                }
+            }
+            if (!(put.batch ? writeBatchPUT(key, put.records) : writePUT(key, put.entries, null))) {
+                synchronized (this) {
+                    inFlight.remove(key);
+                    notifyAll();
+                }
+            }
+        }, "Retry-" + stationID);
+        retry.setDaemon(true);
+        retry.start();
+        return true;
+    }
+
+    // Handles a 307 status (see AggregationServer.Cluster), with the lock held: keeps the ring, and forgets the version
+    // acknowledged by the node the PUTs were sent to. Returns false (given up) if the owner given isn't a node, or the
+    // PUT was already redirected MAX_REDIRECTS times
+    private boolean startRedirect(PendingPut put, String location, String cluster) {
+        HashRing learned = HashRing.parse(cluster);
+        if (learned != null) {
+            ring = learned;
+        }
+        if ((location == null) || (HashRing.portOf(location) < 0) || (put.redirects >= MAX_REDIRECTS)) {
+            System.out.println("PUT given up after " + put.redirects + " redirects");
+            return false;
+        }
+        put.redirects++;
+        redirects++;
+        lastAcked = null; // The owner's version isn't known yet
+        lastVersion = -1;
+        return true;
+    }
+
+    // Connects to the node that owns this station (location) and sends every PUT still waiting there again, whole and
+    // under the same request IDs (the node they were sent to won't run them, and the owner doesn't have the version a
+    // delta was based on). The old connection is closed. Runs without the lock: connecting can take a while
+    // Returns false if the owner can't be reached or the PUT with this request ID couldn't be sent there
+    private boolean redirect(long key, String location) {
+        Socket old;
+        try {
+            Socket socket = new Socket(HashRing.hostOf(location), HashRing.portOf(location));
+            synchronized (sendLock) { // No PUT is written while the connection changes
+                old = csSocket;
+                serverName = HashRing.hostOf(location);
+                port = HashRing.portOf(location);
+                csSocket = socket;
+                openConnection();
+            }
+        } catch (IOException ie) {
+            System.out.println("Couldn't connect to the Aggregation Server " + location + ": " + ie.getMessage());
+            return false;
+        }
+        ArrayList<Map.Entry<Long, PendingPut>> waiting;
+        synchronized (this) {
+            ackReader = null; // The old reader ends with the old connection
+            startAckReader();
+            waiting = new ArrayList<Map.Entry<Long, PendingPut>>(inFlight.entrySet());
+            for (Map.Entry<Long, PendingPut> resend : waiting) {
+                if (!resend.getValue().batch) {
+                    resend.getValue().entries = readEntries();
+                    resend.getValue().delta = false;
+                }
+            }
+        }
+        try {
+            old.close();
+        } catch (IOException ie) {
+            System.out.println("Failed to close the old connection: " + ie.getMessage());
+        }
+        System.out.println("Content Server " + this.stationID + ": now sending to " + location);
+        boolean sentKey = true;
+        ArrayList<Long> failed = new ArrayList<Long>();
+        for (Map.Entry<Long, PendingPut> resend : waiting) {
+            PendingPut pending = resend.getValue();
+            boolean sent = pending.batch ? writeBatchPUT(resend.getKey(), pending.records)
+                    : writePUT(resend.getKey(), pending.entries, null);
+            if (!sent && (resend.getKey() == key)) {
+                sentKey = false;
+            } else if (!sent) {
+                failed.add(resend.getKey());
+            }
+        }
+        synchronized (this) {
+            for (Long unsent : failed) {
+                inFlight.remove(unsent);
+            }
+            notifyAll();
+        }
+        return sentKey;
+    }
+
+    // Reads the entry file's type:value lines, in order. Returns null if it can't be read or a line isn't an entry
+    private LinkedHashMap<String, String> readEntries() {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        try (BufferedReader br = new BufferedReader(new FileReader(inputFileLoc))) {
+            String temp;
+            while ((temp = br.readLine()) != null) {
+                String[] line = temp.split(":", 2); // [0] = type, [1] = data
+                if ((line.length < 2) || (line[0].trim().isEmpty()) || (line[1].trim().isEmpty())) {
+                    return null;
+                }
+                entries.put(line[0].trim(), line[1].trim());
             }
+        } catch (IOException ie) {
+            System.out.println("Couldn't read entry file: " + ie.getMessage());
+            return null;
         }
+        return entries;
     }
 
+    // Entries that are new or changed since the last acknowledged upload (empty if none: the PUT still keeps the
+    // station's data from expiring). Returns null if everything has to be sent: delta PUTs off, nothing acknowledged
+    // yet, or an entry was taken out of the file (a delta can only add or replace entries)
+    private LinkedHashMap<String, String> changedEntries(LinkedHashMap<String, String> entries) {
+        if (!deltaPuts || (entries == null) || (lastAcked == null) || (lastVersion < 0)
+                || !entries.keySet().containsAll(lastAcked.keySet())) {
+            return null;
+        }
+        LinkedHashMap<String, String> changed = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!entry.getValue().equals(lastAcked.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return changed;
+    }
+
+    // Keeps what the server now holds after a PUT's status: the entries and version if it stored them (and they are
+    // at least as new as the ones kept: PUTs the server coalesced into one write all get that write's version, and the
+    // last of them is what it holds), nothing otherwise (the next PUT then sends everything)
+    // Returns true if it was a delta the server refused (409), to be sent again whole
+    private boolean acknowledged(String status, long version, LinkedHashMap<String, String> entries, boolean delta) {
+        if (("200".equals(status) || "201".equals(status)) && (version >= 0) && (entries != null)) {
+            if (version >= lastVersion) {
+                lastAcked = entries;
+                lastVersion = version;
+            }
+        } else {
+            lastAcked = null;
+            lastVersion = -1;
+        }
+        return delta && "409".equals(status);
+    }
+
+    // Displays the status code the Aggregation Server sent back for a PUT and processes its timestamp
+    // status = status code (e.g. "201"), receivedTime = Aggregation Server local time
+    public void handleStatus(String status, int receivedTime) {
+        lastStatus = status;
+        if ("500".equals(status)) { // Check status message received
+            System.out.println("500 - Internal server error" + "\n"); // Content doesn't make sense
+        } else if ("204".equals(status)) { // 204 if this server sent empty content
+            System.out.println("204 - No content was received" + "\n");
+        } else if ("400".equals(status)) { // Some other status
+            System.out.println("400");
+        } else if ("201".equals(status)) { // New file was created
+            System.out.println("201 - HTTP_CREATED" + "\n");
+        } else if ("200".equals(status)) { // Standard successful upload
+            System.out.println("200 - Request successful" + "\n");
+        } else if ("207".equals(status)) { // Batch PUT: a status per station
+            System.out.println("207 - Batch PUT received, status per station" + "\n");
+        } else if ("409".equals(status)) { // Delta PUT against data the server no longer has
+            System.out.println("409 - Weather data changed on the server, sending all of it again" + "\n");
+        } else if ("503".equals(status)) { // Server overloaded: the PUT is retried after a backoff
+            System.out.println("503 - Aggregation Server overloaded, retrying later" + "\n");
+        } else if ("307".equals(status)) { // Cluster: another node owns this station
+            System.out.println("307 - Station belongs to another Aggregation Server, sending it there" + "\n");
+        } else { // Any other message sent back is not recognised
+            System.out.println("Unidentifiable response from the aggregation server");
+        }
+        clock.processEvent(receivedTime);
+    }
+
+    // Startup options: --binary = use the binary wire protocol, --full-puts = always send all entries (no delta PUTs)
+    // --cluster=HOST:PORT,... = nodes of an Aggregation Server cluster, the PUTs go to the one that owns this station
     public static void main(String[] args) {
         ContentServer cs = new ContentServer();
+        for (String arg : args) {
+            if (arg.equals("--binary")) {
+                cs.setBinaryProtocol(true);
+            } else if (arg.equals("--full-puts")) {
+                cs.setDeltaPuts(false);
+            } else if (arg.startsWith("--cluster=")) {
+                cs.setCluster(arg.substring("--cluster=".length()));
+            }
+        }
         cs.getParameters();
         cs.beginOperation();
     }
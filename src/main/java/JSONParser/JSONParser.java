@@ -1,7 +1,12 @@
 package JSONParser;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class JSONParser {
@@ -35,6 +40,14 @@ public class JSONParser {
     Integer lines;
 
     public boolean isNumber(String input) {
+        // Most values that aren't numbers (e.g. "IDS60901", "Adelaide") are turned away here, so parseFloat doesn't
+        // have to build and throw an exception for each of them. Anything parseFloat could accept gets through
+        String text = input.trim();
+        int i = (text.startsWith("+") || text.startsWith("-")) ? 1 : 0;
+        if ((i >= text.length()) || (!Character.isDigit(text.charAt(i)) && (text.charAt(i) != '.')
+                && !text.startsWith("NaN", i) && !text.startsWith("Infinity", i))) {
+            return false;
+        }
         try {
             Float test = Float.parseFloat(input);
         } catch (NumberFormatException nfe) {
@@ -69,7 +82,38 @@ public class JSONParser {
         return;
     }
 
+    // Reads a JSON object of weather data, in any layout, from text[start..] into type -> value (see JSONReader)
+    public LinkedHashMap<String, String> parseEntries(CharSequence text, int start) throws ParseException {
+        return new JSONReader(text, start, text.length()).readObject();
+    }
+
+    // Reads a JSON object of weather data objects (a batch PUT) from text[start..] into stationID -> (type -> value)
+    public LinkedHashMap<String, LinkedHashMap<String, String>> parseBatch(CharSequence text, int start) throws ParseException {
+        return new JSONReader(text, start, text.length()).readObjects();
+    }
+
+    // Reads a JSON array of weather data objects (a bulk GET's reply) from text[start..], one type -> value per object
+    public ArrayList<LinkedHashMap<String, String>> parseArray(CharSequence text, int start) throws ParseException {
+        return new JSONReader(text, start, text.length()).readArray();
+    }
+
+    // Checks the entries make sense for their feed type: "string" types can't be numbers, "int" types must be numbers
+    // Types that aren't in feedTypes are accepted as they are
+    public boolean matchesFeedTypes(Map<String, String> entries) {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            String type = feedTypes.get(entry.getKey());
+            if ((type != null) && (type.equals("string")) && isNumber(entry.getValue())) {
+                return false; // Entry type is string but the value is a number
+            }
+            if ((type != null) && (type.equals("int")) && (!isNumber(entry.getValue()))) {
+                return false; // Entry type is int but the value is a string
+            }
+        }
+        return true;
+    }
+
     // Convert a given text file to JSON
+    // The file is read once and scanned in place: no String is made for a line, a type or a value
     public void textToJSON(String inputName, String outputName) {
 
         // If file input is empty, return error message
@@ -77,175 +121,151 @@ public class JSONParser {
             System.out.println("Error: Invalid or empty file." + "\n");
             return;
         }
-        HashMap<String, String> dataJSON = new HashMap<String, String>();
-        StringBuilder rawText = new StringBuilder();
-        String temp;
-        String[] line;
+        String text;
         try {
-            BufferedReader br = new BufferedReader(new FileReader(inputName));
-
-            // count number of lines, store it
-            int numLines = 0;
-            while(br.readLine() != null) {
-                numLines++;
+            text = Files.readString(Paths.get(inputName));
+        } catch (IOException ie) {
+            ie.printStackTrace();
+            return;
+        }
+        StringBuilder JSON = new StringBuilder(text.length() * 2);
+        JSONWriter writer = new JSONWriter(JSON).beginObject();
+        String error = null;
+        int numLines = 0;
+        int lineStart = 0;
+        while ((error == null) && (lineStart < text.length())) {
+            // text[lineStart, lineEnd) holds 1 line of an entry file
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
             }
-            this.lines = numLines;
-
-            // create clean text file
-            PrintWriter pwTEMP = new PrintWriter(outputName);
-            pwTEMP.close();
-
-            // Append opening bracket to JSON file or create it if doesn't exist
-            try (FileWriter fwriter = new FileWriter(outputName, true);
-                PrintWriter pwriter = new PrintWriter(fwriter)) {
-
-                pwriter.println("{");
-            } catch (IOException ie) {
-                System.out.println("Failure to read file: " + ie.getMessage());
+            int nextLine = lineEnd + 1;
+            if ((lineEnd > lineStart) && (text.charAt(lineEnd - 1) == '\r')) {
+                lineEnd--;
             }
-
-            br = new BufferedReader(new FileReader(inputName));
-
-            while ((temp = br.readLine()) != null) {
-                // temp holds 1 line of an entry file
-                // check for empty line
-                if (temp.isEmpty()) {
-                    System.out.println("Parsing Error: empty line");
-                    return;
-                }
-
-                // split temp by ':', store respective values in HashMap
-                line = temp.split(":", 2);
-                // trim any blank spaces
-                line[0] = line[0].trim();
-                line[1] = line[1].trim();
+            // check for empty line
+            int colon = text.indexOf(':', lineStart);
+            if (lineEnd == lineStart) {
+                error = "Parsing Error: empty line";
+            } else if ((colon < 0) || (colon >= lineEnd)) {
+                error = "Parsing Error: no ':' between feed and entry";
+            } else {
+                // trim any blank spaces around the feed and the entry
+                int typeStart = skipSpaces(text, lineStart, colon);
+                int typeEnd = trimSpaces(text, typeStart, colon);
+                int valueStart = skipSpaces(text, colon + 1, lineEnd);
+                int valueEnd = trimSpaces(text, valueStart, lineEnd);
 
                 // check if feed or entry is empty
-                if (line[0].isEmpty()) {
-                    System.out.println("Parsing Error: empty feed");
-                    return;
-                }
-                if (line[1].isEmpty()) {
-                    System.out.println("Parsing Error: empty entry");
-                    return;
+                if (typeStart == typeEnd) {
+                    error = "Parsing Error: empty feed";
+                } else if (valueStart == valueEnd) {
+                    error = "Parsing Error: empty entry";
+                } else {
+                    // Numbers are left unquoted if they are shorter than 7 characters
+                    writer.field(text, typeStart, typeEnd, text, valueStart, valueEnd, (valueEnd - valueStart) < 7);
+                    numLines++;
                 }
-
-                // Write to the text file
-                writeToFile(line, outputName, numLines);
-                numLines--;
-            }
-
-            // Add closing bracket
-            try (FileWriter fwriter = new FileWriter(outputName, true);
-                 PrintWriter pwriter = new PrintWriter(fwriter)) {
-                pwriter.println("}");
-            } catch (IOException ie) {
-                ie.printStackTrace();
             }
+            lineStart = nextLine;
+        }
+        this.lines = numLines;
+        if (error != null) {
+            System.out.println(error);
+            JSON.setLength(0); // Clean output file: nothing is left from an older entry file
+        } else {
+            writer.endObject();
+            JSON.append("\n");
+        }
+        try {
+            Files.writeString(Paths.get(outputName), JSON);
         } catch (IOException ie) {
-            ie.printStackTrace();
-            return;
+            System.out.println("Failure to write file: " + ie.getMessage());
+        }
+    }
+
+    // First index from start (up to end) that isn't a blank space
+    private static int skipSpaces(CharSequence text, int start, int end) {
+        while ((start < end) && (text.charAt(start) <= ' ')) {
+            start++;
+        }
+        return start;
+    }
+
+    // End of text[start, end) without its trailing blank spaces
+    private static int trimSpaces(CharSequence text, int start, int end) {
+        while ((end > start) && (text.charAt(end - 1) <= ' ')) {
+            end--;
         }
+        return end;
     }
 
+    // Convert a JSON file (any layout) to regular text entry format, added to the end of the output file
     public void JSONtoText(String inputName, String outputName) {
         // If file input is empty, return error message
         if (inputName.isEmpty()) {
             System.out.println("Error: Invalid or empty file." + "\n");
             return;
         }
-
-        HashMap<String, String> dataText = new HashMap<String, String>();
-        StringBuilder jsonText = new StringBuilder();
-        String temp;
-        String[] line;
         try {
-            BufferedReader br = new BufferedReader(new FileReader(inputName));
-            FileWriter fwriter = new FileWriter(outputName, true);
-            PrintWriter pw = new PrintWriter(fwriter);
-
-            String currLine = br.readLine(); // skip the opening bracket ({)
-            int index = 0;
-            while (!(currLine = br.readLine()).equals("}")) {
-                // split by : first
-                line = currLine.split(":", 2);
-                // trim the spaces, commas, and quotation marks
-                line[0] = line[0].trim();
-                line[0] = line[0].replaceAll(",", "");
-                line[0] = line[0].replaceAll("\"", "");
-
-                if (!line[1].isEmpty() && line[1].length() > 1) {
-                    line[1] = line[1].trim();
-                    line[1] = line[1].replaceAll(",", "");
-                    line[1] = line[1].replaceAll("\"", "");
-                } else {
-                    return;
-                }
-
-                // piece together into regular text file
-
-                pw.println(line[0] + ":" + line[1]);
+            String data = JSONtoString(Files.readString(Paths.get(inputName)));
+            try (FileWriter fwriter = new FileWriter(outputName, true)) {
+                fwriter.write(data); // piece together into regular text file
             }
-            pw.close();
-            return;
         } catch (IOException ie) {
             System.out.println("Failed to read file: " + ie.getMessage());
         }
     }
 
     // convert JSON to text but instead the input is a string and output is string
+    // The JSON can have any layout (see JSONReader), each entry becomes one type:value line
     public String JSONtoString(String JSON) {
-        // assumes JSON is multi-line string
         if (JSON.isEmpty()) {
             System.out.println("Error: Invalid or empty JSON." + "\n");
             return "";
         }
-        String data = "";
-        String[] lines = JSON.split(System.lineSeparator());
-        String[] l;
-        for (int i = 1; i < lines.length-1; ++i) { // ignore 1st and last line (brackets)
-            l = lines[i].split(":", 2);
-            l[0] = l[0].trim();
-            l[1] = l[1].trim();
-            l[0] = l[0].replaceAll("\"", "");
-            l[0] = l[0].replaceAll(",", "");
-            l[1] = l[1].replaceAll("\"", "");
-            l[1] = l[1].replaceAll(",", "");
-            data += (l[0] + ":" + l[1] + "\n");
+        LinkedHashMap<String, String> entries;
+        try {
+            entries = parseEntries(JSON, 0);
+        } catch (ParseException pe) {
+            System.out.println("Error: Invalid JSON - " + pe.getMessage() + "\n");
+            return "";
+        }
+        StringBuilder data = new StringBuilder(JSON.length());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            data.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
         }
-        return data;
+        return data.toString();
     }
 
+    // Regular text entry format (type:value lines) to JSON, scanned in place with a JSONWriter
     public String stringToJSON(String string) {
         // assumes string is multi-line string
         if (string.isEmpty()) {
             System.out.println("Error: Invalid or empty text data." + "\n");
             return "";
         }
-        String JSON = "{" + "\n";
-        String[] lines = string.split(System.lineSeparator());
-        String[] l;
-        for (int i = 0; i < lines.length; ++i) {
-            l = lines[i].split(":", 2);
-            JSON += ("    ");
-            JSON += ("\"" + l[0] + "\"" + " : ");
-            if (!isNumber(l[1])) {
-                // if not number, add quotation marks
-                JSON += ("\"" + l[1] + "\"");
-            } else {
-                // else if number, dont add quotation marks
-                JSON += (l[1]);
+        StringBuilder JSON = new StringBuilder(string.length() * 2);
+        JSONWriter writer = new JSONWriter(JSON).beginObject();
+        int lineStart = 0;
+        while (lineStart < string.length()) {
+            int lineEnd = string.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = string.length();
             }
-
-            // if not end of line, add comma
-            if (i != (lines.length - 1)) {
-                JSON += (",");
+            int nextLine = lineEnd + 1;
+            if ((lineEnd > lineStart) && (string.charAt(lineEnd - 1) == '\r')) {
+                lineEnd--;
+            }
+            int colon = string.indexOf(':', lineStart);
+            if ((colon >= 0) && (colon < lineEnd)) { // Lines without a type:value pair are skipped
+                // numbers without quotation marks, everything else with them
+                writer.field(string, lineStart, colon, string, colon + 1, lineEnd, true);
             }
-            JSON += ("\n");
+            lineStart = nextLine;
         }
-        // add closing bracket
-        JSON += ("}");
-        return JSON;
+        writer.endObject();
+        return JSON.toString();
     }
 
     // For testing this class
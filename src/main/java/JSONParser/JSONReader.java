@@ -0,0 +1,322 @@
+package JSONParser;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Streaming JSON tokenizer for weather data objects: { "type" : value, ... }
+// Reads straight from the characters it is given, one character at a time, instead of splitting the text into lines,
+// so any whitespace/layout works (including compact JSON on one line) and only the types and values become Strings
+// Values can be strings (escapes decoded), numbers (kept as their exact text), true/false/null. Weather data is flat,
+// so nested objects and arrays are rejected (except one level, for batch PUTs and bulk GETs: see readObjects, readArray)
+// Errors are ParseExceptions with the offset of the problem
+public class JSONReader {
+    private final CharSequence in;
+    private final int end;
+    private int pos;
+    private StringBuilder scratch; // Only made for strings that contain escapes
+
+    public JSONReader(CharSequence in) {
+        this(in, 0, in.length());
+    }
+
+    // Reads the characters of in from start (inclusive) to end (exclusive)
+    public JSONReader(CharSequence in, int start, int end) {
+        this.in = in;
+        this.pos = start;
+        this.end = end;
+    }
+
+    // Reads one object into type -> value, in the order they appear. Anything but whitespace after it is an error
+    public LinkedHashMap<String, String> readObject() throws ParseException {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        readObject(entries);
+        skipWhitespace();
+        if (pos != end) {
+            throw error("Unexpected text after the JSON object");
+        }
+        return entries;
+    }
+
+    // Reads one object, putting every type and value into entries (a repeated type keeps its last value)
+    public void readObject(Map<String, String> entries) throws ParseException {
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return;
+        }
+        while (true) {
+            skipWhitespace();
+            if (peek() != '"') {
+                throw error("Expected a quoted type");
+            }
+            String type = readString();
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            entries.put(type, readValue());
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return;
+            }
+            if (c != ',') {
+                pos--;
+                throw error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    // Reads an object of weather data objects, e.g. a batch PUT: { "60901" : { "type" : value, ... }, ... }
+    // into stationID -> (type -> value), in the order they appear. Anything but whitespace after it is an error
+    public LinkedHashMap<String, LinkedHashMap<String, String>> readObjects() throws ParseException {
+        LinkedHashMap<String, LinkedHashMap<String, String>> objects = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        skipWhitespace();
+        expect('{');
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+        } else {
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("Expected a quoted name");
+                }
+                String name = readString();
+                skipWhitespace();
+                expect(':');
+                LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+                readObject(entries);
+                objects.put(name, entries);
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    break;
+                }
+                if (c != ',') {
+                    pos--;
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+        skipWhitespace();
+        if (pos != end) {
+            throw error("Unexpected text after the JSON object");
+        }
+        return objects;
+    }
+
+    // Reads an array of weather data objects, e.g. a bulk GET's reply: [ { "type" : value, ... }, ... ]
+    // Anything but whitespace after it is an error
+    public ArrayList<LinkedHashMap<String, String>> readArray() throws ParseException {
+        ArrayList<LinkedHashMap<String, String>> objects = new ArrayList<LinkedHashMap<String, String>>();
+        skipWhitespace();
+        expect('[');
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+        } else {
+            while (true) {
+                LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+                readObject(entries);
+                objects.add(entries);
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    break;
+                }
+                if (c != ',') {
+                    pos--;
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+        skipWhitespace();
+        if (pos != end) {
+            throw error("Unexpected text after the JSON array");
+        }
+        return objects;
+    }
+
+    private String readValue() throws ParseException {
+        char c = peek();
+        if (c == '"') {
+            return readString();
+        }
+        if ((c == '-') || ((c >= '0') && (c <= '9'))) {
+            return readNumber();
+        }
+        if (matchLiteral("true")) {
+            return "true";
+        }
+        if (matchLiteral("false")) {
+            return "false";
+        }
+        if (matchLiteral("null")) {
+            return "null";
+        }
+        if ((c == '{') || (c == '[')) {
+            throw error("Nested objects and arrays aren't weather data");
+        }
+        throw error("Expected a value");
+    }
+
+    // Reads a quoted string. Without escapes it is one substring of the input, nothing else is allocated
+    private String readString() throws ParseException {
+        expect('"');
+        int start = pos;
+        while (pos < end) {
+            char c = in.charAt(pos);
+            if (c == '"') {
+                String text = in.subSequence(start, pos).toString();
+                pos++;
+                return text;
+            }
+            if (c == '\\') {
+                return readEscapedString(start);
+            }
+            if (c < 0x20) {
+                throw error("Control character in a string");
+            }
+            pos++;
+        }
+        throw error("Unterminated string");
+    }
+
+    // Rest of a string that has escapes in it: the part before the first escape is copied, then decoded as it goes
+    private String readEscapedString(int start) throws ParseException {
+        if (scratch == null) {
+            scratch = new StringBuilder();
+        }
+        scratch.setLength(0);
+        scratch.append(in, start, pos);
+        while (pos < end) {
+            char c = in.charAt(pos++);
+            if (c == '"') {
+                return scratch.toString();
+            }
+            if (c < 0x20) {
+                pos--;
+                throw error("Control character in a string");
+            }
+            if (c != '\\') {
+                scratch.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case '"': case '\\': case '/': scratch.append(escaped); break;
+                case 'b': scratch.append('\b'); break;
+                case 'f': scratch.append('\f'); break;
+                case 'n': scratch.append('\n'); break;
+                case 'r': scratch.append('\r'); break;
+                case 't': scratch.append('\t'); break;
+                case 'u':
+                    if (pos + 4 > end) {
+                        throw error("Incomplete \\u escape");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; ++i) {
+                        int digit = Character.digit(in.charAt(pos++), 16);
+                        if (digit < 0) {
+                            pos--;
+                            throw error("Invalid \\u escape");
+                        }
+                        code = (code << 4) | digit;
+                    }
+                    scratch.append((char) code);
+                    break;
+                default:
+                    pos--;
+                    throw error("Invalid escape");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    // Number in JSON syntax: -? (0 | 1-9 digits) (. digits)? ((e|E) (+|-)? digits)?, kept as its exact text
+    private String readNumber() throws ParseException {
+        int start = pos;
+        if (peek() == '-') {
+            pos++;
+        }
+        if (peek() == '0') {
+            pos++;
+        } else if (!skipDigits()) {
+            throw error("Invalid number");
+        }
+        if (peek() == '.') {
+            pos++;
+            if (!skipDigits()) {
+                throw error("Invalid number");
+            }
+        }
+        if ((peek() == 'e') || (peek() == 'E')) {
+            pos++;
+            if ((peek() == '+') || (peek() == '-')) {
+                pos++;
+            }
+            if (!skipDigits()) {
+                throw error("Invalid number");
+            }
+        }
+        return in.subSequence(start, pos).toString();
+    }
+
+    private boolean skipDigits() {
+        int start = pos;
+        while ((pos < end) && (in.charAt(pos) >= '0') && (in.charAt(pos) <= '9')) {
+            pos++;
+        }
+        return pos > start;
+    }
+
+    private boolean matchLiteral(String literal) {
+        if (pos + literal.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); ++i) {
+            if (in.charAt(pos + i) != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += literal.length();
+        return true;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            char c = in.charAt(pos);
+            if ((c != ' ') && (c != '\n') && (c != '\r') && (c != '\t')) {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    // Next character without moving past it, 0 at the end of the input
+    private char peek() {
+        return (pos < end) ? in.charAt(pos) : 0;
+    }
+
+    private char next() throws ParseException {
+        if (pos >= end) {
+            throw error("Unexpected end of JSON");
+        }
+        return in.charAt(pos++);
+    }
+
+    private void expect(char c) throws ParseException {
+        if (peek() != c) {
+            throw error("Expected '" + c + "'");
+        }
+        pos++;
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(message + " at offset " + pos, pos);
+    }
+}
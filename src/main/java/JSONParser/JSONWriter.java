@@ -0,0 +1,120 @@
+package JSONParser;
+
+// Writes weather data objects as JSON into a StringBuilder, in the layout the servers and clients have always used:
+// {
+//     "type" : value,
+//     "type" : "value"
+// }
+// Types and values can be given as ranges of a bigger text (e.g. a line of an entry file), so no String is made for
+// them. Strings are escaped; a value is written unquoted only if it is a number in JSON syntax (and asked for)
+public class JSONWriter {
+    private final StringBuilder out;
+    private int fields = 0;
+
+    public JSONWriter(StringBuilder out) {
+        this.out = out;
+    }
+
+    public JSONWriter beginObject() {
+        out.append('{');
+        fields = 0;
+        return this;
+    }
+
+    // Writes type : value, where value is unquoted if it is a number
+    public JSONWriter field(String type, String value) {
+        return field(type, 0, type.length(), value, 0, value.length(), true);
+    }
+
+    // Writes text[typeStart, typeEnd) : text[valueStart, valueEnd) from two character ranges
+    // asNumber = false always quotes the value, true leaves it unquoted if it is a number in JSON syntax
+    public JSONWriter field(CharSequence typeText, int typeStart, int typeEnd,
+                            CharSequence valueText, int valueStart, int valueEnd, boolean asNumber) {
+        out.append((fields++ == 0) ? "\n" : ",\n");
+        out.append("    ");
+        writeString(typeText, typeStart, typeEnd);
+        out.append(" : ");
+        if (asNumber && isNumber(valueText, valueStart, valueEnd)) {
+            out.append(valueText, valueStart, valueEnd);
+        } else {
+            writeString(valueText, valueStart, valueEnd);
+        }
+        return this;
+    }
+
+    // Writes "name" : and leaves the value to the caller, e.g. an object written by another JSONWriter (batch PUTs)
+    public JSONWriter name(String name) {
+        out.append((fields++ == 0) ? "\n" : ",\n");
+        out.append("    ");
+        writeString(name, 0, name.length());
+        out.append(" : ");
+        return this;
+    }
+
+    public JSONWriter endObject() {
+        out.append("\n}");
+        return this;
+    }
+
+    // Quoted string, escaping what JSON doesn't allow inside one
+    private void writeString(CharSequence text, int start, int end) {
+        out.append('"');
+        int copied = start; // Characters that need no escape are copied in runs
+        for (int i = start; i < end; ++i) {
+            char c = text.charAt(i);
+            if ((c != '"') && (c != '\\') && (c >= 0x20)) {
+                continue;
+            }
+            out.append(text, copied, i);
+            copied = i + 1;
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default: out.append(String.format("\\u%04x", (int) c));
+            }
+        }
+        out.append(text, copied, end);
+        out.append('"');
+    }
+
+    // True if text[start, end) is a number in JSON syntax (e.g. -34.9, 60, 1e5; not 007, +5, .5, NaN)
+    public static boolean isNumber(CharSequence text, int start, int end) {
+        int i = start;
+        if ((i < end) && (text.charAt(i) == '-')) {
+            i++;
+        }
+        int digits = i;
+        while ((i < end) && (text.charAt(i) >= '0') && (text.charAt(i) <= '9')) {
+            i++;
+        }
+        if ((i == digits) || ((text.charAt(digits) == '0') && (i - digits > 1))) {
+            return false; // No digits, or a leading zero
+        }
+        if ((i < end) && (text.charAt(i) == '.')) {
+            int fraction = ++i;
+            while ((i < end) && (text.charAt(i) >= '0') && (text.charAt(i) <= '9')) {
+                i++;
+            }
+            if (i == fraction) {
+                return false;
+            }
+        }
+        if ((i < end) && ((text.charAt(i) == 'e') || (text.charAt(i) == 'E'))) {
+            i++;
+            if ((i < end) && ((text.charAt(i) == '+') || (text.charAt(i) == '-'))) {
+                i++;
+            }
+            int exponent = i;
+            while ((i < end) && (text.charAt(i) >= '0') && (text.charAt(i) <= '9')) {
+                i++;
+            }
+            if (i == exponent) {
+                return false;
+            }
+        }
+        return i == end;
+    }
+}
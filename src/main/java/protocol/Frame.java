@@ -0,0 +1,117 @@
+package protocol;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// One message of the binary wire protocol (see WireProtocol for the byte layout)
+// opcode = what the message is (WireProtocol.OP_*), lamportTime = sender's Lamport time when it was sent,
+// stationID = station the message is about (the entity's ID for OP_HELLO), fields = entry type -> value, in order
+// records = stationID -> (type -> value) of every station in an OP_PUT_BATCH or OP_DATA_BULK frame (empty for others)
+// baseVersion = version of the station's data the changed fields of an OP_PUT_DELTA frame apply to (-1 = none)
+// requestID = ID a Content Server tagged a PUT frame with (pipelining), sent back in the PUT's status frame (null = none)
+public class Frame {
+    public int opcode;
+    public int lamportTime;
+    public String stationID;
+    public long baseVersion = -1;
+    public String requestID;
+    public LinkedHashMap<String, String> fields = new LinkedHashMap<String, String>();
+    public LinkedHashMap<String, LinkedHashMap<String, String>> records = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+
+    public Frame(int opcode, int lamportTime, String stationID) {
+        this.opcode = opcode;
+        this.lamportTime = lamportTime;
+        this.stationID = stationID;
+    }
+
+    // Status frames carry their status code (e.g. "201") as the only field
+    public static Frame status(int lamportTime, String statusCode) {
+        Frame frame = new Frame(WireProtocol.OP_STATUS, lamportTime, "");
+        frame.fields.put("status", statusCode);
+        return frame;
+    }
+
+    // Status of a PUT, with the version of the station's data after it (left out if version < 0) and the PUT's
+    // request ID (left out if null)
+    public static Frame status(int lamportTime, String statusCode, long version, String requestID) {
+        Frame frame = status(lamportTime, statusCode);
+        if (version >= 0) {
+            frame.fields.put("version", Long.toString(version));
+        }
+        frame.requestID = requestID;
+        return frame;
+    }
+
+    // Status 307 of a request for a station another node of the cluster owns (see HashRing): field "location" = the
+    // owner (host:port) to send it to, field "cluster" = every node of the ring, so the client can find owners itself
+    public static Frame redirect(int lamportTime, String location, String cluster, String requestID) {
+        Frame frame = status(lamportTime, "307", -1, requestID);
+        frame.fields.put("location", location);
+        frame.fields.put("cluster", cluster);
+        return frame;
+    }
+
+    public String getStatus() {
+        return fields.get("status");
+    }
+
+    // Owner a 307 status redirects to, null for other statuses
+    public String getLocation() {
+        return fields.get("location");
+    }
+
+    // Node list of the cluster sent with a 307 status (see HashRing.parse), null for other statuses
+    public String getCluster() {
+        return fields.get("cluster");
+    }
+
+    // Version sent with a PUT's status, -1 if there is none (e.g. an older server)
+    public long getVersion() {
+        return parseVersion(fields.get("version"));
+    }
+
+    // Batch PUTs (OP_PUT_BATCH) carry many stations' data in one frame, as records
+    // Their status frame has status 207 and one field per station: station/stationID -> that station's status code
+    public void putRecord(String stationID, Map<String, String> entries) {
+        records.put(stationID, new LinkedHashMap<String, String>(entries));
+    }
+
+    public static Frame batchStatus(int lamportTime, Map<String, String> statuses, String requestID) {
+        Frame frame = status(lamportTime, "207", -1, requestID);
+        for (Map.Entry<String, String> status : statuses.entrySet()) {
+            frame.fields.put("station/" + status.getKey(), status.getValue());
+        }
+        return frame;
+    }
+
+    // stationID -> status code of a batch PUT's status frame
+    public LinkedHashMap<String, String> getStationStatuses() {
+        LinkedHashMap<String, String> statuses = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (field.getKey().startsWith("station/")) {
+                statuses.put(field.getKey().substring("station/".length()), field.getValue());
+            }
+        }
+        return statuses;
+    }
+
+    // Bulk GETs (OP_GET_BULK) ask for many stations in one request: their stationID is a comma-separated list of
+    // station IDs and prefixes (ending in '*'), or "all". The reply is one or more OP_DATA_BULK frames holding the
+    // stations as records; every frame but the last has the field "more"
+    public boolean hasMore() {
+        return fields.containsKey("more");
+    }
+
+    // Request ID sent with a PUT's status, null if the PUT wasn't tagged
+    public String getRequestID() {
+        return requestID;
+    }
+
+    private static long parseVersion(String version) {
+        try {
+            return (version == null) ? -1 : Long.parseLong(version.trim());
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+}
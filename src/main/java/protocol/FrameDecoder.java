@@ -0,0 +1,54 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Incremental frame decoder for non-blocking reads: collects bytes until a whole frame (length prefix + body) is there
+public class FrameDecoder {
+    private byte[] buffer = new byte[1024]; // Bytes received but not yet decoded
+    private int length = 0;
+
+    // Adds the received bytes and decodes every frame they complete, in the order they were sent
+    public ArrayList<Frame> feed(ByteBuffer data) throws IOException {
+        int incoming = data.remaining();
+        if (length + incoming > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + incoming));
+        }
+        data.get(buffer, length, incoming);
+        length += incoming;
+
+        ArrayList<Frame> frames = new ArrayList<Frame>();
+        int pos = 0;
+        while (pos < length) {
+            long frameLength = 0;
+            int bodyStart = -1;
+            for (int i = pos, shift = 0; (i < length) && (shift <= 28); ++i, shift += 7) { // Length prefix
+                frameLength |= (long) (buffer[i] & 0x7F) << shift;
+                if ((buffer[i] & 0x80) == 0) {
+                    bodyStart = i + 1;
+                    break;
+                }
+            }
+            if (bodyStart < 0) {
+                if (length - pos >= 5) {
+                    throw new StreamCorruptedException("Invalid frame length");
+                }
+                break; // Length prefix not complete yet
+            }
+            if (frameLength > WireProtocol.MAX_FRAME_LENGTH) {
+                throw new StreamCorruptedException("Frame too long: " + frameLength + " bytes");
+            }
+            if (length - bodyStart < frameLength) {
+                break; // Body not complete yet
+            }
+            frames.add(WireProtocol.decode(buffer, bodyStart, (int) frameLength));
+            pos = bodyStart + (int) frameLength;
+        }
+        System.arraycopy(buffer, pos, buffer, 0, length - pos);
+        length -= pos;
+        return frames;
+    }
+}
@@ -0,0 +1,127 @@
+package protocol;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent-hash ring of the Aggregation Servers of a cluster (see AggregationServer.Cluster)
+// Every node ("host:port") is put on a ring of 64-bit hashes at VIRTUAL_NODES points, and a station belongs to the
+// first node point at or after the hash of its stationID (wrapping around). Adding a node only takes over the stations
+// just before its points, about 1/N of them, from the nodes that had them; every other station stays where it was.
+// The hash only depends on the strings, so the servers, Content Servers and GETClients all agree on a station's owner.
+// A ring is never changed: withNode/withoutNode return a new one, so it can be shared between threads as it is
+public class HashRing {
+    public static final int VIRTUAL_NODES = 128; // Points per node: more = stations spread more evenly
+
+    private final List<String> nodes;
+    private final TreeMap<Long, String> points = new TreeMap<Long, String>(); // Hash -> node
+
+    public HashRing(Collection<String> nodes) {
+        this.nodes = List.copyOf(nodes);
+        for (String node : this.nodes) {
+            for (int i = 0; i < VIRTUAL_NODES; ++i) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    // Ring of a comma-separated node list (e.g. "localhost:4567,localhost:4568"), as sent in Cluster headers.
+    // Returns null if it is empty or a node isn't host:port
+    public static HashRing parse(String nodeList) {
+        if (nodeList == null) {
+            return null;
+        }
+        ArrayList<String> nodes = new ArrayList<String>();
+        for (String node : nodeList.split(",")) {
+            node = node.trim();
+            if (node.isEmpty()) {
+                continue;
+            }
+            if (portOf(node) < 0) {
+                return null;
+            }
+            if (!nodes.contains(node)) {
+                nodes.add(node);
+            }
+        }
+        return nodes.isEmpty() ? null : new HashRing(nodes);
+    }
+
+    // Node (host:port) the station belongs to
+    public String ownerOf(String stationID) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(stationID));
+        return (point != null) ? point.getValue() : points.firstEntry().getValue();
+    }
+
+    public List<String> getNodes() {
+        return nodes;
+    }
+
+    public boolean contains(String node) {
+        return nodes.contains(node);
+    }
+
+    public HashRing withNode(String node) {
+        if (nodes.contains(node)) {
+            return this;
+        }
+        ArrayList<String> added = new ArrayList<String>(nodes);
+        added.add(node);
+        return new HashRing(added);
+    }
+
+    public HashRing withoutNode(String node) {
+        ArrayList<String> removed = new ArrayList<String>(nodes);
+        removed.remove(node);
+        return new HashRing(removed);
+    }
+
+    // Comma-separated node list, read back by parse
+    @Override
+    public String toString() {
+        return String.join(",", nodes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return (other instanceof HashRing) && ((HashRing) other).nodes.equals(nodes);
+    }
+
+    @Override
+    public int hashCode() {
+        return nodes.hashCode();
+    }
+
+    public static String hostOf(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    // Port of a host:port node, -1 if it has none
+    public static int portOf(String node) {
+        int colon = node.lastIndexOf(':');
+        if (colon <= 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(node.substring(colon + 1));
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    // 64-bit FNV-1a of the UTF-8 bytes, then mixed (SplitMix64 finaliser): FNV alone leaves similar IDs (e.g. 46001,
+    // 46002) close together on the ring, so a run of stations would all go to one node
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
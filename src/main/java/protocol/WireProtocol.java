@@ -0,0 +1,398 @@
+package protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Compact, versioned binary wire protocol shared by the ContentServer, GETClient and AggregationServer
+// Used instead of Java serialisation of Strings when both sides agree on it during the connect handshake
+//
+// Handshake: client sends MAGIC (2 bytes) + the highest version it speaks (1 byte). The server answers with the version
+//            both will use (1 byte, 0 = refused). Any other answer (e.g. the ObjectOutputStream header of an older
+//            server) means the client has to reconnect and fall back to Java serialisation.
+//            The client then sends an OP_HELLO frame: its Lamport time and its ID (e.g. CS1234) as the stationID.
+// Frame:     varint length of the rest | varint Lamport time | u1 opcode | string stationID | varint field count | fields
+//            PUT and status frames have a header between the stationID and the fields: string request ID ("" = none),
+//            then for OP_PUT_DELTA frames the base version + 1 (varint, 0 = none)
+// Field:     string name | u1 type | value -> TYPE_STRING: string, TYPE_NUMBER: zigzag varint unscaled value + u1 scale
+// OP_PUT_BATCH and OP_DATA_BULK frames have one more part after their fields: varint record count | records
+// Record:    string stationID | varint field count | fields
+// string:    varint byte length + UTF-8 bytes
+// Numbers keep their exact text (e.g. "-34.9" = unscaled -349, scale 1), so nothing changes compared to the text format
+// Status frames of PUTs also carry the station's version (see Frame.status), which OP_PUT_DELTA frames send back as
+// their base version
+public class WireProtocol {
+    public static final byte MAGIC_0 = (byte) 0xB1; // Can't be confused with Java serialisation's 0xAC 0xED
+    public static final byte MAGIC_1 = (byte) 0x7E;
+    public static final int VERSION = 1;
+
+    // Opcodes
+    public static final int OP_HELLO = 0; // Client -> server, once after the handshake
+    public static final int OP_PUT = 1; // Content Server -> server, fields = weather data
+    public static final int OP_GET = 2; // GETClient -> server, stationID = requested station or "latest"
+    public static final int OP_STATUS = 3; // Server -> entity, field "status" = status code
+    public static final int OP_DATA = 4; // Server -> GETClient, fields = weather data of stationID
+    public static final int OP_PUT_DELTA = 5; // Content Server -> server, Frame.baseVersion + changed weather data
+    public static final int OP_PUT_BATCH = 6; // Content Server -> server, records = weather data of many stations
+    public static final int OP_GET_BULK = 7; // GETClient -> server, stationID = station IDs / prefixes* / "all" (see Frame)
+    public static final int OP_DATA_BULK = 8; // Server -> GETClient, records = weather data of the stations asked for
+    public static final int OP_SUBSCRIBE = 9; // GETClient -> server, stationID = same as OP_GET_BULK, or "latest";
+                                              // answered with OP_DATA_BULK frames now and whenever the stations change
+
+    // Field value types
+    public static final int TYPE_STRING = 0;
+    public static final int TYPE_NUMBER = 1;
+
+    public static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    // Client side of the handshake: offers VERSION, returns the version the server chose (0 or less = fall back)
+    public static int clientHandshake(InputStream in, OutputStream out) throws IOException {
+        out.write(new byte[]{MAGIC_0, MAGIC_1, (byte) VERSION});
+        out.flush();
+        int answer = in.read();
+        return ((answer >= 1) && (answer <= VERSION)) ? answer : -1;
+    }
+
+    // Server side: checks whether the first bytes are MAGIC, without consuming them. in must support mark/reset
+    public static boolean isBinaryHandshake(InputStream in) throws IOException {
+        in.mark(2);
+        int first = in.read();
+        int second = in.read();
+        in.reset();
+        return (first == (MAGIC_0 & 0xFF)) && (second == (MAGIC_1 & 0xFF));
+    }
+
+    // Server side: reads MAGIC + offered version and answers with the version to use. Returns it (0 = refused)
+    public static int serverHandshake(InputStream in, OutputStream out) throws IOException {
+        byte[] hello = in.readNBytes(3);
+        if (hello.length < 3) {
+            throw new EOFException("Connection closed during handshake");
+        }
+        int version = Math.min(hello[2] & 0xFF, VERSION);
+        out.write(version);
+        out.flush();
+        return version;
+    }
+
+    // Writes one frame and flushes it. Callers sharing a stream between threads must synchronise on it
+    public static void writeFrame(OutputStream out, Frame frame) throws IOException {
+        out.write(encode(frame));
+        out.flush();
+    }
+
+    // Blocked until one whole frame has been read. Throws EOFException if the connection ends
+    public static Frame readFrame(InputStream in) throws IOException {
+        long length = 0;
+        for (int shift = 0; ; shift += 7) { // Length prefix, read byte by byte
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection ended");
+            }
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+            if (shift > 28) {
+                throw new StreamCorruptedException("Invalid frame length");
+            }
+        }
+        if (length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Frame too long: " + length + " bytes");
+        }
+        byte[] body = in.readNBytes((int) length);
+        if (body.length < length) {
+            throw new EOFException("Connection ended in the middle of a frame");
+        }
+        return decode(body, 0, body.length);
+    }
+
+    // Encodes a frame, including its length prefix
+    public static byte[] encode(Frame frame) {
+        Encoder body = new Encoder();
+        body.writeVarint(frame.lamportTime & 0xFFFFFFFFL);
+        writeUntimed(body, frame);
+        Encoder whole = new Encoder();
+        whole.writeVarint(body.length);
+        whole.writeBytes(body.buffer, 0, body.length);
+        return Arrays.copyOf(whole.buffer, whole.length);
+    }
+
+    // Encodes everything of a frame after its Lamport time (opcode, stationID, fields), so the same frame can be
+    // sent many times, each time with a new Lamport time, without encoding its fields again (see writeFrame below)
+    public static byte[] encodeUntimed(Frame frame) {
+        Encoder body = new Encoder();
+        writeUntimed(body, frame);
+        return Arrays.copyOf(body.buffer, body.length);
+    }
+
+    // Writes a frame made of a Lamport time and the bytes from encodeUntimed, and flushes it
+    // Callers sharing a stream between threads must synchronise on it
+    public static void writeFrame(OutputStream out, int lamportTime, byte[] untimed) throws IOException {
+        Encoder time = new Encoder();
+        time.writeVarint(lamportTime & 0xFFFFFFFFL);
+        Encoder header = new Encoder();
+        header.writeVarint(time.length + untimed.length);
+        header.writeBytes(time.buffer, 0, time.length);
+        out.write(header.buffer, 0, header.length);
+        out.write(untimed);
+        out.flush();
+    }
+
+    // Encodes an OP_DATA_BULK frame without its Lamport time, from the untimed OP_DATA frames of its stations
+    // (StationRecord.toUntimedDataFrame): a record is an OP_DATA frame without its opcode, so their bytes are copied
+    // as they are, nothing is encoded again. more = another OP_DATA_BULK frame of the same reply follows this one
+    public static byte[] encodeUntimedBulk(Iterable<byte[]> untimedDataFrames, int numRecords, boolean more) {
+        Frame header = new Frame(OP_DATA_BULK, 0, "");
+        if (more) {
+            header.fields.put("more", "1");
+        }
+        Encoder body = new Encoder();
+        body.writeByte(header.opcode);
+        body.writeString(header.stationID);
+        writeFields(body, header.fields);
+        body.writeVarint(numRecords);
+        for (byte[] dataFrame : untimedDataFrames) {
+            body.writeBytes(dataFrame, 1, dataFrame.length - 1);
+        }
+        return Arrays.copyOf(body.buffer, body.length);
+    }
+
+    private static boolean hasRecords(int opcode) {
+        return (opcode == OP_PUT_BATCH) || (opcode == OP_DATA_BULK);
+    }
+
+    private static boolean hasRequestID(int opcode) {
+        return (opcode == OP_PUT) || (opcode == OP_PUT_DELTA) || (opcode == OP_PUT_BATCH) || (opcode == OP_STATUS);
+    }
+
+    private static void writeUntimed(Encoder body, Frame frame) {
+        body.writeByte(frame.opcode);
+        body.writeString(frame.stationID == null ? "" : frame.stationID);
+        if (hasRequestID(frame.opcode)) {
+            body.writeString(frame.requestID == null ? "" : frame.requestID);
+        }
+        if (frame.opcode == OP_PUT_DELTA) {
+            body.writeVarint(Math.max(frame.baseVersion, -1) + 1);
+        }
+        writeFields(body, frame.fields);
+        if (hasRecords(frame.opcode)) {
+            body.writeVarint(frame.records.size());
+            for (Map.Entry<String, LinkedHashMap<String, String>> record : frame.records.entrySet()) {
+                body.writeString(record.getKey());
+                writeFields(body, record.getValue());
+            }
+        }
+    }
+
+    private static void writeFields(Encoder body, Map<String, String> fields) {
+        body.writeVarint(fields.size());
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            body.writeString(field.getKey());
+            if (!body.writeNumber(field.getValue())) {
+                body.writeByte(TYPE_STRING);
+                body.writeString(field.getValue());
+            }
+        }
+    }
+
+    // Decodes a frame body (everything after the length prefix)
+    public static Frame decode(byte[] bytes, int offset, int length) throws IOException {
+        Decoder in = new Decoder(bytes, offset, offset + length);
+        int lamportTime = (int) in.readVarint();
+        int opcode = in.readByte();
+        Frame frame = new Frame(opcode, lamportTime, in.readString());
+        if (hasRequestID(opcode)) {
+            String requestID = in.readString();
+            frame.requestID = requestID.isEmpty() ? null : requestID;
+        }
+        if (opcode == OP_PUT_DELTA) {
+            frame.baseVersion = in.readVarint() - 1;
+        }
+        readFields(in, frame.fields);
+        if (hasRecords(opcode)) {
+            long numRecords = in.readVarint();
+            for (long i = 0; i < numRecords; ++i) {
+                LinkedHashMap<String, String> record = new LinkedHashMap<String, String>();
+                frame.records.put(in.readString(), record);
+                readFields(in, record);
+            }
+        }
+        return frame;
+    }
+
+    private static void readFields(Decoder in, Map<String, String> fields) throws IOException {
+        long numFields = in.readVarint();
+        for (long i = 0; i < numFields; ++i) {
+            String name = in.readString();
+            int type = in.readByte();
+            if (type == TYPE_NUMBER) {
+                long unscaled = in.readVarint();
+                unscaled = (unscaled >>> 1) ^ -(unscaled & 1); // zigzag -> signed
+                fields.put(name, formatDecimal(unscaled, in.readByte()));
+            } else if (type == TYPE_STRING) {
+                fields.put(name, in.readString());
+            } else {
+                throw new StreamCorruptedException("Unknown field type: " + type);
+            }
+        }
+    }
+
+    // If text is a plain decimal ('-', digits, '.', digits, up to 18 digits) that formatDecimal turns back into exactly
+    // the same text, returns its scale (digits after the point) and puts its unscaled value in unscaled[0]
+    // (e.g. "-34.9" -> scale 1, unscaled -349). Otherwise returns -1
+    public static int parseDecimal(String text, long[] unscaled) {
+        int len = text.length();
+        int i = 0;
+        boolean negative = false;
+        if ((len > 0) && (text.charAt(0) == '-')) {
+            negative = true;
+            i = 1;
+        }
+        int integerStart = i;
+        long value = 0;
+        int digits = 0;
+        int scale = -1; // -1 = no decimal point seen
+        for (; i < len; ++i) {
+            char c = text.charAt(i);
+            if (c == '.') {
+                if ((scale >= 0) || (i == integerStart)) {
+                    return -1;
+                }
+                scale = 0;
+                continue;
+            }
+            if ((c < '0') || (c > '9') || (++digits > 18)) {
+                return -1;
+            }
+            if ((c == '0') && (i == integerStart) && (i + 1 < len) && (text.charAt(i + 1) != '.')) {
+                return -1; // Leading zero ("007") wouldn't come back the same
+            }
+            value = value * 10 + (c - '0');
+            if (scale >= 0) {
+                scale++;
+            }
+        }
+        if ((digits == 0) || (scale == 0) || (negative && value == 0)) {
+            return -1; // "", "5." and "-0" wouldn't come back the same
+        }
+        unscaled[0] = negative ? -value : value;
+        return Math.max(scale, 0);
+    }
+
+    // Turns an unscaled value and scale back into the exact decimal text it was encoded from
+    public static String formatDecimal(long unscaled, int scale) {
+        String digits = Long.toString(Math.abs(unscaled));
+        String sign = (unscaled < 0) ? "-" : "";
+        if (scale == 0) {
+            return sign + digits;
+        }
+        StringBuilder padded = new StringBuilder();
+        for (int i = digits.length(); i <= scale; ++i) {
+            padded.append('0');
+        }
+        padded.append(digits);
+        int point = padded.length() - scale;
+        return sign + padded.substring(0, point) + "." + padded.substring(point);
+    }
+
+    // Growable output buffer used to build a frame
+    private static class Encoder {
+        byte[] buffer = new byte[256];
+        int length = 0;
+        final long[] decimal = new long[1]; // Unscaled value from parseDecimal
+
+        void ensure(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buffer[length++] = (byte) b;
+        }
+
+        void writeBytes(byte[] bytes, int offset, int count) {
+            ensure(count);
+            System.arraycopy(bytes, offset, buffer, length, count);
+            length += count;
+        }
+
+        void writeVarint(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[length++] = (byte) value;
+        }
+
+        void writeString(String text) {
+            byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+            writeVarint(utf8.length);
+            writeBytes(utf8, 0, utf8.length);
+        }
+
+        // Writes TYPE_NUMBER + value if text is a plain decimal that formatDecimal turns back into exactly the same
+        // text (see parseDecimal). Otherwise writes nothing and returns false
+        boolean writeNumber(String text) {
+            int scale = parseDecimal(text, decimal);
+            if (scale < 0) {
+                return false;
+            }
+            long value = decimal[0];
+            writeByte(TYPE_NUMBER);
+            writeVarint((value << 1) ^ (value >> 63)); // signed -> zigzag, so small negative numbers stay short
+            writeByte(scale);
+            return true;
+        }
+    }
+
+    // Reads the parts of a frame body
+    private static class Decoder {
+        final byte[] buffer;
+        int pos;
+        final int end;
+
+        Decoder(byte[] buffer, int pos, int end) {
+            this.buffer = buffer;
+            this.pos = pos;
+            this.end = end;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= end) {
+                throw new StreamCorruptedException("Frame ended too early");
+            }
+            return buffer[pos++] & 0xFF;
+        }
+
+        long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Invalid varint");
+        }
+
+        String readString() throws IOException {
+            long length = readVarint();
+            if ((length < 0) || (length > end - pos)) {
+                throw new StreamCorruptedException("Invalid string length");
+            }
+            String text = new String(buffer, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return text;
+        }
+    }
+}
@@ -19,8 +19,11 @@ import java.nio.file.Paths;
 import java.util.AbstractMap;
 import java.util.Scanner;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -233,6 +236,171 @@ class AggregationServerTest {
         }
     }
 
+    // Latency benchmark: end-to-end PUT -> acknowledgement time as seen by the ContentServer
+    // sendPUT blocks until the status arrives, so timing it measures the whole round trip through the request queue
+    // With the old 2-second polling loop every PUT waited up to 2000ms; the blocking dispatcher should answer in milliseconds
+    @Test
+    void putAckLatencyTest() {
+        AggregationServer as = new AggregationServer();
+        as.setDirectory("src/main/java/AggregationServer/");
+        as.setPort("4568");
+
+        as.beginOperation();
+        as.listenForConnections();
+        as.checkForTasks();
+
+        ContentServer cs = new ContentServer();
+        cs.setServer("localhost", 4568);
+        cs.setEntryLoc("src/main/java/ContentServer/entryfile.txt");
+        cs.setFileFolder("src/main/java/ContentServer/");
+        cs.setHost("https://localhost.cia.gov:4568");
+
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        exec.submit(cs::beginOperation);
+        try {
+            Thread.sleep(1000); // Waits for the connection to be established
+        } catch (InterruptedException ie) {
+            System.out.println(ie.getMessage());
+        }
+
+        int numPUTs = 50;
+        long[] latencies = new long[numPUTs];
+        for (int i = 0; i < numPUTs; ++i) {
+            long start = System.nanoTime();
+            cs.sendPUT(); // Blocked until the status is received
+            latencies[i] = (System.nanoTime() - start) / 1000000;
+        }
+        java.util.Arrays.sort(latencies);
+        long total = 0;
+        for (long latency : latencies) {
+            total += latency;
+        }
+        long p99 = latencies[(int) Math.ceil(numPUTs * 0.99) - 1];
+        System.out.println("PUT->ack latency over " + numPUTs + " PUTs: avg " + (total / numPUTs) + "ms, p50 " + latencies[numPUTs / 2] + "ms, p99 " + p99 + "ms");
+        assertTrue(p99 < 1000); // No PUT should wait anywhere near the old 2 second polling interval
+
+        try {
+            as.getServerSocket().close();
+            Files.deleteIfExists(Paths.get("src/main/java/AggregationServer/SERVER_DATA_" + cs.getID() + ".txt"));
+        } catch (IOException ie) {
+            System.out.println(ie.getMessage());
+        }
+    }
+
+    // Throughput benchmark: several Content Servers (one station each) PUT at the same time
+    // Runs once with a single execution lane and once with a lane per core; every station maps to exactly one lane,
+    // so with more lanes the stations' PUTs are executed in parallel instead of one after another
+    // Timings on a shared machine vary too much to compare, so what is checked is that two stations on different lanes
+    // are executed at the same time, and one after another with a single lane
+    @Test
+    void parallelLanesThroughputTest() throws InterruptedException {
+        AggregationServer as = new AggregationServer();
+        String PUT = "PUT /weather.json HTTP/1.1\nHost: localhost\nUser-Agent: ATOMClient/1/0\nContent-Type: weather/json\nContent-Length: 3\n \n{\n}";
+        String GET = "GET /AggregationServer/SERVER_DATA.txt HTTP/1.1\nHost: localhost\nUser-Agent: ATOMClient/1/0\nAccept: 123/json";
+        assertEquals("123", as.getStationKey(PUT, "CS123"));
+        assertEquals("123", as.getStationKey(GET, "GETClient123")); // A GET for a station runs on that station's lane
+        assertEquals(as.laneFor("123"), as.laneFor(as.getStationKey(GET, "GETClient"))); // Same station -> same lane
+
+        int numStations = 8;
+        int putsPerStation = 25;
+        int cores = Runtime.getRuntime().availableProcessors();
+        double singleLane = putThroughput(4569, 1, numStations, putsPerStation);
+        double parallelLanes = putThroughput(4570, cores, numStations, putsPerStation);
+        System.out.println("PUT throughput with 1 lane: " + (int) singleLane + " PUTs/s, with " + cores + " lanes: " + (int) parallelLanes + " PUTs/s");
+        assertTrue(singleLane > 0);
+        assertTrue(parallelLanes > 0);
+        assertTrue(stationsRunTogether(2));
+        assertFalse(stationsRunTogether(1));
+    }
+
+    // Helper for parallelLanesThroughputTest: runs a task for each of two stations on their lanes. Each task waits (up
+    // to 1 second) for the other one to start, which only happens if both are running at the same time
+    private boolean stationsRunTogether(int laneCount) throws InterruptedException {
+        AggregationServer as = new AggregationServer();
+        as.setLaneCount(laneCount);
+        as.checkForTasks();
+        String[] stations = {"1", null};
+        for (int s = 2; stations[1] == null; ++s) { // Any other station on another lane (the same one with 1 lane)
+            if ((laneCount == 1) || (as.laneFor(Integer.toString(s)) != as.laneFor(stations[0]))) {
+                stations[1] = Integer.toString(s);
+            }
+        }
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch finished = new CountDownLatch(2);
+        AtomicInteger together = new AtomicInteger(0);
+        for (String station : stations) {
+            as.runOnLane(station, () -> {
+                started.countDown();
+                try {
+                    if (started.await(1, TimeUnit.SECONDS)) {
+                        together.incrementAndGet();
+                    }
+                } catch (InterruptedException ie) {
+                    System.out.println(ie.getMessage());
+                }
+                finished.countDown();
+            });
+        }
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        return together.get() == 2;
+    }
+
+    // Helper for parallelLanesThroughputTest: starts a server with the given number of lanes, connects numStations
+    // Content Servers and times all of them sending putsPerStation PUTs at once. Returns PUTs per second.
+    private double putThroughput(int port, int laneCount, int numStations, int putsPerStation) {
+        AggregationServer as = new AggregationServer();
+        as.setDirectory("src/main/java/AggregationServer/");
+        as.setPort(Integer.toString(port));
+        as.setLaneCount(laneCount);
+
+        as.beginOperation();
+        as.listenForConnections();
+        as.checkForTasks();
+
+        ExecutorService exec = Executors.newFixedThreadPool(numStations);
+        ContentServer[] servers = new ContentServer[numStations];
+        try {
+            for (int i = 0; i < numStations; ++i) {
+                servers[i] = new ContentServer(Integer.toString(port * 100 + i)); // Unique stationID for each Content Server
+                servers[i].setServer("localhost", port);
+                servers[i].setEntryLoc("src/main/java/ContentServer/entryfile.txt");
+                servers[i].setFileFolder(Files.createTempDirectory("cs" + i).toString() + "/"); // Own weather.json for each
+                servers[i].setHost("https://localhost.cia.gov:" + port);
+                exec.submit(servers[i]::beginOperation);
+            }
+            Thread.sleep(1000); // Waits for every Content Server to connect
+        } catch (IOException | InterruptedException e) {
+            System.out.println(e.getMessage());
+        }
+
+        long start = System.nanoTime();
+        ExecutorService putExec = Executors.newFixedThreadPool(numStations);
+        for (ContentServer cs : servers) {
+            putExec.submit(() -> {
+                for (int i = 0; i < putsPerStation; ++i) {
+                    cs.sendPUT();
+                }
+            });
+        }
+        putExec.shutdown();
+        try {
+            putExec.awaitTermination(60, java.util.concurrent.TimeUnit.SECONDS);
+        } catch (InterruptedException ie) {
+            System.out.println(ie.getMessage());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        try {
+            as.getServerSocket().close();
+            for (ContentServer cs : servers) {
+                Files.deleteIfExists(Paths.get("src/main/java/AggregationServer/SERVER_DATA_" + cs.getID() + ".txt"));
+            }
+        } catch (IOException ie) {
+            System.out.println(ie.getMessage());
+        }
+        return (numStations * putsPerStation) / seconds;
+    }
+
     @Test
     void checkUpdateTimesTest() {
         // Setup AggregationServer
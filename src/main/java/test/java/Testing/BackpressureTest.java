@@ -0,0 +1,116 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BackpressureTest {
+
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // Starts a server that accepts connections but doesn't execute requests yet (no checkForTasks), so everything it
+    // admits stays admitted until the test starts the lanes
+    private AggregationServer startServer(int port, int queueCapacity, int maxInFlight) throws IOException {
+        return fixture.startServer(port, as -> {
+            as.setQueueCapacity(queueCapacity);
+            as.setMaxInFlight(maxInFlight);
+        }, false);
+    }
+
+    // Sends a PUT tagged with requestID, its air_temp telling the PUTs apart
+    private static void put(ServerFixture.Connection cs, int requestID) throws IOException {
+        cs.put(Integer.toString(requestID), "{\n    \"air_temp\" : " + requestID + ".5\n}");
+    }
+
+    @Test
+    // Integration test: once a connection has maxInFlight requests waiting, or the server queueCapacity, further
+    // requests get 503 with their Request-ID at once instead of being queued. Both connections stay open, and once
+    // the admitted requests have run they are served again
+    void admissionTest() throws IOException, ClassNotFoundException, InterruptedException {
+        int port = ServerFixture.freePort();
+        AggregationServer as = startServer(port, 8, 5);
+        ServerFixture.Connection first = fixture.connection(port, "CS4590");
+        ServerFixture.Connection second = fixture.connection(port, "CS4591");
+        for (int id = 1; id <= 10; ++id) {
+            put(first, id);
+        }
+        HashMap<String, String> refused = first.statusCodes(5);
+        for (int id = 6; id <= 10; ++id) {
+            assertEquals("503", refused.get(Integer.toString(id))); // Over its connection's limit
+        }
+        for (int id = 1; id <= 10; ++id) {
+            put(second, id);
+        }
+        refused = second.statusCodes(7);
+        for (int id = 4; id <= 10; ++id) {
+            assertEquals("503", refused.get(Integer.toString(id))); // Over the server's capacity
+        }
+        assertEquals(8, as.getRequestQueue().size());
+        assertEquals(8, as.getAdmitted());
+        assertEquals(12, as.getRejected());
+
+        as.checkForTasks();
+        HashMap<String, String> stored = first.statusCodes(5);
+        stored.putAll(second.statusCodes(3));
+        assertEquals(5, stored.size());
+        for (String status : stored.values()) {
+            assertTrue("201".equals(status) || "200".equals(status));
+        }
+        assertEquals("5.5", as.getStore().get("4590").get("air_temp"));
+        assertEquals("3.5", as.getStore().get("4591").get("air_temp"));
+        for (int wait = 0; (wait < 50) && (as.getAdmitted() > 0); ++wait) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, as.getAdmitted());
+
+        put(first, 11); // Room again
+        assertEquals("200", first.statusCodes(1).get("11"));
+    }
+
+    @Test
+    // Integration test: a Content Server retries its PUTs refused with 503 (Java serialised Strings)
+    void textRetryTest() throws IOException, InterruptedException {
+        retryAfterOverload(ServerFixture.freePort(), false);
+    }
+
+    @Test
+    // Integration test: same with the binary protocol
+    void binaryRetryTest() throws IOException, InterruptedException {
+        retryAfterOverload(ServerFixture.freePort(), true);
+    }
+
+    // A Content Server pipelines more PUTs than the server admits while its lanes aren't running: the extra ones get
+    // 503 and are sent again after a backoff, and once the lanes run every PUT ends up stored
+    private void retryAfterOverload(int port, boolean binary) throws IOException, InterruptedException {
+        int numPuts = 12;
+        AggregationServer as = startServer(port, 4, 100);
+        ContentServer cs = fixture.contentServer(Integer.toString(port), port);
+        cs.setBinaryProtocol(binary);
+        cs.setDeltaPuts(false);
+        fixture.connect(cs);
+
+        for (int i = 0; i < numPuts; ++i) {
+            assertTrue(cs.pipelinePUT() >= 0);
+        }
+        Thread.sleep(200); // Refused PUTs are now backing off
+        assertTrue(as.getRejected() >= numPuts - 4);
+        assertTrue(cs.getOverloadRetries() > 0);
+        as.checkForTasks();
+        assertTrue(cs.awaitAcks(30000));
+        assertTrue("200".equals(cs.getLastStatus()) || "201".equals(cs.getLastStatus()));
+        assertEquals("IDS60901", as.getStore().get(Integer.toString(port)).get("id"));
+        System.out.println((binary ? "Binary" : "Text") + ": " + numPuts + " PUTs, " + as.getRejected()
+                + " refused with 503, " + cs.getOverloadRetries() + " retries");
+    }
+}
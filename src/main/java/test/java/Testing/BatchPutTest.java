@@ -0,0 +1,171 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+import protocol.WireProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchPutTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // The data of entryfile.txt, with the station's number put into its id and temperature
+    private static LinkedHashMap<String, String> entries(int station) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("id", "IDS" + (60901 + station));
+        entries.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        entries.put("state", "SA");
+        entries.put("time_zone", "CST");
+        entries.put("lat", "-34.9");
+        entries.put("lon", "138.6");
+        entries.put("local_date_time", "15/04:00pm");
+        entries.put("local_date_time_full", "20230715160000");
+        entries.put("air_temp", (station % 40) + ".3");
+        entries.put("apparent_t", "9.5");
+        entries.put("cloud", "Partly cloudy");
+        entries.put("dewpt", "5.7");
+        entries.put("press", "1023.9");
+        entries.put("rel_hum", "60");
+        entries.put("wind_dir", "S");
+        entries.put("wind_spd_kmh", "15");
+        entries.put("wind_spd_kt", "8");
+        return entries;
+    }
+
+    @Test
+    // Unit test: a batch frame gives back every station's entries, in order, and a batch status every station's code
+    void frameTest() throws IOException {
+        Frame batch = new Frame(WireProtocol.OP_PUT_BATCH, 5, "CS1");
+        batch.putRecord("60901", entries(1));
+        batch.putRecord("60902", Map.of("air_temp", "1.5"));
+        batch.putRecord("60903", Map.of()); // No data
+        Frame decoded = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(batch)));
+        LinkedHashMap<String, LinkedHashMap<String, String>> records = decoded.records;
+        assertEquals(3, records.size());
+        assertEquals(entries(1), records.get("60901"));
+        assertEquals(Map.of("air_temp", "1.5"), records.get("60902"));
+        assertTrue(records.get("60903").isEmpty());
+
+        LinkedHashMap<String, String> statuses = new LinkedHashMap<String, String>();
+        statuses.put("60901", "201");
+        statuses.put("60902", "500");
+        Frame status = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(Frame.batchStatus(6, statuses, "3"))));
+        assertEquals("207", status.getStatus());
+        assertEquals("3", status.getRequestID());
+        assertEquals(statuses, status.getStationStatuses());
+    }
+
+    @Test
+    // Integration test: batch PUTs with Java serialised Strings
+    void textBatchTest() throws IOException, InterruptedException {
+        gatewayBatch(false);
+    }
+
+    @Test
+    // Integration test: batch PUTs with the binary protocol
+    void binaryBatchTest() throws IOException, InterruptedException {
+        gatewayBatch(true);
+    }
+
+    // One Content Server (a gateway) uploads 50 stations in one batch PUT, with the write-ahead log on: every station
+    // gets its own status, invalid ones don't stop the others, and the whole batch costs one log fsync
+    // Performance: bytes of the batch against 50 single PUTs of one station each
+    private void gatewayBatch(boolean binary) throws IOException, InterruptedException {
+        int numStations = 50;
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> server.setWriteAheadLog(true), true);
+
+        ContentServer gateway = fixture.contentServer(Integer.toString(port), port);
+        gateway.setBinaryProtocol(binary);
+        fixture.connect(gateway);
+        gateway.sendPUT(); // Its own station, a single PUT
+        int singleBytes = gateway.getLastPutBytes();
+
+        LinkedHashMap<String, LinkedHashMap<String, String>> records = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        for (int s = 0; s < numStations; ++s) {
+            records.put("7000" + s, entries(s));
+        }
+        records.put("..\\escape", entries(0)); // Not a valid file name
+        records.put("8000", new LinkedHashMap<String, String>(Map.of("air_temp", "warm"))); // Not a number
+        records.put("8001", new LinkedHashMap<String, String>()); // No data
+
+        long fsyncsBefore = as.getWriteAheadLog().getFsyncs();
+        LinkedHashMap<String, String> statuses = gateway.sendBatchPUT(records);
+        long fsyncs = as.getWriteAheadLog().getFsyncs() - fsyncsBefore;
+        int batchBytes = gateway.getLastPutBytes();
+        assertEquals("207", gateway.getLastStatus());
+        assertEquals(records.size(), statuses.size());
+        for (int s = 0; s < numStations; ++s) {
+            assertEquals("201", statuses.get("7000" + s));
+            assertEquals((s % 40) + ".3", as.getStore().get("7000" + s).get("air_temp"));
+        }
+        assertEquals("400", statuses.get("..\\escape"));
+        assertEquals("500", statuses.get("8000"));
+        assertEquals("204", statuses.get("8001"));
+        assertNull(as.getStore().get("8000"));
+        assertEquals(numStations + 1, as.getStore().size()); // The batch's stations and the gateway's own
+        assertTrue(fsyncs <= 1);
+
+        LinkedHashMap<String, LinkedHashMap<String, String>> update = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        update.put("70001", new LinkedHashMap<String, String>(Map.of("air_temp", "30.1")));
+        assertEquals(Map.of("70001", "200"), gateway.sendBatchPUT(update)); // Merged like a single PUT
+        assertEquals("30.1", as.getStore().get("70001").get("air_temp"));
+        assertEquals("IDS60902", as.getStore().get("70001").get("id"));
+        assertEquals(numStations + 1, as.getCurrFiles().size()); // Every stored station expires like a single PUT
+
+        System.out.println((binary ? "Binary" : "Text") + ": " + records.size() + " stations in one batch PUT "
+                + batchBytes + " B, as single PUTs " + (singleBytes * records.size()) + " B");
+        assertTrue(batchBytes < singleBytes * records.size()); // Same records: the 50 stations and the 3 invalid ones
+    }
+
+    @Test
+    // Integration test: a batch's stations are applied on their own lanes, after the requests already waiting there,
+    // and the 207 only goes back once every station of the batch is applied
+    void stationLanesTest() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> {}, true);
+        ContentServer gateway = fixture.contentServer("gateway", port);
+        fixture.connect(gateway);
+        CountDownLatch busy = new CountDownLatch(1);
+        as.runOnLane("90001", () -> { // A request of station 90001 that takes a while
+            try {
+                busy.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        LinkedHashMap<String, LinkedHashMap<String, String>> records = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+        for (int s = 0; s < 20; ++s) {
+            records.put(Integer.toString(90000 + s), entries(s));
+        }
+        Future<LinkedHashMap<String, String>> statuses = Executors.newSingleThreadExecutor().submit(() -> gateway.sendBatchPUT(records));
+        Thread.sleep(500);
+        assertFalse(statuses.isDone()); // Waits for station 90001's lane
+        assertNull(as.getStore().get("90001"));
+        busy.countDown();
+        for (String status : statuses.get(10, TimeUnit.SECONDS).values()) {
+            assertEquals("201", status);
+        }
+        assertEquals(records.size(), as.getStore().size());
+    }
+}
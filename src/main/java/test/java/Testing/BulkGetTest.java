@@ -0,0 +1,167 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationRecord;
+import AggregationServer.WeatherRecord;
+import Client.GETClient;
+import JSONParser.JSONParser;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+import protocol.WireProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BulkGetTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // The data of entryfile.txt, with the station's number put into its id and temperature
+    private static LinkedHashMap<String, String> entries(int station) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("id", "IDS" + (60901 + station));
+        entries.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        entries.put("state", "SA");
+        entries.put("time_zone", "CST");
+        entries.put("lat", "-34.9");
+        entries.put("lon", "138.6");
+        entries.put("local_date_time", "15/04:00pm");
+        entries.put("local_date_time_full", "20230715160000");
+        entries.put("air_temp", (station % 40) + ".3");
+        entries.put("apparent_t", "9.5");
+        entries.put("cloud", "Partly cloudy");
+        entries.put("dewpt", "5.7");
+        entries.put("press", "1023.9");
+        entries.put("rel_hum", "60");
+        entries.put("wind_dir", "S");
+        entries.put("wind_spd_kmh", "15");
+        entries.put("wind_spd_kt", "8");
+        return entries;
+    }
+
+    @Test
+    // Unit test: selectors are split into station IDs and prefixes, anything that can't be a station ID is refused
+    void selectorTest() {
+        assertEquals(List.of("*"), AggregationServer.parseStationSelector("all"));
+        assertEquals(List.of("4567", "4568", "50*"), AggregationServer.parseStationSelector("4567, CS4568,50*"));
+        assertNull(AggregationServer.parseStationSelector(""));
+        assertNull(AggregationServer.parseStationSelector("4567,,4568"));
+        assertNull(AggregationServer.parseStationSelector("../SERVER_DATA*"));
+        assertNull(AggregationServer.parseStationSelector("4*5"));
+    }
+
+    @Test
+    // Unit test: bulk GET replies read back as the same stations, in both formats
+    void encodingTest() throws IOException, ParseException {
+        StationRecord full = new StationRecord("4567", entries(1), 1000);
+        StationRecord empty = new StationRecord("4568", new LinkedHashMap<String, String>(), 2000);
+
+        StringBuilder array = new StringBuilder("[\n");
+        full.appendBulkJSON(array);
+        array.append(",\n");
+        empty.appendBulkJSON(array);
+        array.append("\n]");
+        ArrayList<LinkedHashMap<String, String>> read = new JSONParser().parseArray(array, 0);
+        assertEquals(2, read.size());
+        assertEquals("4567", read.get(0).remove("station"));
+        assertEquals(entries(1), read.get(0));
+        assertEquals(Map.of("station", "4568"), read.get(1));
+
+        byte[] untimed = WireProtocol.encodeUntimedBulk(List.of(full.toUntimedDataFrame(), empty.toUntimedDataFrame()), 2, true);
+        Frame decoded = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(decodeUntimed(untimed))));
+        assertEquals(WireProtocol.OP_DATA_BULK, decoded.opcode);
+        assertTrue(decoded.hasMore());
+        assertEquals(entries(1), decoded.records.get("4567"));
+        assertTrue(decoded.records.get("4568").isEmpty());
+    }
+
+    // Frame of an untimed encoding (given Lamport time 9), decoded the way a reader of the socket would
+    private static Frame decodeUntimed(byte[] untimed) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WireProtocol.writeFrame(out, 9, untimed);
+        return WireProtocol.readFrame(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    // Integration test: bulk GETs with Java serialised Strings
+    void textBulkTest() throws IOException {
+        regionBulkGet(false);
+    }
+
+    @Test
+    // Integration test: bulk GETs with the binary protocol
+    void binaryBulkTest() throws IOException {
+        regionBulkGet(true);
+    }
+
+    // A dashboard fetches a region (prefix 50*), a list of stations and the whole fleet, each with one request; replies
+    // longer than one chunk are streamed in several messages
+    // Performance: the region with one bulk GET against a GET per station (printed only, timings depend on the machine)
+    private void regionBulkGet(boolean binary) throws IOException {
+        int regionStations = 300; // More than one chunk (AggregationServer.BULK_CHUNK)
+        int otherStations = 100;
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> {}, true);
+        for (int s = 0; s < regionStations; ++s) {
+            as.applyPut(Integer.toString(50000 + s), WeatherRecord.of(entries(s)));
+        }
+        for (int s = 0; s < otherStations; ++s) {
+            as.applyPut(Integer.toString(60000 + s), WeatherRecord.of(entries(s)));
+        }
+
+        GETClient dashboard = new GETClient();
+        dashboard.setServer("localhost", port);
+        dashboard.setBinaryProtocol(binary);
+        dashboard.connect();
+
+        long start = System.nanoTime();
+        LinkedHashMap<String, LinkedHashMap<String, String>> region = dashboard.getStationsWithPrefix("50");
+        long bulkMicros = (System.nanoTime() - start) / 1000;
+        assertEquals(regionStations, region.size()); // The whole region with one request, over several chunks
+        int expected = 0;
+        for (Map.Entry<String, LinkedHashMap<String, String>> station : region.entrySet()) { // Sorted by stationID
+            assertEquals(Integer.toString(50000 + expected), station.getKey());
+            assertEquals(entries(expected), station.getValue());
+            ++expected;
+        }
+
+        LinkedHashMap<String, LinkedHashMap<String, String>> listed = dashboard.getStations(List.of("60005", "99999", "50001"));
+        assertEquals(List.of("60005", "50001"), new ArrayList<String>(listed.keySet())); // Order asked for, no data = left out
+        assertEquals("5.3", listed.get("60005").get("air_temp"));
+
+        assertEquals(regionStations + otherStations, dashboard.getAllStations().size());
+        assertTrue(dashboard.getStationsWithPrefix("7").isEmpty());
+        assertNull(dashboard.sendBulkGET("../SERVER_DATA*")); // 400
+        assertEquals(1, dashboard.getStations(List.of("60001")).size()); // Connection still works after a 400
+
+        GETClient single = new GETClient();
+        single.setServer("localhost", port);
+        single.setBinaryProtocol(binary);
+        single.connect();
+        start = System.nanoTime();
+        for (int s = 0; s < regionStations; ++s) {
+            single.setInfo("https://localhost.cia.gov:" + port, port, Integer.toString(50000 + s));
+            single.sendGET(port);
+            assertTrue(single.getReceivedJSON().contains("IDS" + (60901 + s)));
+        }
+        long singleMicros = (System.nanoTime() - start) / 1000;
+
+        System.out.println((binary ? "Binary" : "Text") + ": " + regionStations + " stations with one bulk GET "
+                + bulkMicros + "us, with a GET per station " + singleMicros + "us");
+        dashboard.close();
+        single.close();
+    }
+}
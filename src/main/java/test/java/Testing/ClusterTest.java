@@ -0,0 +1,304 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.Cluster;
+import AggregationServer.WeatherRecord;
+import Client.GETClient;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.HashRing;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusterTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // Starts one node of the cluster of the given nodes (host:port, comma-separated)
+    private AggregationServer startNode(int port, String nodes) throws IOException {
+        return fixture.startServer(port, as -> as.setCluster(nodes, null), true);
+    }
+
+    private ContentServer startContentServer(String stationID, int port, boolean binary) throws IOException, InterruptedException {
+        ContentServer cs = fixture.contentServer(stationID, port);
+        cs.setBinaryProtocol(binary);
+        fixture.connect(cs);
+        return cs;
+    }
+
+    // The node of port among the servers
+    private static AggregationServer nodeOf(String node, Map<Integer, AggregationServer> servers) {
+        return servers.get(HashRing.portOf(node));
+    }
+
+    @Test
+    // Unit test: stations spread about evenly over the nodes, every party computes the same owner from the node list,
+    // and adding a fourth node moves about a quarter of the stations, all of them to the new node
+    void ringTest() {
+        HashRing three = HashRing.parse("localhost:4567,localhost:4568,localhost:4569");
+        HashRing four = three.withNode("localhost:4570");
+        int numStations = 20000;
+        HashMap<String, Integer> shares = new HashMap<String, Integer>();
+        int moved = 0;
+        for (int s = 0; s < numStations; ++s) {
+            String stationID = Integer.toString(40000 + s);
+            String owner = three.ownerOf(stationID);
+            shares.merge(owner, 1, Integer::sum);
+            assertEquals(owner, HashRing.parse(three.toString()).ownerOf(stationID));
+            if (!four.ownerOf(stationID).equals(owner)) {
+                moved++;
+                assertEquals("localhost:4570", four.ownerOf(stationID)); // Only ever to the new node
+            }
+        }
+        for (int share : shares.values()) {
+            assertTrue((share > numStations / 5) && (share < numStations / 2));
+        }
+        System.out.println("Shares of 3 nodes: " + shares.values() + ", adding a 4th moved " + moved + " of " + numStations);
+        assertTrue((moved > numStations / 8) && (moved < numStations / 3));
+        assertNull(HashRing.parse("localhost"));
+    }
+
+    @Test
+    // Integration test: a Content Server sending to a node that doesn't own its station is redirected (307) to the
+    // owner, learns the ring and keeps sending there; GETs (text and binary) are redirected the same way. A batch PUT
+    // sent to one node reaches every station's owner, and a GETClient that knows the ring reads every node's stations
+    void redirectTest() throws IOException, InterruptedException {
+        int[] ports = {ServerFixture.freePort(), ServerFixture.freePort(), ServerFixture.freePort()};
+        String nodes = ServerFixture.nodes(ports);
+        String entry = "localhost:" + ports[0]; // The node everything is sent to first
+        HashMap<Integer, AggregationServer> servers = new HashMap<Integer, AggregationServer>();
+        for (int port : ports) {
+            servers.put(port, startNode(port, nodes));
+        }
+        HashRing ring = HashRing.parse(nodes);
+        String stationID = null;
+        for (int s = 46060; stationID == null; ++s) {
+            if (!ring.ownerOf(Integer.toString(s)).equals(entry)) {
+                stationID = Integer.toString(s);
+            }
+        }
+        AggregationServer owner = nodeOf(ring.ownerOf(stationID), servers);
+
+        ContentServer cs = startContentServer(stationID, ports[0], false);
+        cs.sendPUT();
+        assertEquals("201", cs.getLastStatus());
+        assertEquals(1, cs.getRedirects());
+        assertEquals(ring, cs.getRing());
+        assertEquals(HashRing.portOf(ring.ownerOf(stationID)), cs.getCSSocket().getPort());
+        assertNotNull(owner.getStore().get(stationID));
+        assertNull(servers.get(ports[0]).getStore().get(stationID));
+        assertEquals(1, servers.get(ports[0]).getCluster().getRedirects());
+        cs.sendPUT();
+        assertEquals("200", cs.getLastStatus());
+        assertEquals(1, cs.getRedirects()); // Straight to the owner now
+
+        for (boolean binary : new boolean[] {false, true}) {
+            GETClient client = new GETClient();
+            client.setServer("localhost", ports[0]);
+            client.setInfo("https://localhost.cia.gov:" + ports[0], ports[0], stationID);
+            client.setBinaryProtocol(binary);
+            client.connect();
+            client.sendGET(ports[0]);
+            assertTrue(client.getReceivedJSON().contains("IDS60901"));
+            assertEquals(HashRing.portOf(ring.ownerOf(stationID)), client.getServerPort());
+            assertEquals(ring, client.getRing());
+            client.close();
+        }
+
+        ContentServer gateway = startContentServer("gateway", ports[1], false);
+        LinkedHashMap<String, Map<String, String>> records = new LinkedHashMap<String, Map<String, String>>();
+        int local = 0;
+        for (int s = 0; s < 30; ++s) {
+            records.put(Integer.toString(47000 + s), Map.of("id", "IDS" + s, "air_temp", s + ".5"));
+            local += ring.ownerOf(Integer.toString(47000 + s)).equals("localhost:" + ports[1]) ? 1 : 0;
+        }
+        LinkedHashMap<String, String> statuses = gateway.sendBatchPUT(records);
+        assertEquals(new ArrayList<String>(records.keySet()), new ArrayList<String>(statuses.keySet()));
+        for (String stationStatus : statuses.values()) {
+            assertEquals("201", stationStatus);
+        }
+        for (String stored : records.keySet()) {
+            for (Map.Entry<Integer, AggregationServer> server : servers.entrySet()) {
+                boolean owns = ring.ownerOf(stored).equals("localhost:" + server.getKey());
+                assertEquals(owns, server.getValue().getStore().get(stored) != null); // Only on its owner
+            }
+        }
+        assertEquals(30 - local, servers.get(ports[1]).getCluster().getForwarded());
+        String placed = null; // A station the ring would place elsewhere if the CS prefix weren't taken off
+        for (String stored : records.keySet()) {
+            if ((placed == null) && !ring.ownerOf(stored).equals(ring.ownerOf("CS" + stored))) {
+                placed = stored;
+            }
+        }
+        assertNotNull(placed);
+        GETClient prefixed = new GETClient(); // Knows the ring: straight to the owner, with the CS prefix too
+        prefixed.setCluster(nodes);
+        prefixed.setInfo("https://localhost.cia.gov:" + ports[0], ports[0], "CS" + placed);
+        prefixed.connect();
+        assertEquals(HashRing.portOf(ring.ownerOf(placed)), prefixed.getServerPort());
+        prefixed.close();
+
+        GETClient dashboard = new GETClient();
+        dashboard.setCluster(nodes);
+        dashboard.setServer("localhost", ports[0]);
+        dashboard.connect();
+        LinkedHashMap<String, LinkedHashMap<String, String>> all = dashboard.getStationsWithPrefix("47");
+        assertEquals(new ArrayList<String>(records.keySet()), new ArrayList<String>(all.keySet())); // Sorted by ID
+        assertEquals(31, dashboard.getAllStations().size());
+        List<String> asked = List.of("47029", stationID, "47003");
+        assertEquals(asked, new ArrayList<String>(dashboard.getStations(asked).keySet()));
+        assertEquals("3.5", dashboard.getStations(asked).get("47003").get("air_temp"));
+        assertFalse(dashboard.subscribe("../SERVER_DATA*", pushed -> { })); // 400
+        assertEquals(0, dashboard.getNodeConnections()); // Subscriptions already opened on other nodes are closed
+        dashboard.close();
+    }
+
+    @Test
+    // Integration test: a third node joins a cluster of two. The two nodes hand over exactly the stations the new node
+    // owns (about a third of them), every station ends up on its owner only, and the others don't move. A station
+    // updated all through the join ends up on the new node with the last data acknowledged
+    void joinTest() throws IOException, InterruptedException {
+        int[] ports = {ServerFixture.freePort(), ServerFixture.freePort(), ServerFixture.freePort()};
+        String two = ServerFixture.nodes(ports[0], ports[1]);
+        String joining = "localhost:" + ports[2];
+        HashMap<Integer, AggregationServer> servers = new HashMap<Integer, AggregationServer>();
+        servers.put(ports[0], startNode(ports[0], two));
+        servers.put(ports[1], startNode(ports[1], two));
+        ContentServer gateway = startContentServer("gateway", ports[0], true);
+        LinkedHashMap<String, Map<String, String>> records = new LinkedHashMap<String, Map<String, String>>();
+        for (int s = 0; s < 300; ++s) {
+            records.put(Integer.toString(49000 + s), Map.of("air_temp", s + ".5"));
+        }
+        for (String stationStatus : gateway.sendBatchPUT(records).values()) {
+            assertEquals("201", stationStatus);
+        }
+
+        String three = two + "," + joining;
+        HashRing oldRing = HashRing.parse(two);
+        HashRing newRing = HashRing.parse(three);
+        int moving = 0;
+        for (String stationID : records.keySet()) {
+            moving += newRing.ownerOf(stationID).equals(joining) ? 1 : 0;
+        }
+        String moved = findMoved(records.keySet(), newRing, joining);
+        AtomicInteger lastStored = new AtomicInteger(-1);
+        AtomicBoolean joined = new AtomicBoolean(false);
+        Thread updater = new Thread(() -> { // Keeps updating a moving station while it is handed over
+            for (int i = 0; !joined.get(); ++i) {
+                if (gateway.sendBatchPUT(Map.of(moved, Map.of("air_temp", i + ".5"))).get(moved).matches("20[01]")) {
+                    lastStored.set(i);
+                }
+            }
+        });
+        updater.start();
+        servers.put(ports[2], startNode(ports[2], three));
+        for (int wait = 0; (wait < 100) && (servers.get(ports[2]).getStore().size() < moving); ++wait) {
+            Thread.sleep(50);
+        }
+        Thread.sleep(200); // The handed over stations are dropped once the new node stored them
+        joined.set(true);
+        updater.join();
+        assertEquals(moving, servers.get(ports[0]).getCluster().getHandedOff() + servers.get(ports[1]).getCluster().getHandedOff());
+        for (String stationID : records.keySet()) {
+            for (Map.Entry<Integer, AggregationServer> server : servers.entrySet()) {
+                boolean owns = newRing.ownerOf(stationID).equals("localhost:" + server.getKey());
+                assertEquals(owns, server.getValue().getStore().get(stationID) != null);
+            }
+            if (!newRing.ownerOf(stationID).equals(joining)) {
+                assertEquals(oldRing.ownerOf(stationID), newRing.ownerOf(stationID)); // Stayed where it was
+            }
+        }
+        assertEquals(newRing, servers.get(ports[0]).getCluster().getRing());
+        assertEquals(newRing, servers.get(ports[1]).getCluster().getRing());
+        System.out.println("Join: " + moving + " of " + records.size() + " stations moved to the new node");
+        assertTrue((moving > 0) && (moving < records.size() / 2));
+        assertEquals(lastStored.get() + ".5", servers.get(ports[2]).getStore().get(moved).get("air_temp"));
+    }
+
+    @Test
+    // Integration test: only another node can send a ring (CLUSTER), only to a server in a cluster, and only a ring
+    // that still holds the node it is sent to; anything else gets 400 and the ring stays as it was
+    void ringRequestTest() throws IOException, ClassNotFoundException {
+        // port = the node, other = the other node of its cluster (never started), outside = in no cluster
+        int port = ServerFixture.freePort();
+        int other = ServerFixture.freePort();
+        int outside = ServerFixture.freePort();
+        String nodes = ServerFixture.nodes(port, other);
+        String peer = "ASlocalhost:" + other;
+        AggregationServer node = startNode(port, nodes);
+        AggregationServer standalone = startNode(outside, null);
+        assertEquals("400", ringRequest(port, "CS" + port, nodes + ",localhost:1")); // Not a node
+        assertEquals("400", ringRequest(port, peer, ServerFixture.nodes(other, 1))); // Leaves the node out
+        assertEquals("400", ringRequest(port, peer, "localhost")); // Not a ring
+        assertEquals("400", ringRequest(outside, peer, ServerFixture.nodes(port, other, outside))); // Not in a cluster
+        assertEquals(HashRing.parse(nodes), node.getCluster().getRing());
+        assertFalse(standalone.getCluster().isEnabled());
+        assertEquals("200", ringRequest(port, peer, nodes));
+    }
+
+    @Test
+    // Integration test: records another node hands over keep their update time, and only replace older data: a
+    // station that already sent fresher data to its new owner (after a redirect) keeps it
+    void handOffVersionTest() throws IOException, ClassNotFoundException {
+        int port = ServerFixture.freePort();
+        int other = ServerFixture.freePort();
+        AggregationServer node = startNode(port, ServerFixture.nodes(port, other));
+        node.applyPut("49001", WeatherRecord.of(Map.of("air_temp", "20.5", "rel_hum", "40")));
+        long fresh = node.getStore().get("49001").updatedMillis;
+
+        ServerFixture.Connection peer = fixture.connection(port, "ASlocalhost:" + other);
+        assertEquals("{\"49001\":200,\"49002\":201}", handOff(peer, Map.of("49001", fresh - 1000, "49002", 5000L)));
+        assertEquals("20.5", node.getStore().get("49001").get("air_temp")); // Older than its own: not taken
+        assertEquals("40", node.getStore().get("49001").get("rel_hum"));
+        assertEquals(fresh, node.getStore().get("49001").updatedMillis);
+        assertEquals(5000L, node.getStore().get("49002").updatedMillis); // Kept as it was sent
+
+        assertEquals("{\"49001\":200,\"49002\":200}", handOff(peer, Map.of("49001", fresh + 1000, "49002", 6000L)));
+        assertEquals("10.5", node.getStore().get("49001").get("air_temp"));
+        assertNull(node.getStore().get("49001").get("rel_hum")); // Replaced, not merged
+        assertEquals(fresh + 1000, node.getStore().get("49001").updatedMillis);
+    }
+
+    // Sends stations 49001 and 49002 (air_temp 10.5) as a handoff with the given versions, returns the station statuses
+    private static String handOff(ServerFixture.Connection peer, Map<String, Long> versions) throws IOException, ClassNotFoundException {
+        String json = "{\n\"49001\" : {\n\"air_temp\" : 10.5\n},\n\"49002\" : {\n\"air_temp\" : 10.5\n}\n}";
+        peer.send("PUT /batch HTTP/1.1\nHost: localhost\nUser-Agent: ATOMClient/1/0\nContent-Type: weather/json-batch\n"
+                + "Content-Length: " + json.lines().count() + "\nVersions: " + Cluster.formatVersions(new TreeMap<String, Long>(versions))
+                + "\n \n" + json);
+        String response = peer.read();
+        assertEquals("207", response.split("\n")[0]);
+        return response.substring(response.indexOf('{')).replaceAll("\\s", "");
+    }
+
+    // Sends a CLUSTER request with the node list as the given identity, returns the status code
+    private String ringRequest(int port, String identity, String nodes) throws IOException, ClassNotFoundException {
+        try (ServerFixture.Connection connection = fixture.connection(port, identity)) {
+            connection.send("CLUSTER /ring HTTP/1.1\nHost: localhost\nUser-Agent: ATOMClient/1/0\nNodes: " + nodes);
+            return connection.read().split("\n")[0];
+        }
+    }
+
+    private static String findMoved(Iterable<String> stationIDs, HashRing ring, String node) {
+        for (String stationID : stationIDs) {
+            if (ring.ownerOf(stationID).equals(node)) {
+                return stationID;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,58 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConnectionSoakTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close(); // Also closes the idle connections
+    }
+
+    @Test
+    // Soak test for virtual-thread connection handling
+    // Holds idle connections open (handshake sent, no requests) against an AggregationServer in virtual-thread mode
+    // Checks that every connection is registered while the platform thread count and heap per connection stay bounded
+    // 200 connections by default, so it runs under a default open file limit. The full soak is -Dsoak.connections=10000
+    // (each connection uses 2 open files in this process, client + server end, so raise ulimit -n first)
+    void idleConnectionsSoakTest() throws IOException, InterruptedException {
+        int numConnections = Integer.getInteger("soak.connections", 200);
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> server.setVirtualThreads(true), false);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        int threadsBefore = threads.getThreadCount(); // Only counts platform threads
+
+        for (int i = 0; i < numConnections; ++i) {
+            fixture.connection(port, "GETClient" + i); // Handshake: timestamp and a unique ID
+        }
+
+        long deadline = System.currentTimeMillis() + 60000; // Wait (max 60s) for every handshake to be processed
+        while ((as.getStreams().size() < numConnections) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(100);
+        }
+        assertEquals(numConnections, as.getStreams().size()); // Every idle connection is registered and being listened to
+
+        Thread.sleep(2000); // Connections sit idle
+        System.gc();
+        long heapPerConnection = (memory.getHeapMemoryUsage().getUsed() - heapBefore) / numConnections;
+        int addedThreads = threads.getThreadCount() - threadsBefore;
+        System.out.println(numConnections + " idle connections: " + addedThreads + " extra platform threads, "
+                + (heapPerConnection / 1024) + "KB heap per connection (client and server side)");
+        assertTrue(addedThreads < 50); // Only the carrier threads, not one thread per socket
+        assertTrue(heapPerConnection < 64 * 1024);
+    }
+}
@@ -0,0 +1,114 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+import protocol.WireProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeltaPutTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    @Test
+    // Unit test: the base version is read from the Content-Type header only
+    void baseVersionTest() {
+        String delta = "PUT /ContentServer//weather.json HTTP/1.1\nHost: x\nUser-Agent: ATOMClient/1/0\n"
+                + "Content-Type: weather/json; base-version=1697500000123\nContent-Length: 3\n \n{\n}";
+        assertEquals(1697500000123L, AggregationServer.baseVersionOf(delta, delta.indexOf('{')));
+        String regular = "PUT /ContentServer//weather.json HTTP/1.1\nHost: x\nUser-Agent: ATOMClient/1/0\n"
+                + "Content-Type: weather/json\nContent-Length: 3\n \n{\n    \"name\" : \"base-version=5\"\n}";
+        assertEquals(-1, AggregationServer.baseVersionOf(regular, regular.indexOf('{')));
+    }
+
+    @Test
+    // Unit test: the base version of a binary delta travels in the frame's header, so the fields are only weather data
+    void baseVersionFrameTest() throws IOException {
+        Frame delta = new Frame(WireProtocol.OP_PUT_DELTA, 3, "CS4567");
+        delta.baseVersion = 1697500000123L;
+        delta.fields.put("air_temp", "13.3");
+        Frame decoded = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(delta)));
+        assertEquals(1697500000123L, decoded.baseVersion);
+        assertEquals(Map.of("air_temp", "13.3"), decoded.fields);
+        delta.baseVersion = -1;
+        assertEquals(-1, WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(delta))).baseVersion);
+    }
+
+    @Test
+    // Integration test: delta PUTs with Java serialised Strings
+    void textDeltaTest() throws IOException, InterruptedException {
+        deltaRoundTrip(false);
+    }
+
+    @Test
+    // Integration test: delta PUTs with the binary protocol
+    void binaryDeltaTest() throws IOException, InterruptedException {
+        deltaRoundTrip(true);
+    }
+
+    // Performance test: a Content Server whose feed only changes air_temp sends the whole record once, then only
+    // air_temp; the server still holds every entry. A delta against data the server lost (expired) is refused with
+    // 409 and the Content Server sends everything again
+    private void deltaRoundTrip(boolean binary) throws IOException, InterruptedException {
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> {}, true);
+
+        Path entryFile = Paths.get(fixture.folder("deltaentries"), "entryfile.txt");
+        String entries = Files.readString(Paths.get("src/main/java/ContentServer/entryfile.txt"));
+        Files.writeString(entryFile, entries);
+        ContentServer cs = fixture.contentServer(Integer.toString(port), port);
+        cs.setEntryLoc(entryFile.toString());
+        cs.setBinaryProtocol(binary);
+        fixture.connect(cs);
+        String stationID = Integer.toString(port);
+
+        cs.sendPUT();
+        assertEquals("201", cs.getLastStatus());
+        int fullBytes = cs.getLastPutBytes();
+        long version = cs.getLastVersion();
+        assertEquals(as.getStore().get(stationID).updatedMillis, version);
+
+        int deltaBytes = 0;
+        for (int i = 0; i < 5; ++i) { // Only air_temp changes
+            Files.writeString(entryFile, entries.replace("air_temp:13.3", "air_temp:1" + i + ".5"));
+            cs.sendPUT();
+            assertEquals("200", cs.getLastStatus());
+            assertTrue(cs.getLastVersion() > version);
+            version = cs.getLastVersion();
+            deltaBytes = cs.getLastPutBytes();
+            assertEquals("1" + i + ".5", as.getStore().get(stationID).get("air_temp"));
+        }
+        assertEquals("IDS60901", as.getStore().get(stationID).get("id")); // Entries that weren't sent are still there
+        assertEquals(17, as.getStore().get(stationID).weather.size());
+
+        cs.sendPUT(); // Nothing changed: an empty delta still keeps the station from expiring
+        assertEquals("200", cs.getLastStatus());
+        int emptyBytes = cs.getLastPutBytes();
+
+        as.removeStation(stationID); // Expired: the next delta has nothing to apply to
+        Files.writeString(entryFile, entries.replace("air_temp:13.3", "air_temp:20.1"));
+        cs.sendPUT();
+        assertEquals("201", cs.getLastStatus()); // 409, then sent again whole
+        assertTrue(cs.getLastPutBytes() >= fullBytes); // Whole record again (the Lamport time may have more digits)
+        assertEquals("20.1", as.getStore().get(stationID).get("air_temp"));
+        assertEquals(17, as.getStore().get(stationID).weather.size());
+
+        System.out.println((binary ? "Binary" : "Text") + " PUT: whole record " + fullBytes + " B, air_temp only "
+                + deltaBytes + " B, unchanged " + emptyBytes + " B");
+        assertTrue(deltaBytes < fullBytes / 2);
+    }
+}
@@ -0,0 +1,109 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.WeatherRecord;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExpiryTest {
+
+    // Server on a temporary folder, so expired stations don't delete any real weather data files
+    private AggregationServer newServer() throws IOException {
+        AggregationServer as = new AggregationServer();
+        as.setDirectory(Files.createTempDirectory("expiry").toString() + "/");
+        return as;
+    }
+
+    // Expiry threads running now (earlier tests' servers may still have theirs)
+    private Set<Thread> expiryThreads() {
+        Set<Thread> expiry = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("Expiry")) {
+                expiry.add(thread);
+            }
+        }
+        return expiry;
+    }
+
+    @Test
+    // Unit test: a PUT (new update time) moves the station's deadline, so it only expires 30 seconds after its last PUT
+    // Stations that aren't updated still expire, and there is never more than one deadline queued per station
+    void refreshTest() throws IOException, InterruptedException {
+        AggregationServer as = newServer();
+        long now = System.currentTimeMillis();
+        as.addToCurrentFiles("SERVER_DATA_1.txt", now - 29800); // Would expire in 200ms
+        as.addToCurrentFiles("SERVER_DATA_2.txt", now - 29800);
+        for (int i = 0; i < 100; ++i) {
+            as.addToCurrentFiles("SERVER_DATA_1.txt", now + i); // Station 1 keeps being updated
+        }
+        assertEquals(2, as.getExpiryQueueSize());
+        as.checkUpdateTimes();
+        Thread.sleep(1000);
+        assertTrue(as.getCurrFiles().containsKey("SERVER_DATA_1.txt"));
+        assertFalse(as.getCurrFiles().containsKey("SERVER_DATA_2.txt"));
+        assertEquals(1, as.getExpiryQueueSize()); // Station 1's deadline moved to its last update
+    }
+
+    @Test
+    // Unit test: a station's deadline passing while a PUT of it is running on its lane doesn't remove the data that PUT
+    // stored: the removal waits for the lane, sees the new update time and moves the deadline instead
+    void expiryOnLaneTest() throws IOException, InterruptedException {
+        AggregationServer as = newServer();
+        as.checkForTasks();
+        String filePath = as.getStore().fileFor("3");
+        as.addToCurrentFiles(filePath, System.currentTimeMillis() - 29800); // Would expire in 200ms
+        as.runOnLane("3", () -> { // A PUT of station 3 that stores its data, then takes 500ms to refresh its deadline
+            try {
+                as.applyPut("3", WeatherRecord.of(Map.of("air_temp", "13.5")));
+                Thread.sleep(500);
+                as.addToCurrentFiles(filePath, System.currentTimeMillis());
+            } catch (IOException | InterruptedException e) {
+                fail("PUT failed: " + e.getMessage());
+            }
+        });
+        as.checkUpdateTimes();
+        Thread.sleep(1000);
+        assertNotNull(as.getStore().get("3"));
+        assertTrue(as.getCurrFiles().containsKey(filePath));
+        assertEquals(1, as.getExpiryQueueSize());
+    }
+
+    @Test
+    // Performance test: 100k stations tracked, none due to expire. The expiry thread sleeps until the first deadline
+    // instead of scanning every station every 10ms: while idle it is always found waiting, never running a scan
+    void idleCpuTest() throws IOException, InterruptedException {
+        int numStations = 100000;
+        AggregationServer as = newServer();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < numStations; ++i) {
+            as.addToCurrentFiles("SERVER_DATA_" + i + ".txt", now + i);
+        }
+        Set<Thread> others = expiryThreads();
+        as.checkUpdateTimes();
+        Set<Thread> started = expiryThreads();
+        started.removeAll(others);
+        assertEquals(1, started.size());
+        Thread expiry = started.iterator().next();
+        Thread.sleep(200); // Thread started and waiting
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.getThreadCpuTime(expiry.getId());
+        for (int sample = 0; sample < 30; ++sample) {
+            assertEquals(Thread.State.TIMED_WAITING, expiry.getState()); // Waiting for the first deadline
+            Thread.sleep(100);
+        }
+        long cpuNanos = threads.getThreadCpuTime(expiry.getId()) - cpuBefore;
+        System.out.println("Expiry thread CPU while idle with " + numStations + " stations: " + (cpuNanos / 1000) + "us in 3s");
+        assertEquals(numStations, as.getCurrFiles().size());
+        assertEquals(numStations, as.getExpiryQueueSize()); // One deadline per station, none taken yet
+    }
+}
@@ -0,0 +1,90 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.GroupCommit;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GroupCommitTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    @Test
+    // Performance test: many Content Servers PUT at once to a server with the write-ahead log on
+    // Without group commit every lane syncs its own PUT; with it, acks within the window share one fsync
+    // Every PUT must still be acknowledged with its own status, after it is durable
+    void groupCommitTest() throws IOException, InterruptedException {
+        int numStations = 16;
+        int putsPerStation = 20;
+        int singlePort = ServerFixture.freePort();
+        AggregationServer single = startServer(singlePort, false);
+        long[] singleResult = putBurst(single, singlePort, numStations, putsPerStation);
+        int groupedPort = ServerFixture.freePort();
+        AggregationServer grouped = startServer(groupedPort, true);
+        long[] groupedResult = putBurst(grouped, groupedPort, numStations, putsPerStation);
+
+        GroupCommit groupCommit = grouped.getGroupCommit();
+        System.out.println("Without group commit: " + singleResult[1] + " fsyncs, " + singleResult[0] + " PUTs/s");
+        System.out.println("With group commit:    " + groupedResult[1] + " fsyncs, " + groupedResult[0] + " PUTs/s");
+        System.out.println("Batch sizes: " + groupCommit.describe());
+
+        assertEquals(numStations * putsPerStation, groupCommit.getAcks()); // Every PUT acknowledged once
+        long histogramTotal = 0;
+        for (long batches : groupCommit.getBatchSizeHistogram()) {
+            histogramTotal += batches;
+        }
+        assertEquals(groupCommit.getBatches(), histogramTotal);
+        assertTrue(groupCommit.getBatches() < groupCommit.getAcks()); // Acks were batched
+        assertTrue(groupedResult[1] <= groupCommit.getBatches() + 1); // At most one fsync per batch
+        assertEquals(numStations, grouped.getStore().size());
+    }
+
+    // Starts a server with the write-ahead log in a temporary folder, group commit 2ms window if grouped
+    private AggregationServer startServer(int port, boolean grouped) throws IOException {
+        return fixture.startServer(port, as -> {
+            as.setWriteAheadLog(true);
+            if (grouped) {
+                as.setGroupCommit(2000, 256);
+            }
+        }, true);
+    }
+
+    // Connects numStations Content Servers, all send putsPerStation PUTs at once
+    // Returns {PUTs per second, fsyncs of the write-ahead log}
+    private long[] putBurst(AggregationServer as, int port, int numStations, int putsPerStation) throws IOException, InterruptedException {
+        ContentServer[] servers = new ContentServer[numStations];
+        for (int i = 0; i < numStations; ++i) {
+            servers[i] = fixture.contentServer(Integer.toString(port * 100 + i), port);
+        }
+        fixture.connect(servers);
+        long fsyncsBefore = as.getWriteAheadLog().getFsyncs();
+
+        long start = System.nanoTime();
+        ExecutorService putExec = Executors.newFixedThreadPool(numStations);
+        for (ContentServer cs : servers) {
+            putExec.submit(() -> {
+                for (int i = 0; i < putsPerStation; ++i) {
+                    cs.sendPUT();
+                    assertTrue("200".equals(cs.getLastStatus()) || "201".equals(cs.getLastStatus()));
+                }
+            });
+        }
+        putExec.shutdown();
+        assertTrue(putExec.awaitTermination(120, TimeUnit.SECONDS));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long fsyncs = as.getWriteAheadLog().getFsyncs() - fsyncsBefore;
+        return new long[]{(long) ((numStations * putsPerStation) / seconds), fsyncs};
+    }
+}
@@ -0,0 +1,212 @@
+package test.java.Testing;
+
+import JSONParser.JSONParser;
+import JSONParser.JSONReader;
+import JSONParser.JSONWriter;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class JSONStreamingTest {
+    private static final String ENTRY_FILE = "src/main/java/ContentServer/entryfile.txt";
+
+    // Weather data of entryfile.txt in regular text entry format, as the Aggregation Server keeps it
+    private String entryText() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (String line : Files.readAllLines(Paths.get(ENTRY_FILE))) {
+            String[] entry = line.split(":", 2);
+            text.append(entry[0].trim()).append(':').append(entry[1].trim()).append('\n');
+        }
+        return text.toString();
+    }
+
+    // The JSON conversion before the streaming reader/writer, kept to compare output and speed
+    private static String legacyStringToJSON(String string) {
+        JSONParser jp = new JSONParser();
+        String JSON = "{" + "\n";
+        String[] lines = string.split(System.lineSeparator());
+        String[] l;
+        for (int i = 0; i < lines.length; ++i) {
+            l = lines[i].split(":", 2);
+            JSON += ("    ");
+            JSON += ("\"" + l[0] + "\"" + " : ");
+            if (!jp.isNumber(l[1])) {
+                JSON += ("\"" + l[1] + "\"");
+            } else {
+                JSON += (l[1]);
+            }
+            if (i != (lines.length - 1)) {
+                JSON += (",");
+            }
+            JSON += ("\n");
+        }
+        JSON += ("}");
+        return JSON;
+    }
+
+    // The PUT body parsing of AggregationServer.executePUT before the streaming reader (one entry per line only)
+    private static LinkedHashMap<String, String> legacyParse(String JSON) {
+        String[] requestLines = JSON.split("\r?\n");
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        String[] lineElements;
+        for (int i = 1; i < requestLines.length - 1; ++i) {
+            lineElements = requestLines[i].split(":", 2);
+            lineElements[0] = lineElements[0].trim();
+            lineElements[0] = lineElements[0].replace("\"", "");
+            lineElements[1] = lineElements[1].trim();
+            lineElements[1] = lineElements[1].replaceAll(",", "");
+            lineElements[1] = lineElements[1].replaceAll("\"", "");
+            entries.put(lineElements[0], lineElements[1]);
+        }
+        return entries;
+    }
+
+    @Test
+    // Unit test: any layout and whitespace gives the same entries, strings are unescaped, numbers keep their text
+    void readerTest() throws ParseException {
+        LinkedHashMap<String, String> pretty = new JSONReader("{\n    \"id\" : \"IDS60901\",\n    \"lat\" : -34.9\n}").readObject();
+        LinkedHashMap<String, String> compact = new JSONReader("{\"id\":\"IDS60901\",\"lat\":-34.9}").readObject();
+        LinkedHashMap<String, String> spaced = new JSONReader(" \t{ \"id\"\r\n:\"IDS60901\" ,\"lat\":  -34.9 }\n").readObject();
+        assertEquals(pretty, compact);
+        assertEquals(pretty, spaced);
+        assertEquals("-34.9", compact.get("lat"));
+
+        LinkedHashMap<String, String> escaped = new JSONReader(
+                "{\"name\":\"Adelaide, \\\"West\\\" \\\\ \\u00e9\\n\",\"ok\":true,\"none\":null,\"e\":1.5E-3}").readObject();
+        assertEquals("Adelaide, \"West\" \\ \u00e9\n", escaped.get("name")); // Comma inside a string is kept
+        assertEquals("true", escaped.get("ok"));
+        assertEquals("null", escaped.get("none"));
+        assertEquals("1.5E-3", escaped.get("e"));
+        assertEquals(0, new JSONReader("{ }").readObject().size());
+
+        String[] invalid = {"", "{", "{\"id\":}", "{\"id\":\"x\",}", "{\"id\" \"x\"}", "{\"id\":\"x\"} extra",
+                "{\"id\":{\"nested\":1}}", "{\"id\":[1]}", "{\"id\":\"unterminated}", "{\"id\":01}", "{\"id\":\"\\q\"}"};
+        for (String json : invalid) {
+            assertThrows(ParseException.class, () -> new JSONReader(json).readObject());
+        }
+    }
+
+    @Test
+    // Unit test: a batch PUT body (object of weather data objects) in any layout, and what the writer makes of one
+    void batchTest() throws ParseException {
+        LinkedHashMap<String, LinkedHashMap<String, String>> batch = new JSONParser().parseBatch(
+                "{\"60901\":{\"id\":\"IDS60901\",\"lat\":-34.9}, \"60902\" : { },\n\"60903\":{\"air_temp\":1}}", 0);
+        assertEquals(3, batch.size());
+        assertEquals(Map.of("id", "IDS60901", "lat", "-34.9"), batch.get("60901"));
+        assertTrue(batch.get("60902").isEmpty());
+        assertEquals("1", batch.get("60903").get("air_temp"));
+        assertThrows(ParseException.class, () -> new JSONReader("{\"60901\":\"IDS60901\"}").readObjects());
+        assertThrows(ParseException.class, () -> new JSONReader("{\"60901\":{\"a\":{}}}").readObjects());
+
+        StringBuilder json = new StringBuilder();
+        JSONWriter writer = new JSONWriter(json).beginObject();
+        for (Map.Entry<String, LinkedHashMap<String, String>> record : batch.entrySet()) {
+            writer.name(record.getKey());
+            JSONWriter inner = new JSONWriter(json).beginObject();
+            record.getValue().forEach(inner::field);
+            inner.endObject();
+        }
+        writer.endObject();
+        assertEquals(batch, new JSONReader(json).readObjects()); // Round trip
+    }
+
+    @Test
+    // Unit test: the writer gives exactly the old layout for the sample data, escapes strings that need it, and what
+    // it writes reads back the same
+    void writerTest() throws IOException {
+        JSONParser jp = new JSONParser();
+        String text = entryText();
+        assertEquals(legacyStringToJSON(text), jp.stringToJSON(text));
+        assertEquals(text, jp.JSONtoString(jp.stringToJSON(text))); // Round trip
+
+        String awkward = "name:Say \"hi\", then \\ leave\ncode:007\nlat:-34.9\n";
+        String JSON = jp.stringToJSON(awkward);
+        assertTrue(JSON.contains("\"code\" : \"007\"")); // Not a JSON number, so quoted
+        assertTrue(JSON.contains("\"lat\" : -34.9"));
+        assertEquals(awkward, jp.JSONtoString(JSON));
+    }
+
+    @Test
+    // Unit test: textToJSON on the sample entry file trims feeds/entries and leaves short numbers unquoted, as before
+    void textToJSONTest() throws IOException, ParseException {
+        JSONParser jp = new JSONParser();
+        Path output = Files.createTempFile("weather", ".json");
+        jp.textToJSON(ENTRY_FILE, output.toString());
+        String JSON = Files.readString(output);
+        assertTrue(JSON.startsWith("{\n    \"id\" : \"IDS60901\",\n"));
+        assertTrue(JSON.endsWith("\n}\n"));
+        assertTrue(JSON.contains("\"state\" : \"SA\","));
+        assertTrue(JSON.contains("\"lat\" : -34.9,"));
+        assertTrue(JSON.contains("\"local_date_time_full\" : \"20230715160000\","));
+        LinkedHashMap<String, String> entries = new JSONReader(JSON).readObject();
+        assertEquals(legacyParse(JSON), entries); // The old parser reads it the same
+        assertEquals(17, entries.size());
+        assertTrue(jp.matchesFeedTypes(entries));
+    }
+
+    @Test
+    // Unit test: feedTypes validation is the same as before: string types can't be numbers, int types must be numbers
+    void feedTypesTest() {
+        JSONParser jp = new JSONParser();
+        assertTrue(jp.matchesFeedTypes(Map.of("id", "IDS60901", "air_temp", "13.3", "unknown_type", "5")));
+        assertFalse(jp.matchesFeedTypes(Map.of("id", "60901")));
+        assertFalse(jp.matchesFeedTypes(Map.of("air_temp", "warm")));
+    }
+
+    // Runs the task until the JIT has settled, then measures it. Returns {ns per op, bytes allocated per op}
+    private static double[] measure(int iterations, Runnable task) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        for (int i = 0; i < iterations; ++i) { // Warm-up
+            task.run();
+        }
+        long bytesBefore = threads.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            task.run();
+        }
+        long nanos = System.nanoTime() - start;
+        long bytes = threads.getCurrentThreadAllocatedBytes() - bytesBefore;
+        return new double[]{(double) nanos / iterations, (double) bytes / iterations};
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+    // Performance test (hand-rolled harness: warm-up pass, then a measured pass of the same length) on the
+    // entryfile.txt payload: the old split/replaceAll/concatenation code against the streaming reader/writer
+    // Allocation per operation depends on the JIT, so it only runs with -Dbenchmarks=true
+    void benchmarkTest() throws IOException {
+        int iterations = Integer.getInteger("json.iterations", 50000);
+        JSONParser jp = new JSONParser();
+        String text = entryText();
+        String JSON = jp.stringToJSON(text);
+        Object[] sink = new Object[1]; // Keeps results alive so the JIT can't drop the work
+
+        double[] oldParse = measure(iterations, () -> sink[0] = legacyParse(JSON));
+        double[] newParse = measure(iterations, () -> {
+            try {
+                sink[0] = new JSONReader(JSON).readObject();
+            } catch (ParseException pe) {
+                throw new IllegalStateException(pe);
+            }
+        });
+        double[] oldWrite = measure(iterations, () -> sink[0] = legacyStringToJSON(text));
+        double[] newWrite = measure(iterations, () -> sink[0] = jp.stringToJSON(text));
+
+        System.out.printf("Parse %d-byte JSON: old %.0fns %.0fB/op, streaming %.0fns %.0fB/op%n",
+                JSON.length(), oldParse[0], oldParse[1], newParse[0], newParse[1]);
+        System.out.printf("Write JSON:         old %.0fns %.0fB/op, streaming %.0fns %.0fB/op%n",
+                oldWrite[0], oldWrite[1], newWrite[0], newWrite[1]);
+        assertTrue(newParse[1] < oldParse[1]);
+        assertTrue(newWrite[1] < oldWrite[1]);
+    }
+}
@@ -0,0 +1,111 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.SerialStringFramer;
+import Client.GETClient;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioTransportTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    @Test
+    // Unit test
+    // Feeds the framer the exact bytes an ObjectOutputStream writes, one byte at a time (worst case for partial reads)
+    // Covers a short String, a repeated String (sent as a back-reference), a non-ASCII String and a String over 64KB
+    void serialStringFramerTest() throws IOException {
+        String repeated = "1\nCS123";
+        String nonAscii = "2\nname:Adélaïde \u0000 ngayirdapira";
+        String longMessage = "3\n" + "x".repeat(70000); // Over 65535 bytes -> TC_LONGSTRING
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(repeated);
+        out.writeObject(repeated); // Same object -> ObjectOutputStream only writes a reference to it
+        out.writeObject(nonAscii);
+        out.writeObject(longMessage);
+        out.flush();
+
+        SerialStringFramer framer = new SerialStringFramer();
+        ArrayList<String> received = new ArrayList<String>();
+        for (byte b : bytes.toByteArray()) {
+            received.addAll(framer.feed(ByteBuffer.wrap(new byte[]{b})));
+        }
+        assertEquals(4, received.size());
+        assertEquals(repeated, received.get(0));
+        assertEquals(repeated, received.get(1));
+        assertEquals(nonAscii, received.get(2));
+        assertEquals(longMessage, received.get(3));
+    }
+
+    @Test
+    // Integration test: unmodified ContentServer and GETClient talk to a server using the NIO transport
+    // The PUT must be stored and the GET must receive the stored data, so both still speak the same wire format
+    void nioWireCompatibilityTest() throws IOException, InterruptedException {
+        int port = ServerFixture.freePort();
+        String directory = fixture.folder("nio") + "/";
+        AggregationServer as = fixture.startServer(port, server -> {
+            server.setDirectory(directory);
+            server.setNioThreads(2);
+        }, true);
+
+        ContentServer cs = fixture.contentServer(Integer.toString(port), port);
+        fixture.connect(cs);
+
+        GETClient gc = new GETClient();
+        gc.setInfo("https://localhost.cia.gov:" + port, port, cs.getID());
+        ExecutorService GETexec = Executors.newSingleThreadExecutor();
+        GETexec.submit(gc::beginOperation);
+        Thread.sleep(1000); // Waits for the GETClient to connect
+        assertEquals(2, as.getStreams().size()); // Both handshakes were framed and registered
+
+        cs.sendPUT(); // Blocked until the status comes back through the channel
+        as.getStore().flush(); // Writes the data the write-behind flusher hasn't written yet
+        assertTrue(Files.exists(Paths.get(directory + "SERVER_DATA_" + cs.getID() + ".txt")));
+
+        gc.sendGET(port); // Blocked until the data comes back through the channel
+        assertNotNull(gc.getReceivedJSON());
+        assertTrue(gc.getReceivedJSON().contains("IDS60901")); // Data uploaded by the Content Server
+        GETexec.shutdownNow();
+    }
+
+    @Test
+    // Integration test: a client whose handshake the server can't read (timestamp not a number) is disconnected on
+    // its own. The event loop carries on: it still accepts and serves other clients
+    void badClientTest() throws IOException, ClassNotFoundException {
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> server.setNioThreads(1), true); // One loop does it all
+        try (Socket bad = new Socket("localhost", port)) {
+            bad.setSoTimeout(5000);
+            ObjectOutputStream out = new ObjectOutputStream(bad.getOutputStream());
+            ObjectInputStream in = new ObjectInputStream(bad.getInputStream());
+            out.writeObject("not a time\nCSbad");
+            out.flush();
+            assertThrows(EOFException.class, in::readObject); // Closed by the server
+        }
+        ServerFixture.Connection good = fixture.connection(port, "CS4573");
+        good.put("1", "{\n    \"air_temp\" : 13.3\n}");
+        assertEquals("201", good.statuses(1).get(0)[1]);
+        assertEquals("13.3", as.getStore().get("4573").get("air_temp"));
+    }
+}
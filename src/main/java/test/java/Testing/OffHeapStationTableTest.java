@@ -0,0 +1,254 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.HeapStationTable;
+import AggregationServer.OffHeapStationTable;
+import AggregationServer.StationRecord;
+import AggregationServer.StationStore;
+import AggregationServer.WeatherRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapStationTableTest {
+
+    // The data of entryfile.txt, with the station's number put into its id/name and temperatures
+    private static WeatherRecord weather(int station) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("id", "IDS" + (60901 + station));
+        entries.put("name", "Adelaide (West Terrace /  ngayirdapira) " + station);
+        entries.put("state", "SA");
+        entries.put("time_zone", "CST");
+        entries.put("lat", "-34.9");
+        entries.put("lon", "138.6");
+        entries.put("local_date_time", "15/04:00pm");
+        entries.put("local_date_time_full", "20230715160000");
+        entries.put("air_temp", (station % 40) + ".3");
+        entries.put("apparent_t", "9.5");
+        entries.put("cloud", "Partly cloudy");
+        entries.put("dewpt", "5.7");
+        entries.put("press", "1023.9");
+        entries.put("rel_hum", Integer.toString(station % 100));
+        entries.put("wind_dir", "S");
+        entries.put("wind_spd_kmh", "15");
+        entries.put("wind_spd_kt", "8");
+        return WeatherRecord.of(entries);
+    }
+
+    private static void assertSameRecord(StationRecord expected, StationRecord actual) {
+        assertEquals(expected.stationID, actual.stationID);
+        assertEquals(expected.entries(), actual.entries());
+        assertEquals(expected.updatedMillis, actual.updatedMillis);
+        assertEquals(expected.toJSON(), actual.toJSON());
+    }
+
+    @Test
+    // Unit test: PUTs merged into the off-heap table give exactly the records the heap table gives, including extra
+    // types, numbers kept as text and non-ASCII text
+    void sameAsHeapTest() throws IOException {
+        HeapStationTable heap = new HeapStationTable();
+        try (OffHeapStationTable offHeap = new OffHeapStationTable(16)) {
+            Map<String, String>[] puts = new Map[]{
+                    weather(1).toMap(),
+                    Map.of("air_temp", "1e5", "extra_type", "hello"),
+                    Map.of("air_temp", "14.0", "name", "Café été", "other", "x"),
+                    Map.of("dewpt", "-0.0")};
+            long now = 1000;
+            for (Map<String, String> put : puts) {
+                for (String id : new String[]{"4567", "60901"}) {
+                    assertEquals(heap.merge(id, WeatherRecord.of(put), now), offHeap.merge(id, WeatherRecord.of(put), now));
+                    assertSameRecord(heap.get(id), offHeap.get(id));
+                }
+            }
+            assertEquals(2, offHeap.size());
+            assertEquals(2, offHeap.records().size());
+            assertNull(offHeap.get("1234"));
+
+            offHeap.put(new StationRecord("1234", weather(2), 5)); // Whole record (e.g. restored)
+            assertSameRecord(new StationRecord("1234", weather(2), 5), offHeap.get("1234"));
+        }
+    }
+
+    @Test
+    // Unit test: capacity is enforced, removed slots are reused, and the index stays correct after many removals
+    void capacityTest() throws IOException {
+        try (OffHeapStationTable table = new OffHeapStationTable(4)) {
+            for (int s = 0; s < 4; ++s) {
+                assertTrue(table.merge(Integer.toString(s), weather(s), s));
+            }
+            assertThrows(IOException.class, () -> table.merge("4", weather(4), 4));
+            table.remove("2");
+            table.remove("2"); // Already gone
+            assertNull(table.get("2"));
+            assertTrue(table.merge("4", weather(4), 4));
+            assertEquals(4, table.size());
+
+            for (int round = 0; round < 10000; ++round) { // Churn: the index is rebuilt from time to time
+                String id = "churn" + round;
+                table.remove(Integer.toString(round % 2));
+                assertTrue(table.merge(id, weather(round), round));
+                assertEquals("IDS" + (60901 + round), table.get(id).get("id"));
+                table.remove(id);
+                table.merge(Integer.toString(round % 2), weather(round % 2), round);
+            }
+            for (String id : new String[]{"0", "1", "3", "4"}) {
+                assertEquals(id, table.get(id).stationID);
+            }
+            assertEquals(4, table.size());
+            table.clear();
+            assertEquals(0, table.size());
+            assertNull(table.get("0"));
+        }
+    }
+
+    @Test
+    // Unit test: data that doesn't fit in a slot is refused and leaves the station's record as it was
+    void tooLargeTest() throws IOException {
+        try (OffHeapStationTable table = new OffHeapStationTable(4)) {
+            table.merge("1", weather(1), 1);
+            StationRecord before = table.get("1");
+            assertThrows(IOException.class, () -> table.merge("1", WeatherRecord.of(Map.of("name", "x".repeat(300))), 2));
+            assertThrows(IOException.class, () -> table.merge("123456789012345678901234", weather(1), 2));
+            LinkedHashMap<String, String> many = new LinkedHashMap<String, String>();
+            for (int i = 0; i < OffHeapStationTable.MAX_FIELDS; ++i) {
+                many.put("t" + i, "v");
+            }
+            assertThrows(IOException.class, () -> table.merge("1", WeatherRecord.of(many), 2));
+            assertSameRecord(before, table.get("1"));
+            assertEquals(1, table.size());
+        }
+    }
+
+    @Test
+    // Unit test: GETs running while PUTs rewrite the slot always see a whole record (air_temp and dewpt are always
+    // written together with the same value)
+    void concurrentReadTest() throws Exception {
+        try (OffHeapStationTable table = new OffHeapStationTable(8)) {
+            table.merge("1", WeatherRecord.of(Map.of("air_temp", "0", "dewpt", "0")), 0);
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicReference<String> torn = new AtomicReference<String>();
+            Thread[] readers = new Thread[4];
+            for (int r = 0; r < readers.length; ++r) {
+                readers[r] = new Thread(() -> {
+                    while (running.get()) {
+                        StationRecord record = table.get("1");
+                        if (!record.get("air_temp").equals(record.get("dewpt"))) {
+                            torn.set(record.text());
+                        }
+                    }
+                });
+                readers[r].start();
+            }
+            for (int i = 1; i <= 200000; ++i) {
+                String value = Integer.toString(i);
+                table.merge("1", WeatherRecord.of(Map.of("air_temp", value, "dewpt", value)), i);
+                if (i % 1000 == 0) { // Other stations coming and going move the index around
+                    table.merge("x" + i, weather(i), i);
+                    table.remove("x" + i);
+                }
+            }
+            running.set(false);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            assertNull(torn.get());
+            assertEquals("200000", table.get("1").get("air_temp"));
+        }
+    }
+
+    @Test
+    // Integration test: --off-heap=N moves the server's records off the heap, PUTs and GETs use the table
+    void serverOptionTest() throws IOException {
+        AggregationServer as = new AggregationServer();
+        as.setDirectory(Files.createTempDirectory("offheap").toString() + "/");
+        as.parseArguments(new String[]{"--durability=memory", "--off-heap=100"});
+        assertTrue(as.getStore().getTable() instanceof OffHeapStationTable);
+        assertTrue(as.applyPut("4567", weather(1)));
+        assertFalse(as.applyPut("4567", WeatherRecord.of(Map.of("air_temp", "20.1"))));
+        assertEquals("20.1", as.getStore().get("4567").get("air_temp"));
+        assertEquals("IDS60902", as.getStore().get("4567").get("id"));
+    }
+
+    // Heap in use after a full GC
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    // Fills a MEMORY store with numStations stations, then measures the heap they keep and the time the GC spends on
+    // full collections and on a burst of short-lived garbage (PUTs/GETs) while they are held
+    // Returns {heap bytes, full GC ms, churn GC ms}
+    private static long[] measureStore(StationStore store, int numStations) throws IOException {
+        store.setDurability(StationStore.Durability.MEMORY);
+        long before = usedHeap();
+        for (int s = 0; s < numStations; ++s) {
+            store.put(Integer.toString(s), weather(s), s, false);
+        }
+        long heap = Math.max(0, usedHeap() - before); // 0 if garbage from before was freed meanwhile
+
+        long gcStart = gcMillis();
+        for (int i = 0; i < 5; ++i) {
+            System.gc();
+        }
+        long fullGc = (gcMillis() - gcStart) / 5;
+
+        gcStart = gcMillis();
+        for (int i = 0; i < 2000000; ++i) { // Updates and reads spread over every station
+            String id = Integer.toString((int) ((i * 2654435761L) % numStations));
+            if ((i & 1) == 0) {
+                store.put(id, WeatherRecord.of(Map.of("air_temp", Integer.toString(i % 40))), i, false);
+            } else {
+                assertNotNull(store.get(id));
+            }
+        }
+        long churnGc = gcMillis() - gcStart;
+        assertEquals(numStations, store.size());
+        return new long[]{heap, fullGc, churnGc};
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+    // Performance test: heap kept and GC time with 1M stations (-Doffheap.stations to change), heap-based store
+    // against the off-heap table. Needs a few GB of heap, so it only runs with -Dbenchmarks=true
+    void gcBenchmarkTest() throws IOException {
+        int numStations = Integer.getInteger("offheap.stations", 1000000);
+        StationStore heapStore = new StationStore(Files.createTempDirectory("heapstore").toString() + "/");
+        long[] heap = measureStore(heapStore, numStations);
+        heapStore.getTable().clear();
+        heapStore = null;
+
+        StationStore offHeapStore = new StationStore(Files.createTempDirectory("offheapstore").toString() + "/");
+        offHeapStore.useOffHeap(numStations);
+        long[] offHeap = measureStore(offHeapStore, numStations);
+        OffHeapStationTable table = (OffHeapStationTable) offHeapStore.getTable();
+
+        System.out.printf("%d stations, heap store:     %d MB heap, full GC %d ms, GC during 2M PUT/GET %d ms%n",
+                numStations, heap[0] >> 20, heap[1], heap[2]);
+        System.out.printf("%d stations, off-heap table: %d MB heap + %d MB native (%d B slots), full GC %d ms, "
+                        + "GC during 2M PUT/GET %d ms%n", numStations, offHeap[0] >> 20, table.getNativeBytes() >> 20,
+                table.getSlotSize(), offHeap[1], offHeap[2]);
+        assertTrue(offHeap[0] < heap[0] / 10); // Stations no longer on the heap
+        table.close();
+    }
+}
@@ -0,0 +1,137 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+import protocol.WireProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PipelineTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // Starts a server with the write-ahead log and a 2ms group commit window: every PUT's status waits for its batch
+    private AggregationServer startServer(int port) throws IOException {
+        return fixture.startServer(port, as -> {
+            as.setWriteAheadLog(true);
+            as.setGroupCommit(2000, 256);
+        }, true);
+    }
+
+    @Test
+    // Integration test: statuses can come back in another order than their PUTs (an invalid PUT is answered at once,
+    // a stored one after its batch is durable), the Request-ID header says which PUT each one belongs to
+    void requestIDTest() throws IOException, ClassNotFoundException {
+        int port = ServerFixture.freePort();
+        AggregationServer as = startServer(port);
+        ServerFixture.Connection cs = fixture.connection(port, "CS4581");
+        cs.put("7", "{\n    \"air_temp\" : 13.3\n}");
+        cs.put("8", "not JSON");
+        cs.put(null, "{\n    \"air_temp\" : 14.1\n}"); // Untagged: still works
+
+        HashMap<String, String> statuses = cs.statusCodes(3); // Request ID -> status code
+        assertEquals("201", statuses.get("7"));
+        assertEquals("500", statuses.get("8"));
+        assertEquals("200", statuses.get(null));
+        assertEquals("14.1", as.getStore().get("4581").get("air_temp"));
+    }
+
+    @Test
+    // Unit test: a binary PUT's request ID travels in the frame's header, not among its weather data, and comes back
+    // the same way in its status frame. An untagged PUT has none
+    void requestIDFrameTest() throws IOException {
+        Frame put = new Frame(WireProtocol.OP_PUT, 5, "CS4567");
+        put.requestID = "42";
+        put.fields.put("air_temp", "13.3");
+        Frame decoded = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(put)));
+        assertEquals("42", decoded.requestID);
+        assertEquals(Map.of("air_temp", "13.3"), decoded.fields);
+        Frame status = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(Frame.status(6, "201", 7, "42"))));
+        assertEquals("42", status.getRequestID());
+        assertEquals(Map.of("status", "201", "version", "7"), status.fields);
+        put.requestID = null;
+        assertNull(WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(put))).requestID);
+    }
+
+    @Test
+    // Performance test: PUTs from one Content Server, waiting for every status against pipelined
+    void textPipelineTest() throws IOException, InterruptedException, ClassNotFoundException {
+        pipelineBenchmark(ServerFixture.freePort(), false);
+    }
+
+    @Test
+    // Performance test: same with the binary protocol
+    void binaryPipelineTest() throws IOException, InterruptedException, ClassNotFoundException {
+        pipelineBenchmark(ServerFixture.freePort(), true);
+    }
+
+    // Sends numPuts PUTs one at a time (each waits for its status, so each is a group commit batch of its own), then
+    // numPuts pipelined (up to 32 on their way, so acks of one batch are shared). Every PUT must still get its own
+    // status, matched by its Request-ID. Timings are printed only
+    private void pipelineBenchmark(int port, boolean binary) throws IOException, InterruptedException, ClassNotFoundException {
+        int numPuts = 200;
+        AggregationServer as = startServer(port);
+        ContentServer cs = fixture.contentServer(Integer.toString(port), port);
+        cs.setBinaryProtocol(binary);
+        cs.setDeltaPuts(false); // Same message every time
+        fixture.connect(cs);
+
+        long batchesBefore = as.getGroupCommit().getBatches();
+        long start = System.nanoTime();
+        for (int i = 0; i < numPuts; ++i) {
+            cs.sendPUT();
+            assertTrue("200".equals(cs.getLastStatus()) || "201".equals(cs.getLastStatus()));
+        }
+        long oneAtATime = (System.nanoTime() - start) / 1000000;
+        assertEquals(numPuts, as.getGroupCommit().getBatches() - batchesBefore); // Never two PUTs on their way
+
+        long acksBefore = as.getGroupCommit().getAcks();
+        batchesBefore = as.getGroupCommit().getBatches();
+        start = System.nanoTime();
+        long lastID = -1;
+        for (int i = 0; i < numPuts; ++i) {
+            long requestID = cs.pipelinePUT();
+            assertTrue(requestID > lastID); // Every PUT has its own tag
+            lastID = requestID;
+        }
+        assertTrue(cs.awaitAcks(60000));
+        long pipelined = (System.nanoTime() - start) / 1000000;
+        assertEquals("200", cs.getLastStatus());
+        assertEquals(numPuts, as.getGroupCommit().getAcks() - acksBefore);
+        assertTrue(as.getGroupCommit().getBatches() - batchesBefore < numPuts); // PUTs overlapped: batches were shared
+
+        System.out.println((binary ? "Binary" : "Text") + ": " + numPuts + " PUTs one at a time " + oneAtATime
+                + "ms, pipelined " + pipelined + "ms");
+
+        // The same over a raw connection: each status carries its PUT's Request-ID, and in request order the
+        // station's versions never go back (PUTs in the same millisecond share one), so every status belongs to the PUT
+        // it names. The last PUT's status has the version the station ends up with
+        ServerFixture.Connection raw = fixture.connection(port, "CS" + (port + 1));
+        int numRaw = 50;
+        for (int i = 0; i < numRaw; ++i) {
+            raw.put(Integer.toString(i), "{\n    \"air_temp\" : " + i + ".5\n}");
+        }
+        HashMap<Integer, Long> versions = new HashMap<Integer, Long>();
+        for (String[] status : raw.statuses(numRaw)) {
+            assertNull(versions.put(Integer.parseInt(status[0]), Long.parseLong(status[2]))); // Each ID once
+            assertEquals(status[0].equals("0") ? "201" : "200", status[1]);
+        }
+        for (int i = 1; i < numRaw; ++i) {
+            assertTrue(versions.get(i) >= versions.get(i - 1));
+        }
+        assertEquals((numRaw - 1) + ".5", as.getStore().get(Integer.toString(port + 1)).get("air_temp"));
+        assertEquals(as.getStore().get(Integer.toString(port + 1)).updatedMillis, (long) versions.get(numRaw - 1));
+    }
+}
@@ -0,0 +1,128 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationStore;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PutCoalescingTest {
+
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // Starts a server that accepts connections but doesn't run requests until the test calls checkForTasks, so the
+    // PUTs sent before that are all waiting in its queue, like a burst the lanes haven't caught up with
+    private AggregationServer startServer(int port, boolean coalescing) throws IOException {
+        return fixture.startServer(port, as -> {
+            as.setCoalescing(coalescing);
+            as.getStore().setDurability(StationStore.Durability.WRITE_THROUGH); // A synced file write per applied PUT
+        }, false);
+    }
+
+    @Test
+    // Integration test: a station's waiting PUTs are merged into one write in the order they were sent, and each still
+    // gets its own status (an invalid one its 500). A GET queued between PUTs sees exactly the PUTs sent before it
+    void coalesceTest() throws IOException, ClassNotFoundException, InterruptedException {
+        int port = ServerFixture.freePort();
+        AggregationServer as = startServer(port, true);
+        ServerFixture.Connection cs = fixture.connection(port, "CS4593");
+        cs.put("1", "{\n    \"air_temp\" : 1.5,\n    \"dewpt\" : 1.1\n}");
+        cs.put("2", "{\n    \"air_temp\" : 2.5\n}");
+        cs.put("3", "not JSON");
+        cs.put("4", "{\n    \"air_temp\" : 4.5,\n    \"rel_hum\" : 40\n}");
+        Thread.sleep(200); // Queued before the GET
+        ServerFixture.Connection client = fixture.connection(port, "GETClient1");
+        client.send("GET /AggregationServer/SERVER_DATA.txt HTTP/1.1\nHost: localhost\nUser-Agent: ATOMClient/1/0\nAccept: 4593/json");
+        Thread.sleep(200);
+        cs.put("5", "{\n    \"air_temp\" : 5.5\n}");
+        cs.put("6", "{\n    \"air_temp\" : 6.5\n}");
+        Thread.sleep(200);
+
+        as.checkForTasks();
+        ArrayList<String[]> statuses = cs.statuses(6);
+        HashMap<String, String[]> byID = new HashMap<String, String[]>();
+        for (String[] status : statuses) {
+            byID.put(status[0], status);
+        }
+        assertEquals("201", byID.get("1")[1]);
+        assertEquals("200", byID.get("2")[1]);
+        assertEquals("500", byID.get("3")[1]);
+        assertEquals("200", byID.get("4")[1]);
+        assertEquals(byID.get("1")[2], byID.get("4")[2]); // One write: one version
+        assertEquals("200", byID.get("6")[1]);
+        assertEquals(byID.get("5")[2], byID.get("6")[2]);
+        assertTrue(Long.parseLong(byID.get("5")[2]) > Long.parseLong(byID.get("4")[2]));
+
+        String reply = client.read();
+        assertTrue(reply.contains("4.5") && reply.contains("1.1") && reply.contains("40")); // PUTs 1-4 merged
+        assertFalse(reply.contains("5.5") || reply.contains("6.5"));
+        assertEquals("6.5", as.getStore().get("4593").get("air_temp"));
+        assertEquals("1.1", as.getStore().get("4593").get("dewpt"));
+        assertEquals(2, as.getCoalescer().getGroups());
+        assertEquals(4, as.getCoalescer().getCoalesced());
+        assertEquals(0, as.getCoalescer().getOpenGroups()); // Taken groups aren't kept
+    }
+
+    @Test
+    // Performance test: a burst of PUTs from several stations with write-through durability, run one by one against
+    // coalesced. Every PUT still gets its status either way. One by one, every PUT is a synced file write of its own;
+    // coalesced, a station's waiting PUTs share one. Timings are printed only
+    void burstTest() throws IOException, ClassNotFoundException, InterruptedException {
+        int numPuts = 10 * 100;
+        long[] oneByOne = burst(ServerFixture.freePort(), false);
+        long[] coalesced = burst(ServerFixture.freePort(), true);
+        System.out.println("Burst run one PUT at a time " + oneByOne[0] + "us (" + oneByOne[1] + " file writes), coalesced "
+                + coalesced[0] + "us (" + coalesced[1] + " file writes)");
+        assertEquals(numPuts, oneByOne[1]);
+        assertTrue(coalesced[1] < numPuts / 4);
+    }
+
+    // Sends putsPerStation PUTs from each of numStations Content Servers while the lanes aren't running, then times
+    // the server working through them until every status is back. Returns {microseconds, station file writes}
+    private long[] burst(int port, boolean coalescing) throws IOException, ClassNotFoundException, InterruptedException {
+        int numStations = 10;
+        int putsPerStation = 100;
+        AggregationServer as = startServer(port, coalescing);
+        ArrayList<ServerFixture.Connection> stations = new ArrayList<ServerFixture.Connection>();
+        for (int s = 0; s < numStations; ++s) {
+            ServerFixture.Connection cs = fixture.connection(port, "CS" + (port * 100 + s));
+            for (int i = 1; i <= putsPerStation; ++i) {
+                cs.put(Integer.toString(i), "{\n    \"id\" : \"IDS60901\",\n    \"air_temp\" : " + i + ".5,\n    \"rel_hum\" : " + i + "\n}");
+            }
+            stations.add(cs);
+        }
+        for (int wait = 0; (wait < 100) && (as.getRequestQueue().size() < numStations * putsPerStation); ++wait) {
+            Thread.sleep(20);
+        }
+        assertEquals(numStations * putsPerStation, as.getRequestQueue().size());
+
+        long writesBefore = as.getStore().getFileWrites();
+        long start = System.nanoTime();
+        as.checkForTasks();
+        for (ServerFixture.Connection cs : stations) {
+            for (String[] status : cs.statuses(putsPerStation)) {
+                assertTrue("201".equals(status[1]) || "200".equals(status[1]));
+            }
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+        long writes = as.getStore().getFileWrites() - writesBefore;
+        for (int s = 0; s < numStations; ++s) {
+            assertEquals(putsPerStation + ".5", as.getStore().get(Integer.toString(port * 100 + s)).get("air_temp"));
+        }
+        if (coalescing) {
+            System.out.println(numStations * putsPerStation + " PUTs applied as " + as.getCoalescer().getGroups() + " writes");
+            assertTrue(as.getCoalescer().getGroups() < (numStations * putsPerStation) / 4);
+        }
+        return new long[]{micros, writes};
+    }
+}
@@ -0,0 +1,103 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.RecencyIndex;
+import AggregationServer.StationStore;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecencyIndexTest {
+
+    @Test
+    // Unit test: latest/oldest follow the Lamport time of each station's last update, ties in update order
+    void orderTest() {
+        RecencyIndex index = new RecencyIndex();
+        assertNull(index.latest());
+        index.updated("A", 5);
+        index.updated("B", 5);
+        index.updated("C", 3); // Older Lamport time, even though it was updated last
+        assertEquals("B", index.latest());
+        assertEquals("C", index.oldest());
+        index.updated("A", 6); // A updated again
+        assertEquals("A", index.latest());
+        assertEquals(3, index.size());
+        index.removed("A");
+        assertEquals("B", index.latest());
+        index.removed("B");
+        index.removed("C");
+        assertNull(index.latest());
+        assertNull(index.oldest());
+    }
+
+    @Test
+    // Unit test: when the latest station expires, "latest" goes back to the station updated before it
+    void expiryTest() throws IOException, InterruptedException {
+        AggregationServer as = new AggregationServer();
+        as.setDirectory(Files.createTempDirectory("recency").toString() + "/");
+        as.getStore().setDurability(StationStore.Durability.MEMORY);
+        as.setStationTtl("2", 300);
+        long now = System.currentTimeMillis();
+        as.addToCurrentFiles(as.getStore().fileFor("1"), now);
+        as.addToCurrentFiles(as.getStore().fileFor("2"), now);
+        assertEquals(as.getStore().fileFor("2"), as.getRecency().latest());
+        as.checkUpdateTimes();
+        Thread.sleep(1000);
+        assertEquals(as.getStore().fileFor("1"), as.getRecency().latest());
+        assertEquals(1, as.getRecency().size());
+    }
+
+    @Test
+    // Performance test: finding the latest of 100k stations, the old way (scan of currentFiles) and with the index
+    // Both must find the same station; timings are printed only. Then latest/oldest must stay right as stations go
+    void latestLookupBenchmarkTest() throws IOException {
+        int numStations = 100000;
+        int lookups = 2000;
+        AggregationServer as = new AggregationServer();
+        as.setDirectory(Files.createTempDirectory("recency").toString() + "/");
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < numStations; ++i) {
+            as.addToCurrentFiles("SERVER_DATA_" + i + ".txt", now + i);
+        }
+        ConcurrentHashMap<String, Long> currentFiles = as.getCurrFiles();
+        String expected = "SERVER_DATA_" + (numStations - 1) + ".txt";
+
+        String found = null;
+        long start = System.nanoTime();
+        for (int l = 0; l < lookups; ++l) {
+            long latestTime = 0L;
+            for (ConcurrentHashMap.Entry<String, Long> curr_file : currentFiles.entrySet()) {
+                if (curr_file.getValue() > latestTime) {
+                    latestTime = curr_file.getValue();
+                    found = curr_file.getKey();
+                }
+            }
+        }
+        double scanMicros = (System.nanoTime() - start) / 1000.0 / lookups;
+        assertEquals(expected, found);
+
+        start = System.nanoTime();
+        for (int l = 0; l < lookups; ++l) {
+            found = as.getRecency().latest();
+        }
+        double indexMicros = (System.nanoTime() - start) / 1000.0 / lookups;
+        assertEquals(expected, found);
+        System.out.printf("Latest of %d stations: scan %.1fus, recency index %.3fus per lookup%n", numStations, scanMicros, indexMicros);
+
+        // Still in order as stations go: the latest ones expire, the oldest ones are evicted
+        RecencyIndex index = as.getRecency();
+        for (int i = numStations - 1; i >= numStations - 100; --i) {
+            assertEquals("SERVER_DATA_" + i + ".txt", index.latest());
+            index.removed(index.latest());
+        }
+        for (int i = 0; i < 100; ++i) {
+            assertEquals("SERVER_DATA_" + i + ".txt", index.oldest());
+            index.removed(index.oldest());
+        }
+        assertEquals(numStations - 200, index.size());
+    }
+}
@@ -0,0 +1,150 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationRecord;
+import AggregationServer.WeatherRecord;
+import Client.GETClient;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicationTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // Starts a server on port. replicationPort > 0: replicas can connect there (while it is the primary)
+    // primaryReplicationPort > 0: the server starts as a replica of the primary with that replication port
+    private AggregationServer startServer(int port, int replicationPort, int primaryReplicationPort) throws IOException {
+        return fixture.startServer(port, as -> {
+            as.setReplicationPort(replicationPort);
+            if (primaryReplicationPort > 0) {
+                as.setReplicaOf("localhost", primaryReplicationPort);
+            }
+        }, true);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (int wait = 0; (wait < 100) && !condition.getAsBoolean(); ++wait) {
+            Thread.sleep(50);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    // Every station of the primary is on the replica, with the same data and version, and nothing else
+    private static void assertSameStations(AggregationServer primary, AggregationServer replica) {
+        assertEquals(primary.getStore().size(), replica.getStore().size());
+        for (StationRecord record : primary.getStore().records()) {
+            StationRecord copy = replica.getStore().get(record.stationID);
+            assertNotNull(copy);
+            assertEquals(record.entries(), copy.entries());
+            assertEquals(record.updatedMillis, copy.updatedMillis);
+        }
+    }
+
+    @Test
+    // Integration test: a new replica gets every station, then the changes as they happen, and serves them to GETs
+    // but refuses PUTs. Cut off, it catches up with only the changes it missed, or with everything again once the
+    // primary no longer has them all
+    void catchUpTest() throws IOException, InterruptedException, ClassNotFoundException {
+        int primaryReplicationPort = ServerFixture.freePort();
+        AggregationServer primary = startServer(ServerFixture.freePort(), primaryReplicationPort, 0);
+        for (int s = 0; s < 100; ++s) {
+            primary.applyPut(Integer.toString(46000 + s), WeatherRecord.of(Map.of("id", "IDS" + s, "air_temp", s + ".5")));
+        }
+        int replicaPort = ServerFixture.freePort();
+        AggregationServer replica = startServer(replicaPort, 0, primaryReplicationPort);
+        waitFor(() -> replica.getReplication().getAppliedSeq() == primary.getReplication().getLastSeq());
+        assertSameStations(primary, replica);
+        assertEquals(1, primary.getReplication().getResets()); // New replica: everything
+        assertTrue(replica.getReplication().isReplica());
+
+        GETClient dashboard = new GETClient();
+        dashboard.setServer("localhost", replicaPort);
+        dashboard.connect();
+        assertEquals(100, dashboard.getAllStations().size()); // Reads served by the replica
+        assertEquals("7.5", dashboard.getStations(List.of("46007")).get("46007").get("air_temp"));
+        dashboard.close();
+
+        ServerFixture.Connection cs = fixture.connection(replicaPort, "CS4598"); // A Content Server that doesn't know it is a replica
+        cs.put("1", "{\n    \"air_temp\" : 13.3\n}");
+        assertEquals("503", cs.statuses(1).get(0)[1]);
+        assertNull(replica.getStore().get("4598"));
+
+        primary.getReplication().dropReplicas(); // Network failure: the replica reconnects
+        for (int s = 0; s < 50; ++s) {
+            primary.applyPut(Integer.toString(46000 + s), WeatherRecord.of(Map.of("air_temp", s + ".9")));
+        }
+        primary.removeStation("46099");
+        waitFor(() -> replica.getReplication().getAppliedSeq() == primary.getReplication().getLastSeq());
+        assertSameStations(primary, replica);
+        assertNull(replica.getStore().get("46099"));
+        assertEquals(1, primary.getReplication().getCatchUps()); // Only what it missed
+        assertEquals(1, primary.getReplication().getResets());
+
+        primary.getReplication().setLogCapacity(10);
+        primary.getReplication().dropReplicas();
+        for (int s = 0; s < 50; ++s) {
+            primary.applyPut(Integer.toString(47000 + s), WeatherRecord.of(Map.of("air_temp", s + ".1")));
+        }
+        waitFor(() -> replica.getReplication().getAppliedSeq() == primary.getReplication().getLastSeq());
+        assertSameStations(primary, replica);
+        assertTrue(primary.getReplication().getResets() >= 2); // Missed more than the log still has
+    }
+
+    @Test
+    // Integration test: a Content Server's PUTs to the primary reach both replicas. The primary dies, one replica is
+    // promoted and the other follows it; the station's next PUT goes to the new primary, updates the data it already
+    // had from the old one (200, same version history) and reaches the remaining replica. Lamport time only moves on
+    void failoverTest() throws IOException, InterruptedException {
+        int primaryPort = ServerFixture.freePort();
+        int primaryReplicationPort = ServerFixture.freePort();
+        int firstPort = ServerFixture.freePort();
+        int firstReplicationPort = ServerFixture.freePort();
+        AggregationServer primary = startServer(primaryPort, primaryReplicationPort, 0);
+        AggregationServer first = startServer(firstPort, firstReplicationPort, primaryReplicationPort);
+        AggregationServer second = startServer(ServerFixture.freePort(), 0, primaryReplicationPort);
+
+        ContentServer cs = fixture.contentServer("4601", primaryPort);
+        fixture.connect(cs);
+        cs.sendPUT();
+        assertEquals("201", cs.getLastStatus());
+        waitFor(() -> (first.getReplication().getAppliedSeq() == primary.getReplication().getLastSeq())
+                && (second.getReplication().getAppliedSeq() == primary.getReplication().getLastSeq()));
+        assertSameStations(primary, first);
+        assertSameStations(primary, second);
+        assertEquals(cs.getLastVersion(), first.getStore().get("4601").updatedMillis);
+        int primaryTime = primary.getClock().getTime();
+
+        primary.getReplication().close(); // The primary dies
+        primary.getServerSocket().close();
+        first.promote();
+        assertFalse(first.getReplication().isReplica());
+        assertTrue(first.getClock().getTime() >= primaryTime - 1); // Past every change it applied
+        second.getReplication().follow("localhost", firstReplicationPort);
+
+        ContentServer failedOver = fixture.contentServer("4601", firstPort); // Same station, now sending to the new primary
+        fixture.connect(failedOver);
+        failedOver.sendPUT();
+        assertEquals("200", failedOver.getLastStatus()); // The station's data was already there
+        assertTrue(failedOver.getLastVersion() > cs.getLastVersion());
+
+        waitFor(() -> (second.getReplication().getAppliedSeq() == first.getReplication().getLastSeq())
+                && (second.getStore().get("4601") != null)
+                && (second.getStore().get("4601").updatedMillis == failedOver.getLastVersion()));
+        assertSameStations(first, second);
+        assertEquals(1, first.getReplication().getResets()); // New history: the replica got everything once
+        assertEquals(1, first.getReplication().getReplicaCount());
+        System.out.println("Failover: promoted at Lamport time " + primaryTime + " -> " + first.getClock().getTime());
+    }
+}
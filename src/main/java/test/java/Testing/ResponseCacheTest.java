@@ -0,0 +1,92 @@
+package test.java.Testing;
+
+import AggregationServer.StationRecord;
+import JSONParser.JSONParser;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+import protocol.WireProtocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ResponseCacheTest {
+
+    // Station record with the data of entryfile.txt
+    private StationRecord record() {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("id", "IDS60901");
+        entries.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        entries.put("state", "SA");
+        entries.put("time_zone", "CST");
+        entries.put("lat", "-34.9");
+        entries.put("lon", "138.6");
+        entries.put("local_date_time", "15/04:00pm");
+        entries.put("local_date_time_full", "20230715160000");
+        entries.put("air_temp", "13.3");
+        entries.put("apparent_t", "9.5");
+        entries.put("cloud", "Partly cloudy");
+        entries.put("dewpt", "5.7");
+        entries.put("press", "1023.9");
+        entries.put("rel_hum", "60");
+        entries.put("wind_dir", "S");
+        entries.put("wind_spd_kmh", "15");
+        entries.put("wind_spd_kt", "8");
+        return new StationRecord("60901", entries, System.currentTimeMillis());
+    }
+
+    @Test
+    // Unit test: the cached responses are the same as encoding the data for every GET, they are encoded once per
+    // record, and a PUT (merge = new record) gets new responses
+    void cacheTest() throws IOException {
+        StationRecord record = record();
+        assertEquals(new JSONParser().stringToJSON(record.text()), record.toJSON());
+        assertSame(record.toJSON(), record.toJSON()); // Encoded once
+        assertSame(record.toUntimedDataFrame(), record.toUntimedDataFrame());
+
+        Frame frame = new Frame(WireProtocol.OP_DATA, 42, "60901");
+        frame.fields.putAll(record.entries());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WireProtocol.writeFrame(out, 42, record.toUntimedDataFrame());
+        assertArrayEquals(WireProtocol.encode(frame), out.toByteArray()); // Same bytes as a frame encoded from scratch
+
+        StationRecord updated = record.merge(Map.of("air_temp", "14.1"), System.currentTimeMillis());
+        assertTrue(updated.toJSON().contains("\"air_temp\" : 14.1"));
+        assertTrue(record.toJSON().contains("\"air_temp\" : 13.3")); // Old record's response unchanged
+    }
+
+    @Test
+    // Performance test: many GETs of one station, encoding JSON for every GET vs the record's cached response
+    // Every GET between two PUTs is a cache hit (the same response), and a PUT's new record gets a new response that
+    // is cached in turn. Timings are printed only
+    void encodeBenchmarkTest() {
+        int gets = 200000;
+        StationRecord record = record();
+        JSONParser jp = new JSONParser();
+        long length = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < gets; ++i) {
+            length += (i + "\n" + jp.stringToJSON(record.text())).length();
+        }
+        double perGetEncoding = (System.nanoTime() - start) / 1000.0 / gets;
+        String cached = record.toJSON();
+        start = System.nanoTime();
+        for (int i = 0; i < gets; ++i) {
+            String response = record.toJSON();
+            assertSame(cached, response); // Hit: nothing encoded again
+            length -= (i + "\n" + response).length();
+        }
+        double perGetCached = (System.nanoTime() - start) / 1000.0 / gets;
+        assertEquals(0, length);
+        System.out.printf("JSON response per GET: encoded %.2fus, cached %.2fus%n", perGetEncoding, perGetCached);
+
+        StationRecord updated = record.merge(Map.of("air_temp", "14.1"), System.currentTimeMillis());
+        String afterPut = updated.toJSON();
+        assertNotSame(cached, afterPut); // Invalidated by the PUT
+        assertEquals(jp.stringToJSON(updated.text()), afterPut);
+        assertSame(afterPut, updated.toJSON()); // And cached again
+    }
+}
@@ -0,0 +1,136 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationStore;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetentionTest {
+
+    // Server on a temporary folder, its data kept in memory only
+    private AggregationServer newServer() throws IOException {
+        AggregationServer as = new AggregationServer();
+        as.setDirectory(Files.createTempDirectory("retention").toString() + "/");
+        as.getStore().setDurability(StationStore.Durability.MEMORY);
+        return as;
+    }
+
+    // Stores data for the station and tracks its file, the same as a PUT creating the station
+    private void put(AggregationServer as, String stationID, long time) throws IOException {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("id", "IDS" + stationID);
+        as.getStore().put(stationID, entries);
+        as.addToCurrentFiles(as.getStore().fileFor(stationID), time);
+    }
+
+    @Test
+    // Unit test: with a limit of 20 stations, creating 25 evicts the 5 least recently updated ones straight away
+    // A station updated again becomes the most recently updated, so it isn't the next one evicted
+    void stationLimitTest() throws IOException {
+        AggregationServer as = newServer();
+        as.setMaxStations(20);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; ++i) {
+            put(as, Integer.toString(i), now + i);
+        }
+        put(as, "0", now + 100); // Station 0 updated: station 1 is now the least recently updated
+        for (int i = 20; i < 25; ++i) {
+            put(as, Integer.toString(i), now + 100 + i);
+        }
+        assertEquals(20, as.getCurrFiles().size());
+        assertEquals(20, as.getStore().size());
+        assertEquals(5, as.getRetention().getEvicted());
+        assertNotNull(as.getStore().get("0"));
+        for (int i = 1; i <= 5; ++i) {
+            assertNull(as.getStore().get(Integer.toString(i))); // Evicted oldest-first
+            assertFalse(as.getCurrFiles().containsKey(as.getStore().fileFor(Integer.toString(i))));
+        }
+        assertNotNull(as.getStore().get("6"));
+
+        as.setMaxStations(10); // Lowering the limit evicts straight away too
+        assertEquals(10, as.getStore().size());
+        assertEquals(15, as.getRetention().getEvicted());
+    }
+
+    @Test
+    // Unit test: a station is evicted on its own lane. A PUT of it waiting there first makes it recent again, so it
+    // stays and the next least recently updated station is evicted instead
+    void evictOnLaneTest() throws IOException, InterruptedException {
+        AggregationServer as = newServer();
+        as.setMaxStations(3);
+        as.checkForTasks(); // Starts the lanes
+        long now = System.currentTimeMillis();
+        for (int i = 1; i <= 3; ++i) {
+            put(as, Integer.toString(i), now + i);
+        }
+        CountDownLatch busy = new CountDownLatch(1);
+        as.runOnLane("1", () -> { // Station 1's lane is running something else
+            try {
+                busy.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        as.runOnLane("1", () -> { // A PUT of station 1, waiting for the lane
+            try {
+                put(as, "1", now + 10);
+            } catch (IOException ie) {
+                System.out.println(ie.getMessage());
+            }
+        });
+        put(as, "4", now + 20); // Over the limit: station 1 is the least recently updated one
+        assertNotNull(as.getStore().get("1")); // Not while its lane is busy
+        busy.countDown();
+        for (int wait = 0; (wait < 100) && (as.getStore().size() > 3); ++wait) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        assertNotNull(as.getStore().get("1"));
+        assertNull(as.getStore().get("2")); // Evicted instead
+        assertEquals(3, as.getStore().size());
+        assertEquals(3, as.getCurrFiles().size());
+        assertEquals(1, as.getRetention().getEvicted());
+    }
+
+    @Test
+    // Unit test: a station with its own short TTL expires while the others (global TTL) stay
+    void stationTtlTest() throws IOException, InterruptedException {
+        AggregationServer as = newServer();
+        as.setStationTtl("short", 300);
+        long now = System.currentTimeMillis();
+        put(as, "short", now);
+        put(as, "normal", now);
+        as.checkUpdateTimes();
+        Thread.sleep(1000);
+        assertNull(as.getStore().get("short"));
+        assertNotNull(as.getStore().get("normal"));
+        assertEquals(1, as.getRetention().getExpired());
+        assertFalse(new File(as.getStore().fileFor("short")).exists());
+    }
+
+    @Test
+    // Unit test: shortening the global TTL applies to stations that are already tracked
+    void defaultTtlTest() throws IOException, InterruptedException {
+        AggregationServer as = newServer();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 10; ++i) {
+            put(as, Integer.toString(i), now);
+        }
+        as.checkUpdateTimes();
+        Thread.sleep(300);
+        assertEquals(10, as.getStore().size()); // 30 second TTL
+        as.setDefaultTtl(500);
+        Thread.sleep(1000);
+        assertEquals(0, as.getStore().size());
+        assertEquals(0, as.getCurrFiles().size());
+        assertEquals(10, as.getRetention().getExpired());
+        System.out.println("Retention: " + as.getRetention().describe());
+    }
+}
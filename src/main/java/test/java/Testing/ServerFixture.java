@@ -0,0 +1,213 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import ContentServer.ContentServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+// Servers, Content Servers and raw connections for the tests that run them over sockets
+// Each test class keeps one fixture and calls close from its @AfterEach, so every server, connection and temporary
+// folder a test started is gone before the next test, even if an assertion failed halfway through
+// Ports come from freePort, so tests don't depend on (or collide over) fixed port numbers
+public class ServerFixture implements Closeable {
+    private final ArrayList<AggregationServer> servers = new ArrayList<AggregationServer>();
+    private final ArrayList<ContentServer> contentServers = new ArrayList<ContentServer>();
+    private final ArrayList<Connection> connections = new ArrayList<Connection>();
+    private final ArrayList<ExecutorService> executors = new ArrayList<ExecutorService>();
+    private final ArrayList<Path> folders = new ArrayList<Path>();
+
+    // A port nothing is listening on right now
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Comma-separated node list (localhost:port) of the ports, as --cluster takes it
+    public static String nodes(int... ports) {
+        StringBuilder nodes = new StringBuilder();
+        for (int port : ports) {
+            nodes.append((nodes.length() > 0) ? "," : "").append("localhost:").append(port);
+        }
+        return nodes.toString();
+    }
+
+    // Starts a server on port with its files in a new temporary folder. configure sets it up before it starts (e.g.
+    // setWriteAheadLog). With executing = false it accepts connections and queues requests, but doesn't run them until
+    // the test calls checkForTasks
+    public AggregationServer startServer(int port, Consumer<AggregationServer> configure, boolean executing) throws IOException {
+        AggregationServer as = new AggregationServer();
+        as.setDirectory(folder("server") + "/");
+        as.setPort(Integer.toString(port));
+        configure.accept(as);
+        servers.add(as);
+        as.beginOperation();
+        as.listenForConnections();
+        if (executing) {
+            as.checkForTasks();
+        }
+        return as;
+    }
+
+    // A Content Server for the station sending to the server on port, with the entry file of the tests and its own
+    // temporary folder. Set it up further (e.g. setBinaryProtocol), then connect it
+    public ContentServer contentServer(String stationID, int port) throws IOException {
+        ContentServer cs = new ContentServer(stationID);
+        cs.setServer("localhost", port);
+        cs.setEntryLoc("src/main/java/ContentServer/entryfile.txt");
+        cs.setFileFolder(folder("cs") + "/");
+        cs.setHost("https://localhost.cia.gov:" + port);
+        contentServers.add(cs);
+        return cs;
+    }
+
+    // Starts the Content Servers in the background and waits for them to connect
+    public void connect(ContentServer... toStart) throws InterruptedException {
+        for (ContentServer cs : toStart) {
+            ExecutorService exec = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable);
+                thread.setDaemon(true);
+                return thread;
+            });
+            executors.add(exec);
+            exec.submit(cs::beginOperation);
+        }
+        Thread.sleep(1000); // Waits for the Content Servers to connect
+    }
+
+    // A raw connection to the server on port, identified as identity (e.g. CS4567 or GETClient1)
+    public Connection connection(int port, String identity) throws IOException {
+        Connection connection = new Connection(port, identity);
+        connections.add(connection);
+        return connection;
+    }
+
+    // A raw connection: Java serialised Strings, timestamp first, as Content Servers, GETClients and nodes send them
+    public static class Connection implements Closeable {
+        public final Socket socket;
+        public final ObjectOutputStream out;
+        public final ObjectInputStream in;
+        private int time = 1;
+
+        Connection(int port, String identity) throws IOException {
+            socket = new Socket("localhost", port);
+            out = new ObjectOutputStream(socket.getOutputStream());
+            in = new ObjectInputStream(socket.getInputStream());
+            out.writeObject((time++) + "\n" + identity); // Handshake: timestamp and ID
+        }
+
+        // Sends a request (without its timestamp)
+        public void send(String request) throws IOException {
+            out.writeObject((time++) + "\n" + request);
+            out.flush();
+        }
+
+        // Sends a text PUT of the JSON tagged with requestID (untagged if null)
+        public void put(String requestID, String json) throws IOException {
+            send("PUT /weather.json HTTP/1.1\nHost: localhost\nUser-Agent: ATOMClient/1/0\nContent-Type: weather/json\n"
+                    + "Content-Length: 3\n" + ((requestID != null) ? "Request-ID: " + requestID + "\n" : "") + " \n" + json);
+        }
+
+        // Next response, without its timestamp
+        public String read() throws IOException, ClassNotFoundException {
+            String response = (String) in.readObject();
+            return response.substring(response.indexOf('\n') + 1);
+        }
+
+        // Reads count PUT statuses, in the order they come: {request ID (null if untagged), status code, version}
+        public ArrayList<String[]> statuses(int count) throws IOException, ClassNotFoundException {
+            ArrayList<String[]> statuses = new ArrayList<String[]>();
+            for (int i = 0; i < count; ++i) {
+                String[] lines = read().split("\n");
+                String[] status = {null, lines[0], "-1"};
+                for (String line : lines) {
+                    if (line.startsWith("Request-ID: ")) {
+                        status[0] = line.substring("Request-ID: ".length());
+                    } else if (line.startsWith("Version: ")) {
+                        status[2] = line.substring("Version: ".length());
+                    }
+                }
+                statuses.add(status);
+            }
+            return statuses;
+        }
+
+        // Reads count PUT statuses: request ID -> status code
+        public HashMap<String, String> statusCodes(int count) throws IOException, ClassNotFoundException {
+            HashMap<String, String> statusCodes = new HashMap<String, String>();
+            for (String[] status : statuses(count)) {
+                statusCodes.put(status[0], status[1]);
+            }
+            return statusCodes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    // Shuts down everything the fixture started and deletes its temporary folders
+    @Override
+    public void close() {
+        for (Connection connection : connections) {
+            closeQuietly(connection);
+        }
+        for (ContentServer cs : contentServers) {
+            if (cs.getCSSocket() != null) {
+                closeQuietly(cs.getCSSocket());
+            }
+        }
+        for (ExecutorService exec : executors) {
+            exec.shutdownNow();
+        }
+        for (AggregationServer as : servers) {
+            try {
+                as.shutdown();
+            } catch (IOException ie) {
+                System.out.println("Failed to shut a test server down: " + ie.getMessage());
+            }
+        }
+        for (Path folder : folders) {
+            try (Stream<Path> files = Files.walk(folder)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            } catch (IOException ie) {
+                System.out.println("Failed to delete " + folder + ": " + ie.getMessage());
+            }
+        }
+        connections.clear();
+        contentServers.clear();
+        executors.clear();
+        servers.clear();
+        folders.clear();
+    }
+
+    // A new temporary folder, deleted by close
+    public String folder(String prefix) throws IOException {
+        Path folder = Files.createTempDirectory(prefix);
+        folders.add(folder);
+        return folder.toString();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ie) {
+            System.out.println("Failed to close a test connection: " + ie.getMessage());
+        }
+    }
+}
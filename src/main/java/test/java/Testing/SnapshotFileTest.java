@@ -0,0 +1,214 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.OffHeapStationTable;
+import AggregationServer.StationRecord;
+import AggregationServer.StationStore;
+import AggregationServer.WeatherRecord;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotFileTest {
+
+    // The data of entryfile.txt, with the station's number put into its id and temperature
+    private static WeatherRecord weather(int station) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("id", "IDS" + (60901 + station));
+        entries.put("name", "Adelaide (West Terrace /  ngayirdapira)");
+        entries.put("state", "SA");
+        entries.put("time_zone", "CST");
+        entries.put("lat", "-34.9");
+        entries.put("lon", "138.6");
+        entries.put("local_date_time", "15/04:00pm");
+        entries.put("local_date_time_full", "20230715160000");
+        entries.put("air_temp", (station % 40) + ".3");
+        entries.put("apparent_t", "9.5");
+        entries.put("cloud", "Partly cloudy");
+        entries.put("dewpt", "5.7");
+        entries.put("press", "1023.9");
+        entries.put("rel_hum", "60");
+        entries.put("wind_dir", "S");
+        entries.put("wind_spd_kmh", "15");
+        entries.put("wind_spd_kt", "8");
+        return WeatherRecord.of(entries);
+    }
+
+    @Test
+    // Unit test: stations written to a mapped table are there again when the file is mapped after a clean close,
+    // and the file keeps the capacity it was made with
+    void reopenTest() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("stations.snapshot");
+        try (OffHeapStationTable table = OffHeapStationTable.map(file, 100)) {
+            table.merge("1", weather(1), 1000);
+            table.merge("2", weather(2), 2000);
+            table.merge("1", WeatherRecord.of(Map.of("air_temp", "20.5")), 3000);
+            table.merge("3", weather(3), 4000);
+            table.remove("3");
+        }
+        try (OffHeapStationTable table = OffHeapStationTable.map(file, 5)) {
+            assertFalse(table.wasRecovered());
+            assertEquals(100, table.getCapacity());
+            assertEquals(2, table.size());
+            assertEquals("20.5", table.get("1").get("air_temp"));
+            assertEquals(3000, table.get("1").updatedMillis);
+            assertEquals(weather(2).toMap(), table.get("2").entries());
+            assertNull(table.get("3"));
+            assertTrue(table.merge("3", weather(3), 5000)); // Free slots and index came back too
+            assertEquals(3, table.records().size());
+        }
+    }
+
+    @Test
+    // Unit test: a file that wasn't synced after its last changes (the server crashed) is recovered from its slots
+    void crashRecoveryTest() throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("stations.snapshot");
+        OffHeapStationTable crashed = OffHeapStationTable.map(file, 16);
+        for (int s = 0; s < 10; ++s) {
+            crashed.merge(Integer.toString(s), weather(s), s);
+        }
+        crashed.sync();
+        crashed.remove("4"); // Changes after the last sync: the header's counters are out of date
+        crashed.merge("10", weather(10), 10);
+        crashed.merge("0", WeatherRecord.of(Map.of("air_temp", "1.5")), 11);
+
+        // Mapped again while the crashed one is left as it is (same pages, as after a process crash)
+        try (OffHeapStationTable table = OffHeapStationTable.map(file, 16)) {
+            assertTrue(table.wasRecovered());
+            assertEquals(10, table.size());
+            assertNull(table.get("4"));
+            assertEquals("IDS60911", table.get("10").get("id"));
+            assertEquals("1.5", table.get("0").get("air_temp"));
+            for (int s = 11; s < 17; ++s) { // Exactly the 6 free slots are left
+                assertTrue(table.merge(Integer.toString(s), weather(s), s));
+            }
+            assertThrows(IOException.class, () -> table.merge("17", weather(17), 17));
+        }
+        crashed.close();
+    }
+
+    @Test
+    // Unit test: a file that isn't a snapshot is refused rather than read as one
+    void invalidFileTest() throws IOException {
+        Path file = Files.createTempFile("stations", ".snapshot");
+        Files.write(file, new byte[4096]);
+        assertThrows(IOException.class, () -> OffHeapStationTable.map(file, 16));
+    }
+
+    @Test
+    // Integration test: with --snapshot=N the server keeps its stations in the snapshot file only (no SERVER_DATA
+    // files), and a restarted server serves them straight from the file
+    void serverRestartTest() throws IOException {
+        String directory = Files.createTempDirectory("snapshot").toString() + "/";
+        AggregationServer as = new AggregationServer();
+        as.setDirectory(directory);
+        as.parseArguments(new String[]{"--snapshot=100"});
+        assertTrue(as.applyPut("4567", weather(1)));
+        assertFalse(as.applyPut("4567", WeatherRecord.of(Map.of("air_temp", "21.0"))));
+        as.getStore().flush();
+        assertEquals(0, new File(directory).list((dir, name) -> name.startsWith("SERVER_DATA_")).length);
+        ((OffHeapStationTable) as.getStore().getTable()).close(); // Server stopped
+
+        AggregationServer restarted = new AggregationServer();
+        restarted.setDirectory(directory);
+        restarted.parseArguments(new String[]{"--snapshot=100"});
+        StationRecord record = restarted.getStore().get("4567");
+        assertEquals("21.0", record.get("air_temp"));
+        assertEquals("IDS60902", record.get("id"));
+        assertEquals(1, restarted.getCurrFiles().size()); // Expiry knows about it again
+    }
+
+    @Test
+    // Integration test: started with --snapshot=N, the server decides on the snapshot file before reading anything in
+    // its folder: a SERVER_DATA file left there is neither loaded nor tracked for expiry, only the snapshot's stations
+    void snapshotStartupTest() throws IOException {
+        Path folder = Paths.get("AggregationServer"); // The server's default folder
+        boolean created = !Files.exists(folder);
+        Files.createDirectories(folder);
+        Path snapshot = folder.resolve("stations.snapshot");
+        Path leftover = folder.resolve("SERVER_DATA_4999.txt");
+        try {
+            long updated = System.currentTimeMillis() - 1000;
+            try (OffHeapStationTable table = OffHeapStationTable.map(snapshot, 16)) {
+                table.merge("4567", weather(1), updated);
+            }
+            Files.writeString(leftover, "id:IDS4999\n");
+            AggregationServer as = new AggregationServer(new String[]{"--snapshot=16"});
+            assertEquals("IDS60902", as.getStore().get("4567").get("id"));
+            assertNull(as.getStore().get("4999"));
+            assertEquals(Map.of(as.getStore().fileFor("4567"), updated), as.getCurrFiles()); // Real update time only
+            assertEquals(1, as.getExpiryQueueSize());
+            ((OffHeapStationTable) as.getStore().getTable()).close();
+        } finally {
+            Files.deleteIfExists(snapshot);
+            Files.deleteIfExists(leftover);
+            if (created) {
+                Files.deleteIfExists(folder);
+            }
+        }
+    }
+
+    // Creates a snapshot file holding numStations stations, closed cleanly
+    private static Path snapshotWith(int numStations) throws IOException {
+        Path file = Files.createTempDirectory("snapshot").resolve("stations.snapshot");
+        try (OffHeapStationTable table = OffHeapStationTable.map(file, numStations)) {
+            for (int s = 0; s < numStations; ++s) {
+                table.merge(Integer.toString(s), weather(s), s);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+    // Performance test: time from startup until a station can be served, snapshot file against a SERVER_DATA file per
+    // station, for growing station counts (up to -Dsnapshot.stations, 1M by default). Only runs with -Dbenchmarks=true
+    // A cleanly closed snapshot must be served as it is mapped, without rebuilding its index from the slots, whatever
+    // the number of stations
+    void startupBenchmarkTest() throws IOException {
+        int maxStations = Integer.getInteger("snapshot.stations", 1000000);
+        long mapMicros = 0;
+        for (int numStations = 1000; numStations <= maxStations; numStations *= 10) {
+            Path file = snapshotWith(numStations);
+            long start = System.nanoTime();
+            try (OffHeapStationTable table = OffHeapStationTable.map(file, numStations)) {
+                assertNotNull(table.get(Integer.toString(numStations - 1)));
+                mapMicros = (System.nanoTime() - start) / 1000;
+                assertFalse(table.wasRecovered()); // Counters read from the header, no slot scanned
+                assertEquals(numStations, table.size());
+                for (int s : new int[]{0, numStations / 2, numStations - 1}) {
+                    StationRecord record = table.get(Integer.toString(s));
+                    assertEquals("IDS" + (60901 + s), record.get("id"));
+                    assertEquals((s % 40) + ".3", record.get("air_temp"));
+                }
+            }
+            Files.delete(file);
+
+            String filesResult = "-";
+            if (numStations <= 10000) { // One file per station: only small counts, it takes too long after that
+                String directory = Files.createTempDirectory("files").toString() + "/";
+                StationStore writer = new StationStore(directory);
+                writer.setDurability(StationStore.Durability.WRITE_BEHIND);
+                for (int s = 0; s < numStations; ++s) {
+                    writer.put(Integer.toString(s), weather(s), s, false);
+                }
+                writer.flush();
+                start = System.nanoTime();
+                StationStore reader = new StationStore(directory);
+                assertNotNull(reader.get(Integer.toString(numStations - 1)));
+                filesResult = ((System.nanoTime() - start) / 1000) + "us";
+            }
+            System.out.printf("%8d stations: snapshot file ready in %6dus, SERVER_DATA files loaded in %s%n",
+                    numStations, mapMicros, filesResult);
+        }
+    }
+}
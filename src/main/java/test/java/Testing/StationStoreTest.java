@@ -0,0 +1,139 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationRecord;
+import AggregationServer.StationStore;
+import Client.GETClient;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class StationStoreTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    private LinkedHashMap<String, String> entries(String... typesAndValues) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        for (int i = 0; i < typesAndValues.length; i += 2) {
+            entries.put(typesAndValues[i], typesAndValues[i + 1]);
+        }
+        return entries;
+    }
+
+    @Test
+    // Unit test
+    // A PUT is visible in memory straight away, existing types are replaced and new types are added in order
+    void mergeTest() throws IOException {
+        StationStore store = new StationStore(Files.createTempDirectory("store").toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        assertTrue(store.put("1", entries("id", "IDS1", "air_temp", "13.3")));  // New station
+        assertFalse(store.put("1", entries("air_temp", "14.0", "dewpt", "5.7"))); // Existing station
+
+        StationRecord record = store.get("1");
+        assertEquals("id:IDS1\nair_temp:14.0\ndewpt:5.7\n", record.text());
+        assertEquals(0, store.getFileWrites()); // MEMORY never writes files
+        assertNull(store.get("2"));
+    }
+
+    @Test
+    // Unit test
+    // Many write-behind PUTs to one station between two flushes are coalesced into one file write,
+    // and a new store on the same folder (i.e. after a restart) loads the flushed data back
+    void writeBehindTest() throws IOException, InterruptedException {
+        String directory = Files.createTempDirectory("store").toString() + "/";
+        StationStore store = new StationStore(directory);
+        store.setFlushInterval(200);
+        for (int i = 0; i < 1000; ++i) {
+            store.put("1", entries("id", "IDS1", "air_temp", Integer.toString(i)));
+        }
+        Thread.sleep(600); // Waits for the flusher
+        assertTrue(store.getFileWrites() >= 1);
+        assertTrue(store.getFileWrites() < 10); // Not one write per PUT
+        assertEquals("id:IDS1\nair_temp:999\n", Files.readString(Paths.get(store.fileFor("1"))));
+
+        StationStore restarted = new StationStore(directory);
+        assertEquals("999", restarted.get("1").entries().get("air_temp"));
+
+        store.remove("1"); // Expiry removes the record and its file
+        assertNull(store.get("1"));
+        assertFalse(Files.exists(Paths.get(store.fileFor("1"))));
+    }
+
+    @Test
+    // Unit test: WRITE_THROUGH writes the file before put returns
+    void writeThroughTest() throws IOException {
+        StationStore store = new StationStore(Files.createTempDirectory("store").toString() + "/");
+        store.setDurability(StationStore.Durability.WRITE_THROUGH);
+        store.put("1", entries("id", "IDS1"));
+        assertEquals(1, store.getFileWrites());
+        assertEquals("id:IDS1\n", Files.readString(Paths.get(store.fileFor("1"))));
+    }
+
+    @Test
+    // Unit test: values with line breaks, backslashes and colons (and a type with a colon) are escaped in the file, so
+    // a restarted store reads back exactly what was PUT. A backslash that isn't an escape (older files) is kept
+    void escapeTest() throws IOException {
+        String directory = Files.createTempDirectory("store").toString() + "/";
+        StationStore store = new StationStore(directory);
+        store.setDurability(StationStore.Durability.WRITE_THROUGH);
+        LinkedHashMap<String, String> uploaded = entries("id", "IDS1", "name", "Line 1\nLine 2\r\n\nfake:entry",
+                "path", "C:\\data\\new", "note:extra", "a\\nb");
+        store.put("1", uploaded);
+        assertEquals(uploaded.size(), Files.readAllLines(Paths.get(store.fileFor("1"))).size()); // One line per entry
+
+        StationStore restarted = new StationStore(directory);
+        assertEquals(uploaded, restarted.get("1").entries());
+
+        Files.writeString(Paths.get(directory + "SERVER_DATA_2.txt"), "id:IDS2\nname:C:\\temp\\x\n");
+        assertEquals(entries("id", "IDS2", "name", "C:\\temp\\x"), new StationStore(directory).get("2").entries());
+    }
+
+    @Test
+    // Performance test: GET latency is served from memory, so deleting every file must not change what GETs return
+    // Prints the median and p99 GET round trip over a real connection
+    void getFromMemoryTest() throws IOException, InterruptedException {
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> {}, true);
+
+        ContentServer cs = fixture.contentServer(Integer.toString(port), port);
+        fixture.connect(cs);
+        GETClient gc = new GETClient();
+        gc.setInfo("https://localhost.cia.gov:" + port, port, cs.getID());
+        ExecutorService GETexec = Executors.newSingleThreadExecutor();
+        GETexec.submit(gc::beginOperation);
+        Thread.sleep(1000); // Waits for the GETClient to connect
+        cs.sendPUT();
+        as.getStore().flush();
+        Path file = Paths.get(as.getStore().fileFor(cs.getID()));
+        assertTrue(Files.exists(file));
+        Files.delete(file); // From now on the data only exists in memory
+
+        int numGETs = 200;
+        long[] latencies = new long[numGETs];
+        for (int i = 0; i < numGETs; ++i) {
+            long start = System.nanoTime();
+            gc.sendGET(port);
+            latencies[i] = (System.nanoTime() - start) / 1000;
+            assertTrue(gc.getReceivedJSON().contains("IDS60901"));
+        }
+        Arrays.sort(latencies);
+        System.out.println("GET latency from memory: p50 " + latencies[numGETs / 2] + "us, p99 "
+                + latencies[(int) Math.ceil(numGETs * 0.99) - 1] + "us");
+        GETexec.shutdownNow();
+    }
+}
@@ -0,0 +1,165 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationRecord;
+import AggregationServer.Subscriptions;
+import AggregationServer.WeatherRecord;
+import Client.GETClient;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SubscriptionTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    private static StationRecord record(String stationID, String airTemp, long updatedMillis) {
+        return new StationRecord(stationID, new LinkedHashMap<String, String>(Map.of("air_temp", airTemp)), updatedMillis);
+    }
+
+    @Test
+    // Unit test: a subscriber's queue keeps the newest record of each station, and drops the oldest station when full
+    // (the subscriber is held back, as while its current data is sent, so nothing is pushed during the test)
+    void queuePolicyTest() {
+        AggregationServer as = new AggregationServer();
+        as.setSubscriberQueue(3);
+        Subscriptions subscriptions = as.getSubscriptions();
+        Socket socket = new Socket();
+        Subscriptions.Subscriber subscriber = subscriptions.subscribe(socket, List.of("1", "2*"));
+
+        subscriptions.publish(record("1", "10.1", 100));
+        subscriptions.publish(record("1", "10.2", 200)); // Coalesced
+        subscriptions.publish(record("1", "10.0", 150)); // Older than the queued one: not taken
+        assertEquals(List.of("1"), subscriber.queuedStations());
+        assertEquals("10.2", subscriber.queued("1").get("air_temp"));
+        assertEquals(2, subscriptions.getCoalesced());
+
+        subscriptions.publish(record("21", "1.5", 300));
+        subscriptions.publish(record("22", "1.5", 300));
+        subscriptions.publish(record("3", "1.5", 300)); // Not subscribed
+        subscriptions.publish(record("23", "1.5", 300)); // Full: station 1 gives way
+        assertEquals(List.of("21", "22", "23"), subscriber.queuedStations());
+        assertEquals(1, subscriptions.getDropped());
+
+        subscriptions.unsubscribe(socket);
+        assertEquals(0, subscriptions.size());
+        subscriptions.publish(record("21", "2.5", 400));
+        assertTrue(subscriber.queuedStations().isEmpty());
+    }
+
+    @Test
+    // Integration test: subscriptions with Java serialised Strings
+    void textPushTest() throws IOException, InterruptedException {
+        dashboards("4588", false);
+    }
+
+    @Test
+    // Integration test: subscriptions with the binary protocol
+    void binaryPushTest() throws IOException, InterruptedException {
+        dashboards("4589", true);
+    }
+
+    // Live dashboards watch one station while it gets numUpdates PUTs: subscribed, every dashboard gets the station's
+    // current data, then pushes until it has the last update. An invalid selector is refused, a closed dashboard is
+    // unsubscribed
+    // Performance: the same updates seen by polling with a (bulk) GET per dashboard per update
+    private void dashboards(String stationID, boolean binary) throws IOException, InterruptedException {
+        int numDashboards = 20;
+        int numUpdates = 50;
+        int port = ServerFixture.freePort();
+        AggregationServer as = fixture.startServer(port, server -> {}, true);
+        as.applyPut(stationID, WeatherRecord.of(Map.of("id", "IDS60901", "air_temp", "13.3")));
+
+        String last = (numUpdates - 1) + ".5";
+        CountDownLatch allUpToDate = new CountDownLatch(numDashboards);
+        AtomicInteger pushesReceived = new AtomicInteger(0);
+        ConcurrentHashMap<Integer, String> firstSeen = new ConcurrentHashMap<Integer, String>();
+        ArrayList<GETClient> subscribers = new ArrayList<GETClient>();
+        for (int d = 0; d < numDashboards; ++d) {
+            int dashboard = d;
+            GETClient client = new GETClient();
+            client.setServer("localhost", port);
+            client.setBinaryProtocol(binary);
+            client.connect();
+            String selector = (d == 0) ? "all" : ((d == 1) ? "45*" : stationID);
+            assertTrue(client.subscribe(selector, stations -> {
+                LinkedHashMap<String, String> data = stations.get(stationID);
+                if (data == null) {
+                    return;
+                }
+                if (firstSeen.putIfAbsent(dashboard, data.get("air_temp")) != null) {
+                    pushesReceived.incrementAndGet();
+                }
+                if (last.equals(data.get("air_temp"))) {
+                    allUpToDate.countDown();
+                }
+            }));
+            subscribers.add(client);
+        }
+        for (int d = 0; d < numDashboards; ++d) {
+            assertEquals("13.3", firstSeen.get(d)); // Current data first
+        }
+        assertEquals(numDashboards, as.getSubscriptions().size());
+
+        GETClient invalid = new GETClient();
+        invalid.setServer("localhost", port);
+        invalid.setBinaryProtocol(binary);
+        invalid.connect();
+        assertFalse(invalid.subscribe("../SERVER_DATA*", stations -> fail("Refused subscription got data")));
+        assertNull(subscribers.get(1).sendBulkGET(stationID)); // A subscribed connection only gets pushes
+
+        long start = System.nanoTime();
+        for (int i = 0; i < numUpdates; ++i) {
+            as.applyPut(stationID, WeatherRecord.of(Map.of("air_temp", i + ".5")));
+        }
+        assertTrue(allUpToDate.await(10, TimeUnit.SECONDS));
+        long pushMicros = (System.nanoTime() - start) / 1000;
+        int pushes = pushesReceived.get();
+        long coalesced = as.getSubscriptions().getCoalesced();
+        assertEquals("IDS60901", as.getStore().get(stationID).get("id"));
+
+        ArrayList<GETClient> pollers = new ArrayList<GETClient>();
+        for (int d = 0; d < numDashboards; ++d) {
+            GETClient poller = new GETClient();
+            poller.setServer("localhost", port);
+            poller.setBinaryProtocol(binary);
+            poller.connect();
+            pollers.add(poller);
+        }
+        start = System.nanoTime();
+        for (int i = 0; i < numUpdates; ++i) {
+            as.applyPut(stationID, WeatherRecord.of(Map.of("air_temp", i + ".5")));
+            for (GETClient poller : pollers) {
+                assertEquals(i + ".5", poller.getStations(List.of(stationID)).get(stationID).get("air_temp"));
+            }
+        }
+        long pollMicros = (System.nanoTime() - start) / 1000;
+
+        System.out.println((binary ? "Binary" : "Text") + ": " + numDashboards + " dashboards, " + numUpdates
+                + " updates: pushed " + pushMicros + "us (" + pushes + " pushes, " + coalesced + " coalesced), polled " + pollMicros + "us ("
+                + (numDashboards * numUpdates) + " GETs)");
+        assertTrue(pushMicros < pollMicros);
+
+        subscribers.get(0).close();
+        for (int wait = 0; (wait < 50) && (as.getSubscriptions().size() == numDashboards); ++wait) {
+            Thread.sleep(100);
+        }
+        assertEquals(numDashboards - 1, as.getSubscriptions().size()); // Closed socket unsubscribed
+    }
+}
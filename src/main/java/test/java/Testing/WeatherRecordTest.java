@@ -0,0 +1,171 @@
+package test.java.Testing;
+
+import AggregationServer.StationRecord;
+import AggregationServer.WeatherRecord;
+import JSONParser.JSONParser;
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WeatherRecordTest {
+
+    // The data of entryfile.txt, with the station's number put into its id/name and temperatures
+    private static LinkedHashMap<String, String> entries(int station) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        entries.put("id", "IDS" + (60901 + station));
+        entries.put("name", "Station " + station);
+        entries.put("state", "SA");
+        entries.put("time_zone", "CST");
+        entries.put("lat", "-34.9");
+        entries.put("lon", "138.6");
+        entries.put("local_date_time", "15/04:00pm");
+        entries.put("local_date_time_full", "20230715160000");
+        entries.put("air_temp", (station % 40) + ".3");
+        entries.put("apparent_t", "9.5");
+        entries.put("cloud", "Partly cloudy");
+        entries.put("dewpt", "5.7");
+        entries.put("press", "1023.9");
+        entries.put("rel_hum", Integer.toString(station % 100));
+        entries.put("wind_dir", "S");
+        entries.put("wind_spd_kmh", "15");
+        entries.put("wind_spd_kt", "8");
+        return entries;
+    }
+
+    @Test
+    // Unit test: every value comes back as exactly the text that was uploaded, in upload order, including numbers
+    // that aren't plain decimals and types that aren't in the feedTypes table
+    void roundTripTest() {
+        LinkedHashMap<String, String> entries = entries(0);
+        entries.put("unknown_type", "hello");
+        entries.put("dewpt", "1e5"); // Number, but not a plain decimal: kept as text, position unchanged
+        entries.put("air_temp", "0.50"); // Trailing zero kept
+        entries.put("apparent_t", "-0.0");
+        entries.put("rel_hum", "007");
+        WeatherRecord record = WeatherRecord.of(entries);
+        assertEquals(entries, record.toMap());
+        assertEquals(entries.size(), record.size());
+        int i = 0;
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            assertEquals(entry.getKey(), record.type(i));
+            assertEquals(entry.getValue(), record.value(i++));
+            assertEquals(entry.getValue(), record.get(entry.getKey()));
+            text.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+        }
+        assertEquals(text.toString(), record.toText());
+        assertNull(record.get("not_uploaded"));
+        assertTrue(record.matchesFeedTypes());
+
+        // Same JSON as converting the text, as GETs got before
+        StationRecord station = new StationRecord("60901", entries, System.currentTimeMillis());
+        assertEquals(new JSONParser().stringToJSON(station.text()), station.toJSON());
+    }
+
+    @Test
+    // Unit test: merge keeps existing types where they were and adds new ones at the end, like LinkedHashMap.putAll
+    void mergeTest() {
+        LinkedHashMap<String, String> first = new LinkedHashMap<String, String>();
+        first.put("id", "IDS1");
+        first.put("air_temp", "1e2");
+        first.put("extra", "a");
+        first.put("dewpt", "5.7");
+        LinkedHashMap<String, String> second = new LinkedHashMap<String, String>();
+        second.put("dewpt", "6.1");
+        second.put("air_temp", "14.0"); // Text before, plain decimal now
+        second.put("other", "b");
+        second.put("id", "IDS2");
+
+        LinkedHashMap<String, String> expected = new LinkedHashMap<String, String>(first);
+        expected.putAll(second);
+        WeatherRecord merged = WeatherRecord.of(first).merge(WeatherRecord.of(second));
+        assertEquals(expected, merged.toMap());
+        assertEquals(WeatherRecord.of(first).merge(WeatherRecord.EMPTY).toMap(), WeatherRecord.of(first).toMap());
+
+        // And back to text again
+        LinkedHashMap<String, String> third = new LinkedHashMap<String, String>();
+        third.put("air_temp", "+3");
+        expected.putAll(third);
+        assertEquals(expected, merged.merge(WeatherRecord.of(third)).toMap());
+    }
+
+    @Test
+    // Unit test: feed type validation gives the same answer as JSONParser.matchesFeedTypes
+    void feedTypesTest() {
+        JSONParser jp = new JSONParser();
+        String[][] cases = {{"id", "IDS60901"}, {"id", "60901"}, {"id", " 5 "}, {"air_temp", "13.3"},
+                {"air_temp", "warm"}, {"air_temp", "1e5"}, {"air_temp", "+5"}, {"air_temp", "NaN"},
+                {"air_temp", ".5"}, {"air_temp", ""}, {"unknown_type", "5"}, {"cloud", "Infinity"}};
+        for (String[] c : cases) {
+            Map<String, String> entries = Map.of(c[0], c[1]);
+            assertEquals(jp.matchesFeedTypes(entries), WeatherRecord.of(entries).matchesFeedTypes(), c[0] + ":" + c[1]);
+        }
+        assertFalse(WeatherRecord.of(Map.of("air_temp", "13.3")).merge(WeatherRecord.of(Map.of("id", "5"))).matchesFeedTypes());
+    }
+
+    @Test
+    // Unit test: numbers are read without parsing, strings shared by stations are one String
+    void typedTest() {
+        WeatherRecord a = WeatherRecord.of(entries(1));
+        WeatherRecord b = WeatherRecord.of(entries(2));
+        assertEquals(-34.9, a.number("lat"), 1e-12);
+        assertEquals(1.3, a.number("air_temp"), 1e-12);
+        assertEquals(20230715160000.0, a.number("local_date_time_full"), 0);
+        assertTrue(Double.isNaN(a.number("id"))); // String type
+        assertTrue(Double.isNaN(a.number("unknown_type")));
+        assertSame(a.get("cloud"), b.get("cloud"));
+        assertSame(a.get("state"), b.get("state"));
+        assertSame(a.type(0), b.type(0));
+    }
+
+    // Heap in use after a full GC
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Entries of a station as they arrive in a PUT: every type and value is a new String, read from the socket
+    private static LinkedHashMap<String, String> upload(int station) {
+        LinkedHashMap<String, String> uploaded = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> entry : entries(station).entrySet()) {
+            uploaded.put(new String(entry.getKey()), new String(entry.getValue()));
+        }
+        return uploaded;
+    }
+
+    @Test
+    // Performance test: heap per station of the typed record against the map + text it replaces
+    void heapTest() {
+        int numStations = 100000;
+        Object[][] maps = new Object[numStations][];
+        long before = usedHeap();
+        for (int s = 0; s < numStations; ++s) { // Before: the uploaded map and its text
+            LinkedHashMap<String, String> uploaded = upload(s);
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, String> entry : uploaded.entrySet()) {
+                sb.append(entry.getKey()).append(':').append(entry.getValue()).append('\n');
+            }
+            maps[s] = new Object[]{uploaded, sb.toString()};
+        }
+        long mapBytes = (usedHeap() - before) / numStations;
+        assertEquals(17, ((Map<?, ?>) maps[numStations - 1][0]).size()); // Still reachable when measured
+        maps = null;
+
+        WeatherRecord[] records = new WeatherRecord[numStations];
+        before = usedHeap();
+        for (int s = 0; s < numStations; ++s) {
+            records[s] = WeatherRecord.of(upload(s));
+        }
+        long typedBytes = (usedHeap() - before) / numStations;
+        assertEquals(17, records[numStations - 1].size());
+
+        System.out.println("Heap per station: map + text " + mapBytes + " B, typed record " + typedBytes + " B");
+        assertTrue(typedBytes < mapBytes);
+    }
+}
@@ -0,0 +1,201 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationStore;
+import AggregationServer.WeatherRecord;
+import Client.GETClient;
+import ContentServer.ContentServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import protocol.Frame;
+import protocol.FrameDecoder;
+import protocol.WireProtocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WireProtocolTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    // Frame with the weather data of the test entry file, as a binary PUT sends it
+    private Frame entryFileFrame() throws IOException {
+        Frame frame = new Frame(WireProtocol.OP_PUT, 12, "CS123");
+        List<String> lines = Files.readAllLines(Paths.get("src/main/java/ContentServer/entryfile.txt"));
+        for (String line : lines) {
+            String[] entry = line.split(":", 2);
+            frame.fields.put(entry[0].trim(), entry[1].trim());
+        }
+        return frame;
+    }
+
+    @Test
+    // Unit test
+    // Every entry must come back as exactly the same text, whether it was sent as a number or a string
+    // Edge cases: leading zeros, trailing point, negative zero, too many digits, exponent, empty value, non-ASCII
+    void codecRoundTripTest() throws IOException {
+        Frame frame = entryFileFrame();
+        String[] edgeCases = {"0", "-0", "007", "5.", ".5", "0.05", "-34.9", "20230715160000", "1234567890123456789",
+                "1e5", "", "-", "Adélaïde", "15/04:00pm"};
+        for (int i = 0; i < edgeCases.length; ++i) {
+            frame.fields.put("edge" + i, edgeCases[i]);
+        }
+        byte[] bytes = WireProtocol.encode(frame);
+
+        Frame decoded = WireProtocol.readFrame(new ByteArrayInputStream(bytes));
+        assertEquals(frame.opcode, decoded.opcode);
+        assertEquals(frame.lamportTime, decoded.lamportTime);
+        assertEquals(frame.stationID, decoded.stationID);
+        assertEquals(frame.fields, decoded.fields); // Same entries, same order
+
+        // Incremental decoder: two frames fed one byte at a time
+        FrameDecoder decoder = new FrameDecoder();
+        ArrayList<Frame> received = new ArrayList<Frame>();
+        byte[] status = WireProtocol.encode(Frame.status(13, "201"));
+        for (byte[] part : new byte[][]{bytes, status}) {
+            for (byte b : part) {
+                received.addAll(decoder.feed(ByteBuffer.wrap(new byte[]{b})));
+            }
+        }
+        assertEquals(2, received.size());
+        assertEquals(frame.fields, received.get(0).fields);
+        assertEquals("201", received.get(1).getStatus());
+        assertEquals(13, received.get(1).lamportTime);
+    }
+
+    @Test
+    // Performance test: size and encode/decode CPU time of one PUT, binary frame vs Java serialised String
+    void payloadComparisonTest() throws IOException, ClassNotFoundException {
+        Frame frame = entryFileFrame();
+        String jsonPUT = "12\nPUT /ContentServer//weather.json HTTP/1.1\nHost: https://localhost.cia.gov:4567\n"
+                + "User-Agent: ATOMClient/1/0\nContent-Type: weather/json\nContent-Length: 19\n \n{\n";
+        int count = 0;
+        for (String type : frame.fields.keySet()) { // Same JSON layout as JSONParser.textToJSON writes
+            jsonPUT += "    \"" + type + "\" : \"" + frame.fields.get(type) + "\"" + ((++count < frame.fields.size()) ? "," : "") + "\n";
+        }
+        jsonPUT += "}\n";
+
+        int iterations = 20000;
+        long serialBytes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(jsonPUT);
+            out.flush();
+            serialBytes = bytes.size();
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+            in.readObject();
+        }
+        long serialNanos = System.nanoTime() - start;
+
+        long binaryBytes = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; ++i) {
+            byte[] bytes = WireProtocol.encode(frame);
+            binaryBytes = bytes.length;
+            WireProtocol.readFrame(new ByteArrayInputStream(bytes));
+        }
+        long binaryNanos = System.nanoTime() - start;
+
+        System.out.println("Java serialisation: " + serialBytes + " bytes, " + (serialNanos / iterations) + " ns per PUT");
+        System.out.println("Binary protocol:    " + binaryBytes + " bytes, " + (binaryNanos / iterations) + " ns per PUT");
+        assertTrue(binaryBytes < serialBytes / 2); // Field names, numbers and no JSON/HTTP text
+    }
+
+    @Test
+    // Unit test: a binary PUT carries any string, so its entries go through the same checks and escaping as a text PUT
+    // A value with line breaks survives the store's file and a reload; a type that isn't a name refuses the PUT
+    void storedFieldsTest() throws IOException {
+        Frame frame = new Frame(WireProtocol.OP_PUT, 12, "CS123");
+        frame.fields.put("id", "IDS60901");
+        frame.fields.put("name", "Adelaide\nair_temp:99.9\n\nrel_hum:1");
+        frame.fields.put("note", "back\\slash");
+        Frame decoded = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(frame)));
+        assertTrue(WeatherRecord.of(decoded.fields).matchesFeedTypes());
+
+        String directory = fixture.folder("wirestore") + "/";
+        StationStore store = new StationStore(directory);
+        store.setDurability(StationStore.Durability.WRITE_THROUGH);
+        store.put("123", decoded.fields);
+        assertEquals(frame.fields, new StationStore(directory).get("123").entries()); // Nothing injected by the value
+
+        for (String type : new String[]{"", "air_temp\nid", "bell\u0007"}) {
+            Frame invalid = new Frame(WireProtocol.OP_PUT, 13, "CS123");
+            invalid.fields.put(type, "1");
+            Frame read = WireProtocol.readFrame(new ByteArrayInputStream(WireProtocol.encode(invalid)));
+            assertFalse(WeatherRecord.of(read.fields).matchesFeedTypes()); // Answered with 500, like any invalid PUT
+        }
+    }
+
+    @Test
+    // Integration test: binary Content Server and GETClient on the blocking transport, text GETClient alongside them
+    void binaryProtocolTest() throws IOException, InterruptedException {
+        binaryRoundTrip(0);
+    }
+
+    @Test
+    // Integration test: same as above on the NIO transport
+    void binaryProtocolNioTest() throws IOException, InterruptedException {
+        binaryRoundTrip(2);
+    }
+
+    // Starts a server (nioThreads = 0 for the blocking transport), PUTs and GETs the entry file with the binary protocol,
+    // then GETs it again with an unchanged text GETClient: both formats share the same stored data
+    private void binaryRoundTrip(int nioThreads) throws IOException, InterruptedException {
+        int port = ServerFixture.freePort();
+        String directory = fixture.folder("wire") + "/";
+        AggregationServer as = fixture.startServer(port, server -> {
+            server.setDirectory(directory);
+            if (nioThreads > 0) {
+                server.setNioThreads(nioThreads);
+            }
+        }, true);
+
+        ContentServer cs = fixture.contentServer(Integer.toString(port), port);
+        cs.setBinaryProtocol(true);
+        fixture.connect(cs);
+
+        GETClient binaryClient = new GETClient();
+        binaryClient.setInfo("https://localhost.cia.gov:" + port, port, cs.getID());
+        binaryClient.setBinaryProtocol(true);
+        GETClient textClient = new GETClient();
+        textClient.setInfo("https://localhost.cia.gov:" + port, port, cs.getID());
+        ExecutorService GETexec = Executors.newFixedThreadPool(2);
+        GETexec.submit(binaryClient::beginOperation);
+        GETexec.submit(textClient::beginOperation);
+        Thread.sleep(1000); // Waits for the connections
+        assertTrue(cs.usesBinaryProtocol()); // Server accepted the binary protocol, no fallback
+        assertTrue(binaryClient.usesBinaryProtocol());
+
+        cs.sendPUT(); // Blocked until the status frame comes back
+        as.getStore().flush(); // Writes the data the write-behind flusher hasn't written yet
+        assertTrue(Files.exists(Paths.get(directory + "SERVER_DATA_" + port + ".txt")));
+
+        binaryClient.sendGET(port);
+        assertNotNull(binaryClient.getReceivedJSON());
+        assertTrue(binaryClient.getReceivedJSON().contains("IDS60901"));
+        assertTrue(binaryClient.getReceivedJSON().contains("-34.9")); // Number kept its exact text
+
+        textClient.sendGET(port);
+        assertNotNull(textClient.getReceivedJSON());
+        assertTrue(textClient.getReceivedJSON().contains("IDS60901"));
+        GETexec.shutdownNow();
+    }
+}
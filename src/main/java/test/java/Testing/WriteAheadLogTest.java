@@ -0,0 +1,296 @@
+package test.java.Testing;
+
+import AggregationServer.AggregationServer;
+import AggregationServer.StationRecord;
+import AggregationServer.StationStore;
+import AggregationServer.WriteAheadLog;
+import ContentServer.ContentServer;
+import lamport.LamportClock;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+    private final ServerFixture fixture = new ServerFixture();
+
+    @AfterEach
+    void shutDown() {
+        fixture.close();
+    }
+
+    private LinkedHashMap<String, String> entries(String... typesAndValues) {
+        LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>();
+        for (int i = 0; i < typesAndValues.length; i += 2) {
+            entries.put(typesAndValues[i], typesAndValues[i + 1]);
+        }
+        return entries;
+    }
+
+    // New store + clock + log on the folder, as after a restart. Returns the store the log rebuilt
+    private StationStore restart(Path folder, LamportClock clock) throws IOException {
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        new WriteAheadLog(folder.resolve("wal"), store, clock).recover();
+        return store;
+    }
+
+    // Logs and applies a PUT the same way AggregationServer.applyPut does
+    private void put(WriteAheadLog wal, StationStore store, String stationID, int lamportTime,
+                     LinkedHashMap<String, String> uploaded) throws IOException {
+        long now = System.currentTimeMillis();
+        long seq = wal.appendPut(stationID, lamportTime, now, uploaded);
+        wal.sync(seq);
+        store.put(stationID, uploaded, now);
+        wal.applied(seq);
+    }
+
+    private long countSegments(Path walFolder) throws IOException {
+        try (Stream<Path> files = Files.list(walFolder)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log")).count();
+        }
+    }
+
+    @Test
+    // Unit test
+    // PUTs and a removal are logged, the process "crashes" (log never closed), and a restart rebuilds the same store
+    // and a Lamport clock later than every logged event
+    void recoveryTest() throws IOException {
+        Path folder = Files.createTempDirectory("wal");
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        WriteAheadLog wal = new WriteAheadLog(folder.resolve("wal"), store, new LamportClock());
+        wal.recover(); // First run: empty
+        put(wal, store, "1", 5, entries("id", "IDS1", "air_temp", "13.3"));
+        put(wal, store, "1", 9, entries("air_temp", "14.0"));
+        put(wal, store, "2", 12, entries("id", "IDS2"));
+        long seq = wal.appendRemove("2", 13);
+        store.remove("2");
+        wal.applied(seq);
+        wal.sync(seq);
+
+        LamportClock clock = new LamportClock();
+        StationStore recovered = restart(folder, clock);
+        assertEquals(1, recovered.size());
+        assertEquals("id:IDS1\nair_temp:14.0\n", recovered.get("1").text());
+        assertEquals(store.get("1").updatedMillis, recovered.get("1").updatedMillis); // Real update time, not startup time
+        assertNull(recovered.get("2")); // Removal replayed
+        assertTrue(clock.getTime() > 13);
+    }
+
+    @Test
+    // Unit test: records streamed from a primary (logged whole, as AggregationServer.applyReplicated does) replace the
+    // station's entries and keep the primary's update time after a restart; an older record doesn't replace a newer one
+    void replicatedRecoveryTest() throws IOException {
+        Path folder = Files.createTempDirectory("wal");
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        WriteAheadLog wal = new WriteAheadLog(folder.resolve("wal"), store, new LamportClock());
+        wal.recover();
+        put(wal, store, "1", 3, entries("id", "IDS1", "air_temp", "13.3"));
+        long primaryTime = System.currentTimeMillis() + 5000; // Later than the local PUT
+        StationRecord[] replicated = {new StationRecord("1", entries("air_temp", "20.1"), primaryTime),
+                new StationRecord("2", entries("id", "IDS2"), primaryTime + 2), new StationRecord("2", entries("id", "OLD"), primaryTime + 1)};
+        for (int i = 0; i < replicated.length; ++i) {
+            long seq = wal.appendRecord(replicated[i], 10 + i);
+            wal.sync(seq);
+            store.replace(replicated[i]);
+            wal.applied(seq);
+        }
+
+        StationStore recovered = restart(folder, new LamportClock());
+        assertEquals(2, recovered.size());
+        assertEquals("air_temp:20.1\n", recovered.get("1").text()); // Replaced, not merged
+        assertEquals(primaryTime, recovered.get("1").updatedMillis);
+        assertEquals("id:IDS2\n", recovered.get("2").text());
+        assertEquals(primaryTime + 2, recovered.get("2").updatedMillis);
+    }
+
+    @Test
+    // Unit test: a crash in the middle of an append leaves a torn entry at the end of the log, which is cut off
+    void tornEntryTest() throws IOException {
+        Path folder = Files.createTempDirectory("wal");
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        WriteAheadLog wal = new WriteAheadLog(folder.resolve("wal"), store, new LamportClock());
+        wal.recover();
+        put(wal, store, "1", 1, entries("id", "IDS1"));
+        Path segment;
+        try (Stream<Path> files = Files.list(folder.resolve("wal"))) {
+            segment = files.filter(file -> file.getFileName().toString().endsWith(".log")).findFirst().get();
+        }
+        try (FileOutputStream out = new FileOutputStream(segment.toFile(), true)) {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3}); // Length of a 40 byte entry, then only part of it
+        }
+        long sizeWithTornEntry = Files.size(segment);
+
+        StationStore recovered = restart(folder, new LamportClock());
+        assertEquals("id:IDS1\n", recovered.get("1").text());
+        assertTrue(Files.size(segment) < sizeWithTornEntry); // Torn entry removed
+    }
+
+    @Test
+    // Performance test: lanes PUTting at the same time share fsyncs (group commit)
+    void groupCommitTest() throws IOException, InterruptedException {
+        Path folder = Files.createTempDirectory("wal");
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        WriteAheadLog wal = new WriteAheadLog(folder.resolve("wal"), store, new LamportClock());
+        wal.recover();
+        int threads = 8;
+        int putsPerThread = 200;
+        ExecutorService exec = Executors.newFixedThreadPool(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; ++t) {
+            String stationID = Integer.toString(t);
+            exec.submit(() -> {
+                for (int i = 0; i < putsPerThread; ++i) {
+                    put(wal, store, stationID, i, entries("id", "IDS" + stationID, "air_temp", Integer.toString(i)));
+                }
+                return null;
+            });
+        }
+        exec.shutdown();
+        assertTrue(exec.awaitTermination(120, TimeUnit.SECONDS));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println("Group commit: " + wal.getAppends() + " synced PUTs with " + wal.getFsyncs() + " fsyncs, "
+                + (int) (wal.getAppends() / seconds) + " PUTs/s");
+        assertEquals(threads * putsPerThread, wal.getAppends());
+        assertTrue(wal.getFsyncs() < wal.getAppends());
+    }
+
+    @Test
+    // Unit test: full segments are compacted into a snapshot, and recovery from snapshot + remaining log is the same
+    void compactionTest() throws IOException, InterruptedException {
+        Path folder = Files.createTempDirectory("wal");
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        WriteAheadLog wal = new WriteAheadLog(folder.resolve("wal"), store, new LamportClock());
+        wal.setSegmentSize(4096);
+        wal.setCompactAfterSegments(2);
+        wal.recover();
+        for (int i = 0; i < 2000; ++i) {
+            put(wal, store, Integer.toString(i % 10), i, entries("id", "IDS" + (i % 10), "air_temp", Integer.toString(i)));
+        }
+        Thread.sleep(500); // Waits for the background compaction
+        wal.snapshot(); // Last compaction
+        assertTrue(countSegments(folder.resolve("wal")) <= 2); // Covered segments deleted
+
+        LamportClock clock = new LamportClock();
+        StationStore recovered = restart(folder, clock);
+        assertEquals(10, recovered.size());
+        for (int s = 0; s < 10; ++s) {
+            assertEquals(store.get(Integer.toString(s)).text(), recovered.get(Integer.toString(s)).text());
+        }
+        assertTrue(clock.getTime() >= 1999);
+    }
+
+    @Test
+    @EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+    // Performance test: recovery time for a log of 1M entries (-Dwal.entries to change), replayed in full,
+    // then again from a snapshot of the same data. Only runs with -Dbenchmarks=true
+    void recoveryBenchmarkTest() throws IOException {
+        int numEntries = Integer.getInteger("wal.entries", 1000000);
+        int numStations = 1000;
+        Path folder = Files.createTempDirectory("wal");
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        WriteAheadLog wal = new WriteAheadLog(folder.resolve("wal"), store, new LamportClock());
+        wal.setCompactAfterSegments(0); // Keep every segment for the full replay
+        wal.recover();
+        long seq = 0;
+        for (int i = 0; i < numEntries; ++i) {
+            String stationID = Integer.toString(i % numStations);
+            seq = wal.appendPut(stationID, i, System.currentTimeMillis(),
+                    entries("id", "IDS" + stationID, "air_temp", Integer.toString(i % 50), "local_date_time_full", "20230715160000"));
+            wal.applied(seq);
+        }
+        wal.sync(seq);
+
+        long start = System.nanoTime();
+        LamportClock clock = new LamportClock();
+        StationStore replayed = restart(folder, clock);
+        long replayMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(numStations, replayed.size());
+        assertEquals(Integer.toString((numEntries - 1) % 50), replayed.get(Integer.toString((numEntries - 1) % numStations)).entries().get("air_temp"));
+        assertTrue(clock.getTime() >= numEntries - 1);
+
+        // Snapshot of the replayed data, then recover again: only the snapshot is read
+        WriteAheadLog compacted = new WriteAheadLog(folder.resolve("wal"), replayed, clock);
+        compacted.recover();
+        compacted.snapshot();
+        start = System.nanoTime();
+        StationStore fromSnapshot = restart(folder, new LamportClock());
+        long snapshotMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(numStations, fromSnapshot.size());
+        System.out.println("Recovery of " + numEntries + " log entries: full replay " + replayMillis + "ms, from snapshot "
+                + snapshotMillis + "ms");
+    }
+
+    @Test
+    // Integration test: a Content Server's PUT is logged before it is acknowledged, so a server started after a crash
+    // (no END, nothing flushed) on the same folder has the data, its real update time and a later Lamport time
+    void serverRecoveryTest() throws IOException, InterruptedException {
+        int port = ServerFixture.freePort();
+        String folder = fixture.folder("wal") + "/";
+        String stationID = Integer.toString(port);
+        AggregationServer as = fixture.startServer(port, server -> {
+            server.setDirectory(folder);
+            server.setWriteAheadLog(true);
+            server.getStore().setDurability(StationStore.Durability.MEMORY); // Only the log is on disk
+        }, true);
+
+        ContentServer cs = fixture.contentServer(stationID, port);
+        fixture.connect(cs);
+        cs.sendPUT(); // Blocked until acknowledged -> logged and synced
+        long updated = as.getStore().get(stationID).updatedMillis;
+        as.getServerSocket().close(); // Crashed: nothing flushed until the fixture shuts it down after the test
+
+        AggregationServer restarted = new AggregationServer();
+        restarted.setDirectory(folder);
+        restarted.setWriteAheadLog(true);
+        restarted.startWriteAheadLog();
+        assertNotNull(restarted.getStore().get(stationID));
+        assertTrue(restarted.getStore().get(stationID).text().contains("IDS60901"));
+        assertEquals(updated, (long) restarted.getCurrFiles().get(restarted.getStore().fileFor(stationID))); // Real update time
+        restarted.getWriteAheadLog().close();
+    }
+
+    @Test
+    // Unit test: with the log on, only the stations the log recovered are tracked for expiry, with their real update
+    // times. A station the log removed but whose file was left behind loses the deadline guessed for it at startup
+    void trackedStationsTest() throws IOException {
+        Path folder = Files.createTempDirectory("wal");
+        StationStore store = new StationStore(folder.toString() + "/");
+        store.setDurability(StationStore.Durability.MEMORY);
+        WriteAheadLog wal = new WriteAheadLog(folder.resolve("wal"), store, new LamportClock());
+        wal.recover();
+        put(wal, store, "1", 1, entries("id", "IDS1"));
+        put(wal, store, "2", 2, entries("id", "IDS2"));
+        long seq = wal.appendRemove("2", 3);
+        wal.sync(seq);
+        Files.writeString(folder.resolve("SERVER_DATA_2.txt"), "id:IDS2\n"); // Left behind by a crash
+
+        AggregationServer restarted = new AggregationServer();
+        restarted.setDirectory(folder.toString() + "/");
+        restarted.addToCurrentFiles(restarted.getStore().fileFor("2"), System.currentTimeMillis()); // As found at startup
+        restarted.setWriteAheadLog(true);
+        restarted.startWriteAheadLog();
+        assertEquals(Set.of(restarted.getStore().fileFor("1")), restarted.getCurrFiles().keySet());
+        assertEquals(store.get("1").updatedMillis, (long) restarted.getCurrFiles().get(restarted.getStore().fileFor("1")));
+        assertEquals(1, restarted.getExpiryQueueSize());
+        assertNull(restarted.getStore().get("2"));
+    }
+}